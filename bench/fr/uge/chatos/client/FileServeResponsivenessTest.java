@@ -0,0 +1,199 @@
+package fr.uge.chatos.client;
+
+import fr.uge.chatos.server.Server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A test of the responsiveness of the chat while a file is served : a server is started
+ * in this process, and three sessions share one reactor. One of them downloads a file of
+ * {@code megabytes} MB (1 024 by default) from another one on a private connection, while
+ * the third one sends latency probes to itself every {@code chatos.probe.interval} ms
+ * (20 by default).
+ * <p>
+ *     It measures the probes without transfer, for {@code chatos.bench.idle} seconds
+ *     (5 by default), then during the transfer. Since the file is read and written by the
+ *     file workers ({@code chatos.io.threads}), the probes must not wait for it : the test
+ *     fails unless the p99 during the transfer stays within {@code chatos.bench.factor}
+ *     times the p99 without transfer (3 by default), plus {@code chatos.bench.margin} ms
+ *     (20 by default). It also fails if the private connection is not established, if the
+ *     transfer does not end within 10 minutes or if the copy differs from the original.
+ * </p>
+ * <p>
+ *     The test exits with status 1 if it fails.
+ * </p>
+ */
+public class FileServeResponsivenessTest {
+    private static final String FILENAME = "serve.bin";
+    private static final long TRANSFER_TIMEOUT = TimeUnit.MINUTES.toNanos(10);
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage : FileServeResponsivenessTest <public_port> <private_port> [megabytes]");
+            return;
+        }
+        int port, privatePort, megabytes;
+        try {
+            port = Integer.parseInt(args[0]);
+            privatePort = Integer.parseInt(args[1]);
+            megabytes = args.length > 2 ? Integer.parseInt(args[2]) : 1_024;
+        } catch (NumberFormatException e) {
+            System.err.println("The arguments must be Integers.");
+            return;
+        }
+        startServer(port, privatePort);
+        var ownerRepository = Files.createTempDirectory("chatos-owner");
+        var readerRepository = Files.createTempDirectory("chatos-reader");
+        var timer = Executors.newSingleThreadScheduledExecutor();
+        String failure;
+        try (var reactor = new ChatReactor().start()) {
+            failure = run(reactor, new InetSocketAddress("localhost", port), megabytes, ownerRepository,
+                    readerRepository, timer);
+        } finally {
+            timer.shutdownNow();
+            delete(ownerRepository);
+            delete(readerRepository);
+        }
+        if (failure != null) {
+            System.out.println("ÉCHEC : " + failure);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the test.
+     *
+     * @return the reason of the failure, or {@code null} if the test succeeds
+     */
+    private static String run(ChatReactor reactor, InetSocketAddress address, int megabytes, Path ownerRepository,
+                              Path readerRepository, ScheduledExecutorService timer)
+            throws IOException, InterruptedException, ExecutionException {
+        var interval = Long.getLong("chatos.probe.interval", 20);
+        var idle = Long.getLong("chatos.bench.idle", 5);
+        var factor = Integer.getInteger("chatos.bench.factor", 3);
+        var margin = TimeUnit.MILLISECONDS.toMicros(Long.getLong("chatos.bench.margin", 20));
+        var original = ownerRepository.resolve(FILENAME);
+        var size = createFile(original, (long) megabytes << 20);
+
+        var window = new AtomicReference<>(new LatencyStats());
+        var chat = ChatClient.connect(reactor, "chat", address, readerRepository, new ChatListener() {
+            @Override
+            public void onLatencyProbe(LatencySample sample) {
+                window.get().record(sample);
+            }
+        }).get();
+        var owner = new AtomicReference<ChatClient>();
+        owner.set(ChatClient.connect(reactor, "owner", address, ownerRepository, new ChatListener() {
+            @Override
+            public void onPrivateConnectionRequest(String sender) {
+                owner.get().answerPrivateConnection(sender, true);
+            }
+        }).get());
+        var established = new CompletableFuture<Void>();
+        var reader = ChatClient.connect(reactor, "reader", address, readerRepository, new ChatListener() {
+            @Override
+            public void onPrivateConnectionEstablished(String recipient) {
+                established.complete(null);
+            }
+        }).get();
+        reader.requestPrivateConnection("owner");
+        try {
+            established.get(10, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            return "connexion privée non établie";
+        }
+
+        timer.scheduleAtFixedRate(() -> chat.sendLatencyProbe("chat"), 0, interval, TimeUnit.MILLISECONDS);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+        window.set(new LatencyStats()); // préchauffage, ignoré
+        Thread.sleep(TimeUnit.SECONDS.toMillis(idle));
+        var baseline = window.getAndSet(new LatencyStats());
+        System.out.println("Sans transfert : " + baseline);
+
+        var copy = readerRepository.resolve(FILENAME);
+        var start = System.nanoTime();
+        reader.sendCommand("/owner " + FILENAME);
+        while (!Files.exists(copy) || Files.size(copy) < size) { // le fichier est écrit au fil de la réception
+            if (System.nanoTime() - start > TRANSFER_TIMEOUT) {
+                return "transfert incomplet après " + (Files.exists(copy) ? Files.size(copy) : 0) + " octets";
+            }
+            Thread.sleep(interval);
+        }
+        var seconds = (System.nanoTime() - start) / 1e9;
+        timer.shutdownNow();
+        var loaded = window.get();
+        System.out.printf("Pendant le service de %d Mo en %.1f s : %s%n", megabytes, seconds, loaded);
+        if (Files.mismatch(original, copy) != -1) {
+            return "la copie diffère de l'original";
+        }
+        System.out.println("Copie conforme");
+
+        if (baseline.count() == 0 || loaded.count() == 0) {
+            return "aucune sonde reçue " + (baseline.count() == 0 ? "sans transfert" : "pendant le transfert");
+        }
+        var bound = factor * baseline.deliveryPercentile(99) + margin;
+        if (loaded.deliveryPercentile(99) > bound) {
+            return "p99 de " + loaded.deliveryPercentile(99) + " µs pendant le transfert, au-delà de " + bound
+                    + " µs (" + factor + " × " + baseline.deliveryPercentile(99) + " µs + " + margin + " µs)";
+        }
+        System.out.println("p99 pendant le transfert dans la limite de " + bound + " µs");
+        return null;
+    }
+
+    private static void startServer(int port, int privatePort) throws IOException {
+        var server = new Server(port, privatePort); // les ports sont liés ici
+        var thread = new Thread(() -> {
+            try {
+                server.launch();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Writes a file of random bytes, which are not compressed by the transfer.
+     *
+     * @return the size of the file
+     */
+    private static long createFile(Path path, long size) throws IOException {
+        var chunk = ByteBuffer.allocate(1 << 20);
+        var random = new Random(size);
+        try (var out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            for (var written = 0L; written < size; ) {
+                random.nextBytes(chunk.array());
+                chunk.clear().limit((int) Math.min(chunk.capacity(), size - written));
+                while (chunk.hasRemaining()) {
+                    written += out.write(chunk);
+                }
+            }
+        }
+        return size;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (var paths = Files.walk(directory)) {
+            for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package fr.uge.chatos.client;
+
+import fr.uge.chatos.context.ClientPrivateContext;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.Random;
+
+/**
+ * A microbenchmark of the dispatch of the private connections by ID : for each number of
+ * sessions given on the command line (10, 100, 1 000 and 10 000 by default), a client
+ * holds that many private connections, and the benchmark measures the mean time of
+ * {@link Client#getPrivateConnection(long)} against the scan of the connections indexed
+ * by recipient only, as it was done before.
+ * <p>
+ *     The index looks up {@code chatos.bench.lookups} random IDs (1 000 000 by default), and
+ *     the scan fewer of them as the number of sessions grows, each after a warm-up of the
+ *     same length.
+ * </p>
+ */
+public class PrivateLookupBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes;
+        try {
+            sizes = args.length == 0
+                    ? new int[] { 10, 100, 1_000, 10_000 }
+                    : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+        } catch (NumberFormatException e) {
+            System.err.println("The arguments must be Integers.");
+            return;
+        }
+        var lookups = Integer.getInteger("chatos.bench.lookups", 1_000_000);
+        var repository = Files.createTempDirectory("chatos-lookup");
+        try (var reactor = new ChatReactor(); var socket = SocketChannel.open()) {
+            socket.configureBlocking(false);
+            // une seule clé pour tous les contextes : ils ne sont jamais connectés
+            var key = socket.register(reactor.selector(), 0);
+            for (var size : sizes) {
+                run(size, lookups, reactor, key, repository.toString());
+            }
+        } finally {
+            Files.deleteIfExists(repository); // rien n'y est écrit
+        }
+    }
+
+    private static void run(int size, int lookups, ChatReactor reactor, SelectionKey key, String repository)
+            throws IOException {
+        var client = new Client("bot", new InetSocketAddress("localhost", 0), repository, reactor, new ChatListener() { });
+        var byRecipient = new HashMap<String, Client.PrivateConnection>(); // l'ancien index
+        for (long id = 1; id <= size; id++) {
+            client.registerPrivateConnection("user" + id, id, new ClientPrivateContext(key, client, id));
+            var pc = client.getPrivateConnection(id).orElseThrow();
+            byRecipient.put(pc.getRecipient(), pc);
+        }
+        var ids = new Random(size).longs(lookups, 1, size + 1).toArray();
+        // le parcours est quadratique sur la durée totale : moins de recherches pour les grandes tailles
+        var scanned = Math.max(1_000, (int) Math.min(lookups, 100L * lookups / size));
+
+        measure(ids, lookups, client::getPrivateConnection); // préchauffage
+        var indexed = measure(ids, lookups, client::getPrivateConnection);
+        measure(ids, scanned, id -> scan(byRecipient, id));
+        var scan = measure(ids, scanned, id -> scan(byRecipient, id));
+        System.out.printf("%,6d connexion(s) : index %,.0f ns, parcours %,.0f ns par recherche (x%.0f)%n",
+                size, indexed, scan, scan / indexed);
+    }
+
+    private static Optional<Client.PrivateConnection> scan(HashMap<String, Client.PrivateConnection> byRecipient, long id) {
+        return byRecipient.values().stream().filter(pc -> pc.getId() == id).findFirst();
+    }
+
+    @FunctionalInterface
+    private interface Lookup {
+        Optional<Client.PrivateConnection> find(long id);
+    }
+
+    /**
+     * Looks up the first {@code count} IDs.
+     *
+     * @return the mean time of a lookup, in nanoseconds
+     */
+    private static double measure(long[] ids, int count, Lookup lookup) {
+        var found = 0L;
+        var start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            found += lookup.find(ids[i]).map(Client.PrivateConnection::getId).orElse(-1L);
+        }
+        var elapsed = System.nanoTime() - start;
+        if (found <= 0) {
+            throw new AssertionError("connection not found"); // garde aussi le résultat en vie
+        }
+        return (double) elapsed / count;
+    }
+}
@@ -0,0 +1,127 @@
+package fr.uge.chatos.server;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stress test of the flow control of the relay : a server is started in this process
+ * and one client of a private connection sends as fast as it can, while the other one
+ * does not read anything for {@code seconds} seconds.
+ * <p>
+ *     Every second, it prints the bytes accepted from the sender and the heap and direct
+ *     memory used by the process : they must stop growing once the watermarks
+ *     ({@code chatos.relay.highWatermark}) and the socket buffers are full. The receiver
+ *     then reads everything, and the test checks that every byte sent arrives.
+ * </p>
+ */
+public class BackpressureBenchmark {
+    private static final int CHUNK_SIZE = 64 * 1_024;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage : BackpressureBenchmark <public_port> <private_port> [seconds]");
+            return;
+        }
+        int port, privatePort, seconds;
+        try {
+            port = Integer.parseInt(args[0]);
+            privatePort = Integer.parseInt(args[1]);
+            seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        } catch (NumberFormatException e) {
+            System.err.println("The arguments must be Integers.");
+            return;
+        }
+        BenchmarkPeer.startServer(port, privatePort);
+        var publicAddress = new InetSocketAddress("localhost", port);
+        var sender = BenchmarkPeer.connect(publicAddress, "sender");
+        var receiver = BenchmarkPeer.connect(publicAddress, "receiver");
+        var sockets = BenchmarkPeer.openPrivateConnection(sender, receiver, new InetSocketAddress("localhost", privatePort));
+        var source = sockets[0];
+        var sink = sockets[1];
+        source.configureBlocking(false);
+
+        var chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        var sent = 0L;
+        var plateau = 0L; // octets acceptés à la moitié de l'attente
+        var end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        var nextReport = System.nanoTime();
+        for (int second = 0; System.nanoTime() < end; ) {
+            sent += fill(source, chunk);
+            if (System.nanoTime() >= nextReport) {
+                System.out.printf("%2d s : %,d octets acceptés, tas %,d Ko, mémoire directe %,d Ko%n",
+                        second, sent, heapUsed() >> 10, directUsed() >> 10);
+                if (second == seconds / 2) {
+                    plateau = sent;
+                }
+                second++;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+            Thread.sleep(10);
+        }
+        System.out.println(sent == plateau
+                ? "Plateau atteint : " + sent + " octets en attente pour le destinataire bloqué"
+                : "PAS DE PLATEAU : " + (sent - plateau) + " octets acceptés pendant la seconde moitié");
+
+        var received = drain(sink, source, chunk, sent);
+        System.out.println(received == sent
+                ? "Reprise : les " + received + " octets sont arrivés"
+                : "ERREUR : " + received + " octets reçus sur " + sent);
+        source.close();
+        sink.close();
+        sender.close();
+        receiver.close();
+    }
+
+    /**
+     * Writes as many bytes as the socket accepts without blocking.
+     */
+    private static long fill(SocketChannel source, ByteBuffer chunk) throws IOException {
+        var written = 0L;
+        for (;;) {
+            chunk.clear();
+            var n = source.write(chunk);
+            written += n;
+            if (n < CHUNK_SIZE) {
+                return written;
+            }
+        }
+    }
+
+    /**
+     * Reads what is pending for the receiver, then closes the sender and reads the rest.
+     *
+     * @return the number of bytes received
+     */
+    private static long drain(SocketChannel sink, SocketChannel source, ByteBuffer chunk, long expected) throws IOException {
+        source.shutdownOutput();
+        var received = 0L;
+        while (received < expected) {
+            var read = sink.read(chunk.clear());
+            if (read == -1) {
+                break;
+            }
+            received += read;
+        }
+        return received;
+    }
+
+    private static long heapUsed() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long directUsed() {
+        var used = 0L;
+        for (var pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                used += pool.getMemoryUsed();
+            }
+        }
+        return used;
+    }
+}
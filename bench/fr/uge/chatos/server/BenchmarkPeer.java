@@ -0,0 +1,168 @@
+package fr.uge.chatos.server;
+
+import fr.uge.chatos.packet.ConnectionConfirmation;
+import fr.uge.chatos.packet.PCRequest;
+import fr.uge.chatos.packet.PCSockets;
+import fr.uge.chatos.packet.Packet;
+import fr.uge.chatos.packet.Packets;
+import fr.uge.chatos.reader.ClientPacketReader;
+import fr.uge.chatos.utils.OpCode;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Objects;
+
+/**
+ * A blocking client of the public port, used by the benchmarks of the server to open
+ * sessions and private connections without the selector of the real client.
+ * <p>
+ *     The packets it does not wait for are dropped.
+ * </p>
+ */
+class BenchmarkPeer implements Closeable {
+    private final SocketChannel socket;
+    private final String login;
+    private final ClientPacketReader reader = new ClientPacketReader();
+    private final ByteBuffer buffer = ByteBuffer.allocate(4_096);
+
+    private BenchmarkPeer(SocketChannel socket, String login) {
+        this.socket = socket;
+        this.login = login;
+    }
+
+    /**
+     * Starts a server on a daemon thread.
+     *
+     * @param port the public port
+     * @param privatePort the private port
+     * @return the server, whose main loop runs on the {@code server} thread
+     * @throws IOException if the ports can not be bound
+     */
+    static Server startServer(int port, int privatePort) throws IOException {
+        var server = new Server(port, privatePort); // les ports sont liés ici
+        var thread = new Thread(() -> {
+            try {
+                server.launch();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "server");
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    /**
+     * Opens a session on the public port.
+     *
+     * @param server the address of the public port
+     * @param login the login of the session
+     * @return the connected peer
+     * @throws IOException if the session is refused or an I/O error occurs
+     */
+    static BenchmarkPeer connect(InetSocketAddress server, String login) throws IOException {
+        var peer = new BenchmarkPeer(SocketChannel.open(server), Objects.requireNonNull(login));
+        peer.send(Packets.ofRequestConnection(login));
+        if (peer.await(ConnectionConfirmation.class).confirm != ConnectionConfirmation.ACCEPTED) {
+            peer.close();
+            throw new IOException("Connection refused for " + login);
+        }
+        return peer;
+    }
+
+    /**
+     * Opens a private connection between two sessions and authenticates both of its sockets.
+     *
+     * @param sender the session asking for the connection
+     * @param recipient the session accepting it
+     * @param privatePort the address of the private port
+     * @return the private sockets of {@code sender} and of {@code recipient}, relayed by the server
+     * @throws IOException If some other I/O error occurs.
+     */
+    static SocketChannel[] openPrivateConnection(BenchmarkPeer sender, BenchmarkPeer recipient,
+                                                 InetSocketAddress privatePort) throws IOException {
+        sender.send(Packets.ofPrivateConnectionSender(recipient.login));
+        recipient.await(PCRequest.class);
+        recipient.send(Packets.ofPrivateConnectionReply(sender.login, (byte) 1));
+        var id = sender.await(PCSockets.class).id;
+        recipient.await(PCSockets.class);
+        var sockets = new SocketChannel[] { SocketChannel.open(privatePort), SocketChannel.open(privatePort) };
+        write(sockets[0], Packets.ofAuthentication(id, sender.login));
+        write(sockets[1], Packets.ofAuthentication(id, recipient.login));
+        for (var socket : sockets) {
+            // juste la confirmation : les données relayées peuvent la suivre
+            var confirmation = ByteBuffer.allocate(2 * Byte.BYTES + Long.BYTES);
+            while (confirmation.hasRemaining()) {
+                if (socket.read(confirmation) == -1) {
+                    throw new EOFException("Private connection " + id + " refused");
+                }
+            }
+            if (confirmation.get(0) != OpCode.PRIVATE_CONNECTION_CONFIRMATION || confirmation.get(9) != 1) {
+                throw new IOException("Private connection " + id + " refused");
+            }
+        }
+        return sockets;
+    }
+
+    /**
+     * Sends a frame built by {@link Packets}.
+     *
+     * @param frame the frame, in <b>write-mode</b>
+     * @throws IOException If some other I/O error occurs.
+     */
+    void send(ByteBuffer frame) throws IOException {
+        write(socket, frame);
+    }
+
+    private static void write(SocketChannel socket, ByteBuffer frame) throws IOException {
+        frame.flip();
+        while (frame.hasRemaining()) {
+            socket.write(frame);
+        }
+    }
+
+    /**
+     * Reads packets until one of the given type is received.
+     *
+     * @param type the type of the expected packet
+     * @return the packet
+     * @throws IOException if the server closes the connection or sends an invalid packet
+     */
+    <T extends Packet> T await(Class<T> type) throws IOException {
+        for (;;) {
+            switch (reader.process(buffer)) {
+                case DONE -> {
+                    var packet = reader.get();
+                    reader.reset();
+                    if (type.isInstance(packet)) {
+                        return type.cast(packet);
+                    }
+                }
+                case REFILL -> {
+                    if (socket.read(buffer) == -1) {
+                        throw new EOFException("Connection closed by the server");
+                    }
+                }
+                case ERROR -> throw new IOException("Invalid packet from the server");
+            }
+        }
+    }
+
+    String getLogin() {
+        return login;
+    }
+
+    SocketChannel getSocket() {
+        return socket;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
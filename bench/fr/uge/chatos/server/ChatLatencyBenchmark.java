@@ -0,0 +1,142 @@
+package fr.uge.chatos.server;
+
+import fr.uge.chatos.packet.LatencyProbe;
+import fr.uge.chatos.packet.Packets;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A benchmark of the latency of the chat while private connections relay bulk transfers :
+ * a server is started in this process, a session sends latency probes to itself every
+ * {@code chatos.probe.interval} ms (20 by default) and measures their round trip, first
+ * without traffic, then while {@code transfers} private connections send as fast as they can.
+ * <p>
+ *     Run it with {@code -Dchatos.relay.workers=0} to relay the transfers on the main loop,
+ *     and with one or more workers to relay them on their own threads.
+ * </p>
+ */
+public class ChatLatencyBenchmark {
+    private static final int CHUNK_SIZE = 64 * 1_024;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2 || args.length > 4) {
+            System.err.println("Usage : ChatLatencyBenchmark <public_port> <private_port> [transfers] [seconds]");
+            return;
+        }
+        int port, privatePort, transfers, seconds;
+        try {
+            port = Integer.parseInt(args[0]);
+            privatePort = Integer.parseInt(args[1]);
+            transfers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+            seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        } catch (NumberFormatException e) {
+            System.err.println("The arguments must be Integers.");
+            return;
+        }
+        var interval = Long.getLong("chatos.probe.interval", 20);
+        BenchmarkPeer.startServer(port, privatePort);
+        var publicAddress = new InetSocketAddress("localhost", port);
+        var privateAddress = new InetSocketAddress("localhost", privatePort);
+        var chat = BenchmarkPeer.connect(publicAddress, "chat");
+        var pairs = new ArrayList<SocketChannel[]>();
+        for (int i = 0; i < transfers; i++) {
+            var sender = BenchmarkPeer.connect(publicAddress, "sender" + i);
+            var receiver = BenchmarkPeer.connect(publicAddress, "receiver" + i);
+            pairs.add(BenchmarkPeer.openPrivateConnection(sender, receiver, privateAddress));
+        }
+        System.out.println("Workers de relais : " + Integer.getInteger("chatos.relay.workers", 1));
+
+        probe(chat, 1, interval); // préchauffage, ignoré
+        System.out.println("Sans transfert : " + summary(probe(chat, seconds, interval)));
+
+        var relayed = new AtomicLong();
+        var threads = new ArrayList<Thread>();
+        for (var pair : pairs) {
+            threads.add(new Thread(() -> pump(pair[0])));
+            threads.add(new Thread(() -> drain(pair[1], relayed)));
+        }
+        threads.forEach(Thread::start);
+        var start = System.nanoTime();
+        var loaded = probe(chat, seconds, interval);
+        var elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Pendant %d transfert(s) à %.0f Mo/s : %s%n",
+                transfers, relayed.get() / elapsed / (1 << 20), summary(loaded));
+        for (var pair : pairs) {
+            pair[0].close(); // la fermeture est propagée au destinataire
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        chat.close();
+    }
+
+    /**
+     * Sends probes for {@code seconds} seconds and measures their round trip.
+     *
+     * @return the round trips, in microseconds
+     */
+    private static List<Long> probe(BenchmarkPeer chat, int seconds, long interval) throws IOException, InterruptedException {
+        var rounds = new ArrayList<Long>();
+        var end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        for (long sequence = 0; System.nanoTime() < end; sequence++) {
+            var start = System.nanoTime();
+            chat.send(Packets.ofLatencyProbeSender(chat.getLogin(), sequence, LatencyProbe.now()));
+            while (chat.await(LatencyProbe.class).sequence != sequence) {
+                // sonde d'un tour précédent
+            }
+            rounds.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            Thread.sleep(interval);
+        }
+        return rounds;
+    }
+
+    private static String summary(List<Long> rounds) {
+        var sorted = rounds.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        return sorted.length + " sonde(s), p50=" + percentile(sorted, 50) + " µs, p99=" + percentile(sorted, 99)
+                + " µs, max=" + (sorted.length == 0 ? 0 : sorted[sorted.length - 1]) + " µs";
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        var index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static void pump(SocketChannel socket) {
+        var chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        try {
+            for (;;) {
+                socket.write(chunk.clear());
+            }
+        } catch (IOException e) {
+            // socket fermée à la fin du benchmark
+        }
+    }
+
+    private static void drain(SocketChannel socket, AtomicLong relayed) {
+        var chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        try {
+            int read;
+            while ((read = socket.read(chunk.clear())) != -1) {
+                relayed.addAndGet(read);
+            }
+        } catch (IOException e) {
+            // connexion fermée par le serveur
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) { }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package fr.uge.chatos.server;
+
+import fr.uge.chatos.packet.PCRequest;
+import fr.uge.chatos.packet.Packets;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * A soak test of the expiration of the private connections : a server is started in
+ * this process with short timeouts, and sessions are created and abandoned in a loop
+ * for {@code seconds} seconds (60 by default). Each iteration leaves behind :
+ * <ul>
+ *     <li>a private connection used then closed by both clients ;</li>
+ *     <li>a private connection closed by one client only ;</li>
+ *     <li>a private connection left idle ;</li>
+ *     <li>a private connection never accepted ;</li>
+ *     <li>a socket of the private port which never authenticates.</li>
+ * </ul>
+ * <p>
+ *     The iterations are paced at {@code chatos.bench.rate} per second (50 by default).
+ *     Every second, the test reads the sizes of the registry given by the {@code stats}
+ *     command : the private connections, the connected and detached sessions and the
+ *     delays of the reaper. Once the warm-up is over ({@code chatos.bench.warmup}, 15 s by
+ *     default), the sizes are the baseline, and the test fails if one of them grows beyond
+ *     it by more than {@code chatos.bench.tolerance} percent (25 by default). Once the
+ *     churn stops, it fails unless every size falls to zero within
+ *     {@code chatos.bench.drain} seconds (15 by default).
+ * </p>
+ * <p>
+ *     The timeouts are those of the server, shortened to 1 or 2 seconds unless they are
+ *     set on the command line. The sizes are printed every {@code chatos.bench.report}
+ *     seconds (5 by default), and the test exits with status 1 if it fails.
+ * </p>
+ */
+public class ReaperSoakTest {
+    private static final long KEPT_SOCKETS_DELAY = TimeUnit.SECONDS.toNanos(10); // au-delà des délais raccourcis
+    private static final int SLACK = 16; // deux itérations de sessions, pour les petites tailles
+    private static final Pattern STATS = Pattern.compile("(\\d+) connexion\\(s\\) privée\\(s\\), (\\d+) client\\(s\\) "
+            + "connecté\\(s\\), (\\d+) en attente de reprise, (\\d+) délai\\(s\\) en cours");
+
+    private record Kept(long since, SocketChannel socket) { }
+
+    /**
+     * The sizes of the registry of the server, in the order of the {@code stats} command.
+     */
+    private record Registry(int[] sizes) {
+        private static final String[] NAMES = { "connexions privées", "clients connectés", "sessions en attente de reprise",
+                "délais en cours" };
+
+        static Registry of(Server server) {
+            var line = server.adminCommand("stats").join().lines().findFirst().orElse("");
+            var matcher = STATS.matcher(line);
+            if (!matcher.lookingAt()) {
+                throw new IllegalStateException("Unexpected stats line : " + line);
+            }
+            var sizes = new int[NAMES.length];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = Integer.parseInt(matcher.group(i + 1));
+            }
+            return new Registry(sizes);
+        }
+
+        /**
+         * Returns the first size beyond its limit, or {@code null} if every size is within its limit.
+         */
+        String exceeding(Registry baseline, int tolerance) {
+            for (int i = 0; i < sizes.length; i++) {
+                var limit = baseline.sizes[i] + baseline.sizes[i] * tolerance / 100 + SLACK;
+                if (sizes[i] > limit) {
+                    return NAMES[i] + " : " + sizes[i] + " au-delà de " + limit + " (référence " + baseline.sizes[i] + ")";
+                }
+            }
+            return null;
+        }
+
+        boolean isEmpty() {
+            for (var size : sizes) {
+                if (size != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return sizes[0] + " connexion(s) privée(s), " + sizes[1] + " client(s) connecté(s), " + sizes[2]
+                    + " en attente de reprise, " + sizes[3] + " délai(s) en cours";
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage : ReaperSoakTest <public_port> <private_port> [seconds]");
+            return;
+        }
+        int port, privatePort, seconds;
+        try {
+            port = Integer.parseInt(args[0]);
+            privatePort = Integer.parseInt(args[1]);
+            seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        } catch (NumberFormatException e) {
+            System.err.println("The arguments must be Integers.");
+            return;
+        }
+        setDefault("chatos.auth.timeout", "1000");
+        setDefault("chatos.private.pendingTimeout", "2000");
+        setDefault("chatos.private.idleTimeout", "2000");
+        setDefault("chatos.private.halfClosedTimeout", "1000");
+        setDefault("chatos.resume.grace", "1000");
+        setDefault("chatos.reaper.tick", "100");
+        var report = TimeUnit.SECONDS.toNanos(Long.getLong("chatos.bench.report", 5));
+        var period = TimeUnit.SECONDS.toNanos(1) / Math.max(1, Integer.getInteger("chatos.bench.rate", 50));
+        var warmup = TimeUnit.SECONDS.toNanos(Long.getLong("chatos.bench.warmup", 15));
+        var tolerance = Integer.getInteger("chatos.bench.tolerance", 25);
+        var drain = Long.getLong("chatos.bench.drain", 15);
+        if (TimeUnit.SECONDS.toNanos(seconds) <= warmup) {
+            System.err.println("The churn must last longer than the warm-up (" + TimeUnit.NANOSECONDS.toSeconds(warmup)
+                    + " s).");
+            return;
+        }
+        var server = BenchmarkPeer.startServer(port, privatePort);
+        var publicAddress = new InetSocketAddress("localhost", port);
+        var privateAddress = new InetSocketAddress("localhost", privatePort);
+
+        var kept = new ArrayDeque<Kept>(); // sockets que seul le serveur doit fermer
+        var start = System.nanoTime();
+        var end = start + TimeUnit.SECONDS.toNanos(seconds);
+        var next = start;
+        var nextSample = start + TimeUnit.SECONDS.toNanos(1);
+        var nextReport = start;
+        Registry baseline = null;
+        String failure = null;
+        var iterations = 0;
+        while (failure == null && System.nanoTime() < end) {
+            var late = System.nanoTime() - next;
+            if (late < 0) {
+                TimeUnit.NANOSECONDS.sleep(-late);
+            }
+            next = Math.max(next + period, System.nanoTime() - period); // pas de rattrapage après un retard
+            var now = System.nanoTime();
+            churn(iterations++, publicAddress, privateAddress, kept, now);
+            while (!kept.isEmpty() && now - kept.peek().since() > KEPT_SOCKETS_DELAY) {
+                kept.poll().socket().close();
+            }
+            if (now < nextSample) {
+                continue;
+            }
+            nextSample += TimeUnit.SECONDS.toNanos(1);
+            var registry = Registry.of(server);
+            if (now >= nextReport) {
+                System.out.println(TimeUnit.NANOSECONDS.toSeconds(now - start) + " s, " + iterations
+                        + " itération(s) : " + registry);
+                nextReport += report;
+            }
+            if (baseline != null) {
+                failure = registry.exceeding(baseline, tolerance);
+            } else if (now - start >= warmup) {
+                baseline = registry;
+                System.out.println("Référence après le préchauffage : " + baseline);
+            }
+        }
+        if (failure != null) {
+            fail("le registre grandit pendant l'activité, " + failure);
+        }
+        System.out.println("Fin de l'activité après " + iterations + " itération(s), registre stable");
+
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drain);
+        var registry = Registry.of(server);
+        while (!registry.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+            registry = Registry.of(server);
+        }
+        for (var socket : kept) {
+            socket.socket().close();
+        }
+        if (!registry.isEmpty()) {
+            fail("le registre n'est pas vide " + drain + " s après l'activité : " + registry);
+        }
+        System.out.println("Registre vide après l'activité");
+    }
+
+    private static void churn(int iteration, InetSocketAddress publicAddress, InetSocketAddress privateAddress,
+                              ArrayDeque<Kept> kept, long now) throws IOException {
+        var peers = new BenchmarkPeer[8];
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = BenchmarkPeer.connect(publicAddress, "soak" + iteration + "-" + i);
+        }
+        try {
+            var finished = BenchmarkPeer.openPrivateConnection(peers[0], peers[1], privateAddress);
+            finished[0].write(ByteBuffer.wrap(new byte[128]));
+            finished[0].close();
+            finished[1].close();
+
+            var halfClosed = BenchmarkPeer.openPrivateConnection(peers[2], peers[3], privateAddress);
+            halfClosed[0].close();
+            kept.add(new Kept(now, halfClosed[1]));
+
+            var idle = BenchmarkPeer.openPrivateConnection(peers[4], peers[5], privateAddress);
+            kept.add(new Kept(now, idle[0]));
+            kept.add(new Kept(now, idle[1]));
+
+            peers[6].send(Packets.ofPrivateConnectionSender(peers[7].getLogin()));
+            peers[7].await(PCRequest.class); // jamais acceptée
+
+            kept.add(new Kept(now, SocketChannel.open(privateAddress))); // jamais authentifiée
+        } finally {
+            for (var peer : peers) {
+                peer.close();
+            }
+        }
+    }
+
+    private static void fail(String message) {
+        System.out.println("ÉCHEC : " + message);
+        System.exit(1);
+    }
+
+    private static void setDefault(String property, String value) {
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, value);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package fr.uge.chatos.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+/**
+ * A benchmark of the relay of the private connections : a server is started in this
+ * process, and each private connection carries {@code megabytes} MB from one client
+ * to the other, as fast as they can be written and read.
+ * <p>
+ *     It prints the throughput of all the connections together, and the throughput per
+ *     core : the bytes relayed per second of CPU time of the threads of the server (its
+ *     main loop and its relay workers, see {@code chatos.relay.workers}).
+ * </p>
+ */
+public class RelayBenchmark {
+    private static final int CHUNK_SIZE = 64 * 1_024;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2 || args.length > 4) {
+            System.err.println("Usage : RelayBenchmark <public_port> <private_port> [megabytes] [connections]");
+            return;
+        }
+        int port, privatePort, megabytes, connections;
+        try {
+            port = Integer.parseInt(args[0]);
+            privatePort = Integer.parseInt(args[1]);
+            megabytes = args.length > 2 ? Integer.parseInt(args[2]) : 512;
+            connections = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        } catch (NumberFormatException e) {
+            System.err.println("The arguments must be Integers.");
+            return;
+        }
+        BenchmarkPeer.startServer(port, privatePort);
+        var publicAddress = new InetSocketAddress("localhost", port);
+        var privateAddress = new InetSocketAddress("localhost", privatePort);
+        var pairs = new ArrayList<SocketChannel[]>();
+        for (int i = 0; i < connections; i++) {
+            var sender = BenchmarkPeer.connect(publicAddress, "sender" + i);
+            var receiver = BenchmarkPeer.connect(publicAddress, "receiver" + i);
+            pairs.add(BenchmarkPeer.openPrivateConnection(sender, receiver, privateAddress));
+        }
+
+        var bytes = (long) megabytes << 20;
+        var threads = new ArrayList<Thread>();
+        for (var pair : pairs) {
+            threads.add(new Thread(() -> pump(pair[0], bytes)));
+            threads.add(new Thread(() -> drain(pair[1], bytes)));
+        }
+        var cpu = serverCpuTime();
+        var start = System.nanoTime();
+        threads.forEach(Thread::start);
+        for (var thread : threads) {
+            thread.join();
+        }
+        var seconds = (System.nanoTime() - start) / 1e9;
+        var cpuSeconds = (serverCpuTime() - cpu) / 1e9;
+        var total = (double) megabytes * connections;
+        System.out.printf("%d connexion(s), %d Mo relayés en %.2f s : %.0f Mo/s, %.0f Mo/s par cœur (%.2f s de CPU du serveur)%n",
+                connections, megabytes * connections, seconds, total / seconds, total / cpuSeconds, cpuSeconds);
+        for (var pair : pairs) {
+            pair[0].close();
+            pair[1].close();
+        }
+    }
+
+    private static void pump(SocketChannel socket, long bytes) {
+        var chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        try {
+            var sent = 0L;
+            while (sent < bytes) {
+                chunk.clear().limit((int) Math.min(CHUNK_SIZE, bytes - sent));
+                while (chunk.hasRemaining()) {
+                    sent += socket.write(chunk);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Envoi interrompu : " + e.getMessage());
+        }
+    }
+
+    private static void drain(SocketChannel socket, long bytes) {
+        var chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        try {
+            var received = 0L;
+            while (received < bytes) {
+                var read = socket.read(chunk.clear());
+                if (read == -1) {
+                    throw new IOException("connection closed after " + received + " bytes");
+                }
+                received += read;
+            }
+        } catch (IOException e) {
+            System.err.println("Réception interrompue : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the CPU time used by the main loop and the relay workers of the server, in nanoseconds.
+     */
+    static long serverCpuTime() {
+        var bean = ManagementFactory.getThreadMXBean();
+        var time = 0L;
+        for (var thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("server") || thread.getName().startsWith("relay-")) {
+                time += Math.max(0, bean.getThreadCpuTime(thread.getId()));
+            }
+        }
+        return time;
+    }
+}
@@ -0,0 +1,254 @@
+package fr.uge.chatos.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A benchmark of the synchronization of a repository : a synthetic repository is
+ * generated and mirrored, a fraction of its files is modified, then the mirror is
+ * brought up to date block by block, as {@code :sync} does.
+ * <p>
+ *     It prints the time needed to build the manifest, cold and after the changes, its
+ *     size, the time needed to plan and apply the deltas, and the bytes transferred
+ *     compared with downloading the modified files. The blocks are read from the
+ *     source instead of being requested over a private connection, so only the work of
+ *     the peers is measured.
+ * </p>
+ * <p>
+ *     The files are between 512 bytes and {@code chatos.bench.maxSize} bytes (32 KiB by
+ *     default), their content is drawn from {@code chatos.bench.seed}. The modified files
+ *     get a few bytes overwritten, inserted or appended. The repositories are generated
+ *     in a temporary directory, deleted at the end unless {@code chatos.bench.keep} is set.
+ * </p>
+ */
+public class SyncBenchmark {
+    private static final int MIN_SIZE = 512;
+    private static final int FILES_PER_DIRECTORY = 100;
+
+    private enum Change { OVERWRITE, INSERT, APPEND }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 2) {
+            System.err.println("Usage : SyncBenchmark [files] [churn percentage]");
+            return;
+        }
+        int count;
+        double churn;
+        try {
+            count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+            churn = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+        } catch (NumberFormatException e) {
+            System.err.println("The number of files and the churn percentage must be numbers.");
+            return;
+        }
+        var maxSize = Math.max(MIN_SIZE, Integer.getInteger("chatos.bench.maxSize", 32 * 1_024));
+        var random = new Random(Long.getLong("chatos.bench.seed", 42));
+        var root = Files.createTempDirectory("chatos-sync");
+        var source = Files.createDirectory(root.resolve("source"));
+        var mirror = Files.createDirectory(root.resolve("mirror"));
+        try {
+            var names = generate(source, count, maxSize, random);
+            copy(source, mirror, names);
+            System.out.println(count + " fichier(s) générés dans " + root + " (" + size(source, names) + " octets)");
+
+            var start = System.nanoTime();
+            var cold = Manifest.of(source);
+            System.out.println("Manifeste à froid : " + millis(start) + " ms");
+
+            var changed = change(source, names, churn, random);
+            start = System.nanoTime();
+            var text = Manifest.of(source).format();
+            System.out.println("Manifeste après " + changed.size() + " modification(s) : " + millis(start) + " ms, "
+                    + text.length() + " octets, " + gzipSize(text) + " octets compressés"
+                    + " (" + cold.getFiles().size() + " fichiers)");
+
+            synchronize(source, mirror, Manifest.parse(text), changed);
+        } finally {
+            if (!Boolean.getBoolean("chatos.bench.keep")) {
+                delete(root);
+            }
+        }
+    }
+
+    /**
+     * Brings the mirror up to date with the manifest of the source, then checks it.
+     */
+    private static void synchronize(Path source, Path mirror, Manifest manifest, List<String> changed) throws IOException {
+        var plans = new ArrayList<DeltaPlan>();
+        var files = new ArrayList<FileSignature>();
+        var upToDate = 0;
+        var start = System.nanoTime();
+        for (var file : manifest.getFiles()) {
+            var local = mirror.resolve(file.getName());
+            if (Files.size(local) == file.getSize()
+                    && Files.getLastModifiedTime(local).toMillis() == file.getLastModified()) {
+                upToDate++;
+                continue;
+            }
+            plans.add(DeltaPlan.compute(local, file, manifest.getBlockSize()));
+            files.add(file);
+        }
+        var planning = millis(start);
+
+        var requested = 0L;
+        var reused = 0L;
+        var whole = 0L;
+        start = System.nanoTime();
+        for (int i = 0; i < plans.size(); i++) {
+            var plan = plans.get(i);
+            var file = files.get(i);
+            var blocks = blocks(source.resolve(file.getName()), plan.missingRanges());
+            requested += blocks.remaining();
+            reused += plan.reusedBytes();
+            whole += file.getSize();
+            plan.apply(mirror.resolve(file.getName()), blocks);
+        }
+        var applying = millis(start);
+
+        System.out.println("Plan : " + planning + " ms (" + upToDate + " fichier(s) à jour sans lecture, "
+                + plans.size() + " comparé(s))");
+        System.out.println("Application : " + applying + " ms, " + requested + " octets transférés, " + reused
+                + " octets réutilisés, contre " + whole + " octets pour les fichiers entiers ("
+                + (whole == 0 ? 0 : 100 * requested / whole) + " %)");
+        for (var name : changed) {
+            if (Files.mismatch(source.resolve(name), mirror.resolve(name)) != -1) {
+                throw new AssertionError(name + " differs after the synchronization");
+            }
+        }
+        System.out.println("Miroir identique à la source");
+    }
+
+    /**
+     * Builds the body of the {@code 206} response the source would send.
+     */
+    private static ByteBuffer blocks(Path path, List<ByteRange> ranges) throws IOException {
+        var length = 0L;
+        for (var range : ranges) {
+            length += Long.BYTES + Integer.BYTES + range.length();
+        }
+        var body = ByteBuffer.allocate(Math.toIntExact(length));
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (var range : ranges) {
+                body.putLong(range.first()).putInt((int) range.length());
+                var chunk = body.slice().limit((int) range.length());
+                while (chunk.hasRemaining()) {
+                    channel.read(chunk, range.first() + chunk.position());
+                }
+                body.position(body.position() + (int) range.length());
+            }
+        }
+        return body.flip();
+    }
+
+    private static List<String> generate(Path repository, int count, int maxSize, Random random) throws IOException {
+        var names = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            var name = "d" + (i / FILES_PER_DIRECTORY) + "/f" + i + ".bin";
+            var path = repository.resolve(name);
+            Files.createDirectories(path.getParent());
+            var content = new byte[MIN_SIZE + random.nextInt(maxSize - MIN_SIZE + 1)];
+            random.nextBytes(content);
+            Files.write(path, content);
+            names.add(name);
+        }
+        return names;
+    }
+
+    private static void copy(Path source, Path target, List<String> names) throws IOException {
+        for (var name : names) {
+            var path = target.resolve(name);
+            Files.createDirectories(path.getParent());
+            Files.copy(source.resolve(name), path, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    /**
+     * Modifies {@code churn} percent of the files, and gives them a later modification time.
+     *
+     * @return the names of the modified files
+     */
+    private static List<String> change(Path repository, List<String> names, double churn, Random random) throws IOException {
+        var count = (int) Math.round(names.size() * churn / 100);
+        var changed = new ArrayList<String>(count);
+        var later = FileTime.fromMillis(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1));
+        for (int i = 0; i < count; i++) {
+            var name = names.get(random.nextInt(names.size()));
+            if (changed.contains(name)) {
+                continue;
+            }
+            var path = repository.resolve(name);
+            var content = Files.readAllBytes(path);
+            var patch = new byte[1 + random.nextInt(64)];
+            random.nextBytes(patch);
+            var offset = random.nextInt(content.length);
+            var out = new ByteArrayOutputStream(content.length + patch.length);
+            switch (Change.values()[i % Change.values().length]) {
+                case OVERWRITE -> {
+                    var length = Math.min(patch.length, content.length - offset);
+                    System.arraycopy(patch, 0, content, offset, length);
+                    out.write(content);
+                }
+                case INSERT -> {
+                    out.write(content, 0, offset);
+                    out.write(patch);
+                    out.write(content, offset, content.length - offset);
+                }
+                case APPEND -> {
+                    out.write(content);
+                    out.write(patch);
+                }
+            }
+            Files.write(path, out.toByteArray());
+            Files.setLastModifiedTime(path, later);
+            changed.add(name);
+        }
+        return changed;
+    }
+
+    private static long size(Path repository, List<String> names) throws IOException {
+        var size = 0L;
+        for (var name : names) {
+            size += Files.size(repository.resolve(name));
+        }
+        return size;
+    }
+
+    private static int gzipSize(String text) throws IOException {
+        var out = new ByteArrayOutputStream();
+        try (var gzip = new GZIPOutputStream(out)) {
+            gzip.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return out.size();
+    }
+
+    private static long millis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (var paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+}
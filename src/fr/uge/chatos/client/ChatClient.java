@@ -0,0 +1,186 @@
+package fr.uge.chatos.client;
+
+import fr.uge.chatos.packet.Packets;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * A chat session embedded in an application, such as a bot or a test harness.
+ * <p>
+ *     The sessions are hosted by a {@link ChatReactor} : a single thread runs the sockets
+ *     of every session it hosts. The methods of this class can be called from any thread
+ *     and never block : each returns a future completed by the thread of the reactor, once
+ *     the packet is written to the socket, or failed if the session is closed first. The
+ *     events of the session are given to its {@link ChatListener}, on the same thread.
+ * </p>
+ * <p>
+ *     While the session reconnects after the loss of its socket, the packets wait for the
+ *     reconnection ; those already queued on the lost socket fail.
+ * </p>
+ * <pre>{@code
+ * var reactor = new ChatReactor().start();
+ * ChatClient.connect(reactor, "bot", new InetSocketAddress("localhost", 7777), Path.of("shared"), listener)
+ *         .thenCompose(client -> client.sendPublicMessage("Bonjour"));
+ * }</pre>
+ */
+public final class ChatClient implements AutoCloseable {
+    private final ChatReactor reactor;
+    private final Client session;
+
+    private ChatClient(ChatReactor reactor, Client session) {
+        this.reactor = reactor;
+        this.session = session;
+    }
+
+    /**
+     * Opens a new session on a reactor.
+     *
+     * @param reactor the reactor hosting the session
+     * @param login the login of the session
+     * @param server the address of the public port of the server
+     * @param repository the directory shared by the session on its private connections
+     * @param listener the listener of the events of the session
+     * @return a future completed once the server accepts the login, failed if it refuses it
+     * or if the connection fails
+     */
+    public static CompletableFuture<ChatClient> connect(ChatReactor reactor, String login, InetSocketAddress server,
+                                                        Path repository, ChatListener listener) {
+        Objects.requireNonNull(reactor);
+        Client session;
+        try {
+            session = new Client(login, server, repository.toString(), reactor, listener);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        var client = new ChatClient(reactor, session);
+        reactor.register(session);
+        return session.connected().thenApply(connected -> client);
+    }
+
+    /**
+     * Returns the login of this session.
+     *
+     * @return the login
+     */
+    public String getLogin() {
+        return session.getLogin();
+    }
+
+    /**
+     * Sends a message to every client.
+     *
+     * @param content the message
+     * @return a future completed once the message is sent
+     */
+    public CompletableFuture<Void> sendPublicMessage(String content) {
+        Objects.requireNonNull(content);
+        return send(() -> Packets.ofPublicMessageSender(session.getLogin(), content));
+    }
+
+    /**
+     * Sends a message to a single client.
+     *
+     * @param recipient the login of the client
+     * @param content the message
+     * @return a future completed once the message is sent
+     */
+    public CompletableFuture<Void> sendPrivateMessage(String recipient, String content) {
+        Objects.requireNonNull(recipient);
+        Objects.requireNonNull(content);
+        return send(() -> Packets.ofPrivateMessageSender(session.getLogin(), recipient, content));
+    }
+
+    /**
+     * Asks a client for a private connection : {@link ChatListener#onPrivateConnectionEstablished(String)}
+     * is called if it accepts.
+     *
+     * @param recipient the login of the client
+     * @return a future completed once the request is sent
+     */
+    public CompletableFuture<Void> requestPrivateConnection(String recipient) {
+        Objects.requireNonNull(recipient);
+        return send(() -> Packets.ofPrivateConnectionSender(recipient));
+    }
+
+    /**
+     * Answers a request received by {@link ChatListener#onPrivateConnectionRequest(String)}.
+     *
+     * @param sender the login of the client, or the name of the group
+     * @param accept {@code true} to accept the private connection
+     * @return a future completed once the answer is sent
+     */
+    public CompletableFuture<Void> answerPrivateConnection(String sender, boolean accept) {
+        Objects.requireNonNull(sender);
+        return send(() -> Packets.ofPrivateConnectionReply(sender, accept ? (byte) 1 : (byte) 0));
+    }
+
+    /**
+     * Sends a latency probe through the server : a probe sent to every client, or to this
+     * session, comes back and is recorded in {@link #getLatencyStats()}. The recipients
+     * receive it in {@link ChatListener#onLatencyProbe(LatencySample)}.
+     *
+     * @param recipient the login of the recipient, {@code null} to send the probe to every client
+     * @return a future completed once the probe is sent
+     */
+    public CompletableFuture<Void> sendLatencyProbe(String recipient) {
+        var sent = new CompletableFuture<Void>();
+        reactor.execute(() -> session.sendLatencyProbe(recipient == null ? "" : recipient, sent));
+        return sent;
+    }
+
+    /**
+     * Returns the percentiles of the latency probes which came back to this session.
+     *
+     * @return the statistics, updated as the probes come back
+     */
+    public LatencyStats getLatencyStats() {
+        return session.latency();
+    }
+
+    /**
+     * Runs a line written as in the console client, such as {@code /login message} or
+     * {@code /login :sync} on an established private connection.
+     *
+     * @param line the command
+     * @return a future completed once the command is sent to the server, or at once if
+     * it is handled on a private connection
+     */
+    public CompletableFuture<Void> sendCommand(String line) {
+        Objects.requireNonNull(line);
+        var result = new CompletableFuture<Void>();
+        reactor.execute(() -> {
+            try {
+                session.processCommand(line).whenComplete((ignored, e) -> {
+                    if (e != null) {
+                        result.completeExceptionally(e);
+                    } else {
+                        result.complete(null);
+                    }
+                });
+            } catch (RuntimeException e) { // commande mal formée
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Closes this session and its private connections.
+     */
+    @Override
+    public void close() {
+        reactor.execute(session::close);
+    }
+
+    private CompletableFuture<Void> send(Supplier<ByteBuffer> packet) {
+        var sent = new CompletableFuture<Void>();
+        reactor.execute(() -> session.send(packet.get(), sent));
+        return sent;
+    }
+}
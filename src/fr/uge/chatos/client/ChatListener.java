@@ -0,0 +1,98 @@
+package fr.uge.chatos.client;
+
+/**
+ * Receives the events of a chat session.
+ * <p>
+ *     The methods are called by the thread of the {@link ChatReactor} hosting the session :
+ *     they must return quickly, and hand any long work over to another thread. Every
+ *     method does nothing by default.
+ * </p>
+ */
+public interface ChatListener {
+
+    /**
+     * Called once the server accepted the login of the session.
+     */
+    default void onConnected() { }
+
+    /**
+     * Called when a client sends a message to everyone.
+     *
+     * @param sender the login of the sender
+     * @param content the message
+     */
+    default void onPublicMessage(String sender, String content) { }
+
+    /**
+     * Called when a client sends a message to this session only.
+     *
+     * @param sender the login of the sender
+     * @param content the message
+     */
+    default void onPrivateMessage(String sender, String content) { }
+
+    /**
+     * Called when a client asks for a private connection, or invites this session
+     * in a group whose name starts with {@code #}.
+     *
+     * @param sender the login of the client, or the name of the group
+     */
+    default void onPrivateConnectionRequest(String sender) { }
+
+    /**
+     * Called once a private connection is authenticated by the server.
+     *
+     * @param recipient the login of the other client, or the name of the group
+     */
+    default void onPrivateConnectionEstablished(String recipient) { }
+
+    /**
+     * Called when the server reports an error.
+     *
+     * @param message the description of the error
+     * @param fatal {@code true} if the server closes the session
+     */
+    default void onError(String message, boolean fatal) { }
+
+    /**
+     * Called with the progress of the commands and transfers of the session, such as
+     * the end of a download.
+     *
+     * @param message a human-readable message
+     */
+    default void onNotice(String message) { }
+
+    /**
+     * Called with the text of a file displayed as it arrives, such as a followed file.
+     *
+     * @param text the next part of the file
+     */
+    default void onContent(String text) { }
+
+    /**
+     * Called when a latency probe is received, including the probes sent by this session,
+     * which are also recorded in {@link ChatClient#getLatencyStats()}.
+     *
+     * @param sample the probe
+     */
+    default void onLatencyProbe(LatencySample sample) { }
+
+    /**
+     * Called once the public socket is lost : the session reconnects, and the packets
+     * sent meanwhile wait for the reconnection.
+     */
+    default void onConnectionLost() { }
+
+    /**
+     * Called once the session is connected again to the server.
+     *
+     * @param resumed {@code true} if the messages sent during the disconnection are received,
+     * {@code false} if the server forgot the session and they are lost
+     */
+    default void onReconnected(boolean resumed) { }
+
+    /**
+     * Called once the session is closed, by the server or by {@link ChatClient#close()}.
+     */
+    default void onDisconnected() { }
+}
@@ -0,0 +1,237 @@
+package fr.uge.chatos.client;
+
+import fr.uge.chatos.context.Context;
+import fr.uge.chatos.utils.SelectorQueue;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The selector thread running the chat sessions of the JVM : one reactor can host
+ * any number of sessions, each with its own login and sockets.
+ * <p>
+ *     Every action on a session runs on the thread of its reactor, other threads
+ *     hand their actions over with {@link #execute(Runnable)}.
+ * </p>
+ * <p>
+ *     The blocking file operations of the sessions, such as reading a file to serve or
+ *     saving a download, run on a bounded pool of file workers instead, and their results
+ *     are handed back to the thread of the reactor : the pool has {@code chatos.io.threads}
+ *     threads (2 by default) and queues at most {@code chatos.io.queue} operations (64 by
+ *     default), beyond which the operations are refused.
+ * </p>
+ * <p>
+ *     An unexpected exception thrown while a session handles its sockets or its periodic
+ *     work closes that session only : the other sessions of the reactor go on.
+ * </p>
+ */
+public class ChatReactor implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(ChatReactor.class.getName());
+    private static final long TICK_PERIOD = 50; // en millisecondes, pour les fichiers suivis et la limitation de débit
+    private static final int TASK_BATCH = 1_024;
+    private static final int IO_THREADS = Math.max(1, Integer.getInteger("chatos.io.threads", 2));
+    private static final int IO_QUEUE = Math.max(1, Integer.getInteger("chatos.io.queue", 64));
+    private static final long IO_KEEP_ALIVE = 30; // en secondes, avant l'arrêt d'un worker inactif
+    private static final AtomicInteger workerCount = new AtomicInteger();
+    private final Selector selector;
+    private final SelectorQueue<Runnable> tasks;
+    private final ThreadPoolExecutor fileWorkers;
+    private final ArrayList<Client> sessions = new ArrayList<>();
+    private Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Creates a new reactor, which must then be started or run.
+     *
+     * @throws IOException If some other I/O error occurs.
+     */
+    public ChatReactor() throws IOException {
+        selector = Selector.open();
+        tasks = new SelectorQueue<>(selector, TASK_BATCH);
+        fileWorkers = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, IO_KEEP_ALIVE, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(IO_QUEUE), runnable -> {
+                    var worker = new Thread(runnable, "chatos-io-" + workerCount.incrementAndGet());
+                    worker.setDaemon(true);
+                    return worker;
+                });
+        fileWorkers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the reactor in a new thread.
+     *
+     * @return this reactor
+     */
+    public synchronized ChatReactor start() {
+        if (thread != null) {
+            throw new IllegalStateException("reactor already started");
+        }
+        thread = new Thread(this::run, "chatos-reactor");
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Runs the reactor in the current thread, until it is closed.
+     */
+    public void run() {
+        synchronized (this) {
+            if (thread != null && thread != Thread.currentThread()) {
+                throw new IllegalStateException("reactor already started");
+            }
+            thread = Thread.currentThread();
+        }
+        try {
+            while (!closed && !Thread.interrupted()) {
+                selector.select(this::treatKey, TICK_PERIOD);
+                tasks.drain(ChatReactor::runTask);
+                for (var session : sessions) {
+                    try {
+                        session.turn();
+                    } catch (RuntimeException e) {
+                        logger.log(Level.SEVERE, "Session closed due to an unexpected error", e);
+                        session.close();
+                    }
+                }
+                sessions.removeIf(Client::isClosed);
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Reactor stopped", e);
+        } finally {
+            for (var session : sessions) {
+                session.close();
+            }
+            sessions.clear();
+            fileWorkers.shutdownNow();
+            while (tasks.drain(ChatReactor::runTask) > 0) {
+                // les envois restants échouent sur les sessions fermées
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Runs an action on the thread of this reactor.
+     * <p>
+     *     Note : can be called from any thread.
+     * </p>
+     *
+     * @param action the action to run
+     */
+    public void execute(Runnable action) {
+        tasks.add(Objects.requireNonNull(action));
+    }
+
+    /**
+     * Runs a blocking file operation on a file worker, then gives its result to
+     * {@code completion} on the thread of this reactor.
+     * <p>
+     *     If the pool is saturated, the operation is refused : {@code completion} receives
+     *     a {@link RejectedExecutionException}.
+     * </p>
+     *
+     * @param operation the operation
+     * @param completion the action receiving the result, or the exception thrown by the operation
+     * @param <T> the type of the result
+     */
+    <T> void offload(Callable<? extends T> operation, BiConsumer<? super T, ? super Exception> completion) {
+        Objects.requireNonNull(operation);
+        Objects.requireNonNull(completion);
+        try {
+            fileWorkers.execute(() -> {
+                T result;
+                try {
+                    result = operation.call();
+                } catch (Exception e) {
+                    execute(() -> completion.accept(null, e));
+                    return;
+                }
+                execute(() -> completion.accept(result, null));
+            });
+        } catch (RejectedExecutionException e) {
+            execute(() -> completion.accept(null, e));
+        }
+    }
+
+    /**
+     * Returns the selector of this reactor, on which the sessions register their sockets.
+     *
+     * @return the selector
+     */
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Starts a session on this reactor.
+     *
+     * @param session the session, not yet connected
+     */
+    void register(Client session) {
+        execute(() -> {
+            if (closed) {
+                session.close();
+                return;
+            }
+            sessions.add(session);
+            session.start();
+        });
+    }
+
+    /**
+     * Closes every session and stops the reactor.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void treatKey(SelectionKey key) {
+        var context = (Context) key.attachment();
+        try {
+            if (key.isValid() && key.isConnectable()) {
+                context.doConnect();
+            }
+            if (key.isValid() && key.isWritable()) {
+                context.doWrite();
+            }
+            if (key.isValid() && key.isReadable()) {
+                context.doRead();
+            }
+        } catch (IOException e) {
+            logger.log(Level.INFO, "Connection closed due to IOException", e);
+            context.silentlyClose();
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Session closed due to an unexpected error", e);
+            var owner = sessions.stream().filter(session -> session.owns(key)).findFirst();
+            context.silentlyClose();
+            owner.ifPresent(Client::close);
+        }
+    }
+
+    /**
+     * Runs an action handed over to the reactor, without letting it stop the reactor.
+     */
+    private static void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Action failed", e);
+        }
+    }
+}
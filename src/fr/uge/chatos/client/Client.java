@@ -1,28 +1,60 @@
 package fr.uge.chatos.client;
 
+import fr.uge.chatos.context.ClientMultiplexContext;
 import fr.uge.chatos.context.ClientPrivateContext;
 import fr.uge.chatos.context.ClientPublicContext;
-import fr.uge.chatos.context.Context;
+import fr.uge.chatos.http.HTTPChunkedFile;
+import fr.uge.chatos.packet.ConnectionConfirmation;
+import fr.uge.chatos.packet.GroupRequest;
+import fr.uge.chatos.packet.LatencyProbe;
 import fr.uge.chatos.packet.Packets;
+import fr.uge.chatos.utils.SelectorQueue;
+import fr.uge.chatos.utils.Throttle;
+import fr.uge.chatos.utils.TokenBucket;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 
 /**
- * Implement a non-blocking TCP client.
- *
+ * Implement a non-blocking TCP client : a chat session, hosted by a {@link ChatReactor}
+ * with any number of other sessions, which reports its events to a {@link ChatListener}.
+ * <p>
+ *     Every method is called by the thread of the reactor, except {@link #sendCommand(String)}.
+ *     Applications use the session through {@link ChatClient}, the console through {@link #main(String[])}.
+ * </p>
+ * <p>
+ *     The data sent on the private connections can be limited with the system properties
+ *     {@code chatos.bandwidth.upload} (all the private connections together) and
+ *     {@code chatos.bandwidth.connection} (each private connection), in bytes per second.
+ * </p>
+ * <p>
+ *     The console thread hands the commands to the selector thread through a lock-free
+ *     queue : reading the console never waits for the selector, and a pasted or piped
+ *     batch of lines is sent as fast as the selector can queue it.
+ * </p>
+ * <p>
+ *     If the public socket is lost, the session reconnects on its own, with a backoff
+ *     doubling from {@value #RECONNECT_MIN_DELAY} ms, and resumes its session on the server
+ *     with the token of its last confirmation : the messages sent meanwhile are replayed.
+ *     The session gives up after {@code chatos.reconnect.timeout} ms (30 s by default,
+ *     0 disables the reconnection). The commands and packets sent during the reconnection
+ *     wait for it.
+ * </p>
  */
 public class Client {
     /**
@@ -32,45 +64,107 @@ public class Client {
      */
     static class PrivateConnection {
         private final long id;
+        private final String recipient;
         private final ClientPrivateContext context;
 
-        PrivateConnection(long id, ClientPrivateContext context) {
+        PrivateConnection(long id, String recipient, ClientPrivateContext context) {
             this.id = id;
+            this.recipient = Objects.requireNonNull(recipient);
             this.context = Objects.requireNonNull(context);
         }
 
+        long getId() {
+            return id;
+        }
+
         ClientPrivateContext getContext() {
             return context;
         }
+
+        /**
+         * Returns the login of the other client, or the name of the group.
+         *
+         * @return the recipient of this private connection
+         */
+        String getRecipient() {
+            return recipient;
+        }
     }
 
     private static final Logger logger = Logger.getLogger(Client.class.getName());
-    private final SocketChannel socketPublic;
+    private static final String MANIFEST_COMMAND = ":manifest";
+    private static final String SYNC_COMMAND = ":sync";
+    private static final String FOLLOW_COMMAND = ":follow ";
+    private static final String STOP_COMMAND = ":stop";
+    private static final int COMMAND_BATCH = 1_024; // commandes traitées par tour de boucle
+    private static final long RECONNECT_MIN_DELAY = 100;
+    private static final long RECONNECT_MAX_DELAY = 5_000;
+    private static final long RECONNECT_TIMEOUT = Long.getLong("chatos.reconnect.timeout", 30_000);
+    private record HeldPacket(ByteBuffer buffer, CompletableFuture<Void> sent) { }
+    private SocketChannel socketPublic;
     private final Selector selector;
     private final InetSocketAddress serverAddress;
-    private final ArrayBlockingQueue<String> commandQueue = new ArrayBlockingQueue<>(10);
-    private final Thread console;
+    private final SelectorQueue<String> commandQueue;
+    private final ChatReactor reactor;
+    private final ChatListener listener;
+    private final CompletableFuture<Void> connected = new CompletableFuture<>();
     private final String login;
-    private final Object lock = new Object();
     private final String repository;
+    private final ValidatorStore validators;
+    private final TokenBucket uploadBucket = TokenBucket.ofProperty("chatos.bandwidth.upload");
     private SelectionKey publicKey;
     private ClientPublicContext contextPublic;
-    private final HashMap<String, PrivateConnection> privateConnections = new HashMap<>();
+    private ClientMultiplexContext multiplexer;
+    private final HashMap<String, PrivateConnection> privateConnections = new HashMap<>(); // par destinataire
+    private final HashMap<Long, PrivateConnection> privateConnectionsById = new HashMap<>();
+    private final ArrayDeque<ClientPrivateContext> closedConnections = new ArrayDeque<>();
+    private final HashSet<String> createdGroups = new HashSet<>();
+    private final LatencyStats latency = new LatencyStats();
+    private long probeSequence;
+    private final ArrayDeque<HeldPacket> heldPackets = new ArrayDeque<>(); // envoyés pendant la reconnexion
+    private long token; // 0 tant que le serveur n'a pas accepté la session
+    private long received; // messages reçus depuis l'ouverture de la session sur le serveur
+    private long reconnectDeadline; // 0 hors reconnexion, en nanosecondes
+    private long nextAttempt;
+    private long reconnectDelay;
+    private boolean closed;
 
-    public Client(String login, InetSocketAddress serverAddress, String repository) throws IOException {
+    /**
+     * Creates a new session, started once registered in its reactor.
+     *
+     * @param login the login of the session
+     * @param serverAddress the address of the public port of the server
+     * @param repository the directory shared by the session on its private connections
+     * @param reactor the reactor hosting the session
+     * @param listener the listener of the events of the session
+     * @throws IOException If some other I/O error occurs.
+     */
+    Client(String login, InetSocketAddress serverAddress, String repository, ChatReactor reactor,
+           ChatListener listener) throws IOException {
         this.serverAddress = Objects.requireNonNull(serverAddress);
         this.login = Objects.requireNonNull(login);
+        this.listener = Objects.requireNonNull(listener);
+        this.repository = Objects.requireNonNull(repository);
+        this.reactor = reactor;
+        selector = reactor.selector();
+        commandQueue = new SelectorQueue<>(selector, COMMAND_BATCH);
+        validators = new ValidatorStore(repository);
         socketPublic = SocketChannel.open();
-        selector = Selector.open();
-        console = new Thread(this::consoleRun);
-        console.setDaemon(true);
-        this.repository = repository;
     }
 
     public String getRepository() {
         return repository;
     }
 
+    /**
+     * Returns the validators of the files downloaded in the repository.
+     *
+     * @return the validator store
+     */
+    ValidatorStore getValidators() {
+        return validators;
+    }
+
     /**
      * Returns the current login of this client.
      *
@@ -80,17 +174,55 @@ public class Client {
         return login;
     }
 
+    /**
+     * Returns the listener of the events of this session.
+     *
+     * @return the listener
+     */
+    ChatListener listener() {
+        return listener;
+    }
+
+    /**
+     * Runs a blocking file operation on a file worker of the reactor, then gives its
+     * result to {@code completion} on the thread of the reactor.
+     *
+     * @param operation the operation
+     * @param completion the action receiving the result, or the exception thrown by the operation
+     * @param <T> the type of the result
+     * @see ChatReactor#offload(Callable, BiConsumer)
+     */
+    <T> void offload(Callable<? extends T> operation, BiConsumer<? super T, ? super Exception> completion) {
+        reactor.offload(operation, completion);
+    }
+
+    /**
+     * Reports the progress of a command or a transfer to the listener.
+     *
+     * @param message a human-readable message
+     */
+    void notice(String message) {
+        listener.onNotice(message);
+    }
+
+    /**
+     * Returns the future completed once the server accepts the login of this session.
+     *
+     * @return the future, failed if the session is closed first
+     */
+    CompletableFuture<Void> connected() {
+        return connected;
+    }
+
     /**
      * Thread that manages the client console.
      */
-    private void consoleRun() {
+    private static void consoleRun(Client client) {
         try (var scan = new Scanner(System.in)) {
             while (scan.hasNextLine()) {
                 var command = scan.nextLine();
-                sendCommand(command);
+                client.sendCommand(command);
             }
-        } catch (InterruptedException e) {
-            logger.info("Console thread has been interrupted");
         } finally {
             logger.info("Console thread stopping");
         }
@@ -98,69 +230,238 @@ public class Client {
 
     /**
      * Treat the command written by the user and wake up the selector.
+     * <p>
+     *     Note : can be called from any thread.
+     * </p>
      *
      * @param command the line written by the user
      */
-    private void sendCommand(String command) throws InterruptedException {
-        synchronized (lock) {
-            commandQueue.put(Objects.requireNonNull(command));
-            selector.wakeup();
-        }
+    void sendCommand(String command) {
+        commandQueue.add(command);
     }
 
     /**
-     * Process commands written by the client.
+     * Process commands written by the client, once connected to the server.
      */
     private void processCommands() {
-        synchronized(lock) {
-            while (!commandQueue.isEmpty()) {
-                var tmp = commandQueue.peek();
-                if (tmp == null) {
-                    return;
+        if (reconnectDeadline != 0 || !socketPublic.isConnected()) {
+            return; // les commandes attendent la connexion au serveur
+        }
+        commandQueue.drain(this::processCommand);
+    }
+
+    /**
+     * Process a command written by the client.
+     *
+     * @param tmp the line written by the client
+     * @return the future completed once the command is sent to the server, at once if it
+     * concerns a private connection
+     */
+    CompletableFuture<Void> processCommand(String tmp) {
+        ByteBuffer buffer;
+        var cmd = Command.extractCommand(tmp);
+        if (cmd.isMessage()) {
+            if (cmd.recipient() != null) {
+                buffer = Packets.ofPrivateMessageSender(login, cmd.recipient(), cmd.content()); // message privé
+            } else {
+                buffer = Packets.ofPublicMessageSender(login, cmd.content()); // message général
+            }
+        } else {
+            // Connexion privée
+            var pc = privateConnections.get(cmd.recipient());
+            if (pc == null) { // si pas de connexion existante
+                if (cmd.content().equals("oui") || cmd.content().equals("non")) { // si confirmation de la connexion
+                    var confirm = cmd.content().equals("oui") ? (byte) 1 : (byte) 0;
+                    buffer = Packets.ofPrivateConnectionReply(cmd.recipient(), confirm);
+                } else if (cmd.recipient().startsWith(GroupRequest.PREFIX)) { // création d'un groupe
+                    buffer = Packets.ofGroupRequest(cmd.recipient(), List.of(cmd.content().trim().split("\\s+")));
+                    createdGroups.add(cmd.recipient());
+                } else { // sinon demande de connexion
+                    buffer = Packets.ofPrivateConnectionSender(cmd.recipient());
                 }
-                ByteBuffer buffer;
-                var cmd = Command.extractCommand(tmp);
-                if (cmd.isMessage()) {
-                    if (cmd.recipient() != null) {
-                        buffer = Packets.ofPrivateMessageSender(login, cmd.recipient(), cmd.content()); // message privé
+            } else { // sur le port privé
+                if (pc.getContext().isAuthenticated() && pc.getContext().isGroup()) {
+                    if (pc.getContext().isGroupCreator()) {
+                        publish(pc.getContext(), cmd.content());
                     } else {
-                        buffer = Packets.ofPublicMessageSender(login, cmd.content()); // message général
+                        notice("Seul le créateur du groupe peut y publier des fichiers");
                     }
-                } else {
-                    // Connexion privée
-                    var pc = privateConnections.get(cmd.recipient());
-                    if (pc == null) { // si pas de connexion existante
-                        if (cmd.content().equals("oui") || cmd.content().equals("non")) { // si confirmation de la connexion
-                            var confirm = cmd.content().equals("oui") ? (byte) 1 : (byte) 0;
-                            buffer = Packets.ofPrivateConnectionReply(cmd.recipient(), confirm);
-                        } else { // sinon demande de connexion
-                            buffer = Packets.ofPrivateConnectionSender(cmd.recipient());
-                        }
-                    } else { // sur le port privé
-                        if (pc.getContext().isAuthenticated()) {
-                            // si déjà authentifié appel du client http
-                            buffer = Packets.ofHTTPRequest(cmd.content(), serverAddress.getHostName());
-                            pc.getContext().setFileRequested(cmd.content());
-                            System.out.println("Envoi requête HTTP");
-                        } else {
-                            // si en cours d'authentification envoi de la réponse
-                            buffer = Packets.ofAuthentication(pc.getContext().getId(), login);
-                            System.out.println("En cours d'authentification");
+                } else if (pc.getContext().isAuthenticated()) {
+                    // si déjà authentifié appel du client http
+                    switch (cmd.content()) {
+                        case MANIFEST_COMMAND -> RepositorySync.requestManifest(this, pc.getContext(), false);
+                        case SYNC_COMMAND -> RepositorySync.requestManifest(this, pc.getContext(), true);
+                        case STOP_COMMAND -> sendHttpRequest(pc.getContext(),
+                                new PendingRequest(ClientPacketVisitor.STOP_TARGET, PendingRequest.Kind.STOP), Map.of());
+                        default -> {
+                            if (cmd.content().startsWith(FOLLOW_COMMAND)) {
+                                var filename = cmd.content().substring(FOLLOW_COMMAND.length()).trim();
+                                sendHttpRequest(pc.getContext(),
+                                        new PendingRequest(filename, PendingRequest.Kind.FOLLOW), Map.of("X-Follow", "1"));
+                            } else {
+                                sendHttpRequest(pc.getContext(),
+                                        new PendingRequest(cmd.content(), PendingRequest.Kind.DISPLAY),
+                                        validators.conditionalFields(cmd.content()));
+                            }
                         }
-                        pc.getContext().queueMessage(buffer.flip());
-                        commandQueue.poll();
-                        continue;
                     }
-
+                    notice("Envoi requête HTTP");
+                } else if (pc.getContext().isMultiplexed()) {
+                    notice("En cours d'authentification"); // le flux est déjà ouvert
+                } else {
+                    // si en cours d'authentification envoi de la réponse
+                    buffer = Packets.ofAuthentication(pc.getContext().getId(), login);
+                    notice("En cours d'authentification");
+                    pc.getContext().queueMessage(buffer.flip());
                 }
-                contextPublic.queueMessage(buffer.flip());
-                commandQueue.poll();
+                return CompletableFuture.completedFuture(null);
             }
+
         }
+        var sent = new CompletableFuture<Void>();
+        send(buffer, sent);
+        return sent;
+    }
+
+    /**
+     * Sends a packet to the server.
+     *
+     * @param buffer the packet, in write-mode
+     * @param sent the future completed once the packet is written to the socket
+     */
+    void send(ByteBuffer buffer, CompletableFuture<Void> sent) {
+        if (closed) {
+            sent.completeExceptionally(new ClosedChannelException());
+            return;
+        }
+        if (reconnectDeadline != 0) {
+            heldPackets.add(new HeldPacket(buffer, sent));
+            return;
+        }
+        if (contextPublic == null || !socketPublic.isConnected()) {
+            sent.completeExceptionally(new IllegalStateException("session not connected"));
+            return;
+        }
+        contextPublic.queueMessage(buffer.flip(), sent);
+    }
+
+    /**
+     * Sends a latency probe, numbered and stamped with the current time.
+     *
+     * @param recipient the login of the recipient, empty to send the probe to every client
+     * @param sent the future completed once the probe is written to the socket
+     */
+    void sendLatencyProbe(String recipient, CompletableFuture<Void> sent) {
+        send(Packets.ofLatencyProbeSender(recipient, probeSequence++, LatencyProbe.now()), sent);
+    }
+
+    /**
+     * Notifies that a latency probe is received : the probes sent by this session are
+     * recorded in its statistics.
+     *
+     * @param probe the probe
+     */
+    void onLatencyProbe(LatencyProbe probe) {
+        var sample = new LatencySample(probe.sender, probe.sequence, probe.sent, probe.ingress, probe.egress,
+                LatencyProbe.now());
+        if (probe.sender.equals(login)) {
+            latency.record(sample);
+        }
+        listener.onLatencyProbe(sample);
+    }
+
+    /**
+     * Returns the statistics of the latency probes which came back to this session.
+     *
+     * @return the statistics
+     */
+    LatencyStats latency() {
+        return latency;
+    }
+
+    /**
+     * Sends a HTTP request on a private connection and records it until its response arrives.
+     *
+     * @param context the context of the private connection
+     * @param request the request to send
+     * @param fields the additional header fields of the request
+     */
+    void sendHttpRequest(ClientPrivateContext context, PendingRequest request, Map<String, String> fields) {
+        var buffer = Packets.ofHTTPRequest(request.filename(), serverAddress.getHostName(), fields);
+        context.addPendingRequest(request);
+        context.queueMessage(buffer.flip());
+    }
+
+    /**
+     * Publishes a file of the repository in a group : every member receives it.
+     *
+     * @param context the context of the group
+     * @param filename the name of the file in the repository
+     */
+    private void publish(ClientPrivateContext context, String filename) {
+        var path = repository + "/" + filename;
+        var response = context.reserveResponse();
+        offload(() -> { // l'en-tête contient l'empreinte du fichier
+            var header = Packets.ofPublishedHTTPResponseHeader(path, filename);
+            return header == null ? null : new HTTPChunkedFile(header.flip(), Path.of(path), 0, false);
+        }, (stream, e) -> {
+            if (stream != null) {
+                response.complete(stream);
+                notice("Publication de " + filename + " dans le groupe");
+                return;
+            }
+            response.complete(ByteBuffer.allocate(0));
+            if (e instanceof IOException) {
+                notice("-> Erreur lors de la lecture du fichier " + filename);
+            } else if (e != null) {
+                notice("-> Erreur : publication impossible pour le moment");
+            } else {
+                notice("-> Erreur : fichier non trouvé");
+            }
+        });
+    }
+
+    /**
+     * Returns the private connection with the specified ID.
+     *
+     * @param id the ID of the private connection
+     * @return the private connection, if it is still open
+     */
+    Optional<PrivateConnection> getPrivateConnection(long id) {
+        return Optional.ofNullable(privateConnectionsById.get(id));
+    }
+
+    /**
+     * Registers a new private connection under its recipient and its ID.
+     */
+    void registerPrivateConnection(String recipient, long id, ClientPrivateContext context) {
+        var pc = new PrivateConnection(id, recipient, context);
+        privateConnections.put(recipient, pc);
+        privateConnectionsById.put(id, pc);
+    }
+
+    /**
+     * Notifies that a private connection is closed : it is forgotten at the next turn
+     * of the selector loop.
+     *
+     * @param context the context of the private connection
+     */
+    public void onPrivateConnectionClosed(ClientPrivateContext context) {
+        closedConnections.add(Objects.requireNonNull(context));
     }
 
-    public Optional<Map.Entry<String, PrivateConnection>> getPrivateConnection(long id) {
-        return privateConnections.entrySet().stream().filter(entry -> entry.getValue().id == id).findFirst();
+    /**
+     * Removes the private connections closed since the last call.
+     */
+    private void forgetClosedConnections() {
+        ClientPrivateContext context;
+        while ((context = closedConnections.poll()) != null) {
+            var pc = privateConnectionsById.get(context.getId());
+            if (pc != null && pc.context == context) {
+                privateConnectionsById.remove(pc.id);
+                privateConnections.remove(pc.recipient, pc); // une nouvelle connexion a pu le remplacer
+            }
+        }
     }
 
     /**
@@ -176,79 +477,236 @@ public class Client {
             socket.configureBlocking(false);
             var key = socket.register(selector, SelectionKey.OP_CONNECT);
             var context = new ClientPrivateContext(key, this, id);
+            context.setWriteThrottle(Throttle.of(uploadBucket, TokenBucket.ofProperty("chatos.bandwidth.connection")));
+            if (recipient.startsWith(GroupRequest.PREFIX)) {
+                context.setGroup(createdGroups.remove(recipient));
+            }
             key.attach(context);
-            socket.connect(new InetSocketAddress(port));
-            privateConnections.put(recipient, new PrivateConnection(id, context));
+            socket.connect(new InetSocketAddress(serverAddress.getAddress(), port));
+            registerPrivateConnection(recipient, id, context);
         } catch (IOException e) {
             logger.log(Level.WARNING, "Error", e);
         }
     }
 
     /**
-     * Start the main client loop.
+     * Initializes a new private connection as a stream of the multiplexed private socket,
+     * which is opened by the first one.
      *
-     * @throws IOException if some other I/O error occurs
+     * @param port the server port
+     * @param recipient the username of the recipient
+     * @param id the ID of private connection
+     */
+    public void startPrivateStream(int port, String recipient, long id) {
+        try {
+            if (multiplexer == null || !multiplexer.isOpen()) {
+                var socket = SocketChannel.open();
+                socket.configureBlocking(false);
+                var key = socket.register(selector, SelectionKey.OP_CONNECT);
+                multiplexer = new ClientMultiplexContext(key, this);
+                key.attach(multiplexer);
+                socket.connect(new InetSocketAddress(serverAddress.getAddress(), port));
+            }
+            var context = multiplexer.openStream(id);
+            context.setWriteThrottle(Throttle.of(uploadBucket, TokenBucket.ofProperty("chatos.bandwidth.connection")));
+            registerPrivateConnection(recipient, id, context);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error", e);
+        }
+    }
+
+    /**
+     * Connects this session to the server.
+     */
+    void start() {
+        try {
+            connectPublic();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Connection to the server failed", e);
+            connected.completeExceptionally(e);
+            close();
+        }
+    }
+
+    /**
+     * Opens the public socket, with a new context.
      */
-    private void launch() throws IOException {
+    private void connectPublic() throws IOException {
         socketPublic.configureBlocking(false);
         publicKey = socketPublic.register(selector, SelectionKey.OP_CONNECT);
         contextPublic = new ClientPublicContext(publicKey, this);
         publicKey.attach(contextPublic);
         socketPublic.connect(serverAddress);
+    }
 
-        console.start();
+    /**
+     * Returns the first packet sent on the public socket : a connection request, or the
+     * resumption of the session if the server already accepted it.
+     *
+     * @return the packet, in write-mode
+     */
+    public ByteBuffer connectionRequest() {
+        if (token != 0) {
+            return Packets.ofResumeConnection(login, token, received);
+        }
+        return Packets.ofRequestConnection(login);
+    }
+
+    /**
+     * Counts a message received on the public socket, which the server replays if the
+     * session is resumed.
+     */
+    void countMessage() {
+        received++;
+    }
 
-        while(!Thread.interrupted()) {
+    /**
+     * Tries again to connect to the server once the delay of the backoff is over, or gives up.
+     */
+    private void reconnect() {
+        var now = System.nanoTime();
+        if (now - nextAttempt < 0 || contextPublic.isOpen()) {
+            return; // la tentative en cours n'est pas terminée
+        }
+        if (now - reconnectDeadline >= 0) {
+            listener.onError("Reconnexion au serveur impossible.", false);
+            close();
+            return;
+        }
+        nextAttempt = now + TimeUnit.MILLISECONDS.toNanos(reconnectDelay);
+        reconnectDelay = Math.min(2 * reconnectDelay, RECONNECT_MAX_DELAY);
+        try {
+            socketPublic = SocketChannel.open();
+            connectPublic();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Reconnection failed", e);
             try {
-                selector.select(this::treatKey);
-                processCommands();
-            } catch (UncheckedIOException tunneled) {
-                throw tunneled.getCause();
-            }
+                socketPublic.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Does the periodic work of this session, at each turn of the loop of its reactor :
+     * the commands waiting, the followed files and the bandwidth limits.
+     */
+    void turn() {
+        if (reconnectDeadline != 0) {
+            reconnect();
+        }
+        processCommands();
+        for (var pc : privateConnectionsById.values()) {
+            pc.getContext().tick();
         }
+        forgetClosedConnections();
     }
 
     /**
-     * Use the key attachment to either write or read.
+     * Notifies that the server accepted or refused the login of this session.
      *
-     * @param key
+     * @param confirm the answer of the server, see {@link ConnectionConfirmation}
+     * @param token the token resuming this session after a disconnection
      */
-    private void treatKey(SelectionKey key) {
-        try {
-            if (key.isValid() && key.isConnectable()) {
-                ((Context) key.attachment()).doConnect();
-            }
-            if (key.isValid() && key.isWritable()) {
-                ((Context) key.attachment()).doWrite();
-            }
-            if (key.isValid() && key.isReadable()) {
-                ((Context) key.attachment()).doRead();
-            }
-        } catch(IOException ioe) {
-            // lambda call in select requires to tunnel IOException
-            throw new UncheckedIOException(ioe);
+    void onConnectionConfirmation(byte confirm, long token) {
+        if (confirm == ConnectionConfirmation.REFUSED) {
+            connected.completeExceptionally(new IOException("login refused by the server"));
+            listener.onError("Connection failed.", false);
+            return;
+        }
+        this.token = token;
+        if (reconnectDeadline == 0) {
+            connected.complete(null);
+            listener.onConnected();
+            return;
+        }
+        reconnectDeadline = 0;
+        var resumed = confirm == ConnectionConfirmation.RESUMED;
+        if (!resumed) {
+            received = 0; // nouvelle session, les messages manqués sont perdus
+        }
+        listener.onReconnected(resumed);
+        HeldPacket held;
+        while ((held = heldPackets.poll()) != null) {
+            contextPublic.queueMessage(held.buffer().flip(), held.sent());
         }
     }
 
     /**
-     * Shutdown all private connections and the public one.
+     * Notifies that the connection to the public port is closed : the session reconnects
+     * if the server accepted it, otherwise the whole session is closed.
+     */
+    public void onDisconnected() {
+        if (closed) {
+            return;
+        }
+        if (token == 0 || RECONNECT_TIMEOUT <= 0) {
+            close();
+            return;
+        }
+        if (reconnectDeadline == 0) {
+            var now = System.nanoTime();
+            reconnectDeadline = now + TimeUnit.MILLISECONDS.toNanos(RECONNECT_TIMEOUT);
+            nextAttempt = now + TimeUnit.MILLISECONDS.toNanos(RECONNECT_MIN_DELAY);
+            reconnectDelay = 2 * RECONNECT_MIN_DELAY;
+            listener.onConnectionLost();
+        }
+    }
+
+    /**
+     * Checks if this session is closed.
+     *
+     * @return {@code true} if the session is closed
      */
-    public void shutdown() { // TODO : vérifier le fonctionnement de cette méthode
-//        for (var pc : privateConnections.values()) {
-//            pc.context.silentlyClose();
-//        }
-//        silentlyClose(publicKey);
+    boolean isClosed() {
+        return closed;
     }
 
     /**
+     * Checks if a key of the selector of the reactor belongs to this session.
      *
-     * @param key
+     * @param key the key
+     * @return {@code true} if the key is the one of a socket of this session
      */
-    private void silentlyClose(SelectionKey key) {
-        var sc = (Channel) key.channel();
-        try {
-            sc.close();
-        } catch (IOException ignored) { }
+    boolean owns(SelectionKey key) {
+        if (key == publicKey || (multiplexer != null && multiplexer.getKey() == key)) {
+            return true;
+        }
+        for (var pc : privateConnectionsById.values()) {
+            if (pc.getContext().getKey() == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Shutdown all private connections and the public one.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (var pc : List.copyOf(privateConnectionsById.values())) {
+            pc.getContext().silentlyClose();
+        }
+        forgetClosedConnections();
+        if (multiplexer != null) {
+            multiplexer.silentlyClose();
+        }
+        if (contextPublic != null) {
+            contextPublic.silentlyClose();
+        } else {
+            try {
+                socketPublic.close();
+            } catch (IOException ignored) { }
+        }
+        HeldPacket held;
+        while ((held = heldPackets.poll()) != null) {
+            held.sent().completeExceptionally(new ClosedChannelException());
+        }
+        connected.completeExceptionally(new IOException("session closed"));
+        listener.onDisconnected();
     }
 
     public static void main(String[] args) throws NumberFormatException, IOException {
@@ -265,7 +723,15 @@ public class Client {
             return;
         }
 
-        new Client(args[0], new InetSocketAddress(args[1], port), args[3]).launch();
+        try (var reactor = new ChatReactor(); var renderer = new ConsoleRenderer(System.out)) {
+            var client = new Client(args[0], new InetSocketAddress(args[1], port), args[3], reactor,
+                    new ConsoleListener(reactor, renderer));
+            var console = new Thread(() -> consoleRun(client));
+            console.setDaemon(true);
+            reactor.register(client);
+            console.start();
+            reactor.run();
+        }
     }
 
 }
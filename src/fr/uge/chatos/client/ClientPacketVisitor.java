@@ -1,12 +1,26 @@
 package fr.uge.chatos.client;
 
 import fr.uge.chatos.context.ClientContext;
+import fr.uge.chatos.context.ClientMultiplexContext;
 import fr.uge.chatos.context.ClientPrivateContext;
+import fr.uge.chatos.http.HTTPChunkedFile;
+import fr.uge.chatos.http.HTTPHeader;
 import fr.uge.chatos.packet.*;
+import fr.uge.chatos.sync.Manifest;
 import fr.uge.chatos.visitor.PacketVisitor;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Objects;
 
 /**
@@ -14,6 +28,11 @@ import java.util.Objects;
  */
 
 public class ClientPacketVisitor implements PacketVisitor {
+    /**
+     * The target of the request ending the followed files.
+     */
+    static final String STOP_TARGET = "/.stop";
+    private static final long FOLLOW_TAIL = 1_024; // octets déjà présents renvoyés au début du suivi
     private final Client client;
     private final ClientContext context;
 
@@ -29,11 +48,7 @@ public class ClientPacketVisitor implements PacketVisitor {
     
     @Override
     public void visit(ConnectionConfirmation connectionConfirmation) {
-        if (connectionConfirmation.confirm == (byte) 1) {
-            System.out.println("Connection success.");
-        } else {
-            System.out.println("Connection failed.");
-        }
+        client.onConnectionConfirmation(connectionConfirmation.confirm, connectionConfirmation.token);
     }
 
     /**
@@ -41,8 +56,8 @@ public class ClientPacketVisitor implements PacketVisitor {
      */
     @Override
     public void visit(ErrorShutdown errorShutdown) {
-        System.out.println("Critical error : " + errorShutdown.getMessage());
-        client.shutdown();
+        client.listener().onError(errorShutdown.getMessage(), true);
+        client.close();
     }
 
     /**
@@ -51,7 +66,7 @@ public class ClientPacketVisitor implements PacketVisitor {
     
     @Override
     public void visit(ErrorNoShutdown errorNoShutdown) {
-        System.out.println("-> Error : " + errorNoShutdown.getMessage());
+        client.listener().onError(errorNoShutdown.getMessage(), false);
     }
 
     
@@ -60,13 +75,27 @@ public class ClientPacketVisitor implements PacketVisitor {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public void visit(ConnectionResume connectionResume) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Record a latency probe.
+     */
+    @Override
+    public void visit(LatencyProbe latencyProbe) {
+        client.onLatencyProbe(latencyProbe);
+    }
+
     /**
      * Display the message from a user
      */
     
     @Override
     public void visit(PublicMessage publicMessage) {
-        System.out.println(publicMessage.sender+ " : " + publicMessage.content);
+        client.countMessage();
+        client.listener().onPublicMessage(publicMessage.sender, publicMessage.content);
     }
 
     /**
@@ -74,7 +103,8 @@ public class ClientPacketVisitor implements PacketVisitor {
      */
     @Override
     public void visit(PrivateMessage privateMessage) {
-        System.out.println("[Message privé de " + privateMessage.sender + "] : " + privateMessage.content);
+        client.countMessage();
+        client.listener().onPrivateMessage(privateMessage.sender, privateMessage.content);
     }
 
     /**
@@ -83,12 +113,10 @@ public class ClientPacketVisitor implements PacketVisitor {
     
     @Override
     public void visit(PCRequest PCRequest) {
+        client.countMessage();
         PCRequest.sender = PCRequest.recipient; // vu qu'on utilise le même reader que le serveur on doit changer la valeur
         PCRequest.recipient = client.getLogin();
-        var msg = "[** Demande de connexion privée reçue de la part de "+ PCRequest.sender +" **]"
-                    + "\n\tPour accepter => /"+ PCRequest.sender +" oui"
-                    + "\n\tPour refuser => /"+ PCRequest.sender +" non";
-        System.out.println(msg);
+        client.listener().onPrivateConnectionRequest(PCRequest.sender);
     }
 
     /**
@@ -96,7 +124,11 @@ public class ClientPacketVisitor implements PacketVisitor {
      */
     @Override
     public void visit(PCSockets PCSockets) {
-        client.startPrivateConnection(PCSockets.port, PCSockets.sender, PCSockets.id);
+        if (PCSockets.multiplexed) {
+            client.startPrivateStream(PCSockets.port, PCSockets.sender, PCSockets.id);
+        } else {
+            client.startPrivateConnection(PCSockets.port, PCSockets.sender, PCSockets.id);
+        }
     }
 
     @Override
@@ -111,9 +143,9 @@ public class ClientPacketVisitor implements PacketVisitor {
     public void visit(PCAuthConfirmation pcac) {
         var pcOptional = client.getPrivateConnection(pcac.id);
         if (pcOptional.isPresent()) {
-            var entry = pcOptional.get();
-            entry.getValue().getContext().successfulAuthentication();
-            System.out.println("Connexion privée avec "+ entry.getKey() +" établie.");
+            var pc = pcOptional.get();
+            pc.getContext().successfulAuthentication();
+            client.listener().onPrivateConnectionEstablished(pc.getRecipient());
         }
     }
 
@@ -124,15 +156,132 @@ public class ClientPacketVisitor implements PacketVisitor {
 
     /**
      * Prepare the packet containing the GET request
-     * 
+     * <p>
+     * Uncompressed files are streamed with the chunked transfer coding. A new request
+     * ends the files followed on the connection, so that its response can be sent.
+     * </p>
+     * <p>
+     * The response reads the file, if only to compute its validators : it is prepared by
+     * a file worker, and the responses of the next requests wait for it.
+     * </p>
+     *
      * @param httpRequest
      */
     
     @Override
     public void visit(HttpRequest httpRequest) {
+        var c = (ClientPrivateContext) context;
+        c.stopFollowing();
+        if (httpRequest.getFilename().equals(STOP_TARGET)) {
+            c.sendResponse(Packets.ofNoContentHTTPResponse().flip());
+            return;
+        }
+        var response = c.reserveResponse();
+        client.offload(() -> prepareResponse(httpRequest), (prepared, e) -> {
+            if (e != null) { // workers saturés
+                response.complete(Packets.ofUnavailableHTTPResponse().flip());
+                return;
+            }
+            if (prepared instanceof HTTPChunkedFile stream) {
+                response.complete(stream);
+            } else {
+                response.complete((ByteBuffer) prepared);
+            }
+        });
+    }
+
+    /**
+     * Builds the response to a request, on a file worker.
+     *
+     * @return a {@link HTTPChunkedFile}, or a {@link ByteBuffer} in <b>read-mode</b>
+     */
+    private Object prepareResponse(HttpRequest httpRequest) {
+        if (httpRequest.getFilename().equals(Manifest.TARGET)) {
+            return Packets.ofManifestHTTPResponse(client.getRepository(), httpRequest).flip();
+        }
         var path = client.getRepository() + "/" + httpRequest.getFilename();
-        var buffer = Packets.ofHTTPResponse(path);
-        context.queueMessage(buffer.flip());
+        try {
+            var offset = httpRequest.isFollow() ? Math.max(0, Files.size(Path.of(path)) - FOLLOW_TAIL) : 0;
+            var stream = Packets.ofChunkedHTTPResponse(path, httpRequest, offset);
+            if (stream != null) {
+                return stream;
+            }
+        } catch (IOException e) {
+            // la réponse est construite sans être découpée
+        }
+        return Packets.ofHTTPResponse(path, httpRequest).flip();
+    }
+
+    /**
+     * Opens the destination of the content of a chunked response, according to the
+     * request waiting for it : text files are given to the listener as they arrive,
+     * other files straight into the repository.
+     *
+     * @param header the header of the response
+     * @return the destination, {@code null} to keep the content in memory
+     * @throws IOException If some other I/O error occurs.
+     */
+    public WritableByteChannel openSink(HTTPHeader header) throws IOException {
+        var c = (ClientPrivateContext) context;
+        var request = c.peekPendingRequest();
+        if (request == null && c.isGroup() && !c.isGroupCreator()) {
+            request = publishedRequest(header);
+            if (request != null) {
+                c.addPendingRequest(request);
+            }
+        }
+        if (request == null || header.getCode() != 200) {
+            return null;
+        }
+        switch (request.kind()) {
+            case FOLLOW -> {
+                client.notice("Suivi de " + request.filename() + " :");
+                return new ContentChannel();
+            }
+            case DISPLAY -> {
+                if (!"txt".equals(header.getContentType())) {
+                    return openFile(request); // le fichier est enregistré
+                }
+                client.notice("Contenu du fichier :");
+                return new ContentChannel();
+            }
+            case DOWNLOAD, DELTA -> {
+                return openFile(request);
+            }
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Opens the file of the repository a response is saved in, replacing its content.
+     */
+    private FileChannel openFile(PendingRequest request) throws IOException {
+        var path = Path.of(client.getRepository()).resolve(request.filename());
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Returns the request a file published in a group is received for, so that it is
+     * saved in the repository.
+     *
+     * @param header the header of the response
+     * @return the request, {@code null} if the file can not be saved in the repository
+     */
+    private PendingRequest publishedRequest(HTTPHeader header) {
+        var location = header.getContentLocation();
+        if (location == null || header.getCode() != 200) {
+            return null;
+        }
+        var repository = Path.of(client.getRepository()).toAbsolutePath().normalize();
+        if (!repository.resolve(location).normalize().startsWith(repository)) {
+            return null; // hors du répertoire partagé
+        }
+        client.notice("Réception de " + location + " publié dans le groupe");
+        return new PendingRequest(location, PendingRequest.Kind.DOWNLOAD);
     }
 
     /**
@@ -143,21 +292,162 @@ public class ClientPacketVisitor implements PacketVisitor {
     
     @Override
     public void visit(HttpData httpData) {
+        var c = (ClientPrivateContext) context;
+        var request = c.pollPendingRequest();
+        if (request == null) {
+            return; // réponse non sollicitée
+        }
         if (httpData.getHeader().getCode() == 404) {
-            System.out.println("-> Erreur : fichier non trouvé");
+            client.notice("-> Erreur : fichier non trouvé");
             return;
         }
-        if (httpData.getHeader().getContentType().equals("txt")) {
-            System.out.println("Contenu du fichier : \n\t" + httpData.getBody());
-        } else {
-            var c = (ClientPrivateContext) context;
-            var path = client.getRepository() + "/" + c.getFileRequested();
-            try (var s = new FileOutputStream(path)) {
-                s.write(httpData.getContentBody());
-            } catch (IOException e) {
-                System.out.println("-> Erreur lors de la sauvegarde du fichier");
+        if (httpData.getHeader().getCode() == 304) {
+            client.notice("-> Fichier déjà à jour");
+            return;
+        }
+        if (httpData.getHeader().getCode() == 503) {
+            client.notice("-> Erreur : le pair est occupé, réessayez plus tard");
+            return;
+        }
+        try {
+            switch (request.kind()) {
+                case MANIFEST -> RepositorySync.display(client, RepositorySync.readManifest(httpData));
+                case SYNC -> RepositorySync.synchronize(client, c, RepositorySync.readManifest(httpData));
+                case DELTA -> {
+                    if (httpData.getHeader().getCode() == 206) {
+                        client.offload(() -> {
+                            RepositorySync.applyDelta(client, request, httpData);
+                            return null;
+                        }, (ignored, e) -> {
+                            if (e != null) {
+                                client.notice("-> Erreur lors de la sauvegarde du fichier " + request.filename());
+                            }
+                        });
+                    } else { // le fichier a changé depuis le manifeste, il est renvoyé en entier
+                        saveFile(request, httpData);
+                    }
+                }
+                case DOWNLOAD -> saveFile(request, httpData);
+                case DISPLAY -> {
+                    if (!"txt".equals(httpData.getHeader().getContentType())) {
+                        saveFile(request, httpData);
+                    } else if (!httpData.isStreamed()) {
+                        client.notice("Contenu du fichier : \n\t" + httpData.getBody());
+                    }
+                }
+                case FOLLOW -> client.notice("-> Fin du suivi de " + request.filename());
+                case STOP -> { }
             }
+        } catch (IOException e) {
+            client.notice("-> Erreur : manifeste invalide");
         }
     }
 
+    /**
+     * Saves the content of a response in the repository, unless it was streamed
+     * into it, and records its validators.
+     * <p>
+     * The content is written by a file worker, the validators are recorded once it is saved.
+     * </p>
+     *
+     * @param request the request of the file
+     * @param httpData the response
+     */
+    private void saveFile(PendingRequest request, HttpData httpData) {
+        var path = Path.of(client.getRepository()).resolve(request.filename());
+        client.offload(() -> {
+            if (!httpData.isStreamed()) {
+                Files.createDirectories(path.toAbsolutePath().getParent());
+                try (var s = new FileOutputStream(path.toFile()); var in = httpData.openContent()) {
+                    in.transferTo(s); // décompression à la volée
+                }
+            }
+            RepositorySync.markSynchronized(path, request, httpData.getHeader().getETag());
+            return null;
+        }, (ignored, e) -> {
+            if (e != null) {
+                client.notice("-> Erreur lors de la sauvegarde du fichier " + request.filename());
+                return;
+            }
+            var header = httpData.getHeader();
+            client.getValidators().update(request.filename(), header.getETag(), header.getLastModified());
+        });
+    }
+
+    /**
+     * Let the private connection read the data received on its stream.
+     */
+    @Override
+    public void visit(StreamData streamData) {
+        ((ClientMultiplexContext) context).onStreamData(streamData.getId());
+    }
+
+    @Override
+    public void visit(StreamWindow streamWindow) {
+        ((ClientMultiplexContext) context).onStreamWindow(streamWindow.getId(), streamWindow.getIncrement());
+    }
+
+    @Override
+    public void visit(StreamClose streamClose) {
+        ((ClientMultiplexContext) context).onStreamClose(streamClose.getId());
+    }
+
+    @Override
+    public void visit(GroupRequest groupRequest) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Gives the content of a response to the listener as it arrives.
+     * <p>
+     * The content is decoded as UTF-8 : the bytes of a character split between two
+     * chunks are kept until the next one.
+     * </p>
+     */
+    private class ContentChannel implements WritableByteChannel {
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer pending = ByteBuffer.allocate(8); // fin d'un caractère coupé
+        private final CharBuffer chars = CharBuffer.allocate(8_192);
+
+        @Override
+        public int write(ByteBuffer src) {
+            var written = src.remaining();
+            while (pending.position() != 0 && src.hasRemaining()) { // complète le caractère coupé
+                pending.put(src.get());
+                pending.flip();
+                decode(pending, false);
+                pending.compact();
+            }
+            decode(src, false);
+            pending.put(src); // au plus trois octets
+            return written;
+        }
+
+        private void decode(ByteBuffer in, boolean endOfInput) {
+            for (;;) {
+                var result = decoder.decode(in, chars, endOfInput);
+                if (chars.position() != 0) {
+                    client.listener().onContent(chars.flip().toString());
+                    chars.clear();
+                }
+                if (!result.isOverflow()) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            decode(pending.flip(), true);
+            pending.clear();
+            client.listener().onContent(System.lineSeparator());
+        }
+    }
 }
@@ -0,0 +1,84 @@
+package fr.uge.chatos.client;
+
+import fr.uge.chatos.packet.GroupRequest;
+
+import java.util.Objects;
+
+/**
+ * Displays the events of the session of the console client through its renderer,
+ * and stops its reactor once the session is closed.
+ */
+class ConsoleListener implements ChatListener {
+    private final ChatReactor reactor;
+    private final ConsoleRenderer renderer;
+
+    ConsoleListener(ChatReactor reactor, ConsoleRenderer renderer) {
+        this.reactor = Objects.requireNonNull(reactor);
+        this.renderer = Objects.requireNonNull(renderer);
+    }
+
+    @Override
+    public void onConnected() {
+        renderer.println("Connection success.");
+    }
+
+    @Override
+    public void onPublicMessage(String sender, String content) {
+        renderer.message(sender + " : " + content);
+    }
+
+    @Override
+    public void onPrivateMessage(String sender, String content) {
+        renderer.message("[Message privé de " + sender + "] : " + content);
+    }
+
+    @Override
+    public void onPrivateConnectionRequest(String sender) {
+        if (sender.startsWith(GroupRequest.PREFIX)) {
+            renderer.println("[** Invitation dans le groupe " + sender + " **]"
+                    + "\n\tPour accepter => /" + sender + " oui"
+                    + "\n\tPour refuser => /" + sender + " non");
+            return;
+        }
+        renderer.println("[** Demande de connexion privée reçue de la part de " + sender + " **]"
+                + "\n\tPour accepter => /" + sender + " oui"
+                + "\n\tPour refuser => /" + sender + " non");
+    }
+
+    @Override
+    public void onPrivateConnectionEstablished(String recipient) {
+        renderer.println("Connexion privée avec " + recipient + " établie.");
+    }
+
+    @Override
+    public void onError(String message, boolean fatal) {
+        renderer.println((fatal ? "Critical error : " : "-> Error : ") + message);
+    }
+
+    @Override
+    public void onNotice(String message) {
+        renderer.println(message);
+    }
+
+    @Override
+    public void onContent(String text) {
+        renderer.print(text);
+    }
+
+    @Override
+    public void onConnectionLost() {
+        renderer.println("Connexion au serveur perdue, reconnexion en cours...");
+    }
+
+    @Override
+    public void onReconnected(boolean resumed) {
+        renderer.println(resumed ? "Reconnecté au serveur."
+                : "Reconnecté au serveur, les messages reçus pendant la déconnexion sont perdus.");
+    }
+
+    @Override
+    public void onDisconnected() {
+        renderer.println("Déconnecté du serveur.");
+        reactor.close();
+    }
+}
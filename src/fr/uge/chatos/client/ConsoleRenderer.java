@@ -0,0 +1,201 @@
+package fr.uge.chatos.client;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the text of the console client from its own thread, so that the selector
+ * thread never waits for the terminal.
+ * <p>
+ *     The selector thread puts the texts in a ring buffer, without lock nor allocation
+ *     beyond the texts themselves. The renderer thread drains the buffer once per frame
+ *     ({@value #FRAME_MILLIS} ms) and writes the whole frame with a single flush.
+ * </p>
+ * <p>
+ *     Under a flood, the chat messages are coalesced : a frame shows at most
+ *     {@code chatos.console.maxLines} messages (100 by default), the most recent ones,
+ *     preceded by the number of messages skipped. The messages arriving while the buffer
+ *     is full are counted the same way. The other texts, such as errors and invitations,
+ *     are never skipped.
+ * </p>
+ * <p>
+ *     Note : the texts must be given by a single thread, the thread of the reactor.
+ * </p>
+ */
+class ConsoleRenderer implements AutoCloseable {
+    private static final long FRAME_MILLIS = 50;
+    private static final int CAPACITY = 4_096; // puissance de 2
+    private static final int MAX_LINES = Math.max(1, Integer.getInteger("chatos.console.maxLines", 100));
+    private final String[] texts = new String[CAPACITY];
+    private final boolean[] messages = new boolean[CAPACITY]; // true si le texte peut être résumé
+    private final AtomicLong head = new AtomicLong(); // prochain texte à afficher, écrit par le renderer
+    private final AtomicLong tail = new AtomicLong(); // prochain emplacement libre, écrit par le réacteur
+    private final AtomicLong skipped = new AtomicLong();
+    private final ConcurrentLinkedQueue<String> overflow = new ConcurrentLinkedQueue<>();
+    private final Writer out;
+    private final Thread thread;
+    private volatile boolean waiting;
+    private volatile boolean closed;
+
+    /**
+     * Creates a renderer and starts its thread.
+     *
+     * @param out the stream of the terminal, usually {@link System#out}
+     */
+    ConsoleRenderer(OutputStream out) {
+        this.out = new BufferedWriter(new OutputStreamWriter(Objects.requireNonNull(out), Charset.defaultCharset()),
+                1 << 16);
+        thread = new Thread(this::run, "chatos-renderer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Displays a chat message, which can be coalesced with the others under a flood.
+     *
+     * @param line the message, without line separator
+     */
+    void message(String line) {
+        offer(line + System.lineSeparator(), true);
+    }
+
+    /**
+     * Displays a text which is never skipped.
+     *
+     * @param line the text, without line separator
+     */
+    void println(String line) {
+        offer(line + System.lineSeparator(), false);
+    }
+
+    /**
+     * Displays a text as is, such as a part of a followed file.
+     *
+     * @param text the text
+     */
+    void print(String text) {
+        offer(text, false);
+    }
+
+    private void offer(String text, boolean message) {
+        var t = tail.get();
+        if (t - head.get() == CAPACITY) { // le renderer ne suit plus
+            if (message) {
+                skipped.incrementAndGet();
+            } else {
+                overflow.add(text);
+            }
+        } else {
+            var index = (int) t & (CAPACITY - 1);
+            texts[index] = text;
+            messages[index] = message;
+            tail.set(t + 1); // publie le texte, avant de lire waiting
+        }
+        if (waiting) {
+            waiting = false;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void run() {
+        var frame = new StringBuilder();
+        while (!closed) {
+            if (isEmpty()) {
+                waiting = true;
+                if (isEmpty() && !closed) { // vérifié à nouveau une fois waiting visible
+                    LockSupport.park(this); // réveillé par le premier texte
+                }
+                waiting = false;
+            }
+            // les textes arrivant pendant la trame sont affichés avec elle
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(FRAME_MILLIS));
+            render(frame);
+        }
+        render(frame);
+    }
+
+    private boolean isEmpty() {
+        return head.get() == tail.get() && overflow.isEmpty();
+    }
+
+    /**
+     * Writes the texts waiting, with a single flush.
+     */
+    private void render(StringBuilder frame) {
+        var h = head.get();
+        var t = tail.get();
+        var count = 0;
+        for (var i = h; i < t; i++) {
+            if (messages[(int) i & (CAPACITY - 1)]) {
+                count++;
+            }
+        }
+        var skip = Math.max(0, count - MAX_LINES); // les messages les plus anciens sont résumés
+        var summary = skipped.getAndSet(0) + skip;
+        frame.setLength(0);
+        for (var i = h; i < t; i++) {
+            var index = (int) i & (CAPACITY - 1);
+            var text = texts[index];
+            texts[index] = null;
+            if (messages[index]) {
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                if (summary > 0) {
+                    appendSummary(frame, summary);
+                    summary = 0;
+                }
+            }
+            frame.append(text);
+        }
+        head.lazySet(t);
+        String text;
+        while ((text = overflow.poll()) != null) {
+            frame.append(text);
+        }
+        if (summary > 0) {
+            appendSummary(frame, summary);
+        }
+        if (frame.length() == 0) {
+            return;
+        }
+        try {
+            out.append(frame);
+            out.flush();
+        } catch (IOException ignored) {
+            // le terminal est fermé, le client continue sans affichage
+        }
+        if (frame.capacity() > 1 << 20) {
+            frame.setLength(0);
+            frame.trimToSize(); // après un gros fichier affiché
+        }
+    }
+
+    private static void appendSummary(StringBuilder frame, long count) {
+        frame.append("(+").append(count).append(" message(s) non affiché(s))").append(System.lineSeparator());
+    }
+
+    /**
+     * Displays the texts still waiting and stops the renderer thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
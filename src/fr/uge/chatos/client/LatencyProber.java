@@ -0,0 +1,74 @@
+package fr.uge.chatos.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An external prober : a session which sends latency probes to itself, or to every client,
+ * and prints their percentiles at regular intervals.
+ * <p>
+ *     The probes are sent every {@code chatos.probe.interval} ms (100 by default), and the
+ *     percentiles are printed every {@code chatos.probe.report} ms (10 s by default), over
+ *     the probes of the interval. If {@code chatos.probe.alarm} is set, in ms, an alarm is
+ *     printed on the error stream when the p99 exceeds it.
+ * </p>
+ */
+public class LatencyProber {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 3 && args.length != 4) {
+            System.err.println("Usage : prober <login> <hostname> <port> [public]");
+            return;
+        }
+        int port;
+        try {
+            port = Integer.parseInt(args[2]);
+        } catch (NumberFormatException e) {
+            System.err.println("The port number must be an Integer.");
+            return;
+        }
+        var everyone = args.length == 4 && args[3].equals("public");
+        var interval = Long.getLong("chatos.probe.interval", 100);
+        var report = Long.getLong("chatos.probe.report", 10_000);
+        var alarm = TimeUnit.MILLISECONDS.toMicros(Long.getLong("chatos.probe.alarm", 0));
+        var window = new AtomicReference<>(new LatencyStats());
+        var login = args[0];
+        var listener = new ChatListener() {
+            @Override
+            public void onLatencyProbe(LatencySample sample) {
+                if (sample.sender().equals(login)) {
+                    window.get().record(sample); // les sondes de l'intervalle en cours
+                }
+            }
+        };
+        var timer = Executors.newSingleThreadScheduledExecutor();
+        try (var reactor = new ChatReactor().start()) {
+            ChatClient client;
+            try {
+                client = ChatClient.connect(reactor, login, new InetSocketAddress(args[1], port),
+                        Path.of("."), listener).get();
+            } catch (ExecutionException e) {
+                System.err.println("Connexion impossible : " + e.getCause().getMessage());
+                return;
+            }
+            var recipient = everyone ? null : login;
+            timer.scheduleAtFixedRate(() -> client.sendLatencyProbe(recipient), 0, interval, TimeUnit.MILLISECONDS);
+            for (;;) {
+                Thread.sleep(report);
+                var stats = window.getAndSet(new LatencyStats());
+                System.out.println(stats);
+                if (alarm > 0 && stats.count() > 0 && stats.deliveryPercentile(99) > alarm) {
+                    System.err.println("ALERTE : p99 de " + stats.deliveryPercentile(99) + " µs, au-delà de "
+                            + alarm + " µs");
+                }
+            }
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+}
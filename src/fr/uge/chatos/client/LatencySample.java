@@ -0,0 +1,38 @@
+package fr.uge.chatos.client;
+
+/**
+ * A latency probe received by a session.
+ * <p>
+ *     The times are in microseconds since the epoch. The sending and receiving times are
+ *     taken by the clients, the ingress and egress times by the server : the delays between
+ *     two clocks are only meaningful if the clocks are synchronized, or if the probe comes
+ *     back to its sender.
+ * </p>
+ *
+ * @param sender the login of the session which sent the probe
+ * @param sequence the sequence number of the probe, given by its sender
+ * @param sent the time the probe was sent
+ * @param ingress the time the server treated the probe
+ * @param egress the time the server started delivering the probe
+ * @param received the time the probe was received
+ */
+public record LatencySample(String sender, long sequence, long sent, long ingress, long egress, long received) {
+
+    /**
+     * Returns the time from the sending of the probe to its reception.
+     *
+     * @return the delay in microseconds
+     */
+    public long deliveryMicros() {
+        return received - sent;
+    }
+
+    /**
+     * Returns the time the probe spent in the server, on the clock of the server.
+     *
+     * @return the delay in microseconds
+     */
+    public long serverMicros() {
+        return egress - ingress;
+    }
+}
@@ -0,0 +1,99 @@
+package fr.uge.chatos.client;
+
+import fr.uge.chatos.metrics.Histogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * The percentiles of the latency probes which came back to their sender.
+ * <p>
+ *     The delays are recorded in histograms whose buckets grow by an eighth of a power
+ *     of two, from 1 µs to more than a minute : a percentile is given with an error of at
+ *     most 12.5 %. The probes are numbered by their sender, so the gaps in the sequence
+ *     numbers count the probes lost, or sent to another client.
+ * </p>
+ * <p>
+ *     Recording does not allocate, and the statistics can be read from any thread.
+ * </p>
+ */
+public class LatencyStats {
+    private static final long[] BOUNDS = Histogram.logLinearBounds(1, 64_000_000, 8);
+    private final Histogram delivery = new Histogram(BOUNDS);
+    private final Histogram server = new Histogram(BOUNDS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    private final AtomicLong lost = new AtomicLong();
+    private long expected; // prochain numéro attendu, écrit par un seul thread
+    private boolean started;
+
+    /**
+     * Records a probe which came back to its sender.
+     *
+     * @param sample the probe
+     */
+    public void record(LatencySample sample) {
+        var delay = Math.max(0, sample.deliveryMicros());
+        delivery.record(delay);
+        server.record(Math.max(0, sample.serverMicros()));
+        max.accumulate(delay);
+        if (started && sample.sequence() > expected) {
+            lost.addAndGet(sample.sequence() - expected);
+        }
+        expected = started ? Math.max(expected, sample.sequence() + 1) : sample.sequence() + 1;
+        started = true;
+    }
+
+    /**
+     * Returns the number of probes recorded.
+     *
+     * @return the number of probes
+     */
+    public long count() {
+        return delivery.count();
+    }
+
+    /**
+     * Returns the number of probes missing between those recorded.
+     *
+     * @return the number of probes
+     */
+    public long lost() {
+        return lost.get();
+    }
+
+    /**
+     * Returns a percentile of the time from the sending of a probe to its return.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound of the percentile, in microseconds
+     */
+    public long deliveryPercentile(double percentile) {
+        return Math.min(delivery.percentile(percentile), max()); // la borne du seau peut dépasser le maximum
+    }
+
+    /**
+     * Returns a percentile of the time spent by a probe in the server.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound of the percentile, in microseconds
+     */
+    public long serverPercentile(double percentile) {
+        return server.percentile(percentile);
+    }
+
+    /**
+     * Returns the longest time from the sending of a probe to its return.
+     *
+     * @return the delay in microseconds
+     */
+    public long max() {
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return count() + " sonde(s), p50=" + deliveryPercentile(50) + " µs, p90=" + deliveryPercentile(90)
+                + " µs, p99=" + deliveryPercentile(99) + " µs, p99.9=" + deliveryPercentile(99.9)
+                + " µs, max=" + max() + " µs, serveur p99=" + serverPercentile(99) + " µs, perdue(s)=" + lost();
+    }
+}
@@ -0,0 +1,50 @@
+package fr.uge.chatos.client;
+
+import fr.uge.chatos.sync.DeltaPlan;
+import fr.uge.chatos.sync.FileSignature;
+
+import java.util.Objects;
+
+/**
+ * A HTTP request sent on a private connection and waiting for its response.
+ * <p>
+ *     The peer answers the requests in the order they were sent, so the pending
+ *     requests of a connection are kept in a FIFO.
+ * </p>
+ *
+ * @param filename the requested file
+ * @param kind what to do with the response
+ * @param signature the signature of the file in the manifest of the peer, {@code null} outside a synchronization
+ * @param plan the blocks already present locally, only for {@code DELTA} requests
+ */
+public record PendingRequest(String filename, Kind kind, FileSignature signature, DeltaPlan plan) {
+
+    /**
+     * What to do with the response of a request.
+     */
+    public enum Kind {
+        /** Text files are displayed, other files are saved in the repository. */
+        DISPLAY,
+        /** The file is saved in the repository, whatever its type. */
+        DOWNLOAD,
+        /** The manifest of the peer is displayed. */
+        MANIFEST,
+        /** The manifest of the peer is used to synchronize the repository. */
+        SYNC,
+        /** The missing blocks of a file are applied over the local copy. */
+        DELTA,
+        /** The end of a text file, then the content appended to it, is displayed as it arrives. */
+        FOLLOW,
+        /** The followed files are stopped, the response has no content. */
+        STOP
+    }
+
+    public PendingRequest {
+        Objects.requireNonNull(filename);
+        Objects.requireNonNull(kind);
+    }
+
+    PendingRequest(String filename, Kind kind) {
+        this(filename, kind, null, null);
+    }
+}
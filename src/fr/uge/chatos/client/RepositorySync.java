@@ -0,0 +1,222 @@
+package fr.uge.chatos.client;
+
+import fr.uge.chatos.context.ClientPrivateContext;
+import fr.uge.chatos.packet.HttpData;
+import fr.uge.chatos.sync.ByteRange;
+import fr.uge.chatos.sync.DeltaPlan;
+import fr.uge.chatos.sync.Manifest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mirrors the repository of a peer over a private connection.
+ * <p>
+ *     The manifest of the peer is requested first. Then, for each listed file :
+ * </p>
+ * <ul>
+ *     <li>if the local copy has the same size and modification time, nothing is requested ;</li>
+ *     <li>if there is no local copy, the whole file is requested ;</li>
+ *     <li>otherwise, only the blocks missing from the local copy are requested.</li>
+ * </ul>
+ * <p>
+ *     Every synchronized file gets the modification time of the peer, so unchanged
+ *     files are skipped by the next synchronization without being read.
+ * </p>
+ * <p>
+ *     The files which would be written outside of the repository are never synchronized.
+ * </p>
+ */
+class RepositorySync {
+
+    private RepositorySync() { }
+
+    /**
+     * Requests the manifest of the peer.
+     *
+     * @param client the client
+     * @param context the context of the private connection
+     * @param synchronize {@code true} to synchronize the repository once the manifest
+     *                    is received, {@code false} to only display it
+     */
+    static void requestManifest(Client client, ClientPrivateContext context, boolean synchronize) {
+        var kind = synchronize ? PendingRequest.Kind.SYNC : PendingRequest.Kind.MANIFEST;
+        client.sendHttpRequest(context, new PendingRequest(Manifest.TARGET, kind), Map.of());
+    }
+
+    /**
+     * Reads the manifest contained in a response.
+     *
+     * @param httpData the response
+     * @return the manifest
+     * @throws IOException if the content can not be decoded or is not a valid manifest
+     */
+    static Manifest readManifest(HttpData httpData) throws IOException {
+        try (var in = httpData.openContent()) {
+            var content = in.readNBytes(HttpData.MAX_CONTENT_LENGTH + 1);
+            if (content.length > HttpData.MAX_CONTENT_LENGTH) {
+                throw new IOException("Manifest too large");
+            }
+            return Manifest.parse(new String(content, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Displays the files listed in a manifest.
+     *
+     * @param client the client
+     * @param manifest the manifest of the peer
+     */
+    static void display(Client client, Manifest manifest) {
+        var builder = new StringBuilder("Fichiers disponibles (" + manifest.getFiles().size() + ") :");
+        for (var file : manifest.getFiles()) {
+            builder.append("\n\t").append(file.getName()).append(" (").append(file.getSize()).append(" octets)");
+        }
+        client.notice(builder.toString());
+    }
+
+    /**
+     * The requests computed from the manifest of the peer, and what they will transfer.
+     */
+    private record SyncPlan(List<Request> requests, List<String> failures, int upToDate, int downloads,
+                            int deltas, long requested, long reused) { }
+
+    /**
+     * A request of a synchronization, with its additional header fields.
+     */
+    private record Request(PendingRequest request, Map<String, String> fields) { }
+
+    /**
+     * Sends the requests needed to bring the repository up to date with the manifest.
+     * <p>
+     *     Comparing the local copies with the manifest reads them : the comparison runs on
+     *     a file worker, and the requests are sent once it is over.
+     * </p>
+     *
+     * @param client the client
+     * @param context the context of the private connection
+     * @param manifest the manifest of the peer
+     */
+    static void synchronize(Client client, ClientPrivateContext context, Manifest manifest) {
+        client.offload(() -> plan(Path.of(client.getRepository()), manifest), (plan, e) -> {
+            if (e != null) {
+                client.notice("-> Erreur : synchronisation impossible pour le moment");
+                return;
+            }
+            if (!context.isOpen()) {
+                return;
+            }
+            for (var request : plan.requests()) {
+                client.sendHttpRequest(context, request.request(), request.fields());
+            }
+            for (var name : plan.failures()) {
+                client.notice("-> Erreur lors de la synchronisation de " + name);
+            }
+            client.notice("Synchronisation : " + plan.upToDate() + " fichier(s) à jour, " + plan.downloads()
+                    + " à télécharger, " + plan.deltas() + " à mettre à jour (" + plan.requested()
+                    + " octets demandés, " + plan.reused() + " octets réutilisés)");
+        });
+    }
+
+    /**
+     * Compares the repository with the manifest, on a file worker.
+     */
+    private static SyncPlan plan(Path repository, Manifest manifest) {
+        var requests = new ArrayList<Request>();
+        var failures = new ArrayList<String>();
+        int upToDate = 0, downloads = 0, deltas = 0;
+        var requested = 0L;
+        var reused = 0L;
+        var root = repository.toAbsolutePath().normalize();
+        for (var file : manifest.getFiles()) {
+            var local = root.resolve(file.getName()).normalize();
+            if (!local.startsWith(root) || local.equals(root)) {
+                continue; // hors du répertoire partagé
+            }
+            try {
+                if (isUpToDate(local, file.getSize(), file.getLastModified())) {
+                    upToDate++;
+                    continue;
+                }
+                if (!Files.exists(local)) {
+                    requests.add(new Request(
+                            new PendingRequest(file.getName(), PendingRequest.Kind.DOWNLOAD, file, null), Map.of()));
+                    downloads++;
+                    requested += file.getSize();
+                    continue;
+                }
+                var plan = DeltaPlan.compute(local, file, manifest.getBlockSize());
+                var ranges = plan.missingRanges();
+                if (ranges.size() > ByteRange.MAX_RANGES) { // le pair enverrait le fichier entier
+                    requests.add(new Request(
+                            new PendingRequest(file.getName(), PendingRequest.Kind.DOWNLOAD, file, null), Map.of()));
+                    downloads++;
+                    requested += file.getSize();
+                    continue;
+                }
+                reused += plan.reusedBytes();
+                if (ranges.isEmpty()) { // tous les blocs sont déjà présents localement
+                    plan.apply(local, ByteBuffer.allocate(0));
+                    upToDate++;
+                    continue;
+                }
+                requests.add(new Request(new PendingRequest(file.getName(), PendingRequest.Kind.DELTA, file, plan),
+                        Map.of("Range", ByteRange.format(ranges), "If-Range", "\"" + file.getHash() + "\"")));
+                deltas++;
+                requested += ranges.stream().mapToLong(ByteRange::length).sum();
+            } catch (IOException e) {
+                failures.add(file.getName());
+            }
+        }
+        return new SyncPlan(requests, failures, upToDate, downloads, deltas, requested, reused);
+    }
+
+    /**
+     * Applies the blocks received for a file to its local copy.
+     * <p>
+     *     Note : blocking, called on a file worker.
+     * </p>
+     *
+     * @param client the client
+     * @param request the request of the blocks
+     * @param httpData the {@code 206} response
+     * @throws IOException If some other I/O error occurs.
+     */
+    static void applyDelta(Client client, PendingRequest request, HttpData httpData) throws IOException {
+        var local = Path.of(client.getRepository()).resolve(request.filename());
+        request.plan().apply(local, ByteBuffer.wrap(httpData.getContentBody()));
+    }
+
+    /**
+     * Gives a synchronized file the modification time it has on the peer, if the received
+     * content is the version listed in the manifest. A newer version keeps its local
+     * modification time, so it is compared again by the next synchronization.
+     *
+     * @param local the local copy
+     * @param request the request of the file
+     * @param etag the {@code ETag} field of the response, may be {@code null}
+     * @throws IOException If some other I/O error occurs.
+     */
+    static void markSynchronized(Path local, PendingRequest request, String etag) throws IOException {
+        var signature = request.signature();
+        // l'ETag d'une représentation compressée est suffixé par son encodage
+        if (signature != null && etag != null && etag.startsWith("\"" + signature.getHash())) {
+            Files.setLastModifiedTime(local, FileTime.fromMillis(signature.getLastModified()));
+        }
+    }
+
+    private static boolean isUpToDate(Path local, long size, long lastModified) throws IOException {
+        return Files.exists(local)
+                && Files.size(local) == size
+                && Files.getLastModifiedTime(local).toMillis() == lastModified;
+    }
+}
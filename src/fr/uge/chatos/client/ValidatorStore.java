@@ -0,0 +1,150 @@
+package fr.uge.chatos.client;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the HTTP validators ({@code ETag} and {@code Last-Modified}) of the files
+ * downloaded in the repository of a client.
+ * <p>
+ *     The validators are saved in the repository, in a file named {@value #FILENAME}.
+ *     They are only used while the local copy is left untouched : if the size or the
+ *     modification time of the file changed since the download, the next request is not
+ *     conditional.
+ * </p>
+ */
+class ValidatorStore {
+    /**
+     * The validators of one downloaded file.
+     */
+    record Validator(String etag, String lastModified, long size, long localModified) { }
+
+    static final String FILENAME = ".chatos-validators";
+    private static final Logger logger = Logger.getLogger(ValidatorStore.class.getName());
+    private static final String SEPARATOR = "\t";
+    private final Path repository;
+    private final Path storage;
+    private final HashMap<String, Validator> validators = new HashMap<>();
+
+    ValidatorStore(String repository) {
+        this.repository = Path.of(Objects.requireNonNull(repository));
+        storage = this.repository.resolve(FILENAME);
+        load();
+    }
+
+    /**
+     * Returns the fields to add to a request for the specified file, so that the
+     * peer can answer {@code 304 Not Modified} if our copy is up to date.
+     *
+     * @param filename the requested file
+     * @return the conditional fields, empty if the file is unknown or was modified locally
+     */
+    Map<String, String> conditionalFields(String filename) {
+        var validator = current(filename);
+        if (validator.isEmpty()) {
+            return Map.of();
+        }
+        var fields = new HashMap<String, String>();
+        if (validator.get().etag != null) {
+            fields.put("If-None-Match", validator.get().etag);
+        }
+        if (validator.get().lastModified != null) {
+            fields.put("If-Modified-Since", validator.get().lastModified);
+        }
+        return fields;
+    }
+
+    /**
+     * Records the validators received with the specified file, once it has been saved.
+     *
+     * @param filename the downloaded file
+     * @param etag the received {@code ETag}, may be {@code null}
+     * @param lastModified the received {@code Last-Modified} date, may be {@code null}
+     */
+    void update(String filename, String etag, String lastModified) {
+        if (etag == null && lastModified == null) {
+            validators.remove(filename);
+        } else {
+            var file = repository.resolve(filename);
+            try {
+                validators.put(filename, new Validator(etag, lastModified, Files.size(file),
+                        Files.getLastModifiedTime(file).toMillis()));
+            } catch (IOException e) {
+                validators.remove(filename);
+            }
+        }
+        save();
+    }
+
+    private Optional<Validator> current(String filename) {
+        var validator = validators.get(filename);
+        if (validator == null) {
+            return Optional.empty();
+        }
+        var file = repository.resolve(filename);
+        try {
+            if (Files.size(file) == validator.size && Files.getLastModifiedTime(file).toMillis() == validator.localModified) {
+                return Optional.of(validator);
+            }
+        } catch (IOException ignored) {
+            // fichier supprimé : la requête ne sera pas conditionnelle
+        }
+        return Optional.empty();
+    }
+
+    private void load() {
+        if (!Files.exists(storage)) {
+            return;
+        }
+        var properties = new Properties();
+        try (var reader = Files.newBufferedReader(storage)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to load the validators of " + repository, e);
+            return;
+        }
+        for (var name : properties.stringPropertyNames()) {
+            var parts = properties.getProperty(name).split(SEPARATOR, -1);
+            if (parts.length != 4) {
+                continue;
+            }
+            try {
+                validators.put(name, new Validator(emptyToNull(parts[0]), emptyToNull(parts[1]),
+                        Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+            } catch (NumberFormatException ignored) {
+                // entrée corrompue, ignorée
+            }
+        }
+    }
+
+    private void save() {
+        var properties = new Properties();
+        for (var entry : validators.entrySet()) {
+            var validator = entry.getValue();
+            properties.setProperty(entry.getKey(), String.join(SEPARATOR,
+                    nullToEmpty(validator.etag), nullToEmpty(validator.lastModified),
+                    Long.toString(validator.size), Long.toString(validator.localModified)));
+        }
+        try (var writer = Files.newBufferedWriter(storage)) {
+            properties.store(writer, "ChatOS validators");
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to save the validators of " + repository, e);
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+}
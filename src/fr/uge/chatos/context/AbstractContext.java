@@ -1,40 +1,119 @@
 package fr.uge.chatos.context;
 
+import fr.uge.chatos.jfr.SocketReadEvent;
+import fr.uge.chatos.jfr.SocketWriteEvent;
 import fr.uge.chatos.packet.Packet;
 import fr.uge.chatos.reader.Reader;
+import fr.uge.chatos.utils.Throttle;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Deque;
 import java.util.LinkedList;
 import java.util.Objects;
-import java.util.Queue;
 
 
 /**
  * This class represent the key attachment in the selector of either the server or the client class.
+ * <p>
+ * A context can also run over a stream of a multiplexed socket rather than over its own
+ * socket : it has no key then, and the multiplexing context calls its read and write
+ * methods instead of the selector.
+ * </p>
+ * <p>
+ * The size of {@code bufferIn} and {@code bufferOut} adapts to the traffic of the connection,
+ * between the bounds set by the system properties {@code chatos.buffer.min} and
+ * {@code chatos.buffer.max}, in bytes (256 and 65536 by default). The buffers start at the
+ * size given at the creation of the context, or {@code chatos.buffer.initial} (1024 by
+ * default). A buffer doubles when a read fills it, or when the socket takes all of it while
+ * messages still wait in the queue ; it is halved when, over {@value #SAMPLE} reads or writes,
+ * no more than a quarter of it was used. The input buffer holds at most
+ * {@value #FRAMES_PER_BUFFER} of the largest frames decoded : the readers compact it after
+ * each field, which costs more than the reads saved once it holds many small frames. A
+ * subclass which chooses its own buffers with {@link #enlargeBuffers(ByteBuffer, ByteBuffer)}
+ * keeps them.
+ * </p>
  */
 
 class AbstractContext implements Context {
-    private static final int MAX_BUFFER_SIZE = 1_024;
-    protected final ByteBuffer bufferIn = ByteBuffer.allocateDirect(MAX_BUFFER_SIZE);
-    private final ByteBuffer bufferOut = ByteBuffer.allocateDirect(MAX_BUFFER_SIZE);
-    private final SocketChannel socket;
-    private final SelectionKey key;
-    private final Queue<ByteBuffer> queue = new LinkedList<>();
+    private static final int MIN_BUFFER_SIZE = Math.max(64, Integer.getInteger("chatos.buffer.min", 256));
+    private static final int MAX_BUFFER_SIZE = Math.max(MIN_BUFFER_SIZE, Integer.getInteger("chatos.buffer.max", 65_536));
+    private static final int DEFAULT_BUFFER_SIZE = Integer.getInteger("chatos.buffer.initial", 1_024);
+    private static final int SAMPLE = 64; // lectures, ou écritures, entre deux réductions possibles
+    private static final int FRAMES_PER_BUFFER = 8; // au-delà, les lecteurs compactent trop d'octets par champ
+    protected ByteBuffer bufferIn;
+    private ByteBuffer bufferOut;
+    private boolean adaptive = true; // faux une fois les tampons choisis par la sous-classe
+    private int peakIn; // plus grand remplissage observé depuis la dernière vérification
+    private int peakOut;
+    private int reads;
+    private int writes;
+    private final ByteChannel socket;
+    private SelectionKey key;
+    private final Deque<ByteBuffer> queue = new LinkedList<>();
+    private boolean headStarted; // le premier message de la file est en partie dans bufferOut
+    private long queuedBytes;
+    private long decodeNanos; // temps de décodage du paquet en cours
+    private int decodeBytes; // taille de la trame en cours
+    private int largestFrame; // plus grande trame décodée sur ce contexte
     private final Reader<Packet> reader;
     private boolean closed;
+    private Throttle readThrottle;
+    private Throttle writeThrottle;
+    private boolean readSuspended;
+    private boolean writeSuspended;
 
     AbstractContext(SelectionKey key, Reader<Packet> reader) {
+        this(key, reader, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a context whose buffers start at the specified size.
+     *
+     * @param key the key of the socket
+     * @param reader the reader of the packets
+     * @param bufferSize the initial size of the buffers, brought within the bounds,
+     * {@code 0} for the default size
+     */
+    AbstractContext(SelectionKey key, Reader<Packet> reader, int bufferSize) {
         this.key = Objects.requireNonNull(key);
         socket = (SocketChannel) key.channel();
         this.reader = Objects.requireNonNull(reader);
+        var size = bufferSize(bufferSize > 0 ? bufferSize : DEFAULT_BUFFER_SIZE);
+        bufferIn = ByteBuffer.allocateDirect(size);
+        bufferOut = ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Creates a context over a stream of a multiplexed socket.
+     *
+     * @param channel the stream, whose interest operations are set by {@link #setInterestOps(int)}
+     * @param reader the reader of the packets
+     */
+    AbstractContext(ByteChannel channel, Reader<Packet> reader) {
+        socket = Objects.requireNonNull(channel);
+        this.reader = Objects.requireNonNull(reader);
+        bufferIn = ByteBuffer.allocateDirect(bufferSize(DEFAULT_BUFFER_SIZE));
+        bufferOut = ByteBuffer.allocateDirect(bufferSize(DEFAULT_BUFFER_SIZE));
+    }
+
+    /**
+     * Rounds a size up to a power of two, within the bounds of the buffers.
+     */
+    private static int bufferSize(int size) {
+        var rounded = Integer.highestOneBit(Math.max(1, Math.min(size, 1 << 30)));
+        if (rounded < size) {
+            rounded <<= 1;
+        }
+        return Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, rounded));
     }
 
     @Override
     public void doConnect() throws IOException {
-        if (!socket.finishConnect()) {
+        if (!((SocketChannel) socket).finishConnect()) {
             return;
         }
         key.interestOps(SelectionKey.OP_WRITE);
@@ -42,37 +121,442 @@ class AbstractContext implements Context {
 
     @Override
     public void doRead() throws IOException {
-        if (socket.read(bufferIn) == -1) {
+        var event = SocketReadEvent.start();
+        var in = inputBuffer();
+        var oldLimit = in.limit();
+        if (readThrottle != null) {
+            var now = System.nanoTime();
+            var allowance = readThrottle.allowance(now);
+            if (allowance == 0) {
+                readSuspended = true;
+                updateInterestOps();
+                onThrottled(readThrottle.delay(now));
+                return;
+            }
+            in.limit((int) Math.min(oldLimit, in.position() + allowance));
+        }
+        int read;
+        try {
+            read = socket.read(in);
+        } finally {
+            in.limit(oldLimit);
+        }
+        if (read == -1) {
             closed = true;
+        } else {
+            if (readThrottle != null) {
+                readThrottle.consume(read);
+            }
+            if (read > 0) {
+                onRead(read);
+                if (adaptive && in == bufferIn) {
+                    adaptInput();
+                }
+            }
         }
         processIn();
         updateInterestOps();
+        if (event != null) {
+            event.finish(Math.max(read, 0), isRelay());
+        }
     }
 
     @Override
     public void doWrite() throws IOException {
-        bufferOut.flip();
-        socket.write(bufferOut);
-        bufferOut.compact();
+        var event = SocketWriteEvent.start();
+        var out = outputBuffer();
+        var pending = out.position();
+        out.flip();
+        var oldLimit = out.limit();
+        if (writeThrottle != null) {
+            var now = System.nanoTime();
+            var allowance = writeThrottle.allowance(now);
+            if (allowance == 0) {
+                out.compact();
+                writeSuspended = true;
+                updateInterestOps();
+                onThrottled(writeThrottle.delay(now));
+                return;
+            }
+            out.limit((int) Math.min(oldLimit, out.position() + allowance));
+        }
+        int written;
+        try {
+            written = socket.write(out);
+        } finally {
+            out.limit(oldLimit);
+        }
+        if (writeThrottle != null) {
+            writeThrottle.consume(written);
+        }
+        onWritten(written);
+        out.compact();
         processOut();
+        if (adaptive && out == bufferOut) {
+            adaptOutput(pending, written);
+        }
         updateInterestOps();
+        if (event != null) {
+            event.finish(written, pendingBytes(), isRelay());
+        }
     }
 
+    /**
+     * Doubles {@code bufferIn} if the read filled it, the socket may have more bytes
+     * waiting, or halves it if the last reads used little of it.
+     */
+    private void adaptInput() {
+        var used = bufferIn.position();
+        var capacity = bufferIn.capacity();
+        if (used == capacity && capacity < Math.min(MAX_BUFFER_SIZE, FRAMES_PER_BUFFER * largestFrame)) {
+            bufferIn = resize(bufferIn, bufferSize(capacity * 2));
+            reads = 0;
+            peakIn = 0;
+            return;
+        }
+        peakIn = Math.max(peakIn, used);
+        if (++reads == SAMPLE) {
+            if (capacity > MIN_BUFFER_SIZE && peakIn <= capacity / 4) {
+                bufferIn = resize(bufferIn, bufferSize(capacity / 2));
+            }
+            reads = 0;
+            peakIn = 0;
+        }
+    }
+
+    /**
+     * Doubles {@code bufferOut} if the socket took all of it while messages still wait
+     * in the queue, or halves it if the last writes used little of it.
+     *
+     * @param pending the bytes in {@code bufferOut} before the write
+     * @param written the bytes written
+     */
+    private void adaptOutput(int pending, int written) {
+        var capacity = bufferOut.capacity();
+        if (written == pending && written == capacity && !queue.isEmpty() && capacity < MAX_BUFFER_SIZE) {
+            bufferOut = resize(bufferOut, bufferSize(capacity * 2));
+            writes = 0;
+            peakOut = 0;
+            processOut(); // la place gagnée reçoit les messages en attente
+            return;
+        }
+        peakOut = Math.max(peakOut, pending);
+        if (++writes == SAMPLE) {
+            if (capacity > MIN_BUFFER_SIZE && peakOut <= capacity / 4 && bufferOut.position() <= capacity / 2) {
+                bufferOut = resize(bufferOut, bufferSize(capacity / 2));
+            }
+            writes = 0;
+            peakOut = 0;
+        }
+    }
+
+    /**
+     * Replaces a buffer by a buffer of another size, keeping its content.
+     *
+     * @param buffer the buffer, in <b>write-mode</b>, whose content fits in the new size
+     * @param size the new size
+     * @return the new buffer, in <b>write-mode</b>
+     */
+    private ByteBuffer resize(ByteBuffer buffer, int size) {
+        var resized = ByteBuffer.allocateDirect(size);
+        buffer.flip();
+        resized.put(buffer);
+        onBufferResized(buffer.capacity(), size);
+        return resized;
+    }
+
+    /**
+     * Brings {@code bufferIn} and {@code bufferOut} back to the minimal size, if they
+     * are empty, such as when the connection is idle.
+     */
+    protected void trimBuffers() {
+        if (!adaptive) {
+            return;
+        }
+        if (bufferIn.capacity() > MIN_BUFFER_SIZE && bufferIn.position() == 0) {
+            bufferIn = resize(bufferIn, MIN_BUFFER_SIZE);
+        }
+        if (bufferOut.capacity() > MIN_BUFFER_SIZE && bufferOut.position() == 0 && queue.isEmpty()) {
+            bufferOut = resize(bufferOut, MIN_BUFFER_SIZE);
+        }
+        reads = writes = 0;
+        peakIn = peakOut = 0;
+    }
+
+    /**
+     * Returns the size of the input buffer.
+     *
+     * @return the capacity of {@code bufferIn}, in bytes
+     */
+    public int getInputBufferSize() {
+        return bufferIn.capacity();
+    }
+
+    /**
+     * Returns the size of the output buffer.
+     *
+     * @return the capacity of {@code bufferOut}, in bytes
+     */
+    public int getOutputBufferSize() {
+        return bufferOut.capacity();
+    }
+
+    /**
+     * Returns the buffer in which the bytes read from the socket are stored,
+     * {@code bufferIn} unless a subclass relays the bytes elsewhere.
+     * <p>
+     * Note: the buffer is in <b>write-mode</b>.
+     * </p>
+     *
+     * @return the input buffer
+     */
+    protected ByteBuffer inputBuffer() {
+        return bufferIn;
+    }
+
+    /**
+     * Returns the buffer whose content is written on the socket, {@code bufferOut}
+     * unless a subclass sends the bytes of another buffer.
+     * <p>
+     * Note: the buffer is in <b>write-mode</b>.
+     * </p>
+     *
+     * @return the output buffer
+     */
+    protected ByteBuffer outputBuffer() {
+        return bufferOut;
+    }
+
+    /**
+     * Checks if some bytes are waiting to be written on the socket.
+     *
+     * @return {@code true} if the output buffer is not empty
+     */
+    protected boolean hasOutput() {
+        return outputBuffer().position() != 0;
+    }
+
+    /**
+     * Checks if the bytes of this context are relayed without being decoded, as reported
+     * by the flight recorder events.
+     *
+     * @return {@code true} if this context relays a private connection
+     */
+    protected boolean isRelay() {
+        return false;
+    }
+
+    /**
+     * Checks if reading is temporarily paused, in which case a key without
+     * interestOps does not mean that the connection is over.
+     *
+     * @return {@code true} if reads are suspended by a bandwidth limit
+     */
+    protected boolean isReadPaused() {
+        return readSuspended;
+    }
+
+    /**
+     * Checks if some messages of this context are still waiting to be sent.
+     *
+     * @return {@code true} if {@code bufferOut} or the queue is not empty
+     */
+    protected boolean hasPendingOutput() {
+        return bufferOut.position() != 0 || !queue.isEmpty();
+    }
+
+    /**
+     * Returns the number of bytes of this context waiting to be sent.
+     *
+     * @return the bytes in {@code bufferOut} and in the queue
+     */
+    public long pendingBytes() {
+        return bufferOut.position() + queuedBytes;
+    }
+
+    /**
+     * Limits the bandwidth used to read from the socket.
+     *
+     * @param throttle the limits, {@code null} to remove them
+     */
+    public void setReadThrottle(Throttle throttle) {
+        readThrottle = throttle;
+        if (throttle == null && readSuspended) { // la reprise prévue n'a plus rien à faire
+            readSuspended = false;
+            updateInterestOps();
+        }
+    }
+
+    /**
+     * Limits the bandwidth used to write on the socket.
+     *
+     * @param throttle the limits, {@code null} to remove them
+     */
+    public void setWriteThrottle(Throttle throttle) {
+        writeThrottle = throttle;
+    }
+
+    /**
+     * Called after bytes have been read from the socket, before they are processed.
+     *
+     * @param bytes the number of bytes read, strictly positive
+     */
+    protected void onRead(int bytes) { }
+
+    /**
+     * Called after bytes have been written on the socket.
+     *
+     * @param bytes the number of bytes written
+     */
+    protected void onWritten(int bytes) { }
+
+    /**
+     * Called once a packet is decoded, before it is treated.
+     *
+     * @param packet the packet
+     * @param nanos the time spent by the reader on this packet, over all the reads it took
+     * @param bytes the size of the frame of the packet
+     */
+    protected void onDecoded(Packet packet, long nanos, int bytes) { }
+
+    /**
+     * Called when {@code bufferIn} or {@code bufferOut} is replaced by a buffer of another size.
+     *
+     * @param previous the size of the previous buffer
+     * @param size the size of the new buffer
+     */
+    protected void onBufferResized(int previous, int size) { }
+
+    /**
+     * Called when a message is queued, before it is moved to the output buffer.
+     *
+     * @param buffer the message, in <b>read-mode</b>, which must be left untouched
+     */
+    protected void onQueued(ByteBuffer buffer) { }
+
+    /**
+     * Called when a queued message is about to be moved to the output buffer, before
+     * any of its bytes is.
+     *
+     * @param buffer the message, in <b>read-mode</b>, which must be left untouched
+     * @return the message to send instead, {@code buffer} by default
+     */
+    protected ByteBuffer onDequeue(ByteBuffer buffer) {
+        return buffer;
+    }
+
+    /**
+     * Called when bytes of the queued messages are moved to the output buffer.
+     *
+     * @param bytes the number of bytes
+     */
+    protected void onDequeued(int bytes) { }
+
+    /**
+     * Called when reads or writes are suspended because a bandwidth limit is reached.
+     * The subclass must call {@link #resume()} once the delay has elapsed.
+     *
+     * @param delay the time to wait before resuming, in nanoseconds
+     */
+    protected void onThrottled(long delay) { }
+
+    /**
+     * Resumes the reads and writes suspended by a bandwidth limit, if the limit
+     * allows it again.
+     */
+    public void resume() {
+        if ((!readSuspended && !writeSuspended) || !isOpen()) {
+            return;
+        }
+        var now = System.nanoTime();
+        if (readSuspended && readThrottle.allowance(now) > 0) {
+            readSuspended = false;
+        }
+        if (writeSuspended && writeThrottle.allowance(now) > 0) {
+            writeSuspended = false;
+        }
+        updateInterestOps();
+        if (readSuspended || writeSuspended) {
+            onThrottled(Math.max(readSuspended ? readThrottle.delay(now) : 0,
+                    writeSuspended ? writeThrottle.delay(now) : 0));
+        }
+    }
+
+    /**
+     * Returns the key of this context in the selector.
+     *
+     * @return the key, {@code null} if this context runs over a stream of a multiplexed socket
+     */
     public SelectionKey getKey() {
         return key;
     }
 
+    /**
+     * Checks if this context is still registered and open.
+     *
+     * @return {@code true} if the key is valid, or if the stream is open
+     */
+    public boolean isOpen() {
+        return key != null ? key.isValid() : socket.isOpen();
+    }
+
+    /**
+     * Replaces {@code bufferIn} and {@code bufferOut} by larger buffers, keeping their content.
+     * Their size no longer adapts to the traffic.
+     * <p>
+     *     Note : to be called between two packets, the buffers are in <b>write-mode</b>.
+     * </p>
+     *
+     * @param in the new input buffer, empty
+     * @param out the new output buffer, empty
+     */
+    protected void enlargeBuffers(ByteBuffer in, ByteBuffer out) {
+        adaptive = false;
+        bufferIn.flip();
+        in.put(bufferIn);
+        onBufferResized(bufferIn.capacity(), in.capacity());
+        bufferIn = in;
+        bufferOut.flip();
+        out.put(bufferOut);
+        onBufferResized(bufferOut.capacity(), out.capacity());
+        bufferOut = out;
+    }
+
+    /**
+     * Attaches this context to the key of another selector, to hand it over to
+     * another thread.
+     *
+     * @param key the new key, whose attachment is this context
+     */
+    protected void rebind(SelectionKey key) {
+        this.key = Objects.requireNonNull(key);
+    }
+
     @Override
     public void processIn() {
         for (;;) {
+            var start = System.nanoTime();
+            var before = bufferIn.position();
             var status = reader.process(bufferIn);
+            decodeNanos += System.nanoTime() - start;
+            decodeBytes += before - bufferIn.position(); // octets consommés par le lecteur
             switch (status) {
-                case ERROR -> silentlyClose();
+                case ERROR -> {
+                    silentlyClose();
+                    return;
+                }
                 case REFILL -> { return; }
                 case DONE -> {
                     var packet = reader.get();
+                    onDecoded(packet, decodeNanos, decodeBytes);
+                    largestFrame = Math.max(largestFrame, decodeBytes);
+                    decodeNanos = 0;
+                    decodeBytes = 0;
                     reader.reset();
                     treatPacket(packet);
+                    if (!isOpen()) {
+                        return; // fermé ou confié à un autre sélecteur
+                    }
                 }
             }
         }
@@ -80,20 +564,54 @@ class AbstractContext implements Context {
 
     @Override
     public void processOut() {
-        while (!queue.isEmpty()) {
+        while (!queue.isEmpty() && bufferOut.hasRemaining()) {
             var buffer = queue.peek();
+            if (!headStarted) {
+                var replacement = onDequeue(buffer);
+                if (replacement != buffer) {
+                    queue.pop();
+                    queue.push(replacement);
+                    queuedBytes += replacement.remaining() - buffer.remaining();
+                    buffer = replacement;
+                }
+                headStarted = true;
+            }
             if (buffer.remaining() <= bufferOut.remaining()) {
                 queue.remove();
+                headStarted = false;
+                queuedBytes -= buffer.remaining();
+                onDequeued(buffer.remaining());
                 bufferOut.put(buffer);
-            } else {
-                break;
+            } else { // les messages plus gros que bufferOut sont envoyés en plusieurs fois
+                var oldLimit = buffer.limit();
+                queuedBytes -= bufferOut.remaining();
+                onDequeued(bufferOut.remaining());
+                buffer.limit(buffer.position() + bufferOut.remaining());
+                bufferOut.put(buffer);
+                buffer.limit(oldLimit);
             }
         }
+        if (queue.isEmpty() && bufferOut.hasRemaining()) {
+            produceOut(bufferOut);
+        }
     }
 
+    /**
+     * Lets a subclass write content produced on demand, such as a streamed file,
+     * once every queued message has been moved to {@code bufferOut}.
+     * <p>
+     * Note: {@code bufferOut} is in <b>write-mode</b> before and after the call.
+     * </p>
+     *
+     * @param bufferOut the buffer to fill
+     */
+    protected void produceOut(ByteBuffer bufferOut) { }
+
     @Override
     public void queueMessage(ByteBuffer buffer) {
+        onQueued(buffer);
         queue.add(buffer);
+        queuedBytes += buffer.remaining();
         processOut();
         updateInterestOps();
     }
@@ -112,17 +630,31 @@ class AbstractContext implements Context {
 
     @Override
     public void updateInterestOps() {
+        if (!isOpen()) {
+            return; // fermé pendant le traitement des paquets
+        }
         var interestOps = 0;
-        if (!closed && bufferIn.hasRemaining()) {
+        var readPaused = isReadPaused();
+        if (!closed && inputBuffer().hasRemaining() && !readPaused) {
             interestOps |= SelectionKey.OP_READ;
         }
-        if (bufferOut.position() != 0) {
+        if (hasOutput() && !writeSuspended) {
             interestOps |= SelectionKey.OP_WRITE;
         }
-        if (interestOps == 0) {
+        if (interestOps == 0 && !readPaused && !writeSuspended) {
             silentlyClose();
             return;
         }
+        setInterestOps(interestOps);
+    }
+
+    /**
+     * Sets the operations this context waits for, on its key unless it runs over
+     * a stream of a multiplexed socket.
+     *
+     * @param interestOps the operations, such as {@link SelectionKey#OP_READ}
+     */
+    protected void setInterestOps(int interestOps) {
         key.interestOps(interestOps);
     }
 
@@ -0,0 +1,218 @@
+package fr.uge.chatos.context;
+
+import fr.uge.chatos.client.Client;
+import fr.uge.chatos.client.ClientPacketVisitor;
+import fr.uge.chatos.packet.Packet;
+import fr.uge.chatos.packet.Packets;
+import fr.uge.chatos.packet.StreamData;
+import fr.uge.chatos.reader.ClientPacketReader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Objects;
+
+/**
+ * This key attachment carries all the private connections of the client on a single
+ * socket to the private port of the server.
+ * <p>
+ *     Each private connection is a stream, identified by the ID of the private connection,
+ *     with its own {@link ClientPrivateContext}. The streams take turns to write their
+ *     frames, and each of them only sends what the server granted, so a large transfer
+ *     does not delay the others.
+ * </p>
+ */
+public class ClientMultiplexContext extends AbstractContext implements ClientContext {
+    private static final int BUFFER_SIZE = 65_536;
+    private final ClientPacketVisitor visitor;
+    private final Client client;
+    private final HashMap<Long, ClientStream> streams = new HashMap<>();
+    private final ArrayList<ClientStream> streamOrder = new ArrayList<>();
+    private int nextStream;
+    private boolean connected;
+    private boolean pumping;
+    private boolean delivering;
+    private boolean producing;
+    private boolean repump;
+
+    public ClientMultiplexContext(SelectionKey key, Client client) {
+        this(key, client, new ClientPacketReader());
+    }
+
+    private ClientMultiplexContext(SelectionKey key, Client client, ClientPacketReader reader) {
+        super(key, reader);
+        reader.setStreamBuffers(this::receiveBuffer);
+        visitor = new ClientPacketVisitor(client, this);
+        this.client = Objects.requireNonNull(client);
+        enlargeBuffers(ByteBuffer.allocateDirect(BUFFER_SIZE), ByteBuffer.allocateDirect(BUFFER_SIZE));
+    }
+
+    @Override
+    public void doConnect() throws IOException {
+        super.doConnect();
+        connected = true;
+        for (var stream : streamOrder) { // flux ouverts pendant la connexion
+            super.queueMessage(Packets.ofStreamOpen(stream.id, client.getLogin()).flip());
+        }
+    }
+
+    /**
+     * Opens the stream of a private connection on this socket.
+     *
+     * @param id the ID of the private connection
+     * @return the context of the private connection
+     */
+    public ClientPrivateContext openStream(long id) {
+        var stream = new ClientStream(this, id);
+        var context = new ClientPrivateContext(stream, client, id);
+        streams.put(id, stream);
+        streamOrder.add(stream);
+        if (connected) {
+            queueMessage(Packets.ofStreamOpen(id, client.getLogin()).flip());
+        }
+        return context;
+    }
+
+    private ByteBuffer receiveBuffer(long id) {
+        var stream = streams.get(id);
+        return stream != null ? stream.receiveBuffer() : null;
+    }
+
+    /**
+     * Lets the context of a stream read the data just received.
+     *
+     * @param id the ID of the stream
+     */
+    public void onStreamData(long id) {
+        if (streams.containsKey(id)) {
+            requestPump();
+        }
+    }
+
+    /**
+     * Adds credit given by the server to a stream.
+     *
+     * @param id the ID of the stream
+     * @param increment the number of bytes
+     */
+    public void onStreamWindow(long id, int increment) {
+        var stream = streams.get(id);
+        if (stream != null) {
+            stream.grant(increment);
+            requestPump();
+        }
+    }
+
+    /**
+     * Ends a stream closed by the other client.
+     *
+     * @param id the ID of the stream
+     */
+    public void onStreamClose(long id) {
+        var stream = streams.get(id);
+        if (stream != null) {
+            stream.remoteClose();
+            requestPump();
+        }
+    }
+
+    /**
+     * Removes a stream closed by its context, and tells the server unless it ended it.
+     */
+    void closeStream(ClientStream stream) {
+        streams.remove(stream.id);
+        if (!stream.isRemoteClosed() && isOpen()) {
+            queueMessage(Packets.ofStreamClose(stream.id).flip());
+        }
+    }
+
+    /**
+     * Lets the streams read and write, unless they are already doing so, in which case
+     * they are given another turn.
+     */
+    void requestPump() {
+        if (pumping || producing || !connected) {
+            repump = true;
+            return;
+        }
+        pumping = true;
+        try {
+            do {
+                repump = false;
+                delivering = true;
+                try {
+                    for (var i = 0; i < streamOrder.size(); i++) {
+                        streamOrder.get(i).deliver();
+                    }
+                } finally {
+                    delivering = false;
+                }
+                processOut();
+            } while (repump && isOpen());
+        } finally {
+            pumping = false;
+        }
+        updateInterestOps();
+    }
+
+    @Override
+    public void doRead() throws IOException {
+        super.doRead();
+        if (repump) {
+            requestPump();
+        }
+    }
+
+    @Override
+    public void doWrite() throws IOException {
+        super.doWrite();
+        if (repump) {
+            requestPump();
+        }
+    }
+
+    /**
+     * Writes the frames of the streams, one frame per stream in turn.
+     */
+    @Override
+    protected void produceOut(ByteBuffer bufferOut) {
+        if (producing || delivering) {
+            repump = true; // les trames seront écrites au prochain tour
+            return;
+        }
+        producing = true;
+        try {
+            var idle = 0;
+            while (idle < streamOrder.size() && bufferOut.remaining() > StreamData.HEADER_SIZE) {
+                if (nextStream >= streamOrder.size()) {
+                    nextStream = 0;
+                }
+                var stream = streamOrder.get(nextStream);
+                if (!stream.isOpen()) {
+                    streamOrder.remove(nextStream);
+                    continue;
+                }
+                nextStream++;
+                idle = stream.writeFrame(bufferOut) ? 0 : idle + 1;
+            }
+        } finally {
+            producing = false;
+        }
+    }
+
+    @Override
+    public void silentlyClose() {
+        super.silentlyClose();
+        for (var stream : new ArrayList<>(streams.values())) {
+            stream.abort();
+        }
+    }
+
+    @Override
+    public void treatPacket(Packet packet) {
+        super.treatPacket(packet);
+        packet.accept(visitor);
+    }
+}
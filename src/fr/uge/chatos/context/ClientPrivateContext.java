@@ -2,31 +2,142 @@ package fr.uge.chatos.context;
 
 import fr.uge.chatos.client.Client;
 import fr.uge.chatos.client.ClientPacketVisitor;
-import fr.uge.chatos.packet.PCData;
+import fr.uge.chatos.client.PendingRequest;
+import fr.uge.chatos.http.HTTPChunkedFile;
 import fr.uge.chatos.packet.Packet;
 import fr.uge.chatos.packet.Packets;
+import fr.uge.chatos.packet.StreamData;
 import fr.uge.chatos.reader.ClientPacketReader;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
 /**
  * This key attachment allows the finalization of the connection to server on the private port.
+ * <p>
+ *     The responses are sent in the order of the requests, even when some of them are
+ *     prepared by a file worker : their place is reserved with {@link #reserveResponse()}.
+ * </p>
+ * <p>
+ *     When the private sockets are multiplexed, the context runs over a stream of the
+ *     {@link ClientMultiplexContext} instead of its own socket.
+ * </p>
  */
 
 public class ClientPrivateContext extends AbstractContext implements ClientContext {
+
+    /**
+     * A response waiting for the previous ones to be written.
+     */
+    @FunctionalInterface
+    private interface Response {
+        /**
+         * Writes as much of the response as possible in {@code out}.
+         *
+         * @return {@code true} once the whole response has been written
+         */
+        boolean fill(ByteBuffer out) throws IOException;
+    }
+
+    /**
+     * The place of a response prepared outside the selector thread : the responses
+     * queued after it wait until it is completed.
+     * <p>
+     *     Note : to be completed on the selector thread.
+     * </p>
+     */
+    public final class PendingResponse implements Response {
+        private Response response;
+
+        private PendingResponse() { }
+
+        @Override
+        public boolean fill(ByteBuffer out) throws IOException {
+            return response != null && response.fill(out);
+        }
+
+        /**
+         * Completes this response with a response built in memory.
+         *
+         * @param buffer the response, in <b>read-mode</b>
+         */
+        public void complete(ByteBuffer buffer) {
+            complete(bufferResponse(buffer));
+        }
+
+        /**
+         * Completes this response with a streamed response.
+         *
+         * @param stream the response
+         */
+        public void complete(HTTPChunkedFile stream) {
+            if (!isOpen()) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) { }
+                return;
+            }
+            complete(streamedResponse(stream));
+        }
+
+        private void complete(Response response) {
+            if (this.response != null) {
+                throw new IllegalStateException("response already completed");
+            }
+            this.response = response;
+            if (isOpen()) { // l'écriture reprend là où elle attendait cette réponse
+                processOut();
+                updateInterestOps();
+            }
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(ClientPrivateContext.class.getName());
     private final ClientPacketVisitor visitor;
     private final long id;
     private final Client client;
+    private final ClientStream clientStream; // null si la connexion a sa propre socket
     private boolean authenticated;
-    private String fileRequested;
+    private boolean group;
+    private boolean groupCreator;
+    private final ArrayDeque<PendingRequest> pendingRequests = new ArrayDeque<>();
+    private final ArrayDeque<Response> responses = new ArrayDeque<>();
+    private final ArrayList<HTTPChunkedFile> streams = new ArrayList<>();
 
     public ClientPrivateContext(SelectionKey key, Client client, long id) {
-        super(key, new ClientPacketReader());
+        this(key, client, id, new ClientPacketReader());
+    }
+
+    private ClientPrivateContext(SelectionKey key, Client client, long id, ClientPacketReader reader) {
+        super(key, reader);
+        visitor = new ClientPacketVisitor(client, this);
+        reader.setSinkFactory(visitor::openSink);
+        this.id = id;
+        this.client = client;
+        clientStream = null;
+    }
+
+    ClientPrivateContext(ClientStream stream, Client client, long id) {
+        this(stream, client, id, new ClientPacketReader());
+    }
+
+    private ClientPrivateContext(ClientStream stream, Client client, long id, ClientPacketReader reader) {
+        super(stream, reader);
         visitor = new ClientPacketVisitor(client, this);
+        reader.setSinkFactory(visitor::openSink);
         this.id = id;
         this.client = client;
+        clientStream = stream;
+        stream.attach(this);
+        // une trame entière peut être lue ou écrite en une fois
+        enlargeBuffers(ByteBuffer.allocateDirect(StreamData.MAX_LENGTH), ByteBuffer.allocateDirect(StreamData.MAX_LENGTH));
     }
 
     @Override
@@ -43,12 +154,184 @@ public class ClientPrivateContext extends AbstractContext implements ClientConte
         return id;
     }
 
-    public void setFileRequested(String fileRequested) {
-        this.fileRequested = fileRequested;
+    /**
+     * Checks if this private connection is a stream of the multiplexed private socket.
+     *
+     * @return {@code true} if this context has no socket of its own
+     */
+    public boolean isMultiplexed() {
+        return clientStream != null;
+    }
+
+    /**
+     * Marks this private connection as a group : the files published by its creator
+     * are received by every member.
+     *
+     * @param creator {@code true} if this client created the group
+     */
+    public void setGroup(boolean creator) {
+        group = true;
+        groupCreator = creator;
+    }
+
+    /**
+     * Checks if this private connection is a group.
+     *
+     * @return {@code true} for a group
+     */
+    public boolean isGroup() {
+        return group;
+    }
+
+    /**
+     * Checks if this client created this group, and thus can publish files in it.
+     *
+     * @return {@code true} for the creator of a group
+     */
+    public boolean isGroupCreator() {
+        return groupCreator;
+    }
+
+    /**
+     * Records a request sent to the peer, waiting for its response.
+     *
+     * @param request the sent request
+     */
+    public void addPendingRequest(PendingRequest request) {
+        pendingRequests.add(Objects.requireNonNull(request));
+    }
+
+    /**
+     * Retrieves, without removing it, the oldest request waiting for a response.
+     *
+     * @return the request, or {@code null} if no request is pending
+     */
+    public PendingRequest peekPendingRequest() {
+        return pendingRequests.peek();
+    }
+
+    /**
+     * Retrieves and removes the oldest request waiting for a response.
+     *
+     * @return the request, or {@code null} if no request is pending
+     */
+    public PendingRequest pollPendingRequest() {
+        return pendingRequests.poll();
+    }
+
+    /**
+     * Sends a response to the peer, after the responses still being streamed.
+     *
+     * @param response the response, in <b>read-mode</b>
+     */
+    public void sendResponse(ByteBuffer response) {
+        if (responses.isEmpty()) {
+            queueMessage(response);
+            return;
+        }
+        responses.add(bufferResponse(response));
+        processOut();
+        updateInterestOps();
+    }
+
+    /**
+     * Streams a response to the peer, after the previous responses.
+     *
+     * @param stream the response
+     */
+    public void streamResponse(HTTPChunkedFile stream) {
+        responses.add(streamedResponse(stream));
+        processOut();
+        updateInterestOps();
+    }
+
+    /**
+     * Reserves the place of a response, after the previous responses, until it is
+     * prepared by a file worker.
+     *
+     * @return the place of the response, to complete on the selector thread
+     */
+    public PendingResponse reserveResponse() {
+        var pending = new PendingResponse();
+        responses.add(pending);
+        return pending;
+    }
+
+    private static Response bufferResponse(ByteBuffer response) {
+        return out -> {
+            if (response.remaining() <= out.remaining()) {
+                out.put(response);
+                return true;
+            }
+            var oldLimit = response.limit();
+            response.limit(response.position() + out.remaining());
+            out.put(response);
+            response.limit(oldLimit);
+            return false;
+        };
+    }
+
+    private Response streamedResponse(HTTPChunkedFile stream) {
+        streams.add(stream);
+        return out -> {
+            if (stream.fill(out)) {
+                streams.remove(stream);
+                return true;
+            }
+            return false;
+        };
+    }
+
+    /**
+     * Ends the responses following the growth of a file, so that the next
+     * responses can be sent.
+     */
+    public void stopFollowing() {
+        for (var stream : streams) {
+            stream.finish();
+        }
+    }
+
+    /**
+     * Resumes the writes paced by the upload limits and sends the bytes appended
+     * to the followed files since the last call.
+     * This method is called periodically by the selector loop.
+     */
+    public void tick() {
+        resume();
+        if (!isOpen() || streams.stream().noneMatch(HTTPChunkedFile::isFollowing)) {
+            return;
+        }
+        processOut();
+        updateInterestOps();
+    }
+
+    @Override
+    protected void produceOut(ByteBuffer bufferOut) {
+        try {
+            while (!responses.isEmpty() && bufferOut.hasRemaining()) {
+                if (!responses.peek().fill(bufferOut)) {
+                    return; // bufferOut est plein, ou le fichier suivi n'a pas grossi
+                }
+                responses.remove();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error while streaming a file", e);
+            silentlyClose();
+        }
     }
 
-    public String getFileRequested() {
-        return fileRequested;
+    @Override
+    public void silentlyClose() {
+        for (var stream : streams) {
+            try {
+                stream.close();
+            } catch (IOException ignored) { }
+        }
+        streams.clear();
+        responses.clear();
+        super.silentlyClose();
+        client.onPrivateConnectionClosed(this);
     }
 
     /**
@@ -56,6 +339,18 @@ public class ClientPrivateContext extends AbstractContext implements ClientConte
      */
     public void successfulAuthentication() {
         authenticated = true;
+        if (clientStream != null) {
+            clientStream.open();
+        }
+    }
+
+    @Override
+    protected void setInterestOps(int interestOps) {
+        if (clientStream != null) {
+            clientStream.setInterestOps(interestOps);
+        } else {
+            super.setInterestOps(interestOps);
+        }
     }
 
     @Override
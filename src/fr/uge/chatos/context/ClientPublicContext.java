@@ -3,19 +3,33 @@ package fr.uge.chatos.context;
 import fr.uge.chatos.client.Client;
 import fr.uge.chatos.client.ClientPacketVisitor;
 import fr.uge.chatos.packet.Packet;
-import fr.uge.chatos.packet.Packets;
 import fr.uge.chatos.reader.ClientPacketReader;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This key attachment allows the finalization of the connection to server on the public port.
+ * <p>
+ *     A packet can be queued with a future, completed once its last byte is written
+ *     to the socket : the context counts the bytes queued and written since its
+ *     creation, and the futures are completed in the order of their packets.
+ * </p>
  */
 
 public class ClientPublicContext extends AbstractContext implements ClientContext {
+    private record PendingWrite(long end, CompletableFuture<Void> written) { }
+
     private final ClientPacketVisitor visitor;
     private final Client client;
+    private final ArrayDeque<PendingWrite> pendingWrites = new ArrayDeque<>();
+    private long queued;
+    private long written;
+    private boolean closed;
 
     public ClientPublicContext(SelectionKey key, Client client) {
         super(key, new ClientPacketReader());
@@ -26,7 +40,38 @@ public class ClientPublicContext extends AbstractContext implements ClientContex
     @Override
     public void doConnect() throws IOException {
         super.doConnect();
-        super.queueMessage(Packets.ofRequestConnection(client.getLogin()).flip());
+        queueMessage(client.connectionRequest().flip()); // ou la reprise de la session
+    }
+
+    @Override
+    public void queueMessage(ByteBuffer buffer) {
+        queued += buffer.remaining();
+        super.queueMessage(buffer);
+    }
+
+    /**
+     * Queues a packet and completes {@code written} once it is written to the socket.
+     *
+     * @param buffer the packet, in read-mode
+     * @param written the future to complete, failed if the connection is closed first
+     */
+    public void queueMessage(ByteBuffer buffer, CompletableFuture<Void> written) {
+        if (closed || !isOpen()) {
+            written.completeExceptionally(new ClosedChannelException());
+            return;
+        }
+        queueMessage(buffer);
+        pendingWrites.add(new PendingWrite(queued, written));
+    }
+
+    @Override
+    protected void onWritten(int bytes) {
+        written += bytes;
+        PendingWrite pending;
+        while ((pending = pendingWrites.peek()) != null && pending.end() <= written) {
+            pendingWrites.poll();
+            pending.written().complete(null);
+        }
     }
 
     @Override
@@ -35,4 +80,17 @@ public class ClientPublicContext extends AbstractContext implements ClientContex
         packet.accept(visitor);
     }
 
+    @Override
+    public void silentlyClose() {
+        super.silentlyClose();
+        if (closed) {
+            return;
+        }
+        closed = true;
+        PendingWrite pending;
+        while ((pending = pendingWrites.poll()) != null) {
+            pending.written().completeExceptionally(new ClosedChannelException());
+        }
+        client.onDisconnected();
+    }
 }
@@ -0,0 +1,171 @@
+package fr.uge.chatos.context;
+
+import fr.uge.chatos.packet.Packets;
+import fr.uge.chatos.packet.StreamData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Objects;
+
+/**
+ * A private connection carried by the multiplexed private socket of the client.
+ * <p>
+ *     The context of the private connection reads and writes this channel as it would
+ *     its own socket : the data received for the stream is read from its receive buffer,
+ *     and what the context writes goes directly into the output buffer of the socket
+ *     as a frame, within the credit given by the server.
+ * </p>
+ */
+class ClientStream implements ByteChannel {
+    private static final int WINDOW = 65_536;
+    final long id;
+    private final ClientMultiplexContext multiplexer;
+    private final ByteBuffer received = ByteBuffer.allocateDirect(WINDOW); // write-mode
+    private ClientPrivateContext context;
+    private ByteBuffer frameOut; // tampon de sortie de la socket, pendant l'écriture d'une trame
+    private long sendWindow;
+    private int consumed; // octets lus, pas encore rendus au serveur
+    private int interestOps;
+    private boolean remoteClosed;
+    private boolean closed;
+
+    ClientStream(ClientMultiplexContext multiplexer, long id) {
+        this.multiplexer = Objects.requireNonNull(multiplexer);
+        this.id = id;
+    }
+
+    void attach(ClientPrivateContext context) {
+        this.context = Objects.requireNonNull(context);
+    }
+
+    ByteBuffer receiveBuffer() {
+        return received;
+    }
+
+    /**
+     * Gives the server the credit to send data on this stream, once it is authenticated.
+     */
+    void open() {
+        multiplexer.queueMessage(Packets.ofStreamWindow(id, WINDOW).flip());
+    }
+
+    void grant(int increment) {
+        sendWindow += increment;
+    }
+
+    boolean isRemoteClosed() {
+        return remoteClosed;
+    }
+
+    /**
+     * Records that the server ended the stream : the context reads the remaining data,
+     * then the end of the stream.
+     */
+    void remoteClose() {
+        remoteClosed = true;
+    }
+
+    /**
+     * Closes the context of this stream, when the multiplexed socket is closed.
+     */
+    void abort() {
+        remoteClosed = true;
+        context.silentlyClose();
+    }
+
+    void setInterestOps(int interestOps) {
+        this.interestOps = interestOps;
+        multiplexer.requestPump();
+    }
+
+    /**
+     * Lets the context read the data received, and gives the credit back to the server
+     * once a quarter of the window has been read.
+     */
+    void deliver() {
+        while (!closed && (interestOps & SelectionKey.OP_READ) != 0 && (received.position() > 0 || remoteClosed)) {
+            try {
+                context.doRead();
+            } catch (IOException e) {
+                context.silentlyClose();
+            }
+        }
+        if (!closed && !remoteClosed && consumed >= WINDOW / 4) {
+            multiplexer.queueMessage(Packets.ofStreamWindow(id, consumed).flip());
+            consumed = 0;
+        }
+    }
+
+    /**
+     * Lets the context write one frame in the output buffer of the socket.
+     *
+     * @param out the output buffer of the multiplexed socket, in <b>write-mode</b>
+     * @return {@code true} if a frame has been written
+     */
+    boolean writeFrame(ByteBuffer out) {
+        if (closed || sendWindow == 0 || (interestOps & SelectionKey.OP_WRITE) == 0) {
+            return false;
+        }
+        var position = out.position();
+        frameOut = out;
+        try {
+            context.doWrite();
+        } catch (IOException e) {
+            context.silentlyClose();
+        } finally {
+            frameOut = null;
+        }
+        return out.position() != position;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        if (received.position() == 0) {
+            return remoteClosed ? -1 : 0;
+        }
+        received.flip();
+        var count = Math.min(received.remaining(), dst.remaining());
+        var oldLimit = received.limit();
+        received.limit(received.position() + count);
+        dst.put(received);
+        received.limit(oldLimit);
+        received.compact();
+        consumed += count;
+        return count;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        if (frameOut == null) {
+            return 0; // seul le multiplexeur fait écrire le contexte
+        }
+        var length = (int) Math.min(Math.min(src.remaining(), sendWindow),
+                Math.min(StreamData.MAX_LENGTH, frameOut.remaining() - StreamData.HEADER_SIZE));
+        if (length <= 0) {
+            return 0;
+        }
+        Packets.putStreamDataHeader(frameOut, id, length);
+        var oldLimit = src.limit();
+        src.limit(src.position() + length);
+        frameOut.put(src);
+        src.limit(oldLimit);
+        sendWindow -= length;
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        multiplexer.closeStream(this);
+    }
+}
@@ -0,0 +1,300 @@
+package fr.uge.chatos.context;
+
+import fr.uge.chatos.logging.AsyncLogger;
+import fr.uge.chatos.utils.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The relay of a group private connection : the bytes sent by the creator of the
+ * group are relayed to every member, and the bytes sent by a member to the creator.
+ * <p>
+ *     The bytes read from a socket are stored once in a pooled buffer shared by all
+ *     their recipients, which write it straight on their own socket. The buffer counts
+ *     its references and goes back to the pool once every recipient has sent it, so the
+ *     memory and the upload of the creator do not depend on the size of the group.
+ * </p>
+ * <p>
+ *     Slow members are handled one by one : a member lags once more than
+ *     {@code chatos.group.maxLag} bytes (1 MiB by default) wait to be sent to it, and the
+ *     creator then stops reading until it catches up. A member which lags for more than
+ *     {@code chatos.group.slowTimeout} milliseconds (10 s by default) is disconnected,
+ *     so that it does not hold back the others. The creator is never disconnected, its
+ *     members are closed once it leaves and they have received all its bytes.
+ * </p>
+ * <p>
+ *     Note : a group is only used from the selector thread of its members.
+ * </p>
+ */
+public class RelayGroup {
+    private static final AsyncLogger logger = AsyncLogger.getLogger(RelayGroup.class, "relay");
+    private static final int MAX_LAG = Integer.getInteger("chatos.group.maxLag", 1 << 20);
+    private static final long SLOW_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chatos.group.slowTimeout", 10_000));
+    private static final int MAX_GATHERED = 16;
+    private final long id;
+    private final ArrayList<Member> members = new ArrayList<>();
+    private Member creator;
+    private BufferPool pool;
+    private int laggingMembers; // membres, hors créateur, qui retiennent le créateur
+
+    /**
+     * A pooled buffer shared by the recipients of its bytes.
+     */
+    private static final class SharedBuffer {
+        private final ByteBuffer buffer;
+        private int references = 1; // celui qui le remplit
+
+        private SharedBuffer(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Bytes of a shared buffer waiting to be sent to a member.
+     */
+    private static final class Slice {
+        private final SharedBuffer shared;
+        private final ByteBuffer view; // read-mode
+
+        private Slice(SharedBuffer shared, int start, int end) {
+            this.shared = shared;
+            view = shared.buffer.duplicate().limit(end).position(start);
+        }
+    }
+
+    /**
+     * The state of a member of the group.
+     */
+    final class Member {
+        private final ServerContext context;
+        private final boolean isCreator;
+        private final ArrayDeque<Slice> out = new ArrayDeque<>();
+        private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED];
+        private long queued;
+        private SharedBuffer fill;
+        private int fillStart;
+        private boolean lagging;
+        private long laggingSince;
+
+        private Member(ServerContext context, boolean isCreator) {
+            this.context = context;
+            this.isCreator = isCreator;
+        }
+
+        /**
+         * Returns the buffer receiving the bytes read from the socket of this member.
+         *
+         * @return a shared buffer in <b>write-mode</b>, with some free space
+         */
+        ByteBuffer inputBuffer() {
+            if (fill == null) {
+                fill = new SharedBuffer(pool.acquire());
+                fillStart = 0;
+            }
+            return fill.buffer;
+        }
+
+        /**
+         * Relays the bytes read since the last call to the recipients of this member.
+         */
+        void publish() {
+            if (fill == null) {
+                return;
+            }
+            var end = fill.buffer.position();
+            if (end > fillStart) {
+                if (isCreator) {
+                    for (var member : members) {
+                        if (member != this) {
+                            member.enqueue(fill, fillStart, end);
+                        }
+                    }
+                } else if (creator != null) {
+                    creator.enqueue(fill, fillStart, end);
+                }
+                fillStart = end;
+            }
+            if (!fill.buffer.hasRemaining()) {
+                release(fill);
+                fill = null;
+            }
+        }
+
+        private void enqueue(SharedBuffer shared, int start, int end) {
+            var last = out.peekLast();
+            if (last != null && last.shared == shared && last.view.limit() == start) {
+                last.view.limit(end); // suite des octets déjà en attente
+            } else {
+                shared.references++;
+                out.add(new Slice(shared, start, end));
+            }
+            queued += end - start;
+            if (!lagging && queued >= MAX_LAG) {
+                startLagging();
+            }
+            context.updateInterestOps();
+        }
+
+        /**
+         * Checks if the bytes read from this member can not be relayed for now.
+         *
+         * @return {@code true} if this member has no recipient or if one of them lags
+         */
+        boolean isBlocked() {
+            if (isCreator) {
+                return members.size() == 1 || laggingMembers > 0;
+            }
+            return creator == null || creator.lagging;
+        }
+
+        /**
+         * Checks if some bytes are waiting to be sent to this member.
+         *
+         * @return {@code true} if the queue of this member is not empty
+         */
+        boolean hasOutput() {
+            return queued != 0;
+        }
+
+        /**
+         * Writes the bytes waiting for this member on its socket, in a single gathering write.
+         *
+         * @param channel the socket of the member
+         * @return the number of bytes written
+         * @throws IOException If some other I/O error occurs.
+         */
+        long write(GatheringByteChannel channel) throws IOException {
+            var count = 0;
+            for (var slice : out) {
+                gathered[count++] = slice.view;
+                if (count == MAX_GATHERED) {
+                    break;
+                }
+            }
+            var written = channel.write(gathered, 0, count);
+            queued -= written;
+            Arrays.fill(gathered, 0, count, null);
+            while (!out.isEmpty() && !out.peek().view.hasRemaining()) {
+                release(out.remove().shared);
+            }
+            if (lagging && queued <= MAX_LAG / 4) {
+                stopLagging();
+            }
+            if (!isCreator && creator == null && queued == 0 && !context.hasPendingOutput()) {
+                context.silentlyClose(); // tout ce que le créateur a envoyé est arrivé
+            }
+            return written;
+        }
+
+        private void startLagging() {
+            lagging = true;
+            var since = System.nanoTime();
+            laggingSince = since;
+            if (isCreator) {
+                return;
+            }
+            laggingMembers++;
+            context.schedule(() -> {
+                if (lagging && laggingSince == since && members.contains(this)) {
+                    logger.info("Membre trop lent déconnecté du groupe {0,number,#}", id);
+                    context.silentlyClose();
+                }
+            }, SLOW_TIMEOUT);
+        }
+
+        private void stopLagging() {
+            lagging = false;
+            if (isCreator) {
+                for (var member : members) {
+                    if (member != this) {
+                        member.context.updateInterestOps(); // les membres peuvent de nouveau lire
+                    }
+                }
+            } else if (--laggingMembers == 0 && creator != null) {
+                creator.context.updateInterestOps();
+            }
+        }
+
+        /**
+         * Removes this member from the group and gives back its buffers.
+         */
+        void leave() {
+            if (!members.remove(this)) {
+                return;
+            }
+            for (var slice : out) {
+                release(slice.shared);
+            }
+            out.clear();
+            queued = 0;
+            if (fill != null) {
+                publish(); // les octets déjà lus sont encore relayés
+                if (fill != null) {
+                    release(fill);
+                    fill = null;
+                }
+            }
+            if (isCreator) {
+                creator = null;
+                for (var member : List.copyOf(members)) {
+                    if (member.queued == 0 && !member.context.hasPendingOutput()) {
+                        member.context.silentlyClose();
+                    }
+                }
+            } else {
+                if (lagging) {
+                    laggingMembers--;
+                }
+                if (creator != null) {
+                    creator.context.updateInterestOps(); // peut-être plus retenu, ou plus personne à qui relayer
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a new group, which its members join once authenticated.
+     *
+     * @param id the ID of the group private connection
+     */
+    public RelayGroup(long id) {
+        this.id = id;
+    }
+
+    /**
+     * Adds an authenticated client to this group.
+     *
+     * @param context the private context of the client
+     * @param isCreator {@code true} for the creator of the group, whose bytes are relayed to every member
+     * @param pool the pool providing the shared buffers, the same for all the members
+     * @return the state of the member
+     */
+    Member join(ServerContext context, boolean isCreator, BufferPool pool) {
+        Objects.requireNonNull(context);
+        if (this.pool == null) {
+            this.pool = Objects.requireNonNull(pool);
+        }
+        var member = new Member(context, isCreator);
+        members.add(member);
+        if (isCreator) {
+            creator = member;
+        } else if (creator != null) {
+            creator.context.updateInterestOps(); // le créateur a de nouveau un destinataire
+        }
+        return member;
+    }
+
+    private void release(SharedBuffer shared) {
+        if (--shared.references == 0) {
+            pool.release(shared.buffer);
+        }
+    }
+}
@@ -1,27 +1,112 @@
 package fr.uge.chatos.context;
 
-import fr.uge.chatos.packet.PCData;
+import fr.uge.chatos.jfr.DispatchEvent;
+import fr.uge.chatos.jfr.SocketWriteEvent;
+import fr.uge.chatos.packet.LatencyProbe;
 import fr.uge.chatos.packet.Packet;
+import fr.uge.chatos.packet.Packets;
+import fr.uge.chatos.packet.StreamData;
 import fr.uge.chatos.reader.ServerPacketReader;
+import fr.uge.chatos.server.DelayedTasks;
+import fr.uge.chatos.server.RelayStats;
 import fr.uge.chatos.server.Server;
+import fr.uge.chatos.server.ServerMetrics;
 import fr.uge.chatos.server.ServerPacketVisitor;
+import fr.uge.chatos.server.TimingWheel;
+import fr.uge.chatos.utils.BufferPool;
+import fr.uge.chatos.utils.OpCode;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 
 /**
  * This context contains the server's visitor for a client. The visitor use the received frame to call necessary operation.
- * 
+ * <p>
+ *     Once a private connection is authenticated, its two contexts relay the bytes
+ *     to each other without decoding them : each side reads into a pooled buffer
+ *     which the other side writes directly on its socket. No copy nor allocation
+ *     is made per chunk.
+ * </p>
+ * <p>
+ *     The relay applies backpressure : a side stops reading once the bytes waiting
+ *     to be sent to the other side reach the high watermark, and reads again only
+ *     when they fall under the low watermark. The watermarks are set with the system
+ *     properties {@code chatos.relay.highWatermark} and {@code chatos.relay.lowWatermark},
+ *     in bytes ; the high watermark can not exceed the size of the relay buffer.
+ * </p>
+ * <p>
+ *     On a multiplexed private socket, each private connection is a stream whose frames
+ *     are forwarded to the socket of the other client. Each stream has its own window :
+ *     a client only sends what the server has room for, so a slow receiver never blocks
+ *     the other streams of the socket. The streams waiting to be sent take turns, one
+ *     frame each.
+ * </p>
+ * <p>
+ *     The contexts of a group private connection are relayed by a {@link RelayGroup}.
+ * </p>
+ * <p>
+ *     The buffers of a new context start at twice the size of most of the frames received
+ *     by the server. Once grown, they come back to their minimal size after the connection
+ *     stayed idle for {@code chatos.buffer.idle} milliseconds (10 s by default), and as soon
+ *     as the context becomes a relay, which no longer uses them.
+ * </p>
  */
 public class ServerContext extends AbstractContext {
+    private static final int HIGH_WATERMARK = Integer.getInteger("chatos.relay.highWatermark", 65_536);
+    private static final int LOW_WATERMARK = Integer.getInteger("chatos.relay.lowWatermark", 16_384);
+    private static final int MULTIPLEXED_BUFFER_SIZE = 65_536;
+    private static final long IDLE_DELAY = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chatos.buffer.idle", 10_000));
+    private final Server server;
     private final ServerPacketVisitor visitor;
-    private boolean authenticated;
+    private final ServerPacketReader reader;
+    private final ServerMetrics metrics;
+    private long queuedBytes; // octets en file comptés dans les métriques
+    private long bytesReceived;
+    private long bytesSent;
+    private long lastReceived = System.nanoTime();
+    private DelayedTasks delayedTasks;
+    private final Runnable idleCheck = this::checkIdle;
+    private SelectionKey idleKey; // clé pour laquelle la vérification d'inactivité est prévue, null sinon
+    private long idleMark; // octets échangés lors de la dernière vérification
+    private boolean buffersReleased;
+    private boolean publicConnection;
     private String login;
+    private TimingWheel.Timeout authTimeout; // null une fois le client identifié ou la socket fermée
+    private ServerContext peer;
+    private BufferPool relayPool;
+    private ByteBuffer relayIn;
+    private boolean relayClosed;
+    private boolean backpressure;
+    private HashMap<Long, ServerStream> streams; // null sauf pour une socket privée multiplexée
+    private ArrayList<ServerStream> streamOrder;
+    private int nextStream;
+    private boolean producing;
+    private RelayGroup.Member groupMember; // null sauf pour une connexion privée de groupe
+    private RelayStats.Side stats; // null hors relais, ou pour une socket multiplexée
 
     public ServerContext(SelectionKey key, Server server) {
-        super(key, new ServerPacketReader());
+        this(key, server, new ServerPacketReader());
+    }
+
+    private ServerContext(SelectionKey key, Server server, ServerPacketReader reader) {
+        super(key, reader, 2 * server.getMetrics().typicalFrameSize());
+        reader.setStreamBuffers(this::receiveBuffer);
+        this.server = server;
+        this.reader = reader;
+        metrics = server.getMetrics();
+        metrics.bufferResized(0, getInputBufferSize());
+        metrics.bufferResized(0, getOutputBufferSize());
         visitor = new ServerPacketVisitor(server, this);
+        delayedTasks = server.getDelayedTasks();
     }
 
     @Override
@@ -39,17 +124,515 @@ public class ServerContext extends AbstractContext {
         return login;
     }
 
+    /**
+     * Returns the number of bytes read from the socket of this context.
+     *
+     * @return the bytes received since the connection
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Returns the number of bytes written on the socket of this context.
+     *
+     * @return the bytes sent since the connection
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Returns when bytes were last read from the socket of this context.
+     *
+     * @return the time given by {@link System#nanoTime()}, the creation of the context if nothing was read
+     */
+    public long getLastReceived() {
+        return lastReceived;
+    }
+
     @Override
     public void processIn() {
-        if (authenticated) {
-            System.out.println("packet of " + bufferIn.flip().remaining());
-            bufferIn.compact();
-            treatPacket(new PCData(bufferIn, login));
+        if (groupMember != null) {
+            groupMember.publish();
+        } else if (peer != null) {
+            peer.updateInterestOps(); // le pair peut écrire les octets reçus
         } else {
             super.processIn();
         }
     }
 
+    @Override
+    public void doWrite() throws IOException {
+        if (groupMember != null && !hasPendingOutput()) {
+            var event = SocketWriteEvent.start();
+            var written = groupMember.write((GatheringByteChannel) getKey().channel());
+            metrics.bytesSent(written);
+            bytesSent += written;
+            if (event != null) {
+                event.finish(written, pendingBytes(), true);
+            }
+            if (stats != null) {
+                stats.sent((int) written);
+            }
+            updateInterestOps();
+            return;
+        }
+        super.doWrite();
+        if (peer != null) {
+            peer.updateInterestOps(); // le pair peut de nouveau lire
+            closeIfPeerGone();
+        }
+    }
+
+    @Override
+    protected ByteBuffer inputBuffer() {
+        if (groupMember != null) {
+            return groupMember.inputBuffer();
+        }
+        return relayIn != null ? relayIn : super.inputBuffer();
+    }
+
+    @Override
+    protected boolean hasOutput() {
+        return super.hasOutput() || (groupMember != null && groupMember.hasOutput());
+    }
+
+    /**
+     * A relay stopped by backpressure only waits for the peer to send the pending bytes.
+     */
+    @Override
+    protected boolean isReadPaused() {
+        return super.isReadPaused() || backpressure || (groupMember != null && groupMember.isBlocked());
+    }
+
+    @Override
+    public void updateInterestOps() {
+        if (peer != null) {
+            updateBackpressure();
+        }
+        if (stats != null) {
+            stats.blocked(backpressure || (groupMember != null && groupMember.isBlocked()));
+        }
+        super.updateInterestOps();
+    }
+
+    @Override
+    protected void onRead(int bytes) {
+        metrics.bytesReceived(bytes);
+        bytesReceived += bytes;
+        lastReceived = System.nanoTime();
+        if (publicConnection) {
+            server.recordReceived(login, bytes);
+        }
+        if (stats != null) {
+            stats.received(bytes);
+        }
+    }
+
+    @Override
+    protected void onWritten(int bytes) {
+        metrics.bytesSent(bytes);
+        bytesSent += bytes;
+        if (stats != null) {
+            stats.sent(bytes);
+        }
+    }
+
+    @Override
+    protected void onDecoded(Packet packet, long nanos, int bytes) {
+        metrics.frameReceived(reader.getOpCode(), nanos, bytes);
+        if (packet instanceof LatencyProbe probe) { // entrée : lecture de la fin de la trame
+            probe.ingress = LatencyProbe.now() - TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - lastReceived);
+        }
+    }
+
+    @Override
+    protected void onBufferResized(int previous, int size) {
+        metrics.bufferResized(previous, size);
+        if (size > previous && idleKey == null && IDLE_DELAY > 0) {
+            idleKey = getKey();
+            idleMark = bytesReceived + bytesSent;
+            delayedTasks.schedule(idleCheck, IDLE_DELAY);
+        }
+    }
+
+    /**
+     * Brings the buffers back to their minimal size once nothing was received nor sent
+     * for a whole period, and checks again later otherwise.
+     */
+    private void checkIdle() {
+        var key = idleKey;
+        idleKey = null;
+        if (getKey() != key || !key.isValid()) {
+            return; // fermé, ou confié à un autre sélecteur
+        }
+        var activity = bytesReceived + bytesSent;
+        if (activity == idleMark) {
+            trimBuffers();
+            return;
+        }
+        idleKey = key;
+        idleMark = activity;
+        delayedTasks.schedule(idleCheck, IDLE_DELAY);
+    }
+
+    @Override
+    protected void onQueued(ByteBuffer buffer) {
+        if (!isOpen() || !buffer.hasRemaining()) {
+            return; // jamais envoyé
+        }
+        metrics.frameQueued(buffer.get(buffer.position()), buffer.remaining());
+        queuedBytes += buffer.remaining();
+    }
+
+    @Override
+    protected ByteBuffer onDequeue(ByteBuffer buffer) {
+        if (!publicConnection || buffer.get(buffer.position()) != OpCode.LATENCY_PROBE_RECEIVER) {
+            return buffer;
+        }
+        var copy = ByteBuffer.allocate(buffer.remaining()).put(buffer.duplicate()).flip(); // trame partagée
+        copy.putLong(copy.limit() - Long.BYTES, LatencyProbe.now()); // sortie : heure de ce destinataire
+        return copy;
+    }
+
+    @Override
+    protected void onDequeued(int bytes) {
+        var counted = Math.min(bytes, queuedBytes);
+        queuedBytes -= counted;
+        metrics.dequeued(counted);
+    }
+
+    /**
+     * Sets the statistics updated by the relay of this context.
+     *
+     * @param stats the counters of the client of this context
+     */
+    public void setStats(RelayStats.Side stats) {
+        this.stats = Objects.requireNonNull(stats);
+        stats.joined();
+    }
+
+    /**
+     * Stops or resumes the reads according to the number of bytes waiting to be sent
+     * to the peer : the relayed bytes and the messages the server queued for it.
+     */
+    private void updateBackpressure() {
+        var pending = relayIn.position() + peer.pendingBytes();
+        if (!relayIn.hasRemaining() || pending >= HIGH_WATERMARK) {
+            backpressure = true;
+        } else if (pending <= LOW_WATERMARK) {
+            backpressure = false;
+        }
+    }
+
+    /**
+     * The messages of the server, such as the authentication confirmation, are
+     * sent before the relayed bytes.
+     */
+    @Override
+    protected ByteBuffer outputBuffer() {
+        if (peer == null || hasPendingOutput()) {
+            return super.outputBuffer();
+        }
+        return peer.relayIn;
+    }
+
+    /**
+     * Switches this context to relay mode : the bytes received are no longer decoded
+     * but forwarded to {@code peer}.
+     * <p>
+     *     Note : to be used only for authenticated private connections, on both contexts.
+     * </p>
+     *
+     * @param peer the context of the other client of the private connection
+     * @param pool the pool providing the relay buffer, to which it is given back
+     */
+    public void startRelay(ServerContext peer, BufferPool pool) {
+        this.peer = Objects.requireNonNull(peer);
+        relayPool = Objects.requireNonNull(pool);
+        relayIn = pool.acquire();
+        bufferIn.flip();
+        relayIn.put(bufferIn); // octets reçus juste après l'authentification
+        bufferIn.compact();
+        trimBuffers();
+    }
+
+    /**
+     * Switches this context to group relay mode : the bytes received are no longer decoded
+     * but relayed to the other members of {@code group}.
+     * <p>
+     *     Note : to be used only for authenticated private connections.
+     * </p>
+     *
+     * @param group the group private connection
+     * @param isCreator {@code true} for the creator of the group
+     * @param pool the pool providing the shared buffers, to which they are given back
+     */
+    public void joinGroup(RelayGroup group, boolean isCreator, BufferPool pool) {
+        groupMember = group.join(this, isCreator, pool);
+        var in = groupMember.inputBuffer();
+        bufferIn.flip();
+        in.put(bufferIn); // octets reçus juste après l'authentification
+        bufferIn.compact();
+        trimBuffers();
+        groupMember.publish();
+    }
+
+    /**
+     * Runs an action on the selector thread of this context after the specified delay.
+     *
+     * @param action the action to run
+     * @param delay the delay in nanoseconds
+     */
+    void schedule(Runnable action, long delay) {
+        delayedTasks.schedule(action, delay);
+    }
+
+    /**
+     * Checks if this context is a multiplexed private socket.
+     *
+     * @return {@code true} if a stream has been started on this context
+     */
+    public boolean isMultiplexed() {
+        return streams != null;
+    }
+
+    /**
+     * Starts a stream of a private connection on this multiplexed socket, and gives
+     * the client the credit to send data on it.
+     * <p>
+     *     Note : to be called on the contexts of both clients, the streams are paired
+     *     by the second call.
+     * </p>
+     *
+     * @param id the ID of the private connection
+     * @param peer the multiplexed socket of the other client
+     * @param pool the pool providing the receive buffer of the stream, to which it is given back
+     * @param stats the counters of the client on this stream
+     */
+    public void startStream(long id, ServerContext peer, BufferPool pool, RelayStats.Side stats) {
+        Objects.requireNonNull(peer);
+        if (streams == null) { // premier flux de la socket
+            streams = new HashMap<>();
+            streamOrder = new ArrayList<>();
+            relayPool = Objects.requireNonNull(pool);
+            enlargeBuffers(ByteBuffer.allocateDirect(MULTIPLEXED_BUFFER_SIZE),
+                    ByteBuffer.allocateDirect(MULTIPLEXED_BUFFER_SIZE));
+        }
+        var stream = new ServerStream(id, this, pool.acquire(), stats);
+        stats.joined();
+        streams.put(id, stream);
+        streamOrder.add(stream);
+        var other = peer.streams != null ? peer.streams.get(id) : null;
+        if (other != null) {
+            stream.peer = other;
+            other.peer = stream;
+        }
+        queueMessage(Packets.ofStreamWindow(id, stream.in.capacity()).flip());
+    }
+
+    /**
+     * Returns the buffer receiving the data of a stream, only once it is paired.
+     */
+    private ByteBuffer receiveBuffer(long id) {
+        var stream = streams != null ? streams.get(id) : null;
+        return stream != null && stream.peer != null ? stream.in : null;
+    }
+
+    /**
+     * Sends the data just received on a stream to the other client.
+     *
+     * @param id the ID of the stream
+     * @param length the number of bytes received
+     */
+    public void onStreamData(long id, int length) {
+        var stream = streams != null ? streams.get(id) : null;
+        if (stream != null && stream.peer != null) {
+            stream.stats.received(length);
+            stream.stats.blocked(!stream.in.hasRemaining()); // le client n'a plus de crédit
+            stream.peer.owner.flushStreams();
+        }
+    }
+
+    /**
+     * Adds credit given by the client to a stream.
+     *
+     * @param id the ID of the stream
+     * @param increment the number of bytes
+     */
+    public void onStreamWindow(long id, int increment) {
+        var stream = streams != null ? streams.get(id) : null;
+        if (stream != null) {
+            stream.grant(increment);
+            flushStreams();
+        }
+    }
+
+    /**
+     * Closes a stream at the request of the client.
+     *
+     * @param id the ID of the stream
+     */
+    public void onStreamClose(long id) {
+        var stream = streams != null ? streams.get(id) : null;
+        if (stream != null) {
+            closeStream(stream);
+            streams.remove(id);
+        }
+    }
+
+    /**
+     * Closes this side of a stream : the bytes already received are sent to the other
+     * client, followed by the end of the stream.
+     */
+    private void closeStream(ServerStream stream) {
+        stream.close();
+        stream.stats.closed();
+        if (stream.peer != null) {
+            releaseIfDone(stream);
+            stream.peer.owner.flushStreams();
+        }
+    }
+
+    /**
+     * Gives the buffers of a stream back to the pool once both sides are closed.
+     */
+    private void releaseIfDone(ServerStream stream) {
+        var peer = stream.peer;
+        if (stream.isClosed() && peer.isClosed()) {
+            relayPool.release(stream.in);
+            relayPool.release(peer.in);
+            stream.peer = peer.peer = null; // ne peuvent plus être libérés une seconde fois
+        }
+    }
+
+    private void flushStreams() {
+        if (!isOpen()) {
+            return;
+        }
+        processOut();
+        updateInterestOps();
+    }
+
+    /**
+     * Writes the frames of the streams waiting to be sent, one frame per stream in turn.
+     */
+    @Override
+    protected void produceOut(ByteBuffer bufferOut) {
+        if (streams == null || producing) {
+            return; // appel imbriqué, les trames sont déjà en cours d'écriture
+        }
+        producing = true;
+        try {
+            var idle = 0;
+            while (idle < streamOrder.size() && bufferOut.remaining() > StreamData.HEADER_SIZE) {
+                if (nextStream >= streamOrder.size()) {
+                    nextStream = 0;
+                }
+                var stream = streamOrder.get(nextStream);
+                if (stream.isClosed()) { // plus rien n'est envoyé au client
+                    streamOrder.remove(nextStream);
+                    continue;
+                }
+                if (stream.peer == null) { // pas encore appairé
+                    nextStream++;
+                    idle++;
+                    continue;
+                }
+                if (stream.isDrained()) { // le pair est fermé et tout a été envoyé
+                    bufferOut.put(Packets.ofStreamClose(stream.id).flip());
+                    streams.remove(stream.id);
+                    streamOrder.remove(nextStream);
+                    stream.close();
+                    releaseIfDone(stream);
+                    continue;
+                }
+                nextStream++;
+                idle = stream.sendFrame(bufferOut) ? 0 : idle + 1;
+            }
+        } finally {
+            producing = false;
+        }
+    }
+
+    /**
+     * Moves this context to another selector thread.
+     * <p>
+     *     Note : to be called from the thread of {@code selector}, once the key of the
+     *     previous selector has been cancelled.
+     * </p>
+     *
+     * @param selector the selector of the new thread
+     * @param tasks the delayed tasks of the new thread
+     * @throws ClosedChannelException if the connection has been closed meanwhile
+     */
+    public void moveTo(Selector selector, DelayedTasks tasks) throws ClosedChannelException {
+        rebind(getKey().channel().register(selector, 0, this));
+        delayedTasks = Objects.requireNonNull(tasks);
+    }
+
+    /**
+     * Closes this side of the relay once the other side is closed and all its
+     * bytes have been sent.
+     */
+    private void closeIfPeerGone() {
+        if (peer.relayClosed && peer.relayIn.position() == 0 && !hasPendingOutput() && getKey().isValid()) {
+            silentlyClose();
+        }
+    }
+
+    @Override
+    public void silentlyClose() {
+        super.silentlyClose();
+        cancelAuthTimeout();
+        metrics.dequeued(queuedBytes); // perdus avec la socket
+        queuedBytes = 0;
+        if (!buffersReleased) {
+            buffersReleased = true;
+            metrics.bufferResized(getInputBufferSize(), 0);
+            metrics.bufferResized(getOutputBufferSize(), 0);
+        }
+        if (publicConnection) {
+            publicConnection = false;
+            server.unregisterPublicConnection(login, getKey());
+        }
+        if (stats != null) {
+            stats.closed();
+        }
+        if (groupMember != null) {
+            groupMember.leave();
+            return;
+        }
+        if (streams != null) {
+            var closed = new ArrayList<>(streams.values());
+            streams.clear();
+            for (var stream : closed) {
+                closeStream(stream);
+            }
+            return;
+        }
+        if (peer == null || relayClosed) {
+            return;
+        }
+        relayClosed = true;
+        if (peer.relayClosed) { // plus personne ne lit ni n'écrit les tampons
+            relayPool.release(relayIn);
+            relayPool.release(peer.relayIn);
+        } else {
+            peer.closeIfPeerGone();
+        }
+    }
+
+    /**
+     * Reads are deferred until the bandwidth limits of the private connection
+     * allow them again.
+     */
+    @Override
+    protected void onThrottled(long delay) {
+        delayedTasks.schedule(this::resume, delay);
+    }
+
     /**
      * Updates the {@code login}, only if the current {@code login} is null.
      * <p>
@@ -61,11 +644,41 @@ public class ServerContext extends AbstractContext {
     public void setLogin(String login) {
         if (this.login == null) {
             this.login = Objects.requireNonNull(login);
+            cancelAuthTimeout();
+        }
+    }
+
+    /**
+     * Sets the expiry which closes this context if its client does not identify itself
+     * in time. It is cancelled as soon as the login is set or the socket is closed, so
+     * that the reaper does not keep this context and its buffers until the deadline.
+     *
+     * @param authTimeout the expiry scheduled in the reaper of the server
+     */
+    public void setAuthTimeout(TimingWheel.Timeout authTimeout) {
+        this.authTimeout = Objects.requireNonNull(authTimeout);
+    }
+
+    private void cancelAuthTimeout() {
+        if (authTimeout != null) {
+            authTimeout.cancel();
+            authTimeout = null;
         }
     }
 
     /**
-     * Updates this context by save his login and indicating that he is authenticated.
+     * Marks this context as the public connection of its client, which the server
+     * forgets once it is closed.
+     * <p>
+     *     Note : to be used only once the login is registered by the server.
+     * </p>
+     */
+    public void setPublicConnection() {
+        publicConnection = true;
+    }
+
+    /**
+     * Updates this context by saving the login of its authenticated client.
      * <p>
      *     Note : to be used only for private connections.
      * </p>
@@ -73,13 +686,21 @@ public class ServerContext extends AbstractContext {
      * @param login the login of the client
      */
     public void successfulAuthentication(String login) {
-        authenticated = true;
         this.login = login;
     }
 
     @Override
     public void treatPacket(Packet packet) {
         super.treatPacket(packet);
+        var event = DispatchEvent.start();
         packet.accept(visitor);
+        if (event != null) {
+            event.finish(reader.getOpCode(), login);
+        }
+    }
+
+    @Override
+    protected boolean isRelay() {
+        return peer != null || groupMember != null;
     }
 }
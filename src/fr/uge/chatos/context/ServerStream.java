@@ -0,0 +1,107 @@
+package fr.uge.chatos.context;
+
+import fr.uge.chatos.packet.Packets;
+import fr.uge.chatos.packet.StreamData;
+import fr.uge.chatos.server.RelayStats;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * One side of a private connection carried by a multiplexed private socket.
+ * <p>
+ *     The bytes sent by the client on this stream are stored in {@code in} until the
+ *     context of the other client sends them. The client may only send what the
+ *     server granted, i.e. the free space of {@code in} : a slow receiver only
+ *     stops its own streams, never the socket shared with the others.
+ * </p>
+ */
+class ServerStream {
+    final long id;
+    final ServerContext owner;
+    final ByteBuffer in; // octets reçus du client, à envoyer au pair (write-mode)
+    final RelayStats.Side stats;
+    ServerStream peer;
+    private long sendWindow; // octets que le client accepte encore de recevoir
+    private int ungranted; // octets envoyés au pair et pas encore rendus au client
+    private boolean closed;
+
+    ServerStream(long id, ServerContext owner, ByteBuffer in, RelayStats.Side stats) {
+        this.id = id;
+        this.owner = Objects.requireNonNull(owner);
+        this.in = Objects.requireNonNull(in);
+        this.stats = Objects.requireNonNull(stats);
+    }
+
+    /**
+     * Adds credit given by the client to the data sent to it.
+     *
+     * @param increment the number of bytes
+     */
+    void grant(int increment) {
+        sendWindow += increment;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Marks this side as closed : nothing more is received from the client, the
+     * bytes already received are still sent to the peer.
+     */
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * Checks if this stream is over : the peer is closed and all its bytes have been sent.
+     *
+     * @return {@code true} if the end of the stream can be sent to the client
+     */
+    boolean isDrained() {
+        return peer.closed && peer.in.position() == 0;
+    }
+
+    /**
+     * Writes in {@code out} one frame of the bytes received from the peer, within the
+     * credit of the client.
+     *
+     * @param out the output buffer of the owner, in <b>write-mode</b>
+     * @return {@code true} if a frame has been written
+     */
+    boolean sendFrame(ByteBuffer out) {
+        var source = peer.in;
+        var length = (int) Math.min(Math.min(source.position(), sendWindow),
+                Math.min(StreamData.MAX_LENGTH, out.remaining() - StreamData.HEADER_SIZE));
+        if (length <= 0) {
+            return false;
+        }
+        Packets.putStreamDataHeader(out, id, length);
+        source.flip();
+        var oldLimit = source.limit();
+        source.limit(length);
+        out.put(source);
+        source.limit(oldLimit);
+        source.compact();
+        sendWindow -= length;
+        stats.sent(length);
+        peer.consumed(length);
+        return true;
+    }
+
+    /**
+     * Records that bytes received from the client have been sent to the peer, and gives
+     * the credit back to the client once a quarter of the buffer is free again.
+     *
+     * @param length the number of bytes
+     */
+    private void consumed(int length) {
+        stats.blocked(false);
+        ungranted += length;
+        if (!closed && ungranted >= in.capacity() / 4) {
+            owner.queueMessage(Packets.ofStreamWindow(id, ungranted).flip());
+            ungranted = 0;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package fr.uge.chatos.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * A HTTP response whose content is read from a file and sent with the
+ * {@code chunked} transfer coding, so that its length does not have to be known
+ * up front.
+ * <p>
+ *     Chunks are read straight from the file into the output buffer of the connection,
+ *     as space becomes available. In <i>follow</i> mode the response does not end at the
+ *     end of the file : the bytes appended to the file are sent as new chunks, until
+ *     {@link #finish()} is called.
+ * </p>
+ * <p>
+ *     A compressed representation is encoded as the chunks are read, see
+ *     {@link HTTPCompression#open}.
+ * </p>
+ */
+public class HTTPChunkedFile implements Closeable {
+    private static final int SIZE_DIGITS = 8;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    private static final int MIN_CHUNK_ROOM = SIZE_DIGITS + 2 * CRLF.length + 1;
+    private final ByteBuffer head;
+    private final FileChannel channel;
+    private final ReadableByteChannel encoded;
+    private final boolean follow;
+    private long position;
+    private boolean finishing;
+    private ByteBuffer trailer;
+
+    /**
+     * Creates a new chunked response.
+     *
+     * @param head the status line and the header fields, in <b>read-mode</b>
+     * @param path the file to send
+     * @param offset the offset of the first byte to send
+     * @param follow {@code true} to keep sending the bytes appended to the file
+     * @throws IOException If some other I/O error occurs.
+     */
+    public HTTPChunkedFile(ByteBuffer head, Path path, long offset, boolean follow) throws IOException {
+        this.head = Objects.requireNonNull(head);
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        encoded = null;
+        position = offset;
+        this.follow = follow;
+    }
+
+    /**
+     * Creates a new chunked response sending the whole file, with the given encoding.
+     *
+     * @param head the status line and the header fields, in <b>read-mode</b>
+     * @param path the file to send
+     * @param encoding the encoding announced in the {@code Content-Encoding} field
+     * @throws IOException If some other I/O error occurs.
+     */
+    public HTTPChunkedFile(ByteBuffer head, Path path, HTTPCompression.Encoding encoding) throws IOException {
+        this.head = Objects.requireNonNull(head);
+        channel = null;
+        encoded = HTTPCompression.open(path, encoding); // lu dans l'ordre, sans position
+        follow = false;
+    }
+
+    /**
+     * Checks if this response follows the growth of the file.
+     *
+     * @return {@code true} in follow mode
+     */
+    public boolean isFollowing() {
+        return follow && !finishing;
+    }
+
+    /**
+     * Ends this response : the last chunk will be sent once the bytes already
+     * available have been written.
+     */
+    public void finish() {
+        finishing = true;
+    }
+
+    /**
+     * Writes as much of this response as possible in {@code out}.
+     * <p>
+     * Note: {@code out} is in <b>write-mode</b> before and after the call.
+     * </p>
+     *
+     * @param out the buffer to fill
+     * @return {@code true} once the whole response, including the last chunk, has been written
+     * @throws IOException If some other I/O error occurs.
+     */
+    public boolean fill(ByteBuffer out) throws IOException {
+        if (!transfer(head, out)) {
+            return false;
+        }
+        if (trailer == null) {
+            for (;;) {
+                if (out.remaining() < MIN_CHUNK_ROOM) {
+                    return false;
+                }
+                if (readChunk(out) == 0) { // plus rien à lire pour l'instant
+                    if (follow && !finishing) {
+                        return false;
+                    }
+                    break;
+                }
+            }
+            trailer = ByteBuffer.wrap(LAST_CHUNK);
+            close();
+        }
+        return transfer(trailer, out);
+    }
+
+    /**
+     * Reads one chunk from the file, prefixed by its size and followed by CRLF.
+     *
+     * @return the number of bytes read from the file
+     */
+    private int readChunk(ByteBuffer out) throws IOException {
+        if (encoded == null && follow && channel.size() < position) {
+            position = 0; // fichier tronqué : on repart du début
+        }
+        var start = out.position();
+        var oldLimit = out.limit();
+        out.position(start + SIZE_DIGITS + CRLF.length).limit(oldLimit - CRLF.length);
+        int read;
+        try {
+            read = encoded == null ? channel.read(out, position) : encoded.read(out);
+        } finally {
+            out.limit(oldLimit);
+        }
+        if (read <= 0) {
+            out.position(start);
+            return 0;
+        }
+        position += read;
+        for (int i = SIZE_DIGITS - 1, value = read; i >= 0; i--, value >>>= 4) {
+            out.put(start + i, (byte) Character.forDigit(value & 0xF, 16));
+        }
+        out.put(start + SIZE_DIGITS, CRLF[0]).put(start + SIZE_DIGITS + 1, CRLF[1]);
+        out.put(CRLF);
+        return read;
+    }
+
+    /**
+     * Moves as many bytes as possible from {@code source} to {@code out}.
+     *
+     * @return {@code true} if {@code source} has been entirely transferred
+     */
+    private static boolean transfer(ByteBuffer source, ByteBuffer out) {
+        if (source.remaining() <= out.remaining()) {
+            out.put(source);
+            return true;
+        }
+        var oldLimit = source.limit();
+        source.limit(source.position() + out.remaining());
+        out.put(source);
+        source.limit(oldLimit);
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        (encoded == null ? channel : encoded).close();
+    }
+}
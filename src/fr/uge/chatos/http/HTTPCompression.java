@@ -0,0 +1,727 @@
+package fr.uge.chatos.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * This class handles the {@code Accept-Encoding} / {@code Content-Encoding} negotiation
+ * used for the files served over a private connection.
+ * <p>
+ *     Contents are encoded and decoded on the fly, through bounded buffers : a file is
+ *     never loaded in memory to be compressed, and a compressed body is never inflated
+ *     in memory to be saved. The compressed variants of the files requested often enough
+ *     are cached outside the repositories, in the directory given by the
+ *     {@code chatos.http.cache} property, under the ETag of the file.
+ * </p>
+ * <p>
+ *     The cache directory must belong to the current user and be private
+ *     ({@code 0700}), otherwise the cache is disabled. Only the entries written by this
+ *     process are ever served from it.
+ * </p>
+ */
+public class HTTPCompression {
+
+    /**
+     * The content codings supported by ChatOS.
+     */
+    public enum Encoding {
+        IDENTITY("identity", ""),
+        GZIP("gzip", ".gz"),
+        DEFLATE("deflate", ".deflate");
+
+        private final String token;
+        private final String suffix;
+
+        Encoding(String token, String suffix) {
+            this.token = token;
+            this.suffix = suffix;
+        }
+
+        /**
+         * Returns the token used in the HTTP headers for this encoding.
+         *
+         * @return the HTTP token
+         */
+        public String token() {
+            return token;
+        }
+
+        /**
+         * Returns the encoding associated to the specified {@code Content-Encoding} value.
+         *
+         * @param token the value of the header, may be {@code null}
+         * @return the encoding, {@code IDENTITY} if the value is unknown or missing
+         */
+        public static Encoding of(String token) {
+            if (token == null) {
+                return IDENTITY;
+            }
+            var value = token.trim().toLowerCase(Locale.ROOT);
+            for (var encoding : values()) {
+                if (encoding.token.equals(value)) {
+                    return encoding;
+                }
+            }
+            return IDENTITY;
+        }
+
+        private OutputStream wrap(OutputStream out) throws IOException {
+            return switch (this) {
+                case GZIP -> new GZIPOutputStream(out);
+                case DEFLATE -> new DeflaterOutputStream(out);
+                case IDENTITY -> out;
+            };
+        }
+
+        private InputStream wrap(InputStream in) throws IOException {
+            return switch (this) {
+                case GZIP -> new GZIPInputStream(in);
+                case DEFLATE -> new InflaterInputStream(in);
+                case IDENTITY -> in;
+            };
+        }
+    }
+
+    /**
+     * The value of the {@code Accept-Encoding} header sent by the clients.
+     */
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final Set<String> INCOMPRESSIBLE_EXTENSIONS = Set.of(
+            "gz", "tgz", "zip", "bz2", "xz", "7z", "rar", "zst", "deflate",
+            "jpg", "jpeg", "png", "gif", "webp",
+            "mp3", "ogg", "flac", "mp4", "mkv", "avi", "webm",
+            "pdf", "docx", "xlsx", "pptx", "jar");
+    private static final int SAMPLE_SIZE = 4_096;
+    private static final double MAX_ENTROPY = 7.5; // en bits par octet
+    private static final int POPULARITY_THRESHOLD = 3;
+    private static final int MAX_TRACKED_VARIANTS = 1_024;
+    private static final int BUFFER_SIZE = 8_192;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final Path CACHE = Path.of(System.getProperty("chatos.http.cache",
+            Path.of(System.getProperty("java.io.tmpdir"), "chatos-compression-" + System.getProperty("user.name")).toString()));
+    private static final Set<PosixFilePermission> PRIVATE = EnumSet.of(PosixFilePermission.OWNER_READ,
+            PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE);
+
+    private record Variant(Path path, Encoding encoding) { }
+
+    private static final class Popularity {
+        private Path cached;
+        private int hits;
+        private boolean written; // cached a été écrit par ce processus
+    }
+
+    // ordre d'accès : le premier élément est le moins récemment demandé
+    private static final LinkedHashMap<Variant, Popularity> hits = new LinkedHashMap<>(16, 0.75f, true);
+    private static Path cacheDirectory; // null tant que le répertoire n'a pas été vérifié
+    private static boolean cacheDisabled;
+
+    private HTTPCompression() { }
+
+    /**
+     * Chooses the best encoding among those accepted by the client.
+     * <p>
+     *     {@code gzip} is preferred to {@code deflate} when both have the same quality value.
+     * </p>
+     *
+     * @param acceptEncoding the value of the {@code Accept-Encoding} header, may be {@code null}
+     * @return the chosen encoding, {@code IDENTITY} if none is acceptable
+     */
+    public static Encoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return Encoding.IDENTITY;
+        }
+        var best = Encoding.IDENTITY;
+        var bestQuality = 0.0;
+        for (var element : acceptEncoding.split(",")) {
+            var parts = element.split(";");
+            var encoding = Encoding.of(parts[0]);
+            if (encoding == Encoding.IDENTITY) {
+                continue;
+            }
+            var quality = 1.0;
+            for (int i = 1; i < parts.length; i++) {
+                var param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0.0;
+                    }
+                }
+            }
+            if (quality > bestQuality || (quality == bestQuality && encoding.ordinal() < best.ordinal())) {
+                best = encoding;
+                bestQuality = quality;
+            }
+        }
+        return bestQuality > 0.0 ? best : Encoding.IDENTITY;
+    }
+
+    /**
+     * Checks if the specified file is worth compressing.
+     * <p>
+     *     The file is skipped if its extension is a known compressed format, or if
+     *     the entropy of its first bytes is too high.
+     * </p>
+     *
+     * @param path the file to check
+     * @return {@code true} if the file should be compressed
+     * @throws IOException If some other I/O error occurs.
+     */
+    public static boolean isCompressible(Path path) throws IOException {
+        var name = path.getFileName().toString();
+        var lastIndex = name.lastIndexOf('.');
+        if (lastIndex != -1 && INCOMPRESSIBLE_EXTENSIONS.contains(name.substring(lastIndex + 1).toLowerCase(Locale.ROOT))) {
+            return false;
+        }
+        byte[] sample;
+        try (var in = Files.newInputStream(path)) {
+            sample = in.readNBytes(SAMPLE_SIZE);
+        }
+        return entropy(sample) <= MAX_ENTROPY;
+    }
+
+    /**
+     * Computes the Shannon entropy of the specified bytes.
+     *
+     * @param sample the bytes to analyze
+     * @return the entropy in bits per byte, between 0 and 8
+     */
+    static double entropy(byte[] sample) {
+        if (sample.length == 0) {
+            return 0.0;
+        }
+        var counts = new int[256];
+        for (var b : sample) {
+            counts[b & 0xFF]++;
+        }
+        var entropy = 0.0;
+        for (var count : counts) {
+            if (count != 0) {
+                var p = (double) count / sample.length;
+                entropy -= p * Math.log(p) / Math.log(2);
+            }
+        }
+        return entropy;
+    }
+
+    /**
+     * Opens the content of the specified file, encoded with the given encoding.
+     * <p>
+     *     The content is encoded as it is read. Once the file has been requested often
+     *     enough, its variant is written in the cache and read from there, as long as
+     *     the content of the file does not change.
+     * </p>
+     *
+     * @param path the file to read
+     * @param encoding the encoding to use
+     * @return a channel over the encoded content
+     * @throws IOException If some other I/O error occurs.
+     */
+    public static ReadableByteChannel open(Path path, Encoding encoding) throws IOException {
+        if (encoding == Encoding.IDENTITY) {
+            return FileChannel.open(path, StandardOpenOption.READ);
+        }
+        var directory = cacheDirectory();
+        if (directory != null) {
+            var hash = HTTPValidators.hash(path);
+            var cached = directory.resolve(hash + encoding.suffix);
+            var variant = new Variant(path.toAbsolutePath().normalize(), encoding);
+            if (isPopular(variant, cached) && !isWritten(variant, cached) && cache(path, hash, encoding, cached)) {
+                setWritten(variant, cached);
+            }
+            if (isWritten(variant, cached)) {
+                try {
+                    return FileChannel.open(cached, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) { // supprimé entre-temps
+                    forget(variant);
+                }
+            }
+        }
+        return new EncodingChannel(FileChannel.open(path, StandardOpenOption.READ), encoding);
+    }
+
+    /**
+     * Compresses content generated in memory, such as a manifest.
+     *
+     * @param content the bytes to compress
+     * @param encoding the encoding to use
+     * @return the compressed content
+     * @throws IOException If some other I/O error occurs.
+     */
+    public static byte[] compress(byte[] content, Encoding encoding) throws IOException {
+        var out = new ByteArrayOutputStream();
+        try (var encoder = encoding.wrap(out)) {
+            encoder.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Streams the content of the specified file through the given encoding.
+     *
+     * @param path the file to read
+     * @param encoding the encoding to use
+     * @param out the destination of the encoded bytes, not closed by this method
+     * @throws IOException If some other I/O error occurs.
+     */
+    public static void encode(Path path, Encoding encoding, OutputStream out) throws IOException {
+        try (var in = Files.newInputStream(path)) {
+            var encoder = encoding.wrap(new UncloseableOutputStream(out));
+            in.transferTo(encoder);
+            encoder.close(); // écrit la fin du flux compressé
+        }
+    }
+
+    /**
+     * Returns a channel which decodes the bytes written in it before writing them
+     * in {@code sink}, whatever the size of the content.
+     * <p>
+     *     Closing the returned channel closes {@code sink}, and fails if the encoded
+     *     content is truncated.
+     * </p>
+     *
+     * @param sink the destination of the decoded bytes
+     * @param encoding the encoding used by the sender
+     * @return a channel accepting encoded bytes
+     */
+    public static WritableByteChannel decode(WritableByteChannel sink, Encoding encoding) {
+        Objects.requireNonNull(sink);
+        return encoding == Encoding.IDENTITY ? sink : new DecodingChannel(sink, encoding);
+    }
+
+    /**
+     * Returns a stream which decodes the bytes of {@code in} with the given encoding.
+     *
+     * @param in the encoded bytes
+     * @param encoding the encoding used by the sender
+     * @return a stream of decoded bytes
+     * @throws IOException If some other I/O error occurs.
+     */
+    public static InputStream decode(InputStream in, Encoding encoding) throws IOException {
+        return encoding.wrap(Objects.requireNonNull(in));
+    }
+
+    /**
+     * Counts the requests of a variant, forgetting the least recently requested
+     * variants beyond {@value #MAX_TRACKED_VARIANTS}.
+     *
+     * @return {@code true} if the variant is worth caching
+     */
+    private static boolean isPopular(Variant variant, Path cached) {
+        synchronized (hits) {
+            var popularity = hits.computeIfAbsent(variant, v -> new Popularity());
+            if (!cached.equals(popularity.cached)) { // premier accès, ou fichier modifié
+                discard(popularity);
+                popularity.cached = cached;
+                popularity.hits = 0;
+            }
+            popularity.hits++;
+            if (hits.size() > MAX_TRACKED_VARIANTS) {
+                var eldest = hits.values().iterator();
+                discard(eldest.next());
+                eldest.remove();
+            }
+            return popularity.hits >= POPULARITY_THRESHOLD;
+        }
+    }
+
+    /**
+     * Checks if this process has written the specified entry of the cache for the variant.
+     */
+    private static boolean isWritten(Variant variant, Path cached) {
+        synchronized (hits) {
+            var popularity = hits.get(variant);
+            return popularity != null && popularity.written && cached.equals(popularity.cached);
+        }
+    }
+
+    private static void setWritten(Variant variant, Path cached) {
+        synchronized (hits) {
+            var popularity = hits.get(variant);
+            if (popularity != null && cached.equals(popularity.cached)) {
+                popularity.written = true;
+            } else { // variant oublié ou modifié pendant l'écriture
+                delete(cached);
+            }
+        }
+    }
+
+    private static void forget(Variant variant) {
+        synchronized (hits) {
+            var popularity = hits.remove(variant);
+            if (popularity != null) {
+                discard(popularity);
+            }
+        }
+    }
+
+    /**
+     * Deletes the entry of the cache of a variant, only if this process wrote it.
+     */
+    private static void discard(Popularity popularity) {
+        if (popularity.written) {
+            delete(popularity.cached);
+            popularity.written = false;
+        }
+    }
+
+    /**
+     * Returns the cache directory, after checking that it is private to the current user.
+     *
+     * @return the directory, or {@code null} if the cache is disabled
+     */
+    private static synchronized Path cacheDirectory() {
+        if (cacheDirectory == null && !cacheDisabled) {
+            try {
+                cacheDirectory = createPrivateDirectory(CACHE);
+            } catch (IOException | UnsupportedOperationException | SecurityException e) {
+                cacheDisabled = true; // le contenu est alors toujours encodé à la volée
+            }
+        }
+        return cacheDirectory;
+    }
+
+    private static Path createPrivateDirectory(Path directory) throws IOException {
+        var posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+        try {
+            if (posix) {
+                Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(PRIVATE));
+            } else {
+                Files.createDirectory(directory);
+            }
+        } catch (FileAlreadyExistsException e) {
+            // déjà créé : vérifié ci-dessous
+        }
+        if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException(directory + " is not a directory");
+        }
+        var user = directory.getFileSystem().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+        if (!Files.getOwner(directory, LinkOption.NOFOLLOW_LINKS).equals(user)) {
+            throw new IOException(directory + " is owned by another user");
+        }
+        if (posix) {
+            var attributes = Files.readAttributes(directory, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!attributes.permissions().equals(PRIVATE)) {
+                throw new IOException(directory + " is not private");
+            }
+        }
+        return directory.toRealPath(LinkOption.NOFOLLOW_LINKS);
+    }
+
+    /**
+     * Writes the encoded variant of a file in the cache.
+     *
+     * @return {@code true} if the entry holds the content whose hash is {@code hash}
+     */
+    private static boolean cache(Path path, String hash, Encoding encoding, Path cached) {
+        try {
+            var tmp = Files.createTempFile(cached.getParent(), ".chatos", ".tmp");
+            try (var out = Files.newOutputStream(tmp)) {
+                encode(path, encoding, out);
+                if (!hash.equals(HTTPValidators.hash(path))) { // modifié pendant l'encodage
+                    throw new IOException(path + " changed while being cached");
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(tmp);
+                throw e;
+            }
+            Files.move(tmp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException ignored) {
+            // le cache est facultatif, le contenu est alors encodé à la volée
+            return false;
+        }
+    }
+
+    private static void delete(Path cached) {
+        if (cached != null) {
+            try {
+                Files.deleteIfExists(cached);
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Moves as many bytes as possible from {@code source} to {@code out}.
+     */
+    private static void transfer(ByteBuffer source, ByteBuffer out) {
+        var length = Math.min(source.remaining(), out.remaining());
+        out.put(source.slice().limit(length));
+        source.position(source.position() + length);
+    }
+
+    /**
+     * Encodes the content of a file as it is read, with bounded buffers.
+     */
+    private static class EncodingChannel implements ReadableByteChannel {
+        private final ReadableByteChannel source;
+        private final Deflater deflater;
+        private final CRC32 crc;
+        private final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+        private final ByteBuffer header;
+        private ByteBuffer trailer;
+        private boolean ended;
+
+        EncodingChannel(ReadableByteChannel source, Encoding encoding) {
+            this.source = source;
+            var gzip = encoding == Encoding.GZIP;
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip); // gzip : données deflate brutes
+            crc = gzip ? new CRC32() : null;
+            header = ByteBuffer.wrap(gzip ? GZIP_HEADER : new byte[0]);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (trailer != null && !trailer.hasRemaining()) {
+                return -1;
+            }
+            var start = dst.position();
+            transfer(header, dst);
+            while (trailer == null && dst.hasRemaining()) {
+                if (deflater.needsInput() && !ended) {
+                    input.clear();
+                    ended = source.read(input) == -1;
+                    input.flip();
+                    if (ended) {
+                        deflater.finish();
+                    } else if (crc != null) {
+                        crc.update(input.duplicate());
+                    }
+                    deflater.setInput(input);
+                    continue;
+                }
+                deflater.deflate(dst);
+                if (deflater.finished()) {
+                    trailer = ByteBuffer.allocate(crc == null ? 0 : 8).order(ByteOrder.LITTLE_ENDIAN);
+                    if (crc != null) {
+                        trailer.putInt((int) crc.getValue()).putInt((int) deflater.getBytesRead()).flip();
+                    }
+                }
+            }
+            if (trailer != null) {
+                transfer(trailer, dst);
+            }
+            return dst.position() - start;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return source.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            deflater.end();
+            source.close();
+        }
+    }
+
+    /**
+     * Decodes the content written in it before passing it on, with bounded buffers.
+     */
+    private static class DecodingChannel implements WritableByteChannel {
+        private static final int FHCRC = 2;
+        private static final int FEXTRA = 4;
+        private static final int FNAME = 8;
+        private static final int FCOMMENT = 16;
+        private final WritableByteChannel sink;
+        private final Encoding encoding;
+        private final Inflater inflater;
+        private final CRC32 crc;
+        private final ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE);
+        private final ByteBuffer header = ByteBuffer.allocate(GZIP_HEADER.length);
+        private final ByteBuffer extraLength = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
+        private final ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        private int pending; // champs facultatifs de l'en-tête gzip restant à lire
+        private int skip;
+        private boolean headerRead;
+
+        DecodingChannel(WritableByteChannel sink, Encoding encoding) {
+            this.sink = sink;
+            this.encoding = encoding;
+            var gzip = encoding == Encoding.GZIP;
+            inflater = new Inflater(gzip);
+            crc = gzip ? new CRC32() : null;
+            headerRead = !gzip;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            var length = src.remaining();
+            if (!headerRead) {
+                headerRead = readHeader(src);
+            }
+            if (headerRead && !inflater.finished()) {
+                inflate(src);
+            }
+            if (inflater.finished() && src.hasRemaining()) {
+                if (crc == null || !trailer.hasRemaining()) {
+                    throw new ZipException("Data after the end of the " + encoding.token() + " content");
+                }
+                transfer(src, trailer);
+                if (!trailer.hasRemaining()) {
+                    checkTrailer();
+                }
+                if (src.hasRemaining()) {
+                    throw new ZipException("Data after the end of the " + encoding.token() + " content");
+                }
+            }
+            return length;
+        }
+
+        /**
+         * Skips the gzip header, which may span several writes.
+         *
+         * @return {@code true} once the whole header has been read
+         */
+        private boolean readHeader(ByteBuffer src) throws ZipException {
+            while (src.hasRemaining()) {
+                if (header.hasRemaining()) {
+                    header.put(src.get());
+                    if (!header.hasRemaining()) {
+                        if (header.get(0) != GZIP_HEADER[0] || header.get(1) != GZIP_HEADER[1]
+                                || header.get(2) != Deflater.DEFLATED) {
+                            throw new ZipException("Not in GZIP format");
+                        }
+                        pending = header.get(3) & (FHCRC | FEXTRA | FNAME | FCOMMENT);
+                    }
+                } else if (skip > 0) {
+                    var length = Math.min(skip, src.remaining());
+                    src.position(src.position() + length);
+                    skip -= length;
+                } else if ((pending & FEXTRA) != 0) {
+                    extraLength.put(src.get());
+                    if (!extraLength.hasRemaining()) {
+                        skip = extraLength.getShort(0) & 0xFFFF;
+                        pending &= ~FEXTRA;
+                    }
+                } else if ((pending & FNAME) != 0) {
+                    if (src.get() == 0) {
+                        pending &= ~FNAME;
+                    }
+                } else if ((pending & FCOMMENT) != 0) {
+                    if (src.get() == 0) {
+                        pending &= ~FCOMMENT;
+                    }
+                } else if ((pending & FHCRC) != 0) {
+                    skip = 2;
+                    pending &= ~FHCRC;
+                } else {
+                    return true;
+                }
+            }
+            return !header.hasRemaining() && skip == 0 && pending == 0;
+        }
+
+        private void inflate(ByteBuffer src) throws IOException {
+            inflater.setInput(src);
+            try {
+                for (;;) {
+                    output.clear();
+                    var length = inflater.inflate(output);
+                    output.flip();
+                    if (crc != null) {
+                        crc.update(output.duplicate());
+                    }
+                    while (output.hasRemaining()) {
+                        sink.write(output);
+                    }
+                    if (inflater.finished() || (length == 0 && inflater.needsInput())) {
+                        return;
+                    }
+                    if (length == 0 && inflater.needsDictionary()) {
+                        throw new ZipException("Preset dictionaries are not supported");
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("Invalid " + encoding.token() + " content");
+            }
+        }
+
+        private void checkTrailer() throws ZipException {
+            if (trailer.getInt(0) != (int) crc.getValue() || trailer.getInt(4) != (int) inflater.getBytesWritten()) {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return sink.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            var complete = inflater.finished() && (crc == null || !trailer.hasRemaining());
+            inflater.end();
+            sink.close();
+            if (!complete) {
+                throw new EOFException("Truncated " + encoding.token() + " content");
+            }
+        }
+    }
+
+    /**
+     * Lets an encoder write its trailer without closing the underlying stream.
+     */
+    private static class UncloseableOutputStream extends OutputStream {
+        private final OutputStream out;
+
+        UncloseableOutputStream(OutputStream out) {
+            this.out = Objects.requireNonNull(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -91,5 +91,45 @@ public class HTTPHeader {
             return null;
     }
 
+    /**
+     * @return the Content-Encoding
+     *         IDENTITY if there is no Content-Encoding field
+     */
+    public HTTPCompression.Encoding getContentEncoding() {
+        return HTTPCompression.Encoding.of(fields.get("content-encoding"));
+    }
+
+    /**
+     * @return true if the content is sent with the chunked transfer coding
+     */
+    public boolean isChunked() {
+        var s = fields.get("transfer-encoding");
+        return s != null && s.toLowerCase(Locale.ROOT).contains("chunked");
+    }
+
+    /**
+     * @return the Content-Location, the name of a file published in a group
+     *         null if there is no Content-Location field
+     */
+    public String getContentLocation() {
+        return fields.get("content-location");
+    }
+
+    /**
+     * @return the ETag
+     *         null if there is no ETag field
+     */
+    public String getETag() {
+        return fields.get("etag");
+    }
+
+    /**
+     * @return the Last-Modified date
+     *         null if there is no Last-Modified field
+     */
+    public String getLastModified() {
+        return fields.get("last-modified");
+    }
+
 
 }
\ No newline at end of file
@@ -0,0 +1,177 @@
+package fr.uge.chatos.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * This class computes the validators ({@code ETag} and {@code Last-Modified}) of the
+ * files served over a private connection and evaluates the conditional requests
+ * ({@code If-None-Match} and {@code If-Modified-Since}).
+ * <p>
+ *     ETags are strong : they are the SHA-256 hash of the file content. The hash is
+ *     memoized by path, size and modification time, so an unchanged file is only read once.
+ *     At most {@code chatos.http.maxTags} hashes are kept, the least recently used being
+ *     forgotten first.
+ * </p>
+ */
+public class HTTPValidators {
+    private record CachedTag(long size, FileTime lastModified, String tag) { }
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+    private static final int MAX_TAGS = Math.max(1, Integer.getInteger("chatos.http.maxTags", 4_096));
+    // ordre d'accès : le premier élément est le moins récemment demandé
+    private static final LinkedHashMap<Path, CachedTag> tags = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, CachedTag> eldest) {
+            return size() > MAX_TAGS;
+        }
+    };
+
+    private HTTPValidators() { }
+
+    /**
+     * Returns the strong ETag of the specified file, without its quotes.
+     *
+     * @param path the file
+     * @return the hexadecimal SHA-256 hash of the file content
+     * @throws IOException If some other I/O error occurs.
+     */
+    public static String hash(Path path) throws IOException {
+        var key = path.toAbsolutePath().normalize();
+        long size;
+        FileTime lastModified;
+        try {
+            size = Files.size(key);
+            lastModified = Files.getLastModifiedTime(key);
+        } catch (IOException e) {
+            forget(key);
+            throw e;
+        }
+        CachedTag cached;
+        synchronized (tags) {
+            cached = tags.get(key);
+        }
+        if (cached != null && cached.size == size && cached.lastModified.equals(lastModified)) {
+            return cached.tag;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e); // SHA-256 est obligatoire dans toutes les JVM
+        }
+        try (var in = new DigestInputStream(Files.newInputStream(key), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        var tag = toHex(digest.digest());
+        synchronized (tags) {
+            tags.put(key, new CachedTag(size, lastModified, tag)); // remplace une version périmée
+        }
+        return tag;
+    }
+
+    private static void forget(Path key) {
+        synchronized (tags) {
+            tags.remove(key);
+        }
+    }
+
+    /**
+     * Returns the ETag of one representation of the specified file.
+     * <p>
+     *     Compressed representations get a different tag, since their bytes differ.
+     * </p>
+     *
+     * @param path the file
+     * @param encoding the encoding of the representation
+     * @return the quoted ETag
+     * @throws IOException If some other I/O error occurs.
+     */
+    public static String etag(Path path, HTTPCompression.Encoding encoding) throws IOException {
+        Objects.requireNonNull(encoding);
+        var hash = hash(path);
+        if (encoding != HTTPCompression.Encoding.IDENTITY) {
+            hash += "-" + encoding.token();
+        }
+        return "\"" + hash + "\"";
+    }
+
+    /**
+     * Returns the value of the {@code Last-Modified} field for the specified file.
+     *
+     * @param path the file
+     * @return a date in the HTTP format
+     * @throws IOException If some other I/O error occurs.
+     */
+    public static String lastModified(Path path) throws IOException {
+        return formatDate(Files.getLastModifiedTime(path));
+    }
+
+    /**
+     * Formats a date for an HTTP header field.
+     *
+     * @param time the date to format
+     * @return a date in the HTTP format
+     */
+    public static String formatDate(FileTime time) {
+        return HTTP_DATE.format(time.toInstant().truncatedTo(ChronoUnit.SECONDS));
+    }
+
+    /**
+     * Checks if a conditional request can be answered with {@code 304 Not Modified}.
+     * <p>
+     *     As required by RFC 7232, {@code If-Modified-Since} is ignored when
+     *     {@code If-None-Match} is present.
+     * </p>
+     *
+     * @param path the requested file
+     * @param etag the ETag of the representation that would be sent
+     * @param ifNoneMatch the value of the {@code If-None-Match} field, may be {@code null}
+     * @param ifModifiedSince the value of the {@code If-Modified-Since} field, may be {@code null}
+     * @return {@code true} if the client already has the current representation
+     * @throws IOException If some other I/O error occurs.
+     */
+    public static boolean isNotModified(Path path, String etag, String ifNoneMatch, String ifModifiedSince) throws IOException {
+        if (ifNoneMatch != null) {
+            for (var candidate : ifNoneMatch.split(",")) {
+                var value = candidate.trim();
+                if (value.equals("*") || value.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (ifModifiedSince != null) {
+            try {
+                var since = ZonedDateTime.parse(ifModifiedSince.trim(), HTTP_DATE).toInstant();
+                var modified = Files.getLastModifiedTime(path).toInstant().truncatedTo(ChronoUnit.SECONDS);
+                return !modified.isAfter(since);
+            } catch (DateTimeParseException e) {
+                return false; // une date invalide est ignorée
+            }
+        }
+        return false;
+    }
+
+    private static String toHex(byte[] bytes) {
+        var builder = new StringBuilder(2 * bytes.length);
+        for (var b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,55 @@
+package fr.uge.chatos.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The last step of the decoding of a packet by the server, once all its bytes are received.
+ */
+@Name("chatos.Decode")
+@Label("Packet Decode")
+@Category({"ChatOS", "Protocol"})
+@Description("The decoding of a packet received by the server")
+@Threshold("100 us")
+@StackTrace(false)
+public class DecodeEvent extends jdk.jfr.Event {
+    private static final EventType TYPE = EventType.getEventType(DecodeEvent.class);
+
+    @Label("Opcode")
+    public byte opCode;
+
+    @Label("Valid")
+    @Description("False if the packet is malformed, and the connection closed")
+    public boolean valid;
+
+    /**
+     * Begins an event if a recording takes it.
+     *
+     * @return the event, {@code null} if no recording takes it
+     */
+    public static DecodeEvent start() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        var event = new DecodeEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends this event, and commits it if it lasted longer than its threshold.
+     */
+    public void finish(byte opCode, boolean valid) {
+        end();
+        if (shouldCommit()) {
+            this.opCode = opCode;
+            this.valid = valid;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package fr.uge.chatos.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The treatment of a decoded packet by the visitor of the server.
+ */
+@Name("chatos.Dispatch")
+@Label("Packet Dispatch")
+@Category({"ChatOS", "Protocol"})
+@Description("The treatment of a packet by the visitor of the server")
+@Threshold("100 us")
+@StackTrace(false)
+public class DispatchEvent extends jdk.jfr.Event {
+    private static final EventType TYPE = EventType.getEventType(DispatchEvent.class);
+
+    @Label("Opcode")
+    public byte opCode;
+
+    @Label("Login")
+    @Description("The login of the client, if it is known")
+    public String login;
+
+    /**
+     * Begins an event if a recording takes it.
+     *
+     * @return the event, {@code null} if no recording takes it
+     */
+    public static DispatchEvent start() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        var event = new DispatchEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends this event, and commits it if it lasted longer than its threshold.
+     */
+    public void finish(byte opCode, String login) {
+        end();
+        if (shouldCommit()) {
+            this.opCode = opCode;
+            this.login = login;
+            commit();
+        }
+    }
+}
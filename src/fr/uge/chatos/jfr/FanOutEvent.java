@@ -0,0 +1,60 @@
+package fr.uge.chatos.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The delivery of a frame to its recipients by the server.
+ */
+@Name("chatos.FanOut")
+@Label("Fan-out")
+@Category({"ChatOS", "Protocol"})
+@Description("The delivery of a frame to every recipient")
+@Threshold("1 ms")
+@StackTrace(false)
+public class FanOutEvent extends jdk.jfr.Event {
+    private static final EventType TYPE = EventType.getEventType(FanOutEvent.class);
+
+    @Label("Opcode")
+    public byte opCode;
+
+    @Label("Recipients")
+    public int recipients;
+
+    @Label("Frame Size")
+    @DataAmount
+    public int bytes;
+
+    /**
+     * Begins an event if a recording takes it.
+     *
+     * @return the event, {@code null} if no recording takes it
+     */
+    public static FanOutEvent start() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        var event = new FanOutEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends this event, and commits it if it lasted longer than its threshold.
+     */
+    public void finish(byte opCode, int recipients, int bytes) {
+        end();
+        if (shouldCommit()) {
+            this.opCode = opCode;
+            this.recipients = recipients;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package fr.uge.chatos.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A read of a context on its socket, including the decoding and the treatment of the
+ * packets it completes.
+ */
+@Name("chatos.SocketRead")
+@Label("Socket Read")
+@Category({"ChatOS", "Network"})
+@Description("A read on a socket, with the decoding and the treatment of the packets it completes")
+@Threshold("1 ms")
+@StackTrace(false)
+public class SocketReadEvent extends jdk.jfr.Event {
+    private static final EventType TYPE = EventType.getEventType(SocketReadEvent.class);
+
+    @Label("Bytes Read")
+    @DataAmount
+    public int bytes;
+
+    @Label("Relay")
+    @Description("The bytes are relayed to another client without being decoded")
+    public boolean relay;
+
+    /**
+     * Begins an event if a recording takes it. The events are only created then : the
+     * normal traffic does not allocate them.
+     *
+     * @return the event, {@code null} if no recording takes it
+     */
+    public static SocketReadEvent start() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        var event = new SocketReadEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends this event, and commits it if it lasted longer than its threshold.
+     */
+    public void finish(int bytes, boolean relay) {
+        end();
+        if (shouldCommit()) {
+            this.bytes = bytes;
+            this.relay = relay;
+            commit();
+        }
+    }
+}
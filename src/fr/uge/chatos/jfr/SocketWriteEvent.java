@@ -0,0 +1,64 @@
+package fr.uge.chatos.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A write of a context on its socket, with the bytes still waiting afterwards : a large
+ * backlog shows a client which does not read fast enough.
+ */
+@Name("chatos.SocketWrite")
+@Label("Socket Write")
+@Category({"ChatOS", "Network"})
+@Description("A write on a socket, with the bytes still waiting to be sent")
+@Threshold("1 ms")
+@StackTrace(false)
+public class SocketWriteEvent extends jdk.jfr.Event {
+    private static final EventType TYPE = EventType.getEventType(SocketWriteEvent.class);
+
+    @Label("Bytes Written")
+    @DataAmount
+    public long bytes;
+
+    @Label("Bytes Pending")
+    @Description("Bytes still waiting to be sent on the socket after the write")
+    @DataAmount
+    public long pending;
+
+    @Label("Relay")
+    @Description("The bytes are relayed from another client without being decoded")
+    public boolean relay;
+
+    /**
+     * Begins an event if a recording takes it.
+     *
+     * @return the event, {@code null} if no recording takes it
+     */
+    public static SocketWriteEvent start() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        var event = new SocketWriteEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends this event, and commits it if it lasted longer than its threshold.
+     */
+    public void finish(long bytes, long pending, boolean relay) {
+        end();
+        if (shouldCommit()) {
+            this.bytes = bytes;
+            this.pending = pending;
+            this.relay = relay;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package fr.uge.chatos.logging;
+
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A logger which never formats nor writes on the calling thread, for the threads of
+ * the selectors.
+ * <p>
+ *     A record only keeps its pattern and up to three arguments : the message is
+ *     formatted later, by the handler, as a {@link java.text.MessageFormat} pattern
+ *     ({@code "{0} send a private message to {1}"}). The arguments must therefore not
+ *     be modified once logged. As in any {@code MessageFormat} pattern, a single quote
+ *     is written {@code ''} in a pattern with arguments.
+ * </p>
+ * <p>
+ *     A record is first checked against the level of the logger, then sampled and rate
+ *     limited by its {@link LogCategory}, and finally handed to a background thread
+ *     through a bounded ring buffer : a record is dropped rather than waiting for room.
+ * </p>
+ */
+public final class AsyncLogger {
+    private final Logger logger;
+    private final LogCategory category;
+
+    private AsyncLogger(Logger logger, LogCategory category) {
+        this.logger = logger;
+        this.category = category;
+    }
+
+    /**
+     * Returns a logger writing to the {@code java.util.logging} logger of a class.
+     *
+     * @param owner the class logging
+     * @param category the name of the {@link LogCategory} of the records
+     * @return the logger
+     */
+    public static AsyncLogger getLogger(Class<?> owner, String category) {
+        return new AsyncLogger(Logger.getLogger(owner.getName()), LogCategory.of(Objects.requireNonNull(category)));
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message, null, 0, null, null, null);
+    }
+
+    public void info(String pattern, Object arg0) {
+        log(Level.INFO, pattern, null, 1, arg0, null, null);
+    }
+
+    public void info(String pattern, Object arg0, Object arg1) {
+        log(Level.INFO, pattern, null, 2, arg0, arg1, null);
+    }
+
+    public void info(String pattern, Object arg0, Object arg1, Object arg2) {
+        log(Level.INFO, pattern, null, 3, arg0, arg1, arg2);
+    }
+
+    /**
+     * Logs a message with the exception which caused it.
+     *
+     * @param level the level of the record
+     * @param message the message, not formatted
+     * @param thrown the exception
+     */
+    public void log(Level level, String message, Throwable thrown) {
+        log(level, message, thrown, 0, null, null, null);
+    }
+
+    private void log(Level level, String pattern, Throwable thrown, int args, Object arg0, Object arg1, Object arg2) {
+        if (!logger.isLoggable(level) || !category.admit(System.nanoTime())) {
+            return;
+        }
+        LogRing.get().offer(logger, level, pattern, thrown, args, arg0, arg1, arg2);
+    }
+}
@@ -0,0 +1,90 @@
+package fr.uge.chatos.logging;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A category of log records, such as the chat messages or the connections, which is
+ * sampled and rate limited on its own.
+ * <p>
+ *     Only one record out of {@code chatos.log.<name>.sample} is kept (1 by default, every
+ *     record), and at most {@code chatos.log.<name>.rate} records are kept per second
+ *     ({@code chatos.log.rate} by default, itself 1000 by default, {@code 0} for no limit).
+ *     The records over the rate are counted, and their number is logged once per second.
+ * </p>
+ * <p>
+ *     Note : a category can be used from any thread, it never blocks.
+ * </p>
+ */
+public final class LogCategory {
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+    private static final int DEFAULT_RATE = Integer.getInteger("chatos.log.rate", 1_000);
+    private static final ConcurrentHashMap<String, LogCategory> categories = new ConcurrentHashMap<>();
+    private final String name;
+    private final int sample;
+    private final int rate;
+    private final AtomicLong seen = new AtomicLong();
+    private final AtomicInteger admitted = new AtomicInteger(); // depuis le début de la fenêtre
+    private final AtomicLong suppressed = new AtomicLong();
+    private volatile long windowStart = System.nanoTime();
+
+    private LogCategory(String name) {
+        this.name = name;
+        sample = Math.max(1, Integer.getInteger("chatos.log." + name + ".sample", 1));
+        rate = Math.max(0, Integer.getInteger("chatos.log." + name + ".rate", DEFAULT_RATE));
+    }
+
+    /**
+     * Returns the category of the specified name, created at its first use.
+     *
+     * @param name the name of the category
+     * @return the category, shared by all its loggers
+     */
+    public static LogCategory of(String name) {
+        return categories.computeIfAbsent(name, LogCategory::new);
+    }
+
+    static Iterable<LogCategory> all() {
+        return categories.values();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Decides whether a record of this category is kept.
+     *
+     * @param now the current time, from {@link System#nanoTime()}
+     * @return {@code true} if the record passes the sampling and the rate limit
+     */
+    boolean admit(long now) {
+        if (sample > 1 && seen.getAndIncrement() % sample != 0) {
+            return false; // écarté par l'échantillonnage, sans être compté
+        }
+        if (rate == 0) {
+            return true;
+        }
+        var start = windowStart;
+        if (now - start >= WINDOW) {
+            windowStart = now; // approximatif entre plusieurs threads, sans conséquence
+            admitted.set(0);
+        }
+        if (admitted.incrementAndGet() > rate) {
+            suppressed.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns and resets the number of records refused by the rate limit.
+     *
+     * @return the number of records suppressed since the last call
+     */
+    long takeSuppressed() {
+        return suppressed.getAndSet(0);
+    }
+}
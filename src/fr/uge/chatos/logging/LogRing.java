@@ -0,0 +1,186 @@
+package fr.uge.chatos.logging;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * The pipeline of the {@link AsyncLogger} : a bounded ring buffer, filled by any thread
+ * without lock, and drained by a single background thread which builds the
+ * {@link LogRecord} and hands them to {@code java.util.logging}.
+ * <p>
+ *     The slots of the ring are allocated once. A producer claims a slot with a single
+ *     compare-and-set, then publishes it by updating the sequence of the slot. When the
+ *     ring is full, the record is dropped and counted instead of waiting : the number of
+ *     records lost is logged once per second, with those suppressed by the categories.
+ * </p>
+ * <p>
+ *     The messages are formatted by the handlers, on the thread of the ring, from the
+ *     pattern and the arguments of the record.
+ * </p>
+ */
+final class LogRing {
+    private static final class Slot {
+        private Logger logger;
+        private Level level;
+        private String pattern;
+        private Object arg0;
+        private Object arg1;
+        private Object arg2;
+        private int args;
+        private Throwable thrown;
+        private long millis;
+    }
+
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(16, Integer.getInteger("chatos.log.capacity", 8_192)));
+    private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private static final Logger logger = Logger.getLogger(LogRing.class.getName());
+    private static final LogRing INSTANCE = new LogRing();
+    private final Slot[] slots = new Slot[CAPACITY];
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail = new AtomicLong(); // prochain emplacement réservé par un producteur
+    private volatile long head; // prochain emplacement lu, écrit par le thread du journal
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean waiting;
+
+    private LogRing() {
+        for (var i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot();
+            sequences.set(i, i); // l'emplacement i est libre pour le numéro i
+        }
+        thread = new Thread(this::run, "chatos-log");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "chatos-log-flush"));
+    }
+
+    static LogRing get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds a record to the ring, or drops it if the ring is full.
+     * <p>
+     *     Note : can be called from any thread, never blocks.
+     * </p>
+     */
+    void offer(Logger target, Level level, String pattern, Throwable thrown, int args,
+               Object arg0, Object arg1, Object arg2) {
+        long t;
+        int index;
+        while (true) {
+            t = tail.get();
+            index = (int) t & (CAPACITY - 1);
+            var available = sequences.get(index) - t;
+            if (available < 0) { // le thread du journal ne suit plus
+                dropped.incrementAndGet();
+                return;
+            }
+            if (available == 0 && tail.compareAndSet(t, t + 1)) {
+                break;
+            }
+        }
+        var slot = slots[index];
+        slot.logger = target;
+        slot.level = level;
+        slot.pattern = pattern;
+        slot.thrown = thrown;
+        slot.args = args;
+        slot.arg0 = arg0;
+        slot.arg1 = arg1;
+        slot.arg2 = arg2;
+        slot.millis = System.currentTimeMillis();
+        sequences.set(index, t + 1); // publie l'emplacement, avant de lire waiting
+        if (waiting) {
+            waiting = false;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void run() {
+        var lastReport = System.nanoTime();
+        while (true) {
+            if (!drain()) {
+                waiting = true;
+                if (!isReady()) { // vérifié à nouveau une fois waiting visible
+                    LockSupport.parkNanos(this, REPORT_INTERVAL);
+                }
+                waiting = false;
+            }
+            var now = System.nanoTime();
+            if (now - lastReport >= REPORT_INTERVAL) {
+                lastReport = now;
+                report();
+            }
+        }
+    }
+
+    private boolean isReady() {
+        return sequences.get((int) head & (CAPACITY - 1)) == head + 1;
+    }
+
+    /**
+     * Hands the records published so far to their loggers.
+     *
+     * @return {@code true} if at least one record was handed
+     */
+    private boolean drain() {
+        var any = false;
+        while (isReady()) {
+            var index = (int) head & (CAPACITY - 1);
+            var slot = slots[index];
+            var record = new LogRecord(slot.level, slot.pattern);
+            record.setLoggerName(slot.logger.getName());
+            record.setSourceClassName(slot.logger.getName()); // l'appelant n'est plus dans la pile
+            record.setSourceMethodName(null);
+            record.setInstant(Instant.ofEpochMilli(slot.millis));
+            record.setThrown(slot.thrown);
+            record.setParameters(switch (slot.args) {
+                case 0 -> null;
+                case 1 -> new Object[] {slot.arg0};
+                case 2 -> new Object[] {slot.arg0, slot.arg1};
+                default -> new Object[] {slot.arg0, slot.arg1, slot.arg2};
+            });
+            var target = slot.logger;
+            slot.logger = null;
+            slot.thrown = null;
+            slot.arg0 = slot.arg1 = slot.arg2 = null;
+            sequences.set(index, head + CAPACITY); // libère l'emplacement pour le tour suivant
+            head++;
+            target.log(record);
+            any = true;
+        }
+        return any;
+    }
+
+    private void report() {
+        var lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            logger.warning(lost + " message(s) de journal perdu(s), file pleine");
+        }
+        for (var category : LogCategory.all()) {
+            var suppressed = category.takeSuppressed();
+            if (suppressed > 0) {
+                logger.info(suppressed + " message(s) de journal ignoré(s) pour la catégorie " + category.getName());
+            }
+        }
+    }
+
+    /**
+     * Hands the records still in the ring when the JVM stops.
+     */
+    private void flush() {
+        var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        while (head != tail.get() && System.nanoTime() < deadline) { // vidée par le thread du journal
+            LockSupport.unpark(thread);
+            Thread.onSpinWait();
+        }
+        report();
+    }
+}
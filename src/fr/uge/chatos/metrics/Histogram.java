@@ -0,0 +1,156 @@
+package fr.uge.chatos.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with fixed buckets.
+ * <p>
+ *     Recording a value only increments two atomic counters, without lock nor
+ *     allocation, so it can be done on the selector threads. The buckets are set
+ *     once and for all, and are rendered cumulatively, as Prometheus expects.
+ * </p>
+ */
+public class Histogram {
+    /**
+     * Bucket bounds suited to the work of a selector thread, from 1 µs to 1 s, in nanoseconds.
+     */
+    public static final long[] LATENCY_BOUNDS = {
+            1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000, 25_000_000, 50_000_000,
+            100_000_000, 250_000_000, 500_000_000, 1_000_000_000
+    };
+    /**
+     * Returns bounds growing geometrically, each power of two being split in equal steps :
+     * the error on a percentile is at most one step.
+     *
+     * @param min the first bound, strictly positive
+     * @param max the value the last bound must reach
+     * @param steps the number of buckets per power of two
+     * @return the bounds
+     */
+    public static long[] logLinearBounds(long min, long max, int steps) {
+        if (min <= 0 || max < min || steps <= 0) {
+            throw new IllegalArgumentException();
+        }
+        var bounds = new ArrayList<Long>();
+        for (var octave = min; bounds.isEmpty() || bounds.get(bounds.size() - 1) < max; octave *= 2) {
+            for (int i = 0; i < steps; i++) {
+                var bound = octave + octave * i / steps;
+                if (bounds.isEmpty() || bound > bounds.get(bounds.size() - 1)) {
+                    bounds.add(bound);
+                }
+            }
+        }
+        return bounds.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private final long[] bounds; // bornes supérieures incluses, croissantes
+    private final AtomicLongArray counts; // un seau de plus pour les valeurs au-delà de la dernière borne
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Creates an empty histogram.
+     *
+     * @param bounds the inclusive upper bounds of the buckets, strictly increasing
+     */
+    public Histogram(long[] bounds) {
+        this.bounds = bounds.clone();
+        for (int i = 1; i < this.bounds.length; i++) {
+            if (this.bounds[i] <= this.bounds[i - 1]) {
+                throw new IllegalArgumentException("bounds must be strictly increasing");
+            }
+        }
+        counts = new AtomicLongArray(this.bounds.length + 1);
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value the value, in the unit of the bounds
+     */
+    public void record(long value) {
+        var index = Arrays.binarySearch(bounds, value);
+        if (index < 0) {
+            index = -index - 1; // premier seau dont la borne dépasse la valeur
+        }
+        counts.incrementAndGet(index);
+        sum.addAndGet(value);
+    }
+
+    /**
+     * Returns the number of values recorded.
+     *
+     * @return the number of values
+     */
+    public long count() {
+        var count = 0L;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns an estimation of a percentile : the upper bound of the bucket containing it.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound, {@link Long#MAX_VALUE} if it is beyond the last bucket,
+     * {@code 0} if no value is recorded
+     */
+    public long percentile(double percentile) {
+        var snapshot = new long[counts.length()];
+        var total = 0L;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        var rank = (long) Math.ceil(total * percentile / 100);
+        var seen = 0L;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(1, rank)) {
+                return bounds[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Writes this histogram in the Prometheus text format.
+     *
+     * @param builder the destination
+     * @param name the name of the metric
+     * @param scale the value of one second in the unit of the bounds, the values are written in seconds
+     */
+    void writeTo(StringBuilder builder, String name, double scale) {
+        writeTo(builder, name, "", scale);
+    }
+
+    /**
+     * Writes this histogram in the Prometheus text format, with labels.
+     *
+     * @param builder the destination
+     * @param name the name of the metric
+     * @param labels the labels of the series, each followed by a comma, such as {@code opcode="4",}
+     * @param scale the value of one second in the unit of the bounds, the values are written in seconds
+     */
+    void writeTo(StringBuilder builder, String name, String labels, double scale) {
+        var cumulative = 0L;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += counts.get(i);
+            builder.append(name).append("_bucket{").append(labels).append("le=\"").append(bounds[i] / scale)
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts.get(bounds.length);
+        builder.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        var suffix = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        builder.append(name).append("_sum").append(suffix).append(' ').append(sum.get() / scale).append('\n');
+        builder.append(name).append("_count").append(suffix).append(' ').append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,115 @@
+package fr.uge.chatos.metrics;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves a {@link MetricsRegistry} over HTTP, on the loopback interface only.
+ * <p>
+ *     The endpoint answers every {@code GET} with the metrics in the Prometheus text
+ *     format, then closes the connection. It runs on its own thread, with blocking
+ *     sockets : the scrapes never reach the selector threads.
+ * </p>
+ */
+public class MetricsEndpoint implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(MetricsEndpoint.class.getName());
+    private static final int MAX_REQUEST_SIZE = 8_192;
+    private static final int READ_TIMEOUT = 5_000;
+    private final MetricsRegistry registry;
+    private final ServerSocket socket;
+    private final Thread thread;
+
+    /**
+     * Opens the endpoint and starts its thread.
+     *
+     * @param registry the metrics to serve
+     * @param port the port, {@code 0} for any free port
+     * @throws IOException if the port can not be bound
+     */
+    public MetricsEndpoint(MetricsRegistry registry, int port) throws IOException {
+        this.registry = Objects.requireNonNull(registry);
+        socket = new ServerSocket();
+        socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        thread = new Thread(this::run, "metrics-http");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the port the endpoint listens to.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    private void run() {
+        while (!socket.isClosed()) {
+            try (var client = socket.accept()) {
+                serve(client);
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    logger.log(Level.FINE, "Metrics request failed", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket client) throws IOException {
+        client.setSoTimeout(READ_TIMEOUT);
+        var requestLine = readHeader(new BufferedInputStream(client.getInputStream()));
+        var out = client.getOutputStream();
+        if (requestLine == null || !requestLine.startsWith("GET ")) {
+            out.write("HTTP/1.0 405 Method Not Allowed\r\nAllow: GET\r\nContent-Length: 0\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        var body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+        var header = "HTTP/1.0 200 OK\r\n"
+                + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Reads the header of a request, up to the empty line.
+     *
+     * @return the request line, {@code null} if the header is incomplete or too large
+     */
+    private static String readHeader(InputStream in) throws IOException {
+        var header = new StringBuilder();
+        int b;
+        while (header.length() < MAX_REQUEST_SIZE && (b = in.read()) != -1) {
+            header.append((char) b);
+            var length = header.length();
+            if (length >= 4 && header.charAt(length - 1) == '\n' && header.charAt(length - 2) == '\r'
+                    && header.charAt(length - 3) == '\n' && header.charAt(length - 4) == '\r') {
+                return header.substring(0, header.indexOf("\r\n"));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops the endpoint.
+     */
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) { }
+    }
+}
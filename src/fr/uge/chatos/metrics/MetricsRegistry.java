@@ -0,0 +1,145 @@
+package fr.uge.chatos.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+
+/**
+ * The metrics of a process, rendered in the Prometheus text format.
+ * <p>
+ *     The metrics are registered once, at startup, then updated by the selector threads
+ *     without lock nor allocation : the counters are {@link LongAdder}s, the gauges read
+ *     a value maintained by their owner, the histograms have fixed buckets. Only the
+ *     rendering, done by the thread serving the metrics, allocates.
+ * </p>
+ */
+public class MetricsRegistry {
+    private static final Pattern NAME = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private interface Metric {
+        void writeTo(StringBuilder builder);
+    }
+
+    private final List<Metric> metrics = new ArrayList<>();
+
+    /**
+     * Registers a counter.
+     *
+     * @param name the name of the metric, ending with {@code _total}
+     * @param help the description of the metric
+     * @return the counter
+     */
+    public LongAdder counter(String name, String help) {
+        var counter = new LongAdder();
+        register(name, help, "counter", builder -> builder.append(name).append(' ').append(counter.sum()).append('\n'));
+        return counter;
+    }
+
+    /**
+     * Registers a counter per opcode.
+     *
+     * @param name the name of the metric, ending with {@code _total}
+     * @param help the description of the metric
+     * @return the counter
+     */
+    public OpCodeCounter opCodeCounter(String name, String help) {
+        var counter = new OpCodeCounter();
+        register(name, help, "counter", builder -> counter.writeTo(builder, name));
+        return counter;
+    }
+
+    /**
+     * Registers a gauge, whose value is read at each rendering.
+     *
+     * @param name the name of the metric
+     * @param help the description of the metric
+     * @param value the value, read from the thread serving the metrics
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        Objects.requireNonNull(value);
+        register(name, help, "gauge", builder -> builder.append(name).append(' ').append(value.getAsLong()).append('\n'));
+    }
+
+    /**
+     * Registers a gauge of a duration, rendered in seconds.
+     *
+     * @param name the name of the metric, ending with {@code _seconds}
+     * @param help the description of the metric
+     * @param nanos the duration in nanoseconds, read from the thread serving the metrics
+     */
+    public void durationGauge(String name, String help, LongSupplier nanos) {
+        Objects.requireNonNull(nanos);
+        register(name, help, "gauge",
+                builder -> builder.append(name).append(' ').append(nanos.getAsLong() / NANOS_PER_SECOND).append('\n'));
+    }
+
+    /**
+     * Registers a histogram of durations, rendered in seconds.
+     *
+     * @param name the name of the metric, ending with {@code _seconds}
+     * @param help the description of the metric
+     * @param bounds the upper bounds of the buckets, in nanoseconds
+     * @return the histogram, recording nanoseconds
+     */
+    public Histogram durationHistogram(String name, String help, long[] bounds) {
+        var histogram = new Histogram(bounds);
+        register(name, help, "histogram", builder -> histogram.writeTo(builder, name, NANOS_PER_SECOND));
+        return histogram;
+    }
+
+    /**
+     * Registers a histogram of sizes, or of any other value rendered as is.
+     *
+     * @param name the name of the metric
+     * @param help the description of the metric
+     * @param bounds the upper bounds of the buckets
+     * @return the histogram
+     */
+    public Histogram histogram(String name, String help, long[] bounds) {
+        var histogram = new Histogram(bounds);
+        register(name, help, "histogram", builder -> histogram.writeTo(builder, name, 1));
+        return histogram;
+    }
+
+    /**
+     * Registers a histogram of sizes per opcode.
+     *
+     * @param name the name of the metric
+     * @param help the description of the metric
+     * @param bounds the upper bounds of the buckets
+     * @return the histograms
+     */
+    public OpCodeHistogram opCodeHistogram(String name, String help, long[] bounds) {
+        var histogram = new OpCodeHistogram(bounds);
+        register(name, help, "histogram", builder -> histogram.writeTo(builder, name, 1));
+        return histogram;
+    }
+
+    private synchronized void register(String name, String help, String type, Metric metric) {
+        if (!NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("invalid metric name " + name);
+        }
+        metrics.add(builder -> {
+            builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            metric.writeTo(builder);
+        });
+    }
+
+    /**
+     * Renders every metric in the Prometheus text format, version 0.0.4.
+     *
+     * @return the text
+     */
+    public synchronized String scrape() {
+        var builder = new StringBuilder(4_096);
+        for (var metric : metrics) {
+            metric.writeTo(builder);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,41 @@
+package fr.uge.chatos.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter per opcode, rendered with an {@code opcode} label.
+ * <p>
+ *     Each opcode has its own atomic counter, incremented without lock nor allocation.
+ * </p>
+ */
+public class OpCodeCounter {
+    private final AtomicLongArray counts = new AtomicLongArray(256);
+
+    /**
+     * Increments the counter of an opcode.
+     *
+     * @param opCode the opcode of the frame
+     */
+    public void increment(byte opCode) {
+        counts.incrementAndGet(opCode & 0xFF);
+    }
+
+    /**
+     * Returns the counter of an opcode.
+     *
+     * @param opCode the opcode
+     * @return the number of frames with this opcode
+     */
+    public long get(byte opCode) {
+        return counts.get(opCode & 0xFF);
+    }
+
+    void writeTo(StringBuilder builder, String name) {
+        for (int i = 0; i < counts.length(); i++) {
+            var count = counts.get(i);
+            if (count != 0) { // seuls les opcodes déjà vus
+                builder.append(name).append("{opcode=\"").append(i).append("\"} ").append(count).append('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package fr.uge.chatos.metrics;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A histogram per opcode, rendered with an {@code opcode} label.
+ * <p>
+ *     The histogram of an opcode is created the first time the opcode is recorded ;
+ *     the following records do not allocate.
+ * </p>
+ */
+public class OpCodeHistogram {
+    private final long[] bounds;
+    private final AtomicReferenceArray<Histogram> histograms = new AtomicReferenceArray<>(256);
+
+    OpCodeHistogram(long[] bounds) {
+        this.bounds = bounds.clone();
+        new Histogram(bounds); // vérifie les bornes dès l'enregistrement
+    }
+
+    /**
+     * Records a value for an opcode.
+     *
+     * @param opCode the opcode of the frame
+     * @param value the value, in the unit of the bounds
+     */
+    public void record(byte opCode, long value) {
+        var index = opCode & 0xFF;
+        var histogram = histograms.get(index);
+        if (histogram == null) { // premier enregistrement de cet opcode
+            histograms.compareAndSet(index, null, new Histogram(bounds));
+            histogram = histograms.get(index);
+        }
+        histogram.record(value);
+    }
+
+    /**
+     * Returns the histogram of an opcode.
+     *
+     * @param opCode the opcode
+     * @return the histogram, {@code null} if no value has been recorded for this opcode
+     */
+    public Histogram get(byte opCode) {
+        return histograms.get(opCode & 0xFF);
+    }
+
+    void writeTo(StringBuilder builder, String name, double scale) {
+        for (int i = 0; i < histograms.length(); i++) {
+            var histogram = histograms.get(i);
+            if (histogram != null) { // seuls les opcodes déjà vus
+                histogram.writeTo(builder, name, "opcode=\"" + i + "\",", scale);
+            }
+        }
+    }
+}
@@ -5,18 +5,33 @@ import fr.uge.chatos.visitor.PacketVisitor;
 import java.nio.ByteBuffer;
 
 /**
- * Represent a frame containing the confirmation from the server.
+ * Represent a frame containing the confirmation from the server, with the token
+ * resuming the session if its socket is lost.
  */
 public class ConnectionConfirmation implements Packet {
+    /**
+     * The login is refused.
+     */
+    public static final byte REFUSED = 0;
+    /**
+     * A new session is opened.
+     */
+    public static final byte ACCEPTED = 1;
+    /**
+     * The session is resumed, the messages sent while it was disconnected follow.
+     */
+    public static final byte RESUMED = 2;
     public byte confirm;
+    public long token; // 0 si la session ne peut pas être reprise
 
-    public ConnectionConfirmation(byte confirm) {
+    public ConnectionConfirmation(byte confirm, long token) {
         this.confirm = confirm;
+        this.token = token;
     }
 
     @Override
     public ByteBuffer asByteBuffer() {
-        return null;
+        return Packets.ofAcceptConnection(confirm, token).flip();
     }
 
     @Override
@@ -14,7 +14,7 @@ public class ConnectionRequest implements Packet {
 
     @Override
     public ByteBuffer asByteBuffer() {
-        return Packets.ofAcceptConnection().flip();
+        return Packets.ofRequestConnection(sender).flip();
     }
 
     @Override
@@ -0,0 +1,24 @@
+package fr.uge.chatos.packet;
+
+import fr.uge.chatos.visitor.PacketVisitor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Represent a frame resuming a public session after the loss of its socket.
+ */
+public class ConnectionResume implements Packet {
+    public String login;
+    public long token;
+    public long received; // messages reçus avant la perte de la socket
+
+    @Override
+    public ByteBuffer asByteBuffer() {
+        return Packets.ofResumeConnection(login, token, received).flip();
+    }
+
+    @Override
+    public void accept(PacketVisitor visitor) {
+        visitor.visit(this);
+    }
+}
@@ -29,7 +29,7 @@ public class ErrorNoShutdown implements Packet {
 
     @Override
     public ByteBuffer asByteBuffer() {
-        return Packets.ofNoShutdownErrorBuffer(message);
+        return Packets.ofNoShutdownErrorBuffer(message).flip();
     }
 
     @Override
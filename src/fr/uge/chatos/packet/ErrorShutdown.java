@@ -31,7 +31,7 @@ public class ErrorShutdown implements Packet {
 
     @Override
     public ByteBuffer asByteBuffer() {
-        return Packets.ofShutdownErrorBuffer(message);
+        return Packets.ofShutdownErrorBuffer(message).flip();
     }
 
     @Override
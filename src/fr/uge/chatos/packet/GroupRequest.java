@@ -0,0 +1,31 @@
+package fr.uge.chatos.packet;
+
+import fr.uge.chatos.visitor.PacketVisitor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Represent a frame creating a group private connection.
+ * <p>
+ *     The data sent by the creator of the group is relayed to every member who joined it.
+ * </p>
+ */
+public class GroupRequest implements Packet {
+    public static final String PREFIX = "#";
+    public static final int MAX_MEMBERS = 64;
+    public String sender;
+    public String name;
+    public final List<String> members = new ArrayList<>();
+
+    @Override
+    public ByteBuffer asByteBuffer() {
+        return Packets.ofGroupRequest(name, members).flip();
+    }
+
+    @Override
+    public void accept(PacketVisitor visitor) {
+        visitor.visit(this);
+    }
+}
@@ -1,10 +1,15 @@
 package fr.uge.chatos.packet;
 
+import fr.uge.chatos.http.HTTPCompression;
 import fr.uge.chatos.http.HTTPException;
 import fr.uge.chatos.http.HTTPHeader;
 import fr.uge.chatos.visitor.PacketVisitor;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Map;
 
@@ -14,19 +19,57 @@ import java.util.Map;
  */
 
 public class HttpData implements Packet {
+
+    /**
+     * The maximum length of a content kept in memory, in bytes, before or after decoding.
+     * It can be changed with the {@code chatos.http.maxContent} property.
+     */
+    public static final int MAX_CONTENT_LENGTH = Math.max(0, Integer.getInteger("chatos.http.maxContent", 64 << 20));
+
     private final HTTPHeader header;
     private final String body;
     private final byte[] contentBody;
+    private final boolean streamed;
 
-    private HttpData(HTTPHeader header, String body, byte[] contentBody) {
+    private HttpData(HTTPHeader header, String body, byte[] contentBody, boolean streamed) {
         this.header = header;
         this.body = body;
         this.contentBody = Arrays.copyOf(contentBody, contentBody.length);
+        this.streamed = streamed;
     }
 
     public static HttpData create(String response, Map<String, String> fields, String body, byte[] contentBody) throws HTTPException {
+        return create(response, fields, body, contentBody, false);
+    }
+
+    /**
+     * Build a HTTP response.
+     *
+     * @param response the status line
+     * @param fields the header fields
+     * @param body the content as text
+     * @param contentBody the raw content
+     * @param streamed {@code true} if the content has already been written to its destination
+     *                 while it was received, in which case {@code body} and {@code contentBody} are empty
+     * @return the response
+     * @throws HTTPException if the header is invalid
+     */
+    public static HttpData create(String response, Map<String, String> fields, String body, byte[] contentBody,
+                                  boolean streamed) throws HTTPException {
         var header = HTTPHeader.create(response, fields);
-        return new HttpData(header, body, contentBody);
+        if (!streamed && header.getContentEncoding() != HTTPCompression.Encoding.IDENTITY
+                && "txt".equals(header.getContentType())) {
+            try (var in = HTTPCompression.decode(new ByteArrayInputStream(contentBody), header.getContentEncoding())) {
+                var decoded = in.readNBytes(MAX_CONTENT_LENGTH + 1);
+                if (decoded.length > MAX_CONTENT_LENGTH) {
+                    throw new HTTPException("Content too large");
+                }
+                body = new String(decoded, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new HTTPException("Invalid " + header.getContentEncoding().token() + " content");
+            }
+        }
+        return new HttpData(header, body, contentBody, streamed);
     }
 
     public HTTPHeader getHeader() {
@@ -41,6 +84,27 @@ public class HttpData implements Packet {
         return contentBody;
     }
 
+    /**
+     * Checks if the content of this response was written to its destination while
+     * it was received, instead of being kept in this object.
+     *
+     * @return {@code true} if the content was streamed
+     */
+    public boolean isStreamed() {
+        return streamed;
+    }
+
+    /**
+     * Returns a stream over the content of this response, decoded according
+     * to its {@code Content-Encoding} field.
+     *
+     * @return a stream of decoded bytes
+     * @throws IOException If some other I/O error occurs.
+     */
+    public InputStream openContent() throws IOException {
+        return HTTPCompression.decode(new ByteArrayInputStream(contentBody), header.getContentEncoding());
+    }
+
     @Override
     public ByteBuffer asByteBuffer() {
         throw new UnsupportedOperationException();
@@ -13,9 +13,11 @@ import java.util.Map;
  */
 public class HttpRequest implements Packet {
     private final String filename;
+    private final Map<String, String> fields;
 
-    private HttpRequest(String filename) {
+    private HttpRequest(String filename, Map<String, String> fields) {
         this.filename = filename;
+        this.fields = Collections.unmodifiableMap(fields);
     }
 
     /**
@@ -26,15 +28,84 @@ public class HttpRequest implements Packet {
         return filename;
     }
 
+    /**
+     * Returns the header fields of this request, with lower-case names.
+     *
+     * @return the header fields
+     */
+    public Map<String, String> getFields() {
+        return fields;
+    }
+
+    /**
+     * Returns the value of the {@code Accept-Encoding} field.
+     *
+     * @return the accepted encodings, {@code null} if the field is absent
+     */
+    public String getAcceptEncoding() {
+        return fields.get("accept-encoding");
+    }
+
+    /**
+     * Returns the value of the {@code If-None-Match} field.
+     *
+     * @return the ETags known by the client, {@code null} if the field is absent
+     */
+    public String getIfNoneMatch() {
+        return fields.get("if-none-match");
+    }
+
+    /**
+     * Returns the value of the {@code If-Modified-Since} field.
+     *
+     * @return the date known by the client, {@code null} if the field is absent
+     */
+    public String getIfModifiedSince() {
+        return fields.get("if-modified-since");
+    }
+
+    /**
+     * Returns the value of the {@code Range} field.
+     *
+     * @return the requested ranges, {@code null} if the field is absent
+     */
+    public String getRange() {
+        return fields.get("range");
+    }
+
+    /**
+     * Returns the value of the {@code If-Range} field.
+     *
+     * @return the ETag of the version known by the client, {@code null} if the field is absent
+     */
+    public String getIfRange() {
+        return fields.get("if-range");
+    }
+
+    /**
+     * Checks if the client asks to follow the file : the content appended to the
+     * file is sent as long as no other request is received.
+     *
+     * @return {@code true} if the {@code X-Follow} field is set
+     */
+    public boolean isFollow() {
+        var follow = fields.get("x-follow");
+        return follow != null && (follow.equals("1") || follow.equalsIgnoreCase("true"));
+    }
+
     /**
      * Build a HTTP request 
      * 
      */
-    public static HttpRequest create(String request){
+    public static HttpRequest create(String request, Map<String, String> fields){
         var tokens = request.split(" ");
         var filename = tokens[1];
 
-        return new HttpRequest(filename);
+        var fieldsCopied = new HashMap<String, String>();
+        for (var entry : fields.entrySet()) {
+            fieldsCopied.put(entry.getKey().toLowerCase(), entry.getValue().trim());
+        }
+        return new HttpRequest(filename, fieldsCopied);
     }
 
     @Override
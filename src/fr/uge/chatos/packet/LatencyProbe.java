@@ -0,0 +1,45 @@
+package fr.uge.chatos.packet;
+
+import fr.uge.chatos.visitor.PacketVisitor;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Represent a frame measuring the latency of the delivery of the messages.
+ * <p>
+ *     The times are in microseconds since the epoch : the sending time is given by the
+ *     client, on its clock, the ingress and egress times by the server, on its own clock.
+ *     The ingress time is taken when the server reads the end of the probe, the egress
+ *     time when the copy of each recipient leaves its queue for the socket.
+ * </p>
+ */
+public class LatencyProbe implements Packet {
+    public String sender;
+    public String recipient; // vide pour un envoi à tous les clients
+    public long sequence;
+    public long sent;
+    public long ingress;
+    public long egress;
+
+    /**
+     * Returns the current time, as carried by the probes.
+     *
+     * @return the number of microseconds since the epoch
+     */
+    public static long now() {
+        var now = Instant.now();
+        return TimeUnit.SECONDS.toMicros(now.getEpochSecond()) + TimeUnit.NANOSECONDS.toMicros(now.getNano());
+    }
+
+    @Override
+    public ByteBuffer asByteBuffer() {
+        return Packets.ofLatencyProbeReceiver(sender, sequence, sent, ingress, egress).flip();
+    }
+
+    @Override
+    public void accept(PacketVisitor visitor) {
+        visitor.visit(this);
+    }
+}
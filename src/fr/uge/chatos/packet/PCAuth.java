@@ -12,6 +12,7 @@ import java.nio.ByteBuffer;
 public class PCAuth implements Packet {
     public String login;
     public long id;
+    public boolean multiplexed; // flux de la socket privée multiplexée
 
     @Override
     public ByteBuffer asByteBuffer() {
@@ -15,16 +15,17 @@ public class PCSockets implements Packet {
     public byte reply;
     public long id;
     public int port;
+    public boolean multiplexed; // connexion portée par la socket privée multiplexée
     private boolean needFirstPacket = true; // pour pouvoir créer les deux paquets
 
     @Override
     public ByteBuffer asByteBuffer() {
         if (needFirstPacket) {
             needFirstPacket = false;
-            return Packets.ofPrivateConnectionSockets(id, recipient, port).flip();
+            return Packets.ofPrivateConnectionSockets(id, recipient, port, multiplexed).flip();
         }
         needFirstPacket = true;
-        return Packets.ofPrivateConnectionSockets(id, sender, port).flip();
+        return Packets.ofPrivateConnectionSockets(id, sender, port, multiplexed).flip();
     }
 
     @Override
@@ -1,12 +1,23 @@
 package fr.uge.chatos.packet;
 
+import fr.uge.chatos.http.HTTPChunkedFile;
+import fr.uge.chatos.http.HTTPCompression;
+import fr.uge.chatos.http.HTTPValidators;
+import fr.uge.chatos.sync.ByteRange;
+import fr.uge.chatos.sync.DeltaPlan;
+import fr.uge.chatos.sync.Manifest;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import static fr.uge.chatos.utils.OpCode.*;
 
@@ -48,17 +59,90 @@ public class Packets {
     }
 
     /**
-     * Create a buffer with this format : byte | byte.
+     * Create a buffer with this format : byte | byte | long.
      * <p>
      *     OpCode = 1.
      * </p>
      *
+     * @param confirm the status of the session, see {@link ConnectionConfirmation}
+     * @param token the token resuming the session, {@code 0} if it can not be resumed
      * @return a {@code ByteBuffer} in <b>write-mode</b>
      */
-    public static ByteBuffer ofAcceptConnection() {
-        var result = ByteBuffer.allocate(2*Byte.BYTES);
+    public static ByteBuffer ofAcceptConnection(byte confirm, long token) {
+        var result = ByteBuffer.allocate(2*Byte.BYTES + Long.BYTES);
         result.put(CONNECTION_ACCEPT)
-                .put((byte) 1);
+                .put(confirm)
+                .putLong(token);
+        return result;
+    }
+
+    /**
+     * Create a buffer with this format : byte | int | string | long | long.
+     * <p>
+     *     OpCode = 18.
+     * </p>
+     *
+     * @param login the user's login
+     * @param token the token given by the last {@link ConnectionConfirmation}
+     * @param received the number of messages received before the loss of the socket
+     * @return a {@code ByteBuffer} in <b>write-mode</b>
+     */
+    public static ByteBuffer ofResumeConnection(String login, long token, long received) {
+        var loginBuffer = charset.encode(login);
+        var result = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + loginBuffer.remaining() + 2*Long.BYTES);
+        result.put(CONNECTION_RESUME)
+                .putInt(loginBuffer.remaining())
+                .put(loginBuffer)
+                .putLong(token)
+                .putLong(received);
+        return result;
+    }
+
+    /**
+     * Create a buffer with this format : byte | int | string | long | long.
+     * <p>
+     *     OpCode = 19.
+     * </p>
+     *
+     * @param recipient the recipient's login, empty to send the probe to every client
+     * @param sequence the sequence number of the probe
+     * @param sent the sending time, see {@link LatencyProbe#now()}
+     * @return a {@code ByteBuffer} in <b>write-mode</b>
+     */
+    public static ByteBuffer ofLatencyProbeSender(String recipient, long sequence, long sent) {
+        var recipientBuffer = charset.encode(recipient);
+        var result = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + recipientBuffer.remaining() + 2*Long.BYTES);
+        result.put(LATENCY_PROBE_SENDER)
+                .putInt(recipientBuffer.remaining())
+                .put(recipientBuffer)
+                .putLong(sequence)
+                .putLong(sent);
+        return result;
+    }
+
+    /**
+     * Create a buffer with this format : byte | int | string | long | long | long | long.
+     * <p>
+     *     OpCode = 20.
+     * </p>
+     *
+     * @param sender the sender's login
+     * @param sequence the sequence number of the probe
+     * @param sent the sending time, on the clock of the sender
+     * @param ingress the time the server read the probe
+     * @param egress the time the server wrote the probe for this recipient, set later when {@code 0}
+     * @return a {@code ByteBuffer} in <b>write-mode</b>
+     */
+    public static ByteBuffer ofLatencyProbeReceiver(String sender, long sequence, long sent, long ingress, long egress) {
+        var senderBuffer = charset.encode(sender);
+        var result = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + senderBuffer.remaining() + 4*Long.BYTES);
+        result.put(LATENCY_PROBE_RECEIVER)
+                .putInt(senderBuffer.remaining())
+                .put(senderBuffer)
+                .putLong(sequence)
+                .putLong(sent)
+                .putLong(ingress)
+                .putLong(egress);
         return result;
     }
 
@@ -213,6 +297,36 @@ public class Packets {
         return result;
     }
 
+    /**
+     * Create a buffer with this format : byte | int | string | int | (int | string)*.
+     * <p>
+     *     OpCode = 17.
+     * </p>
+     *
+     * @param name the name of the group, starting with {@code #}
+     * @param members the logins of the invited clients
+     * @return a {@code ByteBuffer} in <b>write-mode</b>
+     */
+    public static ByteBuffer ofGroupRequest(String name, List<String> members) {
+        var nameBuffer = charset.encode(name);
+        var memberBuffers = new ArrayList<ByteBuffer>();
+        var size = Byte.BYTES + 2 * Integer.BYTES + nameBuffer.remaining();
+        for (var member : members) {
+            var memberBuffer = charset.encode(member);
+            memberBuffers.add(memberBuffer);
+            size += Integer.BYTES + memberBuffer.remaining();
+        }
+        var result = ByteBuffer.allocate(size);
+        result.put(GROUP_REQUEST)
+                .putInt(nameBuffer.remaining())
+                .put(nameBuffer)
+                .putInt(memberBuffers.size());
+        for (var member : memberBuffers) {
+            result.putInt(member.remaining()).put(member);
+        }
+        return result;
+    }
+
     /**
      * Create a buffer with this format : byte | int | string | long | int.
      * <p>
@@ -224,9 +338,26 @@ public class Packets {
      * @return a {@code ByteBuffer} in <b>write-mode</b>
      */
     public static ByteBuffer ofPrivateConnectionSockets(long id, String recipient, int port) {
+        return ofPrivateConnectionSockets(id, recipient, port, false);
+    }
+
+    /**
+     * Create a buffer with this format : byte | int | string | long | int.
+     * <p>
+     *     OpCode = 9, or 12 if the private connection is a stream of the multiplexed
+     *     private socket.
+     * </p>
+     *
+     * @param id the ID of private connection
+     * @param recipient the login of the other client
+     * @param port the private port of the server
+     * @param multiplexed {@code true} if the private connection is a stream of the multiplexed socket
+     * @return a {@code ByteBuffer} in <b>write-mode</b>
+     */
+    public static ByteBuffer ofPrivateConnectionSockets(long id, String recipient, int port, boolean multiplexed) {
         var recipientBuffer = charset.encode(recipient);
         var result = ByteBuffer.allocate(Byte.BYTES + 2*Integer.BYTES + Long.BYTES + recipientBuffer.remaining());
-        result.put(PRIVATE_CONNECTION_SOCKETS)
+        result.put(multiplexed ? PRIVATE_CONNECTION_STREAM : PRIVATE_CONNECTION_SOCKETS)
                 .putInt(recipientBuffer.remaining())
                 .put(recipientBuffer)
                 .putLong(id)
@@ -253,6 +384,82 @@ public class Packets {
         return result;
     }
 
+    /**
+     * Create a buffer with this format : byte | long | int | string.
+     * <p>
+     *     OpCode = 13.
+     * </p>
+     *
+     * @param id the ID of private connection to authenticate
+     * @param login the login of the client
+     * @return a {@code ByteBuffer} in <b>write-mode</b>
+     */
+    public static ByteBuffer ofStreamOpen(long id, String login) {
+        var loginBuffer = charset.encode(login);
+        var result = ByteBuffer.allocate(Byte.BYTES + Long.BYTES + Integer.BYTES + loginBuffer.remaining());
+        result.put(STREAM_OPEN)
+                .putLong(id)
+                .putInt(loginBuffer.remaining())
+                .put(loginBuffer);
+        return result;
+    }
+
+    /**
+     * Writes the header of a stream data frame, with this format : byte | long | int,
+     * followed by {@code length} bytes.
+     * <p>
+     *     OpCode = 14.
+     * </p>
+     * <p>
+     *     Unlike the other methods, the header is written in {@code buffer} so that the
+     *     data can follow it without copy.
+     * </p>
+     *
+     * @param buffer the buffer, in <b>write-mode</b>, with at least {@link StreamData#HEADER_SIZE} bytes remaining
+     * @param id the ID of the stream
+     * @param length the number of bytes of the frame
+     * @return {@code buffer}
+     */
+    public static ByteBuffer putStreamDataHeader(ByteBuffer buffer, long id, int length) {
+        return buffer.put(STREAM_DATA)
+                .putLong(id)
+                .putInt(length);
+    }
+
+    /**
+     * Create a buffer with this format : byte | long | int.
+     * <p>
+     *     OpCode = 15.
+     * </p>
+     *
+     * @param id the ID of the stream
+     * @param increment the number of bytes the receiver accepts in addition
+     * @return a {@code ByteBuffer} in <b>write-mode</b>
+     */
+    public static ByteBuffer ofStreamWindow(long id, int increment) {
+        var result = ByteBuffer.allocate(Byte.BYTES + Long.BYTES + Integer.BYTES);
+        result.put(STREAM_WINDOW)
+                .putLong(id)
+                .putInt(increment);
+        return result;
+    }
+
+    /**
+     * Create a buffer with this format : byte | long.
+     * <p>
+     *     OpCode = 16.
+     * </p>
+     *
+     * @param id the ID of the stream
+     * @return a {@code ByteBuffer} in <b>write-mode</b>
+     */
+    public static ByteBuffer ofStreamClose(long id) {
+        var result = ByteBuffer.allocate(Byte.BYTES + Long.BYTES);
+        result.put(STREAM_CLOSE)
+                .putLong(id);
+        return result;
+    }
+
     /**
      * Create an authentication confirmation buffer with this format : byte | long | byte.
      * <p>
@@ -313,9 +520,25 @@ public class Packets {
      * @return a {@code ByteBuffer} in <b>write-mode</b>
      */
     public static ByteBuffer ofHTTPRequest(String filename, String host) {
-        var content = ASCII.encode("GET " + filename + " HTTP/1.1\r\n"
-                + "Host: " + host + "\r\n"
-                + "\r\n");
+        return ofHTTPRequest(filename, host, Map.of());
+    }
+
+    /**
+     * Create a buffer for a HTTP request with additional header fields.
+     *
+     * @param filename the filename to resquest
+     * @param host the value of the {@code Host} field
+     * @param fields the additional fields, e.g. the validators of a conditional request
+     * @return a {@code ByteBuffer} in <b>write-mode</b>
+     */
+    public static ByteBuffer ofHTTPRequest(String filename, String host, Map<String, String> fields) {
+        var request = new StringBuilder("GET " + filename + " HTTP/1.1\r\n")
+                .append("Host: ").append(host).append("\r\n")
+                .append("Accept-Encoding: ").append(HTTPCompression.ACCEPT_ENCODING).append("\r\n");
+        for (var field : fields.entrySet()) {
+            request.append(field.getKey()).append(": ").append(field.getValue()).append("\r\n");
+        }
+        var content = ASCII.encode(request.append("\r\n").toString());
         var result = ByteBuffer.allocate(content.remaining());
         result.put(content);
         return result;
@@ -323,32 +546,43 @@ public class Packets {
 
     /**
      * Create a buffer containing the HTTP response.
+     * <p>
+     *     If the request is conditional and the client already has the current
+     *     representation, a {@code 304 Not Modified} without content is returned.
+     *     The content built here is never compressed : compressed representations
+     *     are streamed, see {@link #ofChunkedHTTPResponse}.
+     * </p>
      *
      * @param name the filename
+     * @param request the request of the client
      * @return a {@code ByteBuffer} in <b>write-mode</b>
      */
 
-    public static ByteBuffer ofHTTPResponse(String name) {
+    public static ByteBuffer ofHTTPResponse(String name, HttpRequest request) {
         var path = Path.of(name);
         if (Files.exists(path)) {
-            try (var lines = Files.lines(path)) {
-                var file = lines.reduce("", String::concat);
-                file += "\r\n\r\n";
-
-                var ext = getFileExtension(name);
-
-                var content = ASCII.encode(file);
-                var list = new ArrayList<String>();
-                list.add("HTTP/1.1 200 OK");
-                list.add("Content-Length: " + content.capacity());
-                list.add("Content-Type: " + ext);
-                list.add("");
-
-                var header = String.join("\r\n", list);
-                var encoded = ASCII.encode(header + "\r\n");
-
-                var result = ByteBuffer.allocate(encoded.remaining() + content.remaining());
-                return result.put(encoded).put(content);
+            try {
+                var etag = HTTPValidators.etag(path, representation(path, request));
+                if (HTTPValidators.isNotModified(path, etag, request.getIfNoneMatch(), request.getIfModifiedSince())) {
+                    return ofNotModifiedHTTPResponse(validators(path, etag));
+                }
+                var validators = validators(path, HTTPValidators.etag(path, HTTPCompression.Encoding.IDENTITY));
+                if (request.getRange() != null && isRangeApplicable(path, request)) {
+                    try {
+                        var ranges = ByteRange.parse(request.getRange(), Files.size(path));
+                        return ofBlocksHTTPResponse(path, ranges, validators);
+                    } catch (IllegalArgumentException e) {
+                        // un champ Range invalide est ignoré, le fichier entier est envoyé
+                    }
+                }
+                var content = Files.readAllBytes(path);
+                var header = ASCII.encode("HTTP/1.1 200 OK\r\n"
+                        + "Content-Length: " + content.length + "\r\n"
+                        + "Content-Type: " + getFileExtension(name) + "\r\n"
+                        + validators
+                        + "\r\n");
+                var result = ByteBuffer.allocate(header.remaining() + content.length);
+                return result.put(header).put(content);
             } catch (IOException e) {
                 return ofNoShutdownErrorBuffer("an I/O error occurs opening the file");
             }
@@ -360,6 +594,221 @@ public class Packets {
 
     }
 
+    /**
+     * Create a HTTP response whose content is sent with the {@code chunked} transfer coding.
+     * <p>
+     *     A response is streamed when the client follows the file, or when it gets the
+     *     whole file, compressed with the best encoding it accepts or not. In every other
+     *     case (missing file, {@code 304}, {@code 206}) {@code null} is returned and the
+     *     response must be built with {@link #ofHTTPResponse}.
+     * </p>
+     * <p>
+     *     The content of a followed file changes while it is sent, so its response has
+     *     no validators and is never compressed.
+     * </p>
+     *
+     * @param name the filename
+     * @param request the request of the client
+     * @param offset the offset of the first byte to send in follow mode
+     * @return the response, or {@code null}
+     * @throws IOException If some other I/O error occurs.
+     */
+    public static HTTPChunkedFile ofChunkedHTTPResponse(String name, HttpRequest request, long offset) throws IOException {
+        var path = Path.of(name);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        var header = new StringBuilder("HTTP/1.1 200 OK\r\n")
+                .append("Transfer-Encoding: chunked\r\n")
+                .append("Content-Type: ").append(getFileExtension(name)).append("\r\n");
+        if (request.isFollow()) {
+            return new HTTPChunkedFile(ASCII.encode(header.append("\r\n").toString()), path, offset, true);
+        }
+        var encoding = representation(path, request);
+        var etag = HTTPValidators.etag(path, encoding);
+        if (HTTPValidators.isNotModified(path, etag, request.getIfNoneMatch(), request.getIfModifiedSince())
+                || (request.getRange() != null && isRangeApplicable(path, request))) {
+            return null;
+        }
+        if (encoding != HTTPCompression.Encoding.IDENTITY) {
+            header.append("Content-Encoding: ").append(encoding.token()).append("\r\n")
+                    .append("Vary: Accept-Encoding\r\n");
+        }
+        header.append(validators(path, etag)).append("\r\n");
+        return new HTTPChunkedFile(ASCII.encode(header.toString()), path, encoding);
+    }
+
+    /**
+     * Create a buffer containing the header of a HTTP response published in a group,
+     * whose content is sent with the {@code chunked} transfer coding.
+     * <p>
+     *     The members did not request the file, so its name is given by the
+     *     {@code Content-Location} field.
+     * </p>
+     *
+     * @param name the filename
+     * @param location the name of the file in the repository of the members
+     * @return a {@code ByteBuffer} in <b>write-mode</b>, or {@code null} if the file does not exist
+     * @see fr.uge.chatos.http.HTTPChunkedFile
+     */
+    public static ByteBuffer ofPublishedHTTPResponseHeader(String name, String location) {
+        var path = Path.of(name);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try {
+            var etag = HTTPValidators.etag(path, HTTPCompression.Encoding.IDENTITY);
+            var content = ASCII.encode("HTTP/1.1 200 OK\r\n"
+                    + "Transfer-Encoding: chunked\r\n"
+                    + "Content-Type: " + getFileExtension(name) + "\r\n"
+                    + "Content-Location: " + location + "\r\n"
+                    + validators(path, etag)
+                    + "\r\n");
+            var result = ByteBuffer.allocate(content.remaining());
+            return result.put(content);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Chooses the encoding of the response : the best one accepted by the client,
+     * unless the file is not worth compressing.
+     */
+    private static HTTPCompression.Encoding representation(Path path, HttpRequest request) throws IOException {
+        var encoding = HTTPCompression.negotiate(request.getAcceptEncoding());
+        if (encoding != HTTPCompression.Encoding.IDENTITY && !HTTPCompression.isCompressible(path)) {
+            return HTTPCompression.Encoding.IDENTITY;
+        }
+        return encoding;
+    }
+
+    /**
+     * Returns the {@code ETag} and {@code Last-Modified} fields of a response.
+     */
+    private static String validators(Path path, String etag) throws IOException {
+        return "ETag: " + etag + "\r\n"
+                + "Last-Modified: " + HTTPValidators.lastModified(path) + "\r\n";
+    }
+
+    /**
+     * Create a buffer containing the manifest of a repository.
+     *
+     * @param repository the served directory
+     * @param request the request of the client
+     * @return a {@code ByteBuffer} in <b>write-mode</b>
+     * @see fr.uge.chatos.sync.Manifest
+     */
+    public static ByteBuffer ofManifestHTTPResponse(String repository, HttpRequest request) {
+        try {
+            var content = Manifest.of(Path.of(repository)).format().getBytes(charset);
+            var encoding = HTTPCompression.negotiate(request.getAcceptEncoding());
+            var header = new StringBuilder("HTTP/1.1 200 OK\r\n")
+                    .append("Content-Type: manifest\r\n");
+            if (encoding != HTTPCompression.Encoding.IDENTITY) {
+                content = HTTPCompression.compress(content, encoding);
+                header.append("Content-Encoding: ").append(encoding.token()).append("\r\n");
+            }
+            header.append("Content-Length: ").append(content.length).append("\r\n\r\n");
+            var encoded = ASCII.encode(header.toString());
+            var result = ByteBuffer.allocate(encoded.remaining() + content.length);
+            return result.put(encoded).put(content);
+        } catch (IOException e) {
+            return ofNoShutdownErrorBuffer("an I/O error occurs listing the repository");
+        }
+    }
+
+    /**
+     * Checks if the {@code Range} field of a request can be honored : the
+     * {@code If-Range} field, if present, must be the strong ETag of the current
+     * version of the file. A date is never accepted, since two versions written
+     * within the same second share the same {@code Last-Modified} value.
+     */
+    private static boolean isRangeApplicable(Path path, HttpRequest request) throws IOException {
+        var ifRange = request.getIfRange();
+        return ifRange == null || ifRange.trim().equals(HTTPValidators.etag(path, HTTPCompression.Encoding.IDENTITY));
+    }
+
+    /**
+     * Create a buffer containing a {@code 206 Partial Content} HTTP response with
+     * some blocks of a file, in the format expected by {@link fr.uge.chatos.sync.DeltaPlan}.
+     *
+     * @param path the file to send
+     * @param ranges the requested ranges
+     * @param validators the {@code ETag} and {@code Last-Modified} fields
+     * @return a {@code ByteBuffer} in <b>write-mode</b>
+     * @throws IOException If some other I/O error occurs.
+     */
+    private static ByteBuffer ofBlocksHTTPResponse(Path path, List<ByteRange> ranges, String validators) throws IOException {
+        var length = 0L;
+        for (var r : ranges) {
+            length += Long.BYTES + Integer.BYTES + r.length();
+        }
+        var header = ASCII.encode("HTTP/1.1 206 Partial Content\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + "Content-Type: " + DeltaPlan.BLOCKS_CONTENT_TYPE + "\r\n"
+                + validators
+                + "\r\n");
+        var result = ByteBuffer.allocate(header.remaining() + Math.toIntExact(length));
+        result.put(header);
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (var r : ranges) {
+                result.putLong(r.first()).putInt((int) r.length());
+                var chunk = result.slice().limit((int) r.length());
+                while (chunk.hasRemaining()) {
+                    if (channel.read(chunk, r.first() + chunk.position()) == -1) {
+                        throw new IOException("The file was truncated during the read");
+                    }
+                }
+                result.position(result.position() + (int) r.length());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Create a buffer containing a {@code 204 No Content} HTTP response.
+     *
+     * @return a {@code ByteBuffer} in <b>write-mode</b>
+     */
+    public static ByteBuffer ofNoContentHTTPResponse() {
+        var content = ASCII.encode("HTTP/1.1 204 No Content\r\n"
+                + "Content-Length: 0\r\n"
+                + "\r\n");
+        var result = ByteBuffer.allocate(content.remaining());
+        return result.put(content);
+    }
+
+    /**
+     * Create a buffer containing a {@code 503 Service Unavailable} HTTP response, sent
+     * when the file workers of the client are saturated.
+     *
+     * @return a {@code ByteBuffer} in <b>write-mode</b>
+     */
+    public static ByteBuffer ofUnavailableHTTPResponse() {
+        var content = ASCII.encode("HTTP/1.1 503 Service Unavailable\r\n"
+                + "Content-Length: 0\r\n"
+                + "Retry-After: 1\r\n"
+                + "\r\n");
+        var result = ByteBuffer.allocate(content.remaining());
+        return result.put(content);
+    }
+
+    /**
+     * Create a buffer containing a {@code 304 Not Modified} HTTP response.
+     *
+     * @param validators the {@code ETag} and {@code Last-Modified} fields
+     * @return a {@code ByteBuffer} in <b>write-mode</b>
+     */
+    private static ByteBuffer ofNotModifiedHTTPResponse(String validators) {
+        var content = ASCII.encode("HTTP/1.1 304 Not Modified\r\n"
+                + validators
+                + "Content-Length: 0\r\n"
+                + "\r\n");
+        var result = ByteBuffer.allocate(content.remaining());
+        return result.put(content);
+    }
+
     private static String getFileExtension(String path) {
         var lastIndex = path.lastIndexOf(".");
         if (lastIndex == -1) {
@@ -0,0 +1,30 @@
+package fr.uge.chatos.packet;
+
+import fr.uge.chatos.visitor.PacketVisitor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Represent a frame ending a stream of the multiplexed private socket.
+ */
+public class StreamClose implements Packet {
+    private final long id;
+
+    public StreamClose(long id) {
+        this.id = id;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public ByteBuffer asByteBuffer() {
+        return Packets.ofStreamClose(id).flip();
+    }
+
+    @Override
+    public void accept(PacketVisitor visitor) {
+        visitor.visit(this);
+    }
+}
@@ -0,0 +1,51 @@
+package fr.uge.chatos.packet;
+
+import fr.uge.chatos.visitor.PacketVisitor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Represent a frame containing data of a stream of the multiplexed private socket.
+ * <p>
+ *     The data itself is not kept : the reader writes it straight into the receive
+ *     buffer of the stream, this packet only tells which stream received it.
+ * </p>
+ */
+public class StreamData implements Packet {
+    /**
+     * The size of the header of a frame : opcode, ID and length.
+     */
+    public static final int HEADER_SIZE = Byte.BYTES + Long.BYTES + Integer.BYTES;
+
+    /**
+     * The maximum number of bytes of a frame, so that the streams sharing a socket
+     * take turns quickly.
+     */
+    public static final int MAX_LENGTH = 16_384;
+
+    private final long id;
+    private final int length;
+
+    public StreamData(long id, int length) {
+        this.id = id;
+        this.length = length;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public ByteBuffer asByteBuffer() {
+        return null;
+    }
+
+    @Override
+    public void accept(PacketVisitor visitor) {
+        visitor.visit(this);
+    }
+}
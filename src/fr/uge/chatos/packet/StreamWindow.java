@@ -0,0 +1,37 @@
+package fr.uge.chatos.packet;
+
+import fr.uge.chatos.visitor.PacketVisitor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Represent a frame giving credit to the sender of a stream : the receiver accepts
+ * {@code increment} more bytes.
+ */
+public class StreamWindow implements Packet {
+    private final long id;
+    private final int increment;
+
+    public StreamWindow(long id, int increment) {
+        this.id = id;
+        this.increment = increment;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public int getIncrement() {
+        return increment;
+    }
+
+    @Override
+    public ByteBuffer asByteBuffer() {
+        return Packets.ofStreamWindow(id, increment).flip();
+    }
+
+    @Override
+    public void accept(PacketVisitor visitor) {
+        visitor.visit(this);
+    }
+}
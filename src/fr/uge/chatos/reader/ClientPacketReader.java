@@ -1,17 +1,21 @@
 package fr.uge.chatos.reader;
 
-import fr.uge.chatos.packet.ConnectionConfirmation;
 import fr.uge.chatos.packet.Packet;
+import fr.uge.chatos.packet.StreamClose;
 
 import java.nio.ByteBuffer;
 
 import static fr.uge.chatos.utils.OpCode.*;
 
 public class ClientPacketReader implements Reader<Packet> {
-    private enum State {DONE, WAITING_PACKET, ERROR}
+    private enum State {DONE, WAITING_PACKET, WAITING_CONTENT, ERROR}
+    private static final byte HTTP_REQUEST = 'G';
+    private static final byte HTTP_RESPONSE = 'H';
     private final ByteReader byteReader = new ByteReader();
+    private final ConnectionConfirmationReader connectionConfirmationReader = new ConnectionConfirmationReader();
     private final ConnectionRequestReader connectionRequestReader = new ConnectionRequestReader();
     private final PublicMessageReader publicMessageReader = new PublicMessageReader();
+    private final LatencyProbeReader latencyProbeReader = new LatencyProbeReader(true);
     private final PrivateMessageReader privateMessageReader = new PrivateMessageReader();
     private final PCRequestReader PCRequestReader = new PCRequestReader();
     private final PCSocketsReader PCSocketsReader = new PCSocketsReader();
@@ -20,38 +24,71 @@ public class ClientPacketReader implements Reader<Packet> {
     private final HttpDataReader httpDataReader = new HttpDataReader();
     private final ErrorShutdownReader errorShutdownReader =  new ErrorShutdownReader();
     private final ErrorNoShutdownReader errorNoShutdownReader = new ErrorNoShutdownReader();
+    private final StreamDataReader streamDataReader = new StreamDataReader();
+    private final StreamWindowReader streamWindowReader = new StreamWindowReader();
+    private final LongReader longReader = new LongReader();
     private State currentState = State.WAITING_PACKET;
+    private byte opCode;
     private Packet packet;
 
+    /**
+     * Sets the destination of the content of the chunked HTTP responses.
+     *
+     * @param sinkFactory the factory called once the header of a chunked response is received
+     */
+    public void setSinkFactory(HttpDataReader.SinkFactory sinkFactory) {
+        httpDataReader.setSinkFactory(sinkFactory);
+    }
+
+    /**
+     * Sets the receive buffers of the streams of the multiplexed private socket.
+     *
+     * @param streamBuffers the receive buffers
+     */
+    public void setStreamBuffers(StreamDataReader.StreamBuffers streamBuffers) {
+        streamDataReader.setStreamBuffers(streamBuffers);
+    }
+
     @Override
     public ProcessStatus process(ByteBuffer buffer) {
         if (currentState == State.DONE || currentState == State.ERROR) {
             throw new IllegalStateException();
         }
 
-        buffer.flip();
-        var internalBuffer = ByteBuffer.allocate(buffer.remaining());
-        internalBuffer.put(buffer);
-        internalBuffer.flip();
-        if (!internalBuffer.hasRemaining()) {
+        if (currentState == State.WAITING_PACKET) {
+            buffer.flip();
+            if (!buffer.hasRemaining()) {
+                buffer.compact();
+                return ProcessStatus.REFILL;
+            }
+            opCode = buffer.get(buffer.position());
+            if (opCode != HTTP_REQUEST && opCode != HTTP_RESPONSE) {
+                buffer.get(); // les requêtes HTTP n'ont pas d'opcode, leur première lettre en fait partie
+            }
             buffer.compact();
-            return ProcessStatus.REFILL;
+            currentState = State.WAITING_CONTENT;
         }
-        var opCode = internalBuffer.get();
-        internalBuffer.compact();
 
         var status = ProcessStatus.ERROR;
         switch (opCode) {
             case CONNECTION_ACCEPT -> {
-                status = byteReader.process(internalBuffer); // on utilise directement un ByteReader (+ simple)
+                status = connectionConfirmationReader.process(buffer);
                 if (status == ProcessStatus.DONE) {
-                    packet = new ConnectionConfirmation(byteReader.get());
-                    connectionRequestReader.reset();
+                    packet = connectionConfirmationReader.get();
+                    connectionConfirmationReader.reset();
+                    currentState = State.DONE;
+                }
+            }
+            case LATENCY_PROBE_RECEIVER -> {
+                status = latencyProbeReader.process(buffer);
+                if (status == ProcessStatus.DONE) {
+                    packet = latencyProbeReader.get();
+                    latencyProbeReader.reset();
                     currentState = State.DONE;
                 }
             }
             case GENERAL_RECEIVER -> {
-                status = publicMessageReader.process(internalBuffer);
+                status = publicMessageReader.process(buffer);
                 if (status == ProcessStatus.DONE) {
                     packet = publicMessageReader.get();
                     publicMessageReader.reset();
@@ -59,7 +96,7 @@ public class ClientPacketReader implements Reader<Packet> {
                 }
             }
             case PRIVATE_RECEIVER -> {
-                status = privateMessageReader.process(internalBuffer);
+                status = privateMessageReader.process(buffer);
                 if (status == ProcessStatus.DONE) {
                     packet = privateMessageReader.get();
                     privateMessageReader.reset();
@@ -67,53 +104,73 @@ public class ClientPacketReader implements Reader<Packet> {
                 }
             }
             case PRIVATE_CONNECTION_REQUEST_RECEIVER -> {
-                status = PCRequestReader.process(internalBuffer);
+                status = PCRequestReader.process(buffer);
                 if (status == ProcessStatus.DONE) {
                     packet = PCRequestReader.get();
                     PCRequestReader.reset();
                     currentState = State.DONE;
                 }
             }
-            case PRIVATE_CONNECTION_SOCKETS -> {
-                status = PCSocketsReader.process(internalBuffer);
+            case PRIVATE_CONNECTION_SOCKETS, PRIVATE_CONNECTION_STREAM -> {
+                status = PCSocketsReader.process(buffer);
                 if (status == ProcessStatus.DONE) {
-                    packet = PCSocketsReader.get();
+                    var sockets = PCSocketsReader.get();
+                    sockets.multiplexed = opCode == PRIVATE_CONNECTION_STREAM;
+                    packet = sockets;
                     PCSocketsReader.reset();
                     currentState = State.DONE;
                 }
             }
             case PRIVATE_CONNECTION_CONFIRMATION -> {
-                status = pcar.process(internalBuffer);
+                status = pcar.process(buffer);
                 if (status == ProcessStatus.DONE) {
                     packet = pcar.get();
                     pcar.reset();
                     currentState = State.DONE;
                 }
             } // TODO : ajouter les cas des paquets d'erreur
-            case 71 -> { // GET request
-                internalBuffer.flip();
-                var b = ByteBuffer.allocate(internalBuffer.remaining() + Byte.BYTES);
-                b.put(opCode).put(internalBuffer);
-                status = httpRequestReader.process(b);
+            case HTTP_REQUEST -> { // GET request
+                status = httpRequestReader.process(buffer);
                 if (status == ProcessStatus.DONE) {
                     packet = httpRequestReader.get();
                     httpRequestReader.reset();
                     currentState = State.DONE;
                 }
             }
-            case 72 -> { // HTTP response
-                internalBuffer.flip();
-                var b = ByteBuffer.allocate(internalBuffer.remaining() + Byte.BYTES);
-                b.put(opCode).put(internalBuffer);
-                status = httpDataReader.process(b);
+            case HTTP_RESPONSE -> { // HTTP response
+                status = httpDataReader.process(buffer);
                 if (status == ProcessStatus.DONE) {
                     packet = httpDataReader.get();
                     httpDataReader.reset();
                     currentState = State.DONE;
                 }
             }
+            case STREAM_DATA -> {
+                status = streamDataReader.process(buffer);
+                if (status == ProcessStatus.DONE) {
+                    packet = streamDataReader.get();
+                    streamDataReader.reset();
+                    currentState = State.DONE;
+                }
+            }
+            case STREAM_WINDOW -> {
+                status = streamWindowReader.process(buffer);
+                if (status == ProcessStatus.DONE) {
+                    packet = streamWindowReader.get();
+                    streamWindowReader.reset();
+                    currentState = State.DONE;
+                }
+            }
+            case STREAM_CLOSE -> {
+                status = longReader.process(buffer);
+                if (status == ProcessStatus.DONE) {
+                    packet = new StreamClose(longReader.get());
+                    longReader.reset();
+                    currentState = State.DONE;
+                }
+            }
             case ERROR_NO_SHUTDOWN -> {
-                status = errorNoShutdownReader.process(internalBuffer);
+                status = errorNoShutdownReader.process(buffer);
                 if (status == ProcessStatus.DONE) {
                     packet = errorNoShutdownReader.get();
                     errorNoShutdownReader.reset();
@@ -121,7 +178,7 @@ public class ClientPacketReader implements Reader<Packet> {
                 }
             }
             case ERROR_SHUTDOWN -> {
-                status = errorShutdownReader.process(internalBuffer);
+                status = errorShutdownReader.process(buffer);
                 if (status == ProcessStatus.DONE) {
                     packet = errorShutdownReader.get();
                     errorShutdownReader.reset();
@@ -129,7 +186,9 @@ public class ClientPacketReader implements Reader<Packet> {
                 }
             }
         }
-        buffer.compact();
+        if (status == ProcessStatus.ERROR) {
+            currentState = State.ERROR;
+        }
         return status;
     }
 
@@ -147,9 +206,19 @@ public class ClientPacketReader implements Reader<Packet> {
         packet = null; // à revoir
         connectionRequestReader.reset();
         publicMessageReader.reset();
+        latencyProbeReader.reset();
         privateMessageReader.reset();
         PCRequestReader.reset();
         pcar.reset();
         PCSocketsReader.reset();
+        byteReader.reset();
+        connectionConfirmationReader.reset();
+        httpRequestReader.reset();
+        httpDataReader.reset();
+        errorShutdownReader.reset();
+        errorNoShutdownReader.reset();
+        streamDataReader.reset();
+        streamWindowReader.reset();
+        longReader.reset();
     }
 }
@@ -0,0 +1,75 @@
+package fr.uge.chatos.reader;
+
+import fr.uge.chatos.packet.ConnectionConfirmation;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pour le client
+ */
+public class ConnectionConfirmationReader implements Reader<ConnectionConfirmation> {
+    private enum State {DONE, WAITING_CONFIRM, WAITING_TOKEN, ERROR}
+    private ConnectionConfirmation confirmation;
+    private State currentState = State.WAITING_CONFIRM;
+    private final ByteReader byteReader = new ByteReader();
+    private final LongReader longReader = new LongReader();
+    private byte confirm;
+
+    @Override
+    public ProcessStatus process(ByteBuffer buffer) {
+        if (currentState == State.DONE || currentState == State.ERROR) {
+            throw new IllegalStateException();
+        }
+
+        if (currentState == State.WAITING_CONFIRM) {
+            switch (byteReader.process(buffer)) {
+                case DONE:
+                    confirm = byteReader.get();
+                    byteReader.reset();
+                    currentState = State.WAITING_TOKEN;
+                    break;
+                case REFILL:
+                    return ProcessStatus.REFILL;
+                case ERROR:
+                    currentState = State.ERROR;
+                    return ProcessStatus.ERROR;
+            }
+        }
+
+        if (currentState == State.WAITING_TOKEN) {
+            switch (longReader.process(buffer)) {
+                case DONE:
+                    confirmation = new ConnectionConfirmation(confirm, longReader.get());
+                    longReader.reset();
+                    currentState = State.DONE;
+                    break;
+                case REFILL:
+                    return ProcessStatus.REFILL;
+                case ERROR:
+                    currentState = State.ERROR;
+                    return ProcessStatus.ERROR;
+            }
+        }
+
+        if (currentState != State.DONE) {
+            throw new IllegalStateException();
+        }
+        return ProcessStatus.DONE;
+    }
+
+    @Override
+    public ConnectionConfirmation get() {
+        if (currentState != State.DONE) {
+            throw new IllegalStateException();
+        }
+        return confirmation;
+    }
+
+    @Override
+    public void reset() {
+        currentState = State.WAITING_CONFIRM;
+        byteReader.reset();
+        longReader.reset();
+        confirmation = null;
+    }
+}
@@ -0,0 +1,83 @@
+package fr.uge.chatos.reader;
+
+import fr.uge.chatos.packet.ConnectionResume;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pour le serveur
+ */
+public class ConnectionResumeReader implements Reader<ConnectionResume> {
+    private enum State {DONE, WAITING_LOGIN, WAITING_TOKEN, WAITING_RECEIVED, ERROR}
+    private ConnectionResume resume = new ConnectionResume();
+    private State currentState = State.WAITING_LOGIN;
+    private final StringReader stringReader = new StringReader();
+    private final LongReader longReader = new LongReader();
+
+    @Override
+    public ProcessStatus process(ByteBuffer buffer) {
+        if (currentState == State.DONE || currentState == State.ERROR) {
+            throw new IllegalStateException();
+        }
+
+        if (currentState == State.WAITING_LOGIN) {
+            switch (stringReader.process(buffer)) {
+                case DONE:
+                    resume.login = stringReader.get();
+                    stringReader.reset();
+                    currentState = State.WAITING_TOKEN;
+                    break;
+                case REFILL:
+                    return ProcessStatus.REFILL;
+                case ERROR:
+                    currentState = State.ERROR;
+                    return ProcessStatus.ERROR;
+            }
+        }
+
+        if (currentState == State.WAITING_TOKEN) {
+            switch (longReader.process(buffer)) {
+                case DONE:
+                    resume.token = longReader.get();
+                    longReader.reset();
+                    currentState = State.WAITING_RECEIVED;
+                    break;
+                case REFILL:
+                    return ProcessStatus.REFILL;
+                case ERROR:
+                    currentState = State.ERROR;
+                    return ProcessStatus.ERROR;
+            }
+        }
+
+        switch (longReader.process(buffer)) {
+            case DONE:
+                resume.received = longReader.get();
+                longReader.reset();
+                currentState = State.DONE;
+                break;
+            case REFILL:
+                return ProcessStatus.REFILL;
+            case ERROR:
+                currentState = State.ERROR;
+                return ProcessStatus.ERROR;
+        }
+        return ProcessStatus.DONE;
+    }
+
+    @Override
+    public ConnectionResume get() {
+        if (currentState != State.DONE) {
+            throw new IllegalStateException();
+        }
+        return resume;
+    }
+
+    @Override
+    public void reset() {
+        currentState = State.WAITING_LOGIN;
+        stringReader.reset();
+        longReader.reset();
+        resume = new ConnectionResume();
+    }
+}
@@ -0,0 +1,89 @@
+package fr.uge.chatos.reader;
+
+import fr.uge.chatos.packet.GroupRequest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pour serveur
+ */
+public class GroupRequestReader implements Reader<GroupRequest> {
+    private enum State {DONE, WAITING_NAME, WAITING_COUNT, WAITING_MEMBERS, ERROR}
+    private final StringReader stringReader = new StringReader();
+    private final IntReader intReader = new IntReader();
+    private State currentState = State.WAITING_NAME;
+    private GroupRequest request = new GroupRequest();
+    private int count;
+
+    @Override
+    public ProcessStatus process(ByteBuffer buffer) {
+        if (currentState == State.DONE || currentState == State.ERROR) {
+            throw new IllegalStateException();
+        }
+
+        if (currentState == State.WAITING_NAME) {
+            switch (stringReader.process(buffer)) {
+                case DONE:
+                    request.name = stringReader.get();
+                    stringReader.reset();
+                    currentState = State.WAITING_COUNT;
+                    break;
+                case REFILL:
+                    return ProcessStatus.REFILL;
+                default:
+                    currentState = State.ERROR;
+                    return ProcessStatus.ERROR;
+            }
+        }
+
+        if (currentState == State.WAITING_COUNT) {
+            switch (intReader.process(buffer)) {
+                case DONE:
+                    count = intReader.get();
+                    if (count < 1 || count > GroupRequest.MAX_MEMBERS) {
+                        currentState = State.ERROR;
+                        return ProcessStatus.ERROR;
+                    }
+                    currentState = State.WAITING_MEMBERS;
+                    break;
+                case REFILL:
+                    return ProcessStatus.REFILL;
+                default:
+                    currentState = State.ERROR;
+                    return ProcessStatus.ERROR;
+            }
+        }
+
+        while (request.members.size() < count) {
+            switch (stringReader.process(buffer)) {
+                case DONE:
+                    request.members.add(stringReader.get());
+                    stringReader.reset();
+                    break;
+                case REFILL:
+                    return ProcessStatus.REFILL;
+                default:
+                    currentState = State.ERROR;
+                    return ProcessStatus.ERROR;
+            }
+        }
+        currentState = State.DONE;
+        return ProcessStatus.DONE;
+    }
+
+    @Override
+    public GroupRequest get() {
+        if (currentState != State.DONE) {
+            throw new IllegalStateException();
+        }
+        return request;
+    }
+
+    @Override
+    public void reset() {
+        currentState = State.WAITING_NAME;
+        request = new GroupRequest();
+        stringReader.reset();
+        intReader.reset();
+    }
+}
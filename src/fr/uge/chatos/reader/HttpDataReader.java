@@ -1,19 +1,59 @@
 package fr.uge.chatos.reader;
 
+import fr.uge.chatos.http.HTTPCompression;
 import fr.uge.chatos.http.HTTPException;
+import fr.uge.chatos.http.HTTPHeader;
 import fr.uge.chatos.packet.HttpData;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.Objects;
 
+/**
+ * This class reads a HTTP response.
+ * <p>
+ *     The content of a response is written, decoded, in the sink given by the
+ *     {@link SinkFactory} as it arrives. Without sink, it is kept in memory, up to
+ *     {@link HttpData#MAX_CONTENT_LENGTH} bytes : beyond, the response is refused.
+ * </p>
+ */
 public class HttpDataReader implements Reader<HttpData> {
-    private enum State {DONE, WAITING_FIRST_LINE, WAITING_HEADERS, WAITING_BODY, ERROR}
+
+    /**
+     * Gives the destination of the content of a response.
+     */
+    @FunctionalInterface
+    public interface SinkFactory {
+        /**
+         * Opens the destination of the content of a response, once its header is received.
+         *
+         * @param header the header of the response
+         * @return the destination of the content, closed by the reader at the end of the
+         *         response, or {@code null} to keep the content in memory
+         * @throws IOException If some other I/O error occurs.
+         */
+        WritableByteChannel open(HTTPHeader header) throws IOException;
+    }
+
+    private enum State {DONE, WAITING_FIRST_LINE, WAITING_HEADERS, WAITING_BODY, WAITING_CONTENT,
+        WAITING_STREAMED_CONTENT, WAITING_CHUNK_SIZE, WAITING_CHUNK_DATA, WAITING_CHUNK_END, WAITING_TRAILER, ERROR}
     private final HttpLineCRLFReader crlfReader = new HttpLineCRLFReader();
+    private SinkFactory sinkFactory = header -> null;
+    private WritableByteChannel sink;
+    private ByteArrayOutputStream memory;
+    private boolean streamed;
+    private long dataRemaining;
     private State currentState = State.WAITING_FIRST_LINE;
     private String firstLine;
     private HashMap<String, String> fields = new HashMap<>();
     private String body = "";
     private byte[] contentBody;
+    private ByteBuffer content;
 
     @Override
     public ProcessStatus process(ByteBuffer buffer) {
@@ -37,21 +77,67 @@ public class HttpDataReader implements Reader<HttpData> {
         }
 
         if (currentState == State.WAITING_HEADERS) {
-            while (currentState != State.WAITING_BODY) {
+            while (currentState == State.WAITING_HEADERS) {
                 var status = crlfReader.process(buffer);
                 if (status == ProcessStatus.DONE) {
                     var line = crlfReader.get();
                     if (line.length() <= 2) {
-                        currentState = State.WAITING_BODY;
+                        currentState = startBody();
                     } else {
                         var content = line.split(":", 2);
-                        fields.put(content[0], content[1]);
+                        fields.put(content[0].toLowerCase(), content[1].trim());
                     }
                     crlfReader.reset();
                 } else {
                     return status;
                 }
             }
+            if (currentState == State.ERROR) {
+                return ProcessStatus.ERROR;
+            }
+        }
+
+        if (currentState == State.WAITING_CONTENT) {
+            buffer.flip();
+            try {
+                if (buffer.remaining() <= content.remaining()) {
+                    content.put(buffer);
+                } else {
+                    var oldLimit = buffer.limit();
+                    buffer.limit(buffer.position() + content.remaining());
+                    content.put(buffer);
+                    buffer.limit(oldLimit);
+                }
+            } finally {
+                buffer.compact();
+            }
+            if (content.hasRemaining()) {
+                return ProcessStatus.REFILL;
+            }
+            contentBody = content.array();
+            if (!fields.containsKey("content-encoding")) {
+                body = new String(contentBody, 0, trimTrailingCRLF(contentBody), StandardCharsets.US_ASCII);
+            }
+            currentState = State.DONE;
+        }
+
+        if (currentState == State.WAITING_STREAMED_CONTENT) {
+            try {
+                if (!transferData(buffer)) {
+                    return ProcessStatus.REFILL;
+                }
+                endContent();
+            } catch (IOException e) {
+                return fail(ProcessStatus.ERROR);
+            }
+        }
+
+        if (currentState == State.WAITING_CHUNK_SIZE || currentState == State.WAITING_CHUNK_DATA
+                || currentState == State.WAITING_CHUNK_END || currentState == State.WAITING_TRAILER) {
+            var status = processChunks(buffer);
+            if (status != ProcessStatus.DONE) {
+                return status;
+            }
         }
 
         if (currentState == State.WAITING_BODY) {
@@ -81,13 +167,183 @@ public class HttpDataReader implements Reader<HttpData> {
         return ProcessStatus.DONE;
     }
 
+    /**
+     * Sets the destination of the content of the responses.
+     *
+     * @param sinkFactory the factory called once the header of a response with a content is received
+     */
+    public void setSinkFactory(SinkFactory sinkFactory) {
+        this.sinkFactory = Objects.requireNonNull(sinkFactory);
+    }
+
+    /**
+     * Reads the chunks of the body, writing their data in the sink as soon as it is received.
+     */
+    private ProcessStatus processChunks(ByteBuffer buffer) {
+        try {
+            while (currentState != State.DONE) {
+                if (currentState == State.WAITING_CHUNK_DATA) {
+                    if (!transferData(buffer)) {
+                        return ProcessStatus.REFILL;
+                    }
+                    currentState = State.WAITING_CHUNK_END;
+                    continue;
+                }
+                var status = crlfReader.process(buffer);
+                if (status != ProcessStatus.DONE) {
+                    return fail(status);
+                }
+                var line = crlfReader.get().trim();
+                crlfReader.reset();
+                switch (currentState) {
+                    case WAITING_CHUNK_SIZE -> {
+                        dataRemaining = Long.parseLong(line.split(";", 2)[0].trim(), 16); // extensions ignorées
+                        if (dataRemaining < 0) {
+                            return fail(ProcessStatus.ERROR);
+                        }
+                        currentState = dataRemaining == 0 ? State.WAITING_TRAILER : State.WAITING_CHUNK_DATA;
+                    }
+                    case WAITING_CHUNK_END -> {
+                        if (!line.isEmpty()) {
+                            return fail(ProcessStatus.ERROR);
+                        }
+                        currentState = State.WAITING_CHUNK_SIZE;
+                    }
+                    case WAITING_TRAILER -> {
+                        if (line.isEmpty()) {
+                            endContent();
+                        } // les champs de fin de réponse sont ignorés
+                    }
+                    default -> throw new AssertionError();
+                }
+            }
+            return ProcessStatus.DONE;
+        } catch (IOException | NumberFormatException e) {
+            return fail(ProcessStatus.ERROR);
+        }
+    }
+
+    /**
+     * Writes the available data of the current chunk, or of the content, in the sink.
+     *
+     * @return {@code true} if the whole chunk has been transferred
+     */
+    private boolean transferData(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        try {
+            var length = (int) Math.min(buffer.remaining(), dataRemaining);
+            if (memory != null && memory.size() > HttpData.MAX_CONTENT_LENGTH - length) {
+                throw new IOException("Content too large");
+            }
+            var data = buffer.slice().limit(length);
+            while (data.hasRemaining()) {
+                sink.write(data);
+            }
+            buffer.position(buffer.position() + length);
+            dataRemaining -= length;
+        } finally {
+            buffer.compact();
+        }
+        return dataRemaining == 0;
+    }
+
+    private void endContent() throws IOException {
+        sink.close();
+        sink = null;
+        if (memory != null) {
+            contentBody = memory.toByteArray();
+            body = new String(contentBody, StandardCharsets.UTF_8);
+            memory = null;
+        } else {
+            contentBody = new byte[0]; // déjà écrit dans la destination
+        }
+        currentState = State.DONE;
+    }
+
+    /**
+     * Closes the sink if the response can not be read entirely.
+     */
+    private ProcessStatus fail(ProcessStatus status) {
+        if (status == ProcessStatus.ERROR) {
+            currentState = State.ERROR;
+            closeSink();
+        }
+        return status;
+    }
+
+    private void closeSink() {
+        if (sink != null) {
+            try {
+                sink.close();
+            } catch (IOException ignored) { }
+            sink = null;
+        }
+    }
+
+    /**
+     * Chooses how the body will be read once the headers are all received.
+     * <p>
+     * If the {@code Transfer-Encoding} field is {@code chunked}, the body is made of chunks.
+     * If the {@code Content-Length} field is present, exactly that many bytes are read,
+     * which is required for binary (e.g. compressed) bodies. In both cases the content is
+     * written, decoded, in the sink given by the {@link SinkFactory} as it arrives.
+     * Otherwise the body ends at the first empty line.
+     * </p>
+     *
+     * @return the next state of this reader
+     */
+    private State startBody() {
+        try {
+            var header = HTTPHeader.create(firstLine, fields);
+            var length = fields.get("content-length");
+            if (!header.isChunked() && length == null) {
+                return State.WAITING_BODY;
+            }
+            var size = header.isChunked() ? -1 : Long.parseLong(length.trim());
+            if (!header.isChunked() && size < 0) {
+                return State.ERROR;
+            }
+            sink = sinkFactory.open(header);
+            streamed = sink != null;
+            if (streamed) {
+                sink = HTTPCompression.decode(sink, header.getContentEncoding());
+            } else if (header.isChunked()) {
+                memory = new ByteArrayOutputStream();
+                sink = Channels.newChannel(memory);
+            } else if (size > HttpData.MAX_CONTENT_LENGTH) {
+                return State.ERROR;
+            } else {
+                content = ByteBuffer.allocate((int) size);
+                return State.WAITING_CONTENT;
+            }
+            if (header.isChunked()) {
+                return State.WAITING_CHUNK_SIZE;
+            }
+            dataRemaining = size;
+            return State.WAITING_STREAMED_CONTENT;
+        } catch (IOException | NumberFormatException e) { // y compris HTTPException
+            return State.ERROR;
+        }
+    }
+
+    /**
+     * Returns the length of the {@code bytes} without the trailing CRLF sequences.
+     */
+    private static int trimTrailingCRLF(byte[] bytes) {
+        var length = bytes.length;
+        while (length > 0 && (bytes[length - 1] == '\n' || bytes[length - 1] == '\r')) {
+            length--;
+        }
+        return length;
+    }
+
     @Override
     public HttpData get() {
         if (currentState != State.DONE) {
             throw new IllegalStateException();
         }
         try {
-            return HttpData.create(firstLine, fields, body, contentBody);
+            return HttpData.create(firstLine, fields, body, contentBody, streamed);
         } catch (HTTPException e) {
             return null;
         }
@@ -100,5 +356,10 @@ public class HttpDataReader implements Reader<HttpData> {
         firstLine = "";
         fields = new HashMap<>();
         body = "";
+        content = null;
+        contentBody = null;
+        closeSink();
+        memory = null;
+        streamed = false;
     }
 }
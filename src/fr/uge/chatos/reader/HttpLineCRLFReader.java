@@ -16,7 +16,8 @@ public class HttpLineCRLFReader implements Reader<String> {
         }
 
         buffer.flip();
-        boolean carriageCheck = false;
+        // le CR peut avoir été lu lors de l'appel précédent
+        boolean carriageCheck = line.length() > 0 && line.charAt(line.length() - 1) == '\r';
         while (buffer.hasRemaining()) {
             char c = (char) buffer.get();
             line.append(c);
@@ -10,6 +10,7 @@ public class HttpRequestReader implements Reader<HttpRequest> {
     private final HttpLineCRLFReader crlfReader = new HttpLineCRLFReader();
     private State currentState = State.WAITING_FIRST_LINE;
     private String firstLine;
+    private HashMap<String, String> fields = new HashMap<>();
 
     @Override
     public ProcessStatus process(ByteBuffer buffer) {
@@ -39,7 +40,12 @@ public class HttpRequestReader implements Reader<HttpRequest> {
                     var line = crlfReader.get();
                     if (line.length() <= 2) {
                         currentState = State.DONE;
-                    } // do nothing
+                    } else {
+                        var content = line.split(":", 2);
+                        if (content.length == 2) {
+                            fields.put(content[0], content[1]);
+                        }
+                    }
                     crlfReader.reset();
                 } else {
                     return status;
@@ -56,12 +62,13 @@ public class HttpRequestReader implements Reader<HttpRequest> {
         if (currentState != State.DONE) {
             throw new IllegalStateException();
         }
-        return HttpRequest.create(firstLine);
+        return HttpRequest.create(firstLine, fields);
     }
 
     @Override
     public void reset() {
         currentState = State.WAITING_FIRST_LINE;
         firstLine = "";
+        fields = new HashMap<>();
     }
 }
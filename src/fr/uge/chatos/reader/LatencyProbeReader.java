@@ -0,0 +1,96 @@
+package fr.uge.chatos.reader;
+
+import fr.uge.chatos.packet.LatencyProbe;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pour le serveur et le client : le serveur lit le destinataire, le numéro et l'heure d'envoi,
+ * le client lit l'expéditeur, puis les heures d'entrée et de sortie du serveur en plus.
+ */
+public class LatencyProbeReader implements Reader<LatencyProbe> {
+    private enum State {DONE, WAITING_LOGIN, WAITING_TIMES, ERROR}
+    private final boolean stamped;
+    private LatencyProbe probe = new LatencyProbe();
+    private State currentState = State.WAITING_LOGIN;
+    private final StringReader stringReader = new StringReader();
+    private final LongReader longReader = new LongReader();
+    private final long[] times;
+    private int index;
+
+    /**
+     * Creates a reader.
+     *
+     * @param stamped {@code true} to read the probes delivered by the server, {@code false}
+     * for those sent by the clients
+     */
+    public LatencyProbeReader(boolean stamped) {
+        this.stamped = stamped;
+        times = new long[stamped ? 4 : 2];
+    }
+
+    @Override
+    public ProcessStatus process(ByteBuffer buffer) {
+        if (currentState == State.DONE || currentState == State.ERROR) {
+            throw new IllegalStateException();
+        }
+
+        if (currentState == State.WAITING_LOGIN) {
+            switch (stringReader.process(buffer)) {
+                case DONE:
+                    if (stamped) {
+                        probe.sender = stringReader.get();
+                    } else {
+                        probe.recipient = stringReader.get();
+                    }
+                    stringReader.reset();
+                    currentState = State.WAITING_TIMES;
+                    break;
+                case REFILL:
+                    return ProcessStatus.REFILL;
+                case ERROR:
+                    currentState = State.ERROR;
+                    return ProcessStatus.ERROR;
+            }
+        }
+
+        while (index < times.length) {
+            switch (longReader.process(buffer)) {
+                case DONE:
+                    times[index++] = longReader.get();
+                    longReader.reset();
+                    break;
+                case REFILL:
+                    return ProcessStatus.REFILL;
+                case ERROR:
+                    currentState = State.ERROR;
+                    return ProcessStatus.ERROR;
+            }
+        }
+        probe.sequence = times[0];
+        probe.sent = times[1];
+        if (stamped) {
+            probe.ingress = times[2];
+            probe.egress = times[3];
+        }
+        currentState = State.DONE;
+        return ProcessStatus.DONE;
+    }
+
+    @Override
+    public LatencyProbe get() {
+        if (currentState != State.DONE) {
+            throw new IllegalStateException();
+        }
+        return probe;
+    }
+
+    @Override
+    public void reset() {
+        currentState = State.WAITING_LOGIN;
+        stringReader.reset();
+        longReader.reset();
+        index = 0;
+        probe = new LatencyProbe();
+    }
+}
@@ -1,36 +1,65 @@
 package fr.uge.chatos.reader;
 
+import fr.uge.chatos.jfr.DecodeEvent;
 import fr.uge.chatos.packet.Packet;
+import fr.uge.chatos.packet.StreamClose;
 
 import java.nio.ByteBuffer;
 
 import static fr.uge.chatos.utils.OpCode.*;
 
 public class ServerPacketReader implements Reader<Packet> {
-    private enum State {DONE, WAITING_PACKET, ERROR}
+    private enum State {DONE, WAITING_PACKET, WAITING_CONTENT, ERROR}
     private final ConnectionRequestReader connectionRequestReader = new ConnectionRequestReader();
+    private final ConnectionResumeReader connectionResumeReader = new ConnectionResumeReader();
+    private final LatencyProbeReader latencyProbeReader = new LatencyProbeReader(false);
     private final PublicMessageReader publicMessageReader = new PublicMessageReader();
     private final PrivateMessageReader privateMessageReader = new PrivateMessageReader();
     private final PCRequestReader PCRequestReader = new PCRequestReader();
     private final PCReplyReader pcrr = new PCReplyReader();
     private final PCAuthReader pcar = new PCAuthReader();
+    private final StreamDataReader streamDataReader = new StreamDataReader();
+    private final StreamWindowReader streamWindowReader = new StreamWindowReader();
+    private final GroupRequestReader groupRequestReader = new GroupRequestReader();
+    private final LongReader longReader = new LongReader();
     private State currentState = State.WAITING_PACKET;
+    private byte opCode;
     private Packet packet;
 
+    /**
+     * Sets the receive buffers of the streams of the multiplexed private socket.
+     *
+     * @param streamBuffers the receive buffers
+     */
+    public void setStreamBuffers(StreamDataReader.StreamBuffers streamBuffers) {
+        streamDataReader.setStreamBuffers(streamBuffers);
+    }
 
     @Override
     public ProcessStatus process(ByteBuffer buffer) {
         if (currentState == State.DONE || currentState == State.ERROR) {
             throw new IllegalStateException();
         }
+        var event = DecodeEvent.start();
+        var status = decode(buffer);
+        if (event != null && status != ProcessStatus.REFILL) { // le paquet est complet, ou invalide
+            event.finish(opCode, status == ProcessStatus.DONE);
+        }
+        return status;
+    }
+
+    private ProcessStatus decode(ByteBuffer buffer) {
 
-        buffer.flip();
-        if (!buffer.hasRemaining()) {
+        if (currentState == State.WAITING_PACKET) {
+            buffer.flip();
+            if (!buffer.hasRemaining()) {
+                buffer.compact();
+                return ProcessStatus.REFILL;
+            }
+            opCode = buffer.get();
             buffer.compact();
-            return ProcessStatus.REFILL;
+            currentState = State.WAITING_CONTENT; // l'opcode n'est lu qu'une fois si le paquet arrive en plusieurs fois
         }
-        var opCode = buffer.get();
-        buffer.compact();
 
         var status = ProcessStatus.ERROR;
         switch (opCode) {
@@ -42,6 +71,22 @@ public class ServerPacketReader implements Reader<Packet> {
                     currentState = State.DONE;
                 }
             }
+            case CONNECTION_RESUME -> {
+                status = connectionResumeReader.process(buffer);
+                if (status == ProcessStatus.DONE) {
+                    packet = connectionResumeReader.get();
+                    connectionResumeReader.reset();
+                    currentState = State.DONE;
+                }
+            }
+            case LATENCY_PROBE_SENDER -> {
+                status = latencyProbeReader.process(buffer);
+                if (status == ProcessStatus.DONE) {
+                    packet = latencyProbeReader.get();
+                    latencyProbeReader.reset();
+                    currentState = State.DONE;
+                }
+            }
             case GENERAL_SENDER -> {
                 status = publicMessageReader.process(buffer);
                 if (status == ProcessStatus.DONE) {
@@ -74,18 +119,64 @@ public class ServerPacketReader implements Reader<Packet> {
                     currentState = State.DONE;
                 }
             }
-            case PRIVATE_CONNECTION_AUTHENTICATION -> {
+            case PRIVATE_CONNECTION_AUTHENTICATION, STREAM_OPEN -> {
                 status = pcar.process(buffer);
                 if (status == ProcessStatus.DONE) {
-                    packet = pcar.get();
+                    var auth = pcar.get();
+                    auth.multiplexed = opCode == STREAM_OPEN;
+                    packet = auth;
                     pcar.reset();
                     currentState = State.DONE;
                 }
             }
+            case STREAM_DATA -> {
+                status = streamDataReader.process(buffer);
+                if (status == ProcessStatus.DONE) {
+                    packet = streamDataReader.get();
+                    streamDataReader.reset();
+                    currentState = State.DONE;
+                }
+            }
+            case STREAM_WINDOW -> {
+                status = streamWindowReader.process(buffer);
+                if (status == ProcessStatus.DONE) {
+                    packet = streamWindowReader.get();
+                    streamWindowReader.reset();
+                    currentState = State.DONE;
+                }
+            }
+            case GROUP_REQUEST -> {
+                status = groupRequestReader.process(buffer);
+                if (status == ProcessStatus.DONE) {
+                    packet = groupRequestReader.get();
+                    groupRequestReader.reset();
+                    currentState = State.DONE;
+                }
+            }
+            case STREAM_CLOSE -> {
+                status = longReader.process(buffer);
+                if (status == ProcessStatus.DONE) {
+                    packet = new StreamClose(longReader.get());
+                    longReader.reset();
+                    currentState = State.DONE;
+                }
+            }
+        }
+        if (status == ProcessStatus.ERROR) {
+            currentState = State.ERROR;
         }
         return status;
     }
 
+    /**
+     * Returns the opcode of the packet being read, or of the packet read.
+     *
+     * @return the opcode
+     */
+    public byte getOpCode() {
+        return opCode;
+    }
+
     @Override
     public Packet get() {
         if (currentState != State.DONE) {
@@ -99,10 +190,16 @@ public class ServerPacketReader implements Reader<Packet> {
         currentState = State.WAITING_PACKET;
         packet = null; // à revoir
         connectionRequestReader.reset();
+        connectionResumeReader.reset();
+        latencyProbeReader.reset();
         publicMessageReader.reset();
         privateMessageReader.reset();
         PCRequestReader.reset();
         pcar.reset();
         pcrr.reset();
+        streamDataReader.reset();
+        streamWindowReader.reset();
+        groupRequestReader.reset();
+        longReader.reset();
     }
 }
@@ -0,0 +1,134 @@
+package fr.uge.chatos.reader;
+
+import fr.uge.chatos.packet.StreamData;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Reads a data frame of the multiplexed private socket.
+ * <p>
+ *     The data is written straight into the receive buffer of its stream, as it
+ *     arrives, so a frame is never copied in full nor allocated. The sender may not
+ *     send more than the receiver granted : a frame which does not fit in the receive
+ *     buffer is an error.
+ * </p>
+ */
+public class StreamDataReader implements Reader<StreamData> {
+
+    /**
+     * Gives the receive buffer of a stream.
+     */
+    @FunctionalInterface
+    public interface StreamBuffers {
+        /**
+         * Returns the buffer receiving the data of the stream {@code id}.
+         *
+         * @param id the ID of the stream
+         * @return the buffer in <b>write-mode</b>, or {@code null} to discard the data
+         * of an unknown or closed stream
+         */
+        ByteBuffer receiveBuffer(long id);
+    }
+
+    private enum State {DONE, WAITING_ID, WAITING_LENGTH, WAITING_DATA, ERROR}
+    private final LongReader longReader = new LongReader();
+    private final IntReader intReader = new IntReader();
+    private StreamBuffers streamBuffers = id -> null;
+    private State currentState = State.WAITING_ID;
+    private long id;
+    private int length;
+    private int missing;
+
+    /**
+     * Sets the receive buffers of the streams.
+     *
+     * @param streamBuffers the receive buffers
+     */
+    public void setStreamBuffers(StreamBuffers streamBuffers) {
+        this.streamBuffers = Objects.requireNonNull(streamBuffers);
+    }
+
+    @Override
+    public ProcessStatus process(ByteBuffer buffer) {
+        if (currentState == State.DONE || currentState == State.ERROR) {
+            throw new IllegalStateException();
+        }
+
+        if (currentState == State.WAITING_ID) {
+            switch (longReader.process(buffer)) {
+                case DONE:
+                    id = longReader.get();
+                    currentState = State.WAITING_LENGTH;
+                    break;
+                case REFILL:
+                    return ProcessStatus.REFILL;
+                default:
+                    currentState = State.ERROR;
+                    return ProcessStatus.ERROR;
+            }
+        }
+
+        if (currentState == State.WAITING_LENGTH) {
+            switch (intReader.process(buffer)) {
+                case DONE:
+                    length = intReader.get();
+                    var destination = streamBuffers.receiveBuffer(id);
+                    if (length < 0 || length > StreamData.MAX_LENGTH
+                            || (destination != null && length > destination.remaining())) {
+                        currentState = State.ERROR; // la fenêtre accordée est dépassée
+                        return ProcessStatus.ERROR;
+                    }
+                    missing = length;
+                    currentState = State.WAITING_DATA;
+                    break;
+                case REFILL:
+                    return ProcessStatus.REFILL;
+                default:
+                    currentState = State.ERROR;
+                    return ProcessStatus.ERROR;
+            }
+        }
+
+        if (missing > 0) {
+            // le flux peut avoir été fermé depuis l'en-tête
+            var destination = streamBuffers.receiveBuffer(id);
+            buffer.flip();
+            try {
+                var count = Math.min(buffer.remaining(), missing);
+                if (destination == null) {
+                    buffer.position(buffer.position() + count);
+                } else {
+                    var oldLimit = buffer.limit();
+                    buffer.limit(buffer.position() + count);
+                    destination.put(buffer);
+                    buffer.limit(oldLimit);
+                }
+                missing -= count;
+            } finally {
+                buffer.compact();
+            }
+            if (missing > 0) {
+                return ProcessStatus.REFILL;
+            }
+        }
+        currentState = State.DONE;
+        return ProcessStatus.DONE;
+    }
+
+    @Override
+    public StreamData get() {
+        if (currentState != State.DONE) {
+            throw new IllegalStateException();
+        }
+        return new StreamData(id, length);
+    }
+
+    @Override
+    public void reset() {
+        currentState = State.WAITING_ID;
+        longReader.reset();
+        intReader.reset();
+        missing = 0;
+    }
+}
@@ -0,0 +1,66 @@
+package fr.uge.chatos.reader;
+
+import fr.uge.chatos.packet.StreamWindow;
+
+import java.nio.ByteBuffer;
+
+public class StreamWindowReader implements Reader<StreamWindow> {
+    private enum State {DONE, WAITING_ID, WAITING_INCREMENT, ERROR}
+    private final LongReader longReader = new LongReader();
+    private final IntReader intReader = new IntReader();
+    private State currentState = State.WAITING_ID;
+    private long id;
+    private int increment;
+
+    @Override
+    public ProcessStatus process(ByteBuffer buffer) {
+        if (currentState == State.DONE || currentState == State.ERROR) {
+            throw new IllegalStateException();
+        }
+
+        if (currentState == State.WAITING_ID) {
+            switch (longReader.process(buffer)) {
+                case DONE:
+                    id = longReader.get();
+                    currentState = State.WAITING_INCREMENT;
+                    break;
+                case REFILL:
+                    return ProcessStatus.REFILL;
+                default:
+                    currentState = State.ERROR;
+                    return ProcessStatus.ERROR;
+            }
+        }
+
+        switch (intReader.process(buffer)) {
+            case DONE:
+                increment = intReader.get();
+                if (increment <= 0) {
+                    currentState = State.ERROR;
+                    return ProcessStatus.ERROR;
+                }
+                currentState = State.DONE;
+                return ProcessStatus.DONE;
+            case REFILL:
+                return ProcessStatus.REFILL;
+            default:
+                currentState = State.ERROR;
+                return ProcessStatus.ERROR;
+        }
+    }
+
+    @Override
+    public StreamWindow get() {
+        if (currentState != State.DONE) {
+            throw new IllegalStateException();
+        }
+        return new StreamWindow(id, increment);
+    }
+
+    @Override
+    public void reset() {
+        currentState = State.WAITING_ID;
+        longReader.reset();
+        intReader.reset();
+    }
+}
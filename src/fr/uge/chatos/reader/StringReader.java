@@ -7,12 +7,18 @@ import java.nio.charset.StandardCharsets;
 /**
  * This class allows us to read a packet in this format :
  * int | String
+ * <p>
+ *     A string is at most {@value #BUFFER_MAX_SIZE} bytes long, a limit of the protocol.
+ *     The internal buffer only grows to the size of the longest string read, so that the
+ *     many readers of a connection exchanging short messages stay small.
+ * </p>
  */
 public class StringReader implements Reader<String> {
     private enum State {DONE, WAITING_SIZE, WAITING_CONTENT, ERROR}
     private static final int BUFFER_MAX_SIZE = 1024;
+    private static final int BUFFER_MIN_SIZE = 64;
     private static final Charset charset = StandardCharsets.UTF_8;
-    private final ByteBuffer internalBuffer = ByteBuffer.allocateDirect(BUFFER_MAX_SIZE);
+    private ByteBuffer internalBuffer = ByteBuffer.allocate(BUFFER_MIN_SIZE);
     private final IntReader ir = new IntReader();
     private State currentState = State.WAITING_SIZE;
     private int size;
@@ -42,18 +48,18 @@ public class StringReader implements Reader<String> {
         if (currentState != State.WAITING_CONTENT || size < 0 || size > BUFFER_MAX_SIZE) {
             return ProcessStatus.ERROR;
         }
+        if (size > internalBuffer.capacity()) { // encore vide : la taille est lue avant le contenu
+            internalBuffer = ByteBuffer.allocate(Math.min(BUFFER_MAX_SIZE, Integer.highestOneBit(size - 1) << 1));
+        }
 
         // Get Content
         buffer.flip();
         try {
-            if (buffer.remaining() <= internalBuffer.remaining()) { // Si le buffer contient moins de cractères que notre buffer interne peut en contenir
-                if (buffer.remaining() <= size) { // Si le buffer contient moins de caractères que l'on souhaite
-                    internalBuffer.put(buffer);
-                } else { // On récupère seulement la partie du buffer qui nous intéresse
-                    extractSomeDataFromBuffer(buffer, size);
-                }
-            } else { // On remplie notre buffer interne des données du buffer
-                extractSomeDataFromBuffer(buffer, internalBuffer.remaining());
+            var missing = size - internalBuffer.position(); // une partie a pu être lue lors d'un appel précédent
+            if (buffer.remaining() <= missing) { // Si le buffer contient moins de caractères que l'on souhaite
+                internalBuffer.put(buffer);
+            } else { // On récupère seulement la partie du buffer qui nous intéresse
+                extractSomeDataFromBuffer(buffer, missing);
             }
         } finally {
             buffer.compact();
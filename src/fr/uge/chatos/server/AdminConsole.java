@@ -0,0 +1,209 @@
+package fr.uge.chatos.server;
+
+import fr.uge.chatos.context.ServerContext;
+import fr.uge.chatos.utils.TokenBucket;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The administration commands of the server, run by its main loop.
+ * <p>
+ *     The commands are typed on the standard input, or sent to the {@link AdminEndpoint}.
+ *     They are handed to the main loop as {@link Request}s, whose replies are completed
+ *     by the loop and written by the thread which read the command : the main loop never
+ *     writes on a terminal nor on a socket for the administrator.
+ * </p>
+ * <ul>
+ *     <li>{@code stats} : the statistics of every private connection ;</li>
+ *     <li>{@code sessions} : the clients of the public port, with their queue, their bytes,
+ *     the time since they last sent something and the size of their buffers ;</li>
+ *     <li>{@code top [n]} : the {@code n} clients (10 by default) which sent the most messages
+ *     and the most bytes on the public port over the last {@code chatos.admin.window} seconds
+ *     (60 by default) ;</li>
+ *     <li>{@code private} : the clients of every private connection ;</li>
+ *     <li>{@code kick <login>} : disconnects a client, without resume ;</li>
+ *     <li>{@code throttle <login> <rate|off>} : limits the bytes a client sends, in bytes per
+ *     second with an optional {@code k}, {@code m} or {@code g} suffix, until {@code off}.</li>
+ * </ul>
+ * <p>
+ *     Note : apart from the creation of the requests, this class is used by the thread of
+ *     the main loop.
+ * </p>
+ */
+class AdminConsole {
+    /**
+     * A command, and its reply once run.
+     *
+     * @param command the command line
+     * @param reply the text to display, completed by the main loop
+     */
+    record Request(String command, CompletableFuture<String> reply) {
+        Request(String command) {
+            this(command.trim(), new CompletableFuture<>());
+        }
+    }
+
+    private static final String COMMANDS = "stats, sessions, top [n], private, kick <pseudo>, throttle <pseudo> <débit|off>";
+    private static final int DEFAULT_TOP = 10;
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(Math.max(1, Long.getLong("chatos.admin.window", 60)));
+    private final Server server;
+    private final TopTalkers messages;
+    private final TopTalkers bytes;
+
+    AdminConsole(Server server) {
+        this.server = Objects.requireNonNull(server);
+        var now = System.nanoTime();
+        messages = new TopTalkers(WINDOW, now);
+        bytes = new TopTalkers(WINDOW, now);
+    }
+
+    /**
+     * Records a message sent by a client, public or private.
+     *
+     * @param login the login of the client
+     */
+    void messageFrom(String login) {
+        messages.record(login, 1, System.nanoTime());
+    }
+
+    /**
+     * Records bytes received from a client on its public socket.
+     *
+     * @param login the login of the client
+     * @param count the number of bytes
+     */
+    void bytesFrom(String login, int count) {
+        bytes.record(login, count, System.nanoTime());
+    }
+
+    /**
+     * Runs a command and completes its reply.
+     *
+     * @param request the command
+     */
+    void run(Request request) {
+        String reply;
+        try {
+            reply = execute(request.command().split("\\s+"));
+        } catch (RuntimeException e) { // une commande ne doit pas arrêter la boucle
+            reply = "Erreur : " + e;
+        }
+        request.reply().complete(reply);
+    }
+
+    private String execute(String[] words) {
+        var out = new StringBuilder();
+        switch (words[0]) {
+            case "" -> { }
+            case "stats" -> stats(out);
+            case "sessions" -> sessions(out);
+            case "top" -> top(out, words.length > 1 ? Integer.parseInt(words[1]) : DEFAULT_TOP);
+            case "private" -> privateConnections(out);
+            case "kick" -> {
+                if (words.length != 2) {
+                    return line(out, "Usage : kick <pseudo>");
+                }
+                line(out, server.kick(words[1]) ? words[1] + " déconnecté." : "Pseudo inconnu : " + words[1]);
+            }
+            case "throttle" -> {
+                if (words.length != 3) {
+                    return line(out, "Usage : throttle <pseudo> <débit|off>");
+                }
+                throttle(out, words[1], words[2]);
+            }
+            default -> line(out, "Commande inconnue, commandes disponibles : " + COMMANDS);
+        }
+        return out.toString();
+    }
+
+    private void stats(StringBuilder out) {
+        var detached = server.getDetachedSessions();
+        line(out, server.getPrivateConnections().size() + " connexion(s) privée(s), "
+                + (server.getSessions().size() - detached) + " client(s) connecté(s), " + detached
+                + " en attente de reprise, " + server.getPendingTimeouts() + " délai(s) en cours");
+        for (var pc : server.getPrivateConnections()) {
+            line(out, pc.getStats().format());
+        }
+    }
+
+    private void sessions(StringBuilder out) {
+        var sessions = new ArrayList<>(server.getSessions());
+        sessions.sort(Comparator.comparing(PublicSession::getLogin));
+        line(out, sessions.size() + " session(s)");
+        var now = System.nanoTime();
+        for (var session : sessions) {
+            var key = session.getKey();
+            if (key == null) {
+                line(out, session.getLogin() + " : en attente de reprise");
+                continue;
+            }
+            var context = (ServerContext) key.attachment();
+            out.append(String.format(Locale.ROOT,
+                    "%s : file %d o, reçus %d o, envoyés %d o, inactif depuis %.1f s, tampons %d/%d o",
+                    session.getLogin(), context.pendingBytes(), context.getBytesReceived(), context.getBytesSent(),
+                    (now - context.getLastReceived()) / 1e9, context.getInputBufferSize(),
+                    context.getOutputBufferSize()));
+            var rate = server.getThrottle(session.getLogin());
+            if (rate != 0) {
+                out.append(", limité à ").append(rate).append(" o/s");
+            }
+            out.append(System.lineSeparator());
+        }
+    }
+
+    private void top(StringBuilder out, int n) {
+        if (n <= 0 || n > TopTalkers.CANDIDATES) {
+            line(out, "Le nombre de clients doit être entre 1 et " + TopTalkers.CANDIDATES);
+            return;
+        }
+        var now = System.nanoTime();
+        var seconds = TimeUnit.NANOSECONDS.toSeconds(WINDOW);
+        top(out, "Messages", messages, n, now, seconds);
+        top(out, "Octets", bytes, n, now, seconds);
+    }
+
+    private static void top(StringBuilder out, String title, TopTalkers talkers, int n, long now, long seconds) {
+        line(out, title + " sur les " + seconds + " dernières secondes (total " + talkers.total(now)
+                + ", estimations par excès) :");
+        var rank = 1;
+        for (var talker : talkers.top(n, now)) {
+            line(out, "  " + rank++ + ". " + talker.login() + " : " + talker.count());
+        }
+    }
+
+    private void privateConnections(StringBuilder out) {
+        line(out, server.getPrivateConnections().size() + " connexion(s) privée(s)");
+        for (var pc : server.getPrivateConnections()) {
+            var stats = pc.getStats();
+            var state = stats.isOver() ? "terminée" : stats.isStarted() ? "active" : "en attente";
+            var clients = String.join(pc.isGroup() ? ", " : " <-> ", pc.getPseudos());
+            line(out, String.format(Locale.ROOT, "%d : %s%s, %s, %d o relayés", pc.getId(),
+                    pc.isGroup() ? "groupe " + pc.getName() + " : " : "", clients, state, stats.activity()));
+        }
+    }
+
+    private void throttle(StringBuilder out, String login, String value) {
+        if (value.equals("off")) {
+            server.throttle(login, null);
+            line(out, login + " n'est plus limité.");
+            return;
+        }
+        var rate = TokenBucket.parseRate(value);
+        if (rate <= 0) {
+            line(out, "Débit invalide : " + value);
+            return;
+        }
+        server.throttle(login, new TokenBucket(rate));
+        line(out, login + " limité à " + rate + " o/s.");
+    }
+
+    private static String line(StringBuilder out, String text) {
+        out.append(text).append(System.lineSeparator());
+        return out.toString();
+    }
+}
@@ -0,0 +1,208 @@
+package fr.uge.chatos.server;
+
+import fr.uge.chatos.utils.SelectorQueue;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the administration commands on a port of the loopback interface, to an
+ * administrator connected with a tool such as {@code nc}.
+ * <p>
+ *     The first line must be {@code auth <token>} : the token is the system property
+ *     {@code chatos.admin.token}, or a random token displayed at startup if it is
+ *     missing. Then each line is a command of the {@link AdminConsole}, whose reply is
+ *     followed by a prompt ; {@code quit} ends the session.
+ * </p>
+ * <p>
+ *     The first line must arrive within {@code chatos.admin.authTimeout} ms (5 s by
+ *     default), and a refused token is answered after a delay : a client which sends
+ *     nothing can not hold the endpoint for long, and the tokens can not be tried
+ *     quickly. The session of an administrator ends after 10 minutes without command.
+ * </p>
+ * <p>
+ *     The endpoint runs on its own thread, with blocking sockets, and serves one
+ *     administrator at a time. The commands are handed to the main loop, and the thread
+ *     waits for their reply.
+ * </p>
+ */
+class AdminEndpoint implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(AdminEndpoint.class.getName());
+    private static final String PROMPT = "> ";
+    private static final int IDLE_TIMEOUT = (int) TimeUnit.MINUTES.toMillis(10);
+    private static final long AUTH_TIMEOUT = Long.getLong("chatos.admin.authTimeout", 5_000);
+    private static final long REFUSED_DELAY = 2_000; // en millisecondes, après un jeton refusé
+    private static final int MAX_AUTH_LINE = 256;
+    private static final long REPLY_TIMEOUT = 10;
+    private final SelectorQueue<AdminConsole.Request> commands;
+    private final ServerSocket socket;
+    private final byte[] token;
+    private final Thread thread;
+
+    /**
+     * Opens the endpoint and starts its thread.
+     *
+     * @param commands the queue of the main loop
+     * @param port the port, {@code 0} for any free port
+     * @param token the token of the administrators
+     * @throws IOException if the port can not be bound
+     */
+    AdminEndpoint(SelectorQueue<AdminConsole.Request> commands, int port, String token) throws IOException {
+        this.commands = Objects.requireNonNull(commands);
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        socket = new ServerSocket();
+        socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        thread = new Thread(this::run, "admin-endpoint");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns a random token, for an endpoint whose token is not configured.
+     *
+     * @return 32 hexadecimal digits
+     */
+    static String newToken() {
+        var bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        var token = new StringBuilder();
+        for (var b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        return token.toString();
+    }
+
+    /**
+     * Returns the port the endpoint listens to.
+     *
+     * @return the port
+     */
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    private void run() {
+        while (!socket.isClosed()) {
+            try (var client = socket.accept()) {
+                serve(client);
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    logger.log(Level.FINE, "Admin session failed", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket client) throws IOException {
+        var input = client.getInputStream();
+        var out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8));
+        if (!isAuthenticated(readAuthLine(client, input))) {
+            logger.warning("Authentification refusée sur la console d'administration");
+            try {
+                Thread.sleep(REFUSED_DELAY); // un seul essai de jeton par délai
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            reply(out, "Jeton invalide.\n");
+            return;
+        }
+        client.setSoTimeout(IDLE_TIMEOUT);
+        var in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        reply(out, "Commandes : stats, sessions, top [n], private, kick <pseudo>, throttle <pseudo> <débit|off>, quit\n"
+                + PROMPT);
+        String line;
+        while ((line = in.readLine()) != null && !line.trim().equals("quit")) {
+            reply(out, execute(line) + PROMPT);
+        }
+    }
+
+    /**
+     * Reads the first line of a session, which must arrive entirely before the
+     * authentication delay, even if its bytes are sent one by one.
+     *
+     * @return the line, without its end, or {@code null} if the client closes the connection
+     * or sends a line too long
+     * @throws SocketTimeoutException if the line does not arrive in time
+     */
+    private static String readAuthLine(Socket client, InputStream input) throws IOException {
+        var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(AUTH_TIMEOUT);
+        var line = new ByteArrayOutputStream();
+        for (;;) {
+            var remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("No authentication in " + AUTH_TIMEOUT + " ms");
+            }
+            client.setSoTimeout((int) remaining);
+            var b = input.read(); // octet par octet : le reste appartient aux commandes
+            if (b == -1 || line.size() >= MAX_AUTH_LINE) {
+                return null;
+            }
+            if (b == '\n') {
+                var text = line.toString(StandardCharsets.UTF_8);
+                return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+            }
+            line.write(b);
+        }
+    }
+
+    /**
+     * Checks the first line of a session, in a time independent of the token given.
+     */
+    private boolean isAuthenticated(String line) {
+        if (line == null || !line.startsWith("auth ")) {
+            return false;
+        }
+        return MessageDigest.isEqual(token, line.substring(5).trim().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String execute(String command) {
+        var request = new AdminConsole.Request(command);
+        commands.add(request);
+        try {
+            return request.reply().get(REPLY_TIMEOUT, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            return "La boucle du serveur ne répond pas.\n";
+        } catch (ExecutionException e) {
+            return "Erreur : " + e.getCause() + "\n";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "";
+        }
+    }
+
+    private static void reply(Writer out, String text) throws IOException {
+        out.write(text);
+        out.flush();
+    }
+
+    /**
+     * Stops the endpoint.
+     */
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) { }
+    }
+}
@@ -0,0 +1,70 @@
+package fr.uge.chatos.server;
+
+import fr.uge.chatos.utils.Throttle;
+import fr.uge.chatos.utils.TokenBucket;
+
+import java.util.HashMap;
+import java.util.Objects;
+
+/**
+ * This class holds the bandwidth limits applied by the server to the private connections.
+ * <p>
+ *     The limits are read from the following system properties, in bytes per second
+ *     with an optional {@code k}, {@code m} or {@code g} suffix :
+ * </p>
+ * <ul>
+ *     <li>{@code chatos.bandwidth.global} : all the private connections together ;</li>
+ *     <li>{@code chatos.bandwidth.login} : all the private connections of a client,
+ *     overridden for one client by {@code chatos.bandwidth.login.<login>} ;</li>
+ *     <li>{@code chatos.bandwidth.connection} : each private connection.</li>
+ * </ul>
+ * <p>
+ *     A missing property means no limit. The public connections are never limited,
+ *     so chat messages are not delayed by file transfers.
+ * </p>
+ */
+class BandwidthLimits {
+    private static final String PREFIX = "chatos.bandwidth.";
+    private final TokenBucket global = TokenBucket.ofProperty(PREFIX + "global");
+    private final HashMap<String, TokenBucket> logins = new HashMap<>();
+
+    /**
+     * Creates the bucket shared by the two sides of a new private connection.
+     *
+     * @return the bucket, {@code null} if the connections are not limited
+     */
+    TokenBucket newConnectionBucket() {
+        return TokenBucket.ofProperty(PREFIX + "connection");
+    }
+
+    /**
+     * Replaces the limit of a client, for its next private connections.
+     *
+     * @param login the login of the client
+     * @param bucket the new limit, {@code null} to go back to the system properties
+     */
+    void override(String login, TokenBucket bucket) {
+        Objects.requireNonNull(login);
+        if (bucket == null) {
+            logins.remove(login);
+        } else {
+            logins.put(login, bucket);
+        }
+    }
+
+    /**
+     * Returns the limits applied to the data sent by a client on a private connection.
+     *
+     * @param login the login of the client
+     * @param connectionBucket the bucket of the private connection
+     * @return the limits, {@code null} if the data is not limited
+     */
+    Throttle throttle(String login, TokenBucket connectionBucket) {
+        Objects.requireNonNull(login);
+        var loginBucket = logins.computeIfAbsent(login, key -> {
+            var bucket = TokenBucket.ofProperty(PREFIX + "login." + key);
+            return bucket != null ? bucket : TokenBucket.ofProperty(PREFIX + "login");
+        });
+        return Throttle.of(global, loginBucket, connectionBucket);
+    }
+}
@@ -0,0 +1,62 @@
+package fr.uge.chatos.server;
+
+import java.util.Comparator;
+import java.util.Objects;
+import java.util.PriorityQueue;
+
+/**
+ * The actions a selector thread must run once their deadline is reached.
+ * <p>
+ *     The selector waits at most until the next deadline, then runs the due actions.
+ * </p>
+ * <p>
+ *     Note : the actions are only scheduled and run by the thread of the selector,
+ *     this class is not thread-safe.
+ * </p>
+ */
+public class DelayedTasks {
+
+    private record DelayedTask(long deadline, Runnable action) { }
+
+    private final PriorityQueue<DelayedTask> tasks = new PriorityQueue<>(
+            Comparator.comparingLong(DelayedTask::deadline));
+
+    /**
+     * Runs an action after the specified delay.
+     *
+     * @param action the action to run
+     * @param delay the delay in nanoseconds
+     */
+    public void schedule(Runnable action, long delay) {
+        tasks.add(new DelayedTask(System.nanoTime() + delay, Objects.requireNonNull(action)));
+    }
+
+    /**
+     * Returns the time the selector can wait before the next action.
+     *
+     * @return the timeout in milliseconds, {@code 0} to wait without limit
+     */
+    long nextTimeout() {
+        var next = tasks.peek();
+        if (next == null) {
+            return 0;
+        }
+        var millis = (next.deadline() - System.nanoTime() + 999_999) / 1_000_000;
+        return Math.max(1, millis);
+    }
+
+    /**
+     * Runs the actions whose deadline is reached.
+     *
+     * @return the number of actions run
+     */
+    int runDue() {
+        var now = System.nanoTime();
+        var count = 0;
+        while (!tasks.isEmpty() && tasks.peek().deadline() - now <= 0) {
+            tasks.poll().action().run();
+            count++;
+        }
+        return count;
+    }
+}
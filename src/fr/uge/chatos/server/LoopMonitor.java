@@ -0,0 +1,126 @@
+package fr.uge.chatos.server;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures the turns of a selector loop, and watches them from another thread.
+ * <p>
+ *     A turn is split in two : the wait in select, then the processing of the keys and
+ *     of the tasks. The processing starts with the first key handled, as
+ *     {@link java.nio.channels.Selector#select(java.util.function.Consumer, long)} handles
+ *     the keys before returning. Both durations, the number of keys and the number of
+ *     tasks are recorded in the {@link ServerMetrics} at the end of each turn.
+ * </p>
+ * <p>
+ *     The watchdog thread wakes up every half threshold ({@code chatos.watchdog.threshold},
+ *     1000 ms by default, {@code 0} to disable it). When a turn has been processing for
+ *     longer than the threshold, it counts a stall and logs the stack of the loop thread,
+ *     once per turn. The duration of the current turn is also published as a gauge, so
+ *     that a scrape shows a stuck loop before the turn ends.
+ * </p>
+ * <p>
+ *     Note : apart from {@link #lag()}, the methods must be called from the loop thread.
+ * </p>
+ */
+class LoopMonitor {
+    private static final Logger logger = Logger.getLogger(LoopMonitor.class.getName());
+    private static final long THRESHOLD = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chatos.watchdog.threshold", 1_000));
+    private final ServerMetrics metrics;
+    private volatile long busySince; // début du traitement du tour, 0 pendant l'attente du sélecteur
+    private long turnStart;
+    private long wokenAt; // 0 tant que le tour attend
+    private Thread loop;
+
+    LoopMonitor(ServerMetrics metrics) {
+        this.metrics = Objects.requireNonNull(metrics);
+        metrics.selectorLag(this::lag);
+    }
+
+    /**
+     * Starts the watchdog of the calling thread, the thread of the loop.
+     */
+    void start() {
+        loop = Thread.currentThread();
+        if (THRESHOLD <= 0) {
+            return;
+        }
+        var watchdog = new Thread(this::watch, "loop-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    /**
+     * Records the start of a turn, just before select.
+     */
+    void selecting() {
+        turnStart = System.nanoTime();
+        wokenAt = 0;
+        busySince = 0;
+    }
+
+    /**
+     * Records the end of the wait : called for each key handled, and once select returns.
+     */
+    void woken() {
+        if (wokenAt == 0) {
+            wokenAt = System.nanoTime();
+            busySince = wokenAt;
+        }
+    }
+
+    /**
+     * Records the end of a turn.
+     *
+     * @param keys the number of keys handled
+     * @param tasks the number of tasks run
+     */
+    void turnDone(int keys, int tasks) {
+        var now = System.nanoTime();
+        metrics.selectorTurn(wokenAt - turnStart, now - wokenAt, keys, tasks);
+    }
+
+    /**
+     * Returns the time the current turn has been processing.
+     * <p>
+     *     Note : can be called from any thread.
+     * </p>
+     *
+     * @return the duration in nanoseconds, {@code 0} while the loop waits in select
+     */
+    long lag() {
+        var since = busySince;
+        return since == 0 ? 0 : System.nanoTime() - since;
+    }
+
+    private void watch() {
+        var reported = 0L; // tour déjà signalé
+        while (loop.isAlive()) {
+            LockSupport.parkNanos(this, THRESHOLD / 2);
+            var since = busySince;
+            if (since == 0 || since == reported) {
+                continue;
+            }
+            var lag = System.nanoTime() - since;
+            if (lag < THRESHOLD) {
+                continue;
+            }
+            reported = since;
+            metrics.selectorStalled();
+            var stack = loop.getStackTrace();
+            if (!logger.isLoggable(Level.WARNING)) {
+                continue;
+            }
+            var message = new StringBuilder("Boucle du serveur bloquée depuis ")
+                    .append(TimeUnit.NANOSECONDS.toMillis(lag)).append(" ms, pile du thread ")
+                    .append(loop.getName()).append(" :");
+            for (var frame : stack) {
+                message.append("\n\tat ").append(frame);
+            }
+            logger.warning(message.toString());
+        }
+    }
+}
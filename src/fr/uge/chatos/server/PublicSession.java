@@ -0,0 +1,172 @@
+package fr.uge.chatos.server;
+
+import fr.uge.chatos.context.Context;
+import fr.uge.chatos.utils.OpCode;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Objects;
+
+/**
+ * The session of a login on the public port, which survives the loss of its socket
+ * for a grace window.
+ * <p>
+ *     The session numbers the messages it sends, and keeps the most recent ones in a
+ *     bounded backlog, including those sent while its socket is lost. A client which
+ *     reconnects with the token of the session gives the number of messages it received :
+ *     the following ones are replayed from the backlog. Only the messages, public or
+ *     private, and the private connection requests are numbered and kept, the other
+ *     frames are only meaningful on the socket they are sent on.
+ * </p>
+ * <p>
+ *     The frames of public messages are shared between the sessions, each one queues a
+ *     duplicate of the frame.
+ * </p>
+ */
+class PublicSession {
+    private static final SecureRandom tokens = new SecureRandom();
+    private final String login;
+    private final int capacity;
+    private final ArrayDeque<ByteBuffer> backlog = new ArrayDeque<>(); // en read-mode, jamais consommés
+    private long token;
+    private long sent; // numéro du dernier message envoyé
+    private SelectionKey key; // null pendant la fenêtre de reprise
+    private TimingWheel.Timeout expiry;
+
+    /**
+     * Creates the session of a new login.
+     *
+     * @param login the login of the client
+     * @param key the key of its public socket
+     * @param capacity the number of messages kept for a replay
+     */
+    PublicSession(String login, SelectionKey key, int capacity) {
+        this.login = Objects.requireNonNull(login);
+        this.key = Objects.requireNonNull(key);
+        this.capacity = capacity;
+        token = newToken();
+    }
+
+    String getLogin() {
+        return login;
+    }
+
+    /**
+     * Returns the token a client must give to resume this session.
+     *
+     * @return the current token
+     */
+    long getToken() {
+        return token;
+    }
+
+    /**
+     * Returns the key of the public socket of this session.
+     *
+     * @return the key, {@code null} if the socket is lost
+     */
+    SelectionKey getKey() {
+        return key;
+    }
+
+    /**
+     * Sends a frame to the client, and keeps it for a replay if it is a message.
+     *
+     * @param frame the frame, in <b>read-mode</b>, left untouched
+     */
+    void deliver(ByteBuffer frame) {
+        if (isReplayable(frame)) {
+            sent++;
+            if (capacity > 0) {
+                if (backlog.size() == capacity) {
+                    backlog.removeFirst();
+                }
+                backlog.addLast(frame);
+            }
+        }
+        if (key != null) {
+            ((Context) key.attachment()).queueMessage(frame.duplicate());
+        }
+    }
+
+    /**
+     * Records that the public socket of this session is lost.
+     *
+     * @param expiry the removal of the session at the end of the grace window
+     */
+    void detach(TimingWheel.Timeout expiry) {
+        key = null;
+        this.expiry = expiry;
+    }
+
+    /**
+     * Ends this session, which can no longer be resumed.
+     *
+     * @return the key of its public socket, {@code null} if the socket is lost
+     */
+    SelectionKey close() {
+        if (expiry != null) {
+            expiry.cancel();
+            expiry = null;
+        }
+        var previous = key;
+        key = null;
+        backlog.clear();
+        return previous;
+    }
+
+    /**
+     * Gives this session a new public socket, and a new token.
+     *
+     * @param key the key of the new socket
+     * @return the key of the previous socket, {@code null} if it was already lost
+     */
+    SelectionKey attach(SelectionKey key) {
+        var previous = this.key;
+        this.key = Objects.requireNonNull(key);
+        if (expiry != null) {
+            expiry.cancel();
+            expiry = null;
+        }
+        token = newToken();
+        return previous;
+    }
+
+    /**
+     * Sends again the messages the client did not receive.
+     *
+     * @param received the number of messages received by the client
+     * @return the number of messages which are no longer in the backlog, and are lost
+     */
+    long replay(long received) {
+        var context = (Context) key.attachment();
+        var first = sent - backlog.size() + 1; // numéro du plus ancien message conservé
+        var seq = first;
+        for (var frame : backlog) {
+            if (seq > received) {
+                context.queueMessage(frame.duplicate());
+            }
+            seq++;
+        }
+        return Math.max(0, first - 1 - Math.max(0, received));
+    }
+
+    private static boolean isReplayable(ByteBuffer frame) {
+        if (!frame.hasRemaining()) {
+            return false;
+        }
+        var opCode = frame.get(frame.position());
+        return opCode == OpCode.GENERAL_RECEIVER || opCode == OpCode.PRIVATE_RECEIVER
+                || opCode == OpCode.PRIVATE_CONNECTION_REQUEST_RECEIVER;
+    }
+
+    private static long newToken() {
+        long token;
+        do {
+            token = tokens.nextLong();
+        } while (token == 0); // 0 signifie « pas de jeton »
+        return token;
+    }
+}
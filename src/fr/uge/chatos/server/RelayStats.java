@@ -0,0 +1,243 @@
+package fr.uge.chatos.server;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * The statistics of a private connection : for each client, the bytes it sent and
+ * received, its peak and average throughput, and the time its reads were stopped
+ * by the backpressure of the relay.
+ * <p>
+ *     The counters are updated by the selector thread relaying the connection, without
+ *     any allocation, and can be read from any thread : each counter has a single writer,
+ *     so a reader sees a recent value without locking.
+ * </p>
+ */
+public class RelayStats {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long RATE_WINDOW = NANOS_PER_SECOND / 10; // durée sur laquelle le débit de pointe est mesuré
+
+    /**
+     * The counters of one client of the private connection.
+     */
+    public final class Side {
+        private final String login;
+        private volatile boolean joined;
+        private volatile long received;
+        private volatile long sent;
+        private volatile long chunks;
+        private volatile long peakRate;
+        private volatile long blockedNanos;
+        private volatile long closed;
+        private long windowStart;
+        private long windowBytes;
+        private long blockedSince;
+
+        private Side(String login) {
+            this.login = login;
+        }
+
+        /**
+         * Records that the client joined the relay.
+         */
+        public void joined() {
+            if (started == 0) {
+                started = System.nanoTime();
+            }
+            joined = true;
+        }
+
+        /**
+         * Records bytes received from the client.
+         *
+         * @param bytes the number of bytes, strictly positive
+         */
+        public void received(int bytes) {
+            var now = System.nanoTime();
+            received += bytes;
+            chunks++;
+            if (windowStart == 0) {
+                windowStart = now;
+            }
+            windowBytes += bytes;
+            var elapsed = now - windowStart;
+            if (elapsed >= RATE_WINDOW) {
+                var rate = windowBytes * NANOS_PER_SECOND / elapsed;
+                if (rate > peakRate) {
+                    peakRate = rate;
+                }
+                windowStart = now;
+                windowBytes = 0;
+            }
+        }
+
+        /**
+         * Records bytes sent to the client.
+         *
+         * @param bytes the number of bytes
+         */
+        public void sent(int bytes) {
+            sent += bytes;
+        }
+
+        /**
+         * Records whether the reads from the client are stopped by backpressure.
+         *
+         * @param blocked {@code true} if the reads are stopped
+         */
+        public void blocked(boolean blocked) {
+            if (blocked == (blockedSince != 0)) {
+                return;
+            }
+            var now = System.nanoTime();
+            if (blocked) {
+                blockedSince = now;
+            } else {
+                blockedNanos += now - blockedSince;
+                blockedSince = 0;
+            }
+        }
+
+        /**
+         * Records that the connection of the client is over.
+         */
+        public void closed() {
+            if (closed == 0) {
+                blocked(false);
+                closed = System.nanoTime();
+            }
+        }
+    }
+
+    private final long id;
+    private final long created = System.nanoTime();
+    private volatile long started;
+    private final LinkedHashMap<String, Side> sides = new LinkedHashMap<>();
+
+    /**
+     * Creates the statistics of a new private connection.
+     *
+     * @param id the ID of the private connection
+     * @param logins the logins of its clients
+     */
+    RelayStats(long id, Iterable<String> logins) {
+        this.id = id;
+        for (var login : logins) {
+            sides.put(login, new Side(login));
+        }
+    }
+
+    /**
+     * Returns the counters of a client.
+     *
+     * @param login the login of the client
+     * @return the counters
+     */
+    Side side(String login) {
+        return Objects.requireNonNull(sides.get(login));
+    }
+
+    /**
+     * Checks if every client who joined the private connection has left it.
+     *
+     * @return {@code true} if the relay is over
+     */
+    boolean isOver() {
+        return started != 0 && sides.values().stream().allMatch(side -> !side.joined || side.closed != 0);
+    }
+
+    /**
+     * Checks if a client has joined the relay of the private connection.
+     *
+     * @return {@code true} if the relay has started
+     */
+    boolean isStarted() {
+        return started != 0;
+    }
+
+    /**
+     * Returns the number of bytes relayed so far, in both directions.
+     *
+     * @return the sum of the bytes received and sent by every client
+     */
+    long activity() {
+        var bytes = 0L;
+        for (var side : sides.values()) {
+            bytes += side.received + side.sent;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns when the first client left the relay of the private connection.
+     *
+     * @param login the client whose departure is looked for, {@code null} for any client
+     * @return the time given by {@link System#nanoTime()}, {@code 0} if no such client has left
+     */
+    long leftSince(String login) {
+        if (login != null) {
+            return side(login).closed;
+        }
+        var first = 0L;
+        for (var side : sides.values()) {
+            var closed = side.closed;
+            if (closed != 0 && (first == 0 || closed - first < 0)) {
+                first = closed;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Formats these statistics for the administration console.
+     *
+     * @return a human-readable description, on several lines
+     */
+    String format() {
+        var now = System.nanoTime();
+        var result = new StringBuilder();
+        if (started == 0) {
+            return result.append(String.format(Locale.ROOT, "Connexion privée %d %s : en attente depuis %.1f s",
+                    id, sides.keySet(), seconds(now - created))).toString();
+        }
+        var over = isOver();
+        var end = now;
+        if (over) {
+            end = started;
+            for (var side : sides.values()) {
+                end = Math.max(end, side.closed);
+            }
+        }
+        var lifetime = Math.max(1, end - started);
+        result.append(String.format(Locale.ROOT, "Connexion privée %d %s : %s, durée %.1f s",
+                id, sides.keySet(), over ? "terminée" : "active", seconds(lifetime)));
+        for (var side : sides.values()) {
+            if (!side.joined) {
+                result.append(String.format("%n  %s : absent", side.login));
+                continue;
+            }
+            var blocked = side.blockedNanos;
+            result.append(String.format(Locale.ROOT,
+                    "%n  %s : reçu %s en %d blocs, envoyé %s, moyenne %s/s, pic %s/s, bloqué %.1f s%s",
+                    side.login, bytes(side.received), side.chunks, bytes(side.sent),
+                    bytes((long) (side.received / seconds(lifetime))), bytes(side.peakRate),
+                    seconds(blocked), side.closed != 0 ? ", parti" : ""));
+        }
+        return result.toString();
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / (double) NANOS_PER_SECOND;
+    }
+
+    private static String bytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " o";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f Kio", bytes / 1024.0);
+        }
+        return String.format(Locale.ROOT, "%.1f Mio", bytes / (1024.0 * 1024));
+    }
+}
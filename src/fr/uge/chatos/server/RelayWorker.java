@@ -0,0 +1,131 @@
+package fr.uge.chatos.server;
+
+import fr.uge.chatos.context.ServerContext;
+import fr.uge.chatos.logging.AsyncLogger;
+import fr.uge.chatos.utils.BufferPool;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * A selector thread relaying the authenticated private connections.
+ * <p>
+ *     Once a private connection is authenticated, its contexts are handed off
+ *     by the main loop to a worker, so that bulk transfers do not delay the chat
+ *     traffic. Each worker has its own selector, delayed tasks and relay buffers.
+ * </p>
+ */
+class RelayWorker {
+    private static final AsyncLogger logger = AsyncLogger.getLogger(RelayWorker.class, "relay");
+    private final Selector selector;
+    private final Thread thread;
+    private record Handoff(ServerContext[] contexts, Consumer<BufferPool> start) { }
+
+    private final ConcurrentLinkedQueue<Handoff> handoffs = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Runnable> actions = new ConcurrentLinkedQueue<>();
+    private final DelayedTasks delayedTasks = new DelayedTasks();
+    private final BufferPool relayBuffers = new BufferPool(Server.RELAY_BUFFER_SIZE, Server.MAX_POOLED_RELAY_BUFFERS);
+
+    /**
+     * Creates a new worker, which must then be started.
+     *
+     * @param index the index of the worker, used to name its thread
+     * @throws IOException If some other I/O error occurs.
+     */
+    RelayWorker(int index) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this::run, "relay-" + index);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Gives the contexts of a private connection to this worker.
+     * <p>
+     *     Note : the keys of the contexts in the main selector must have been cancelled,
+     *     and the main loop must no longer use the contexts.
+     * </p>
+     *
+     * @param contexts the contexts of the clients
+     * @param start the action starting the relay, with the buffers of this worker
+     */
+    void handOff(ServerContext[] contexts, Consumer<BufferPool> start) {
+        handoffs.add(new Handoff(contexts.clone(), Objects.requireNonNull(start)));
+        selector.wakeup();
+    }
+
+    /**
+     * Runs an action on the thread of this worker, such as closing the contexts it relays.
+     *
+     * @param action the action to run
+     */
+    void execute(Runnable action) {
+        actions.add(Objects.requireNonNull(action));
+        selector.wakeup();
+    }
+
+    private void run() {
+        logger.info("{0} started", thread.getName());
+        while (!Thread.interrupted()) {
+            try {
+                selector.select(this::treatKey, delayedTasks.nextTimeout());
+                adoptHandoffs();
+                Runnable action;
+                while ((action = actions.poll()) != null) {
+                    action.run();
+                }
+                delayedTasks.runDue();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, thread.getName() + " stopped", e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Registers the private connections handed off since the last call, and starts relaying them.
+     */
+    private void adoptHandoffs() {
+        Handoff handoff;
+        while ((handoff = handoffs.poll()) != null) {
+            try {
+                for (var context : handoff.contexts()) {
+                    context.moveTo(selector, delayedTasks);
+                }
+            } catch (ClosedChannelException e) {
+                for (var context : handoff.contexts()) {
+                    context.silentlyClose();
+                }
+                continue;
+            }
+            handoff.start().accept(relayBuffers);
+            for (var context : handoff.contexts()) {
+                context.updateInterestOps();
+            }
+        }
+    }
+
+    private void treatKey(SelectionKey key) {
+        var context = (ServerContext) key.attachment();
+        try {
+            if (key.isValid() && key.isWritable()) {
+                context.doWrite();
+            }
+            if (key.isValid() && key.isReadable()) {
+                context.doRead();
+            }
+        } catch (IOException e) {
+            logger.log(Level.INFO, "Private connection closed due to IOException", e);
+            context.silentlyClose();
+        }
+    }
+}
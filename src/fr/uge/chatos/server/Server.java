@@ -5,14 +5,27 @@ import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 import java.util.logging.Level;
-import java.util.logging.Logger;
 
 import fr.uge.chatos.context.Context;
+import fr.uge.chatos.context.RelayGroup;
 import fr.uge.chatos.context.ServerContext;
+import fr.uge.chatos.jfr.FanOutEvent;
+import fr.uge.chatos.logging.AsyncLogger;
+import fr.uge.chatos.metrics.MetricsEndpoint;
+import fr.uge.chatos.packet.ConnectionConfirmation;
+import fr.uge.chatos.packet.ErrorNoShutdown;
+import fr.uge.chatos.packet.ErrorShutdown;
 import fr.uge.chatos.packet.Packet;
+import fr.uge.chatos.packet.Packets;
+import fr.uge.chatos.utils.BufferPool;
+import fr.uge.chatos.utils.SelectorQueue;
+import fr.uge.chatos.utils.Throttle;
+import fr.uge.chatos.utils.TokenBucket;
 
 
 /**
@@ -23,18 +36,70 @@ import fr.uge.chatos.packet.Packet;
  *     <li>one for public connections</li>
  *     <li>one for private connections</li>
  * </ul>
+ * <p>
+ * The authenticated private connections are relayed by a pool of selector threads,
+ * whose size is set by the system property {@code chatos.relay.workers} (1 by default,
+ * 0 to relay them in the main loop).
+ * <p>
+ * With the system property {@code chatos.private.multiplex} set to {@code true}, each client
+ * opens a single socket on the private port, which carries all its private connections
+ * as streams. These sockets stay in the main loop, where the streams are opened.
+ * <p>
+ * A group private connection relays the data of its creator to every member who
+ * joined it ; the members join one by one, on the selector thread of the first one.
+ * <p>
+ * The sessions which can no longer progress are closed and forgotten by a {@link TimingWheel},
+ * with the following timeouts, set in milliseconds by system properties :
+ * <ul>
+ *     <li>{@code chatos.auth.timeout} : a socket must authenticate, on the public or the private
+ *     port, within 30 s by default ;</li>
+ *     <li>{@code chatos.private.pendingTimeout} : a private connection must be accepted and
+ *     established within 60 s by default ;</li>
+ *     <li>{@code chatos.private.idleTimeout} : a private connection relaying no data for 10 min
+ *     by default is closed ;</li>
+ *     <li>{@code chatos.private.halfClosedTimeout} : once a client left a private connection, or the
+ *     creator left a group, the other clients are closed after 30 s by default.</li>
+ * </ul>
+ * Finished private connections are removed from the registry by the same checks.
+ * <p>
+ * A client who loses its public socket keeps its login during a grace window, set in
+ * milliseconds by {@code chatos.resume.grace} (30 s by default) : it can resume its
+ * session with the token of its last {@link fr.uge.chatos.packet.ConnectionConfirmation},
+ * and receives the messages sent meanwhile. Each session keeps its last messages for a
+ * replay, {@code chatos.resume.backlog} (1024 by default) ; the older ones are reported lost.
+ * A client who leaves on purpose also keeps its login during this window.
+ * <p>
+ * The server records its activity in {@link ServerMetrics}. If the system property
+ * {@code chatos.metrics.port} is set, the metrics are served in the Prometheus text
+ * format on this port of the loopback interface.
+ * <p>
+ * The administration commands of the {@link AdminConsole} are read on the standard input,
+ * and run by the main loop. If the system property {@code chatos.admin.port} is set, they
+ * are also served on this port of the loopback interface by an {@link AdminEndpoint},
+ * to the administrators giving the token {@code chatos.admin.token}.
  */
 public class Server {
 
     /**
-     * This class represents a private connection between two clients.
+     * This class represents a private connection between two clients, or a group
+     * private connection between its creator and its members.
      * <p>
      * A private connection have a unique ID.
      */
     public static class PrivateConnection {
         private final HashMap<String, ServerContext> privateSockets = new HashMap<>();
         private final long id;
+        private final TokenBucket bucket;
+        private final String name; // null sauf pour un groupe
+        private final String creator;
+        private final RelayStats stats;
+        private RelayGroup group;
+        private RelayWorker worker;
         private int nbConnection = 0;
+        private TimingWheel.Timeout expiry; // prochaine vérification par le reaper
+        private long lastActivity; // octets relayés lors de la dernière vérification
+        private long lastActive;
+        private boolean reaped;
 
         /**
          * Creates a new {@code PrivateConnection} with the given initial values.
@@ -42,11 +107,63 @@ public class Server {
          * @param firstLogin the login of the first client
          * @param secondLogin the login of the second client
          * @param id the ID of this new private connection
+         * @param bucket the bandwidth limit of this private connection, {@code null} if there is none
          */
-        PrivateConnection(String firstLogin, String secondLogin, long id) {
+        PrivateConnection(String firstLogin, String secondLogin, long id, TokenBucket bucket) {
             privateSockets.put(Objects.requireNonNull(firstLogin), null);
             privateSockets.put(Objects.requireNonNull(secondLogin), null);
             this.id = id;
+            this.bucket = bucket;
+            name = null;
+            creator = firstLogin;
+            stats = new RelayStats(id, privateSockets.keySet());
+        }
+
+        /**
+         * Creates a new group {@code PrivateConnection}.
+         *
+         * @param name the name of the group, starting with {@code #}
+         * @param creator the login of the creator of the group
+         * @param members the logins of the invited clients
+         * @param id the ID of this new private connection
+         * @param bucket the bandwidth limit of this private connection, {@code null} if there is none
+         */
+        PrivateConnection(String name, String creator, Collection<String> members, long id, TokenBucket bucket) {
+            this.name = Objects.requireNonNull(name);
+            this.creator = Objects.requireNonNull(creator);
+            privateSockets.put(creator, null);
+            for (var member : members) {
+                privateSockets.put(Objects.requireNonNull(member), null);
+            }
+            this.id = id;
+            this.bucket = bucket;
+            stats = new RelayStats(id, privateSockets.keySet());
+        }
+
+        /**
+         * Returns the statistics of this private connection.
+         *
+         * @return the statistics
+         */
+        public RelayStats getStats() {
+            return stats;
+        }
+
+        /**
+         * Checks if this private connection is a group.
+         *
+         * @return {@code true} if this private connection has a name
+         */
+        public boolean isGroup() {
+            return name != null;
+        }
+
+        /**
+         * Checks if this private connection is designated by {@code login}, which is
+         * the login of one of its clients or the name of the group.
+         */
+        private boolean isDesignatedBy(String login) {
+            return privateSockets.containsKey(login) || login.equals(name);
         }
 
         /**
@@ -89,16 +206,26 @@ public class Server {
             return id;
         }
 
+        /**
+         * Returns the name of this group private connection.
+         *
+         * @return the name, starting with {@code #}, {@code null} if this private connection is not a group
+         */
+        public String getName() {
+            return name;
+        }
+
         /**
          * Checks if this private connection can still accept new clients
          * and increments the connection counter if so.
          * <p>
-         * Note : a private connection can only accept a maximum of two clients.
+         * Note : a private connection can only accept its two clients, a group its
+         * creator and its members.
          *
          * @return {@code true} if this private connection can still accept new clients.
          */
         public boolean addNewConnection() {
-            if (nbConnection < 2) {
+            if (nbConnection < privateSockets.size()) {
                 nbConnection++;
                 return true;
             }
@@ -131,16 +258,47 @@ public class Server {
         }
     }
 
-    private static final Logger logger = Logger.getLogger(Server.class.getName());
+    private static final AsyncLogger logger = AsyncLogger.getLogger(Server.class, "server");
+    private static final AsyncLogger connectionLogger = AsyncLogger.getLogger(Server.class, "connection");
+    private static final AsyncLogger privateLogger = AsyncLogger.getLogger(Server.class, "private");
+    private static final long AUTH_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chatos.auth.timeout", 30_000));
+    private static final long PENDING_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chatos.private.pendingTimeout", 60_000));
+    private static final long IDLE_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chatos.private.idleTimeout", 600_000));
+    private static final long HALF_CLOSED_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chatos.private.halfClosedTimeout", 30_000));
+    private static final long RESUME_GRACE = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chatos.resume.grace", 30_000));
+    private static final int RESUME_BACKLOG = Math.max(0, Integer.getInteger("chatos.resume.backlog", 1_024));
+    private static final long REAPER_TICK = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chatos.reaper.tick", 1_000));
+    static final int RELAY_BUFFER_SIZE = 65_536;
+    static final int MAX_POOLED_RELAY_BUFFERS = 64;
     private final ServerSocketChannel socketPublic;
     private final ServerSocketChannel socketPrivate;
     private SelectionKey privateKey;
     private SelectionKey publicKey;
     private final Selector selector;
-    private final HashSet<String> logins = new HashSet<>();
     private final int privatePort;
-    private final HashMap<String, SelectionKey> publicConnections = new HashMap<>();
+    private final HashMap<String, PublicSession> sessions = new HashMap<>();
+    private int detachedSessions;
     private final HashMap<String, List<PrivateConnection>> privateConnections = new HashMap<>();
+    private final HashMap<Long, PrivateConnection> privateConnectionsById = new HashMap<>();
+    private final DelayedTasks delayedTasks = new DelayedTasks();
+    private final TimingWheel reaper = new TimingWheel(REAPER_TICK,
+            Math.max(Math.max(Math.max(AUTH_TIMEOUT, PENDING_TIMEOUT), Math.max(IDLE_TIMEOUT, HALF_CLOSED_TIMEOUT)),
+                    RESUME_GRACE));
+    private final BandwidthLimits bandwidthLimits = new BandwidthLimits();
+    private final BufferPool relayBuffers = new BufferPool(RELAY_BUFFER_SIZE, MAX_POOLED_RELAY_BUFFERS);
+    private final RelayWorker[] relayWorkers;
+    private final boolean multiplexed = Boolean.getBoolean("chatos.private.multiplex");
+    private final SelectorQueue<AdminConsole.Request> adminCommands;
+    private final AdminConsole admin = new AdminConsole(this);
+    private final HashMap<String, TokenBucket> throttles = new HashMap<>();
+    private final int adminPort = Integer.getInteger("chatos.admin.port", -1);
+    private AdminEndpoint adminEndpoint;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final LoopMonitor loopMonitor = new LoopMonitor(metrics);
+    private final int metricsPort = Integer.getInteger("chatos.metrics.port", -1);
+    private MetricsEndpoint metricsEndpoint;
+    private final Thread console;
+    private int nextRelayWorker;
 
     public Server(int port, int privatePort) throws IOException {
         if (port <= 0 || privatePort < 0) {
@@ -148,52 +306,244 @@ public class Server {
         }
         this.privatePort = privatePort;
         selector = Selector.open();
+        adminCommands = new SelectorQueue<>(selector, 16);
         socketPublic = ServerSocketChannel.open();
         socketPublic.bind(new InetSocketAddress(port));
         socketPrivate = ServerSocketChannel.open();
         socketPrivate.bind(new InetSocketAddress(privatePort));
+        relayWorkers = new RelayWorker[Math.max(0, Integer.getInteger("chatos.relay.workers", 1))];
+        for (int i = 0; i < relayWorkers.length; i++) {
+            relayWorkers[i] = new RelayWorker(i);
+        }
+        console = new Thread(this::consoleRun, "admin-console");
+        console.setDaemon(true);
     }
 
-    public long getNewId() {
-        // TODO : à optimiser
-        var ids = new ArrayList<Long>();
-        var val = privateConnections.values();
-        for (var list : val) {
-            for (var pc : list) {
-                ids.add(pc.id);
+    /**
+     * Thread reading the administration commands on the standard input.
+     */
+    private void consoleRun() {
+        try (var scan = new Scanner(System.in)) {
+            while (scan.hasNextLine()) {
+                System.out.print(adminCommand(scan.nextLine()).join());
             }
         }
+    }
+
+    /**
+     * Runs an administration command on the main loop.
+     * <p>
+     *     Note : can be called from any thread.
+     * </p>
+     *
+     * @param command the command, as typed in the console
+     * @return the reply of the command
+     */
+    CompletableFuture<String> adminCommand(String command) {
+        var request = new AdminConsole.Request(command);
+        adminCommands.add(request);
+        return request.reply();
+    }
+
+    Collection<PublicSession> getSessions() {
+        return sessions.values();
+    }
+
+    int getDetachedSessions() {
+        return detachedSessions;
+    }
+
+    Collection<PrivateConnection> getPrivateConnections() {
+        return privateConnectionsById.values();
+    }
+
+    int getPendingTimeouts() {
+        return reaper.size();
+    }
+
+    /**
+     * Records bytes received from a client on its public socket, for the administration console.
+     * <p>
+     *     Note : must only be used from the thread of the main loop.
+     * </p>
+     *
+     * @param login the login of the client
+     * @param bytes the number of bytes
+     */
+    public void recordReceived(String login, int bytes) {
+        admin.bytesFrom(login, bytes);
+    }
+
+    /**
+     * Records a message sent by a client, for the administration console.
+     *
+     * @param login the login of the client
+     */
+    void recordMessage(String login) {
+        admin.messageFrom(login);
+    }
+
+    /**
+     * Disconnects a client at the request of the administrator : its session is forgotten
+     * at once, it can not be resumed.
+     *
+     * @param login the login of the client
+     * @return {@code true} if the client had a session
+     */
+    boolean kick(String login) {
+        var session = sessions.remove(login);
+        if (session == null) {
+            return false;
+        }
+        var key = session.close();
+        if (key == null) {
+            detachedSessions--;
+            return true;
+        }
+        var context = (ServerContext) key.attachment();
+        context.queueMessage(new ErrorShutdown("Vous avez été déconnecté par l'administrateur.").asByteBuffer());
+        try {
+            context.doWrite(); // au mieux, la socket est fermée juste après
+        } catch (IOException ignored) { }
+        context.silentlyClose();
+        connectionLogger.info("{0} déconnecté par l''administrateur", login);
+        return true;
+    }
+
+    /**
+     * Limits the bytes sent by a client, on its public socket and on its next private
+     * connections, until the limit is removed.
+     *
+     * @param login the login of the client
+     * @param bucket the limit, {@code null} to remove it
+     */
+    void throttle(String login, TokenBucket bucket) {
+        if (bucket == null) {
+            throttles.remove(login);
+        } else {
+            throttles.put(login, bucket);
+        }
+        bandwidthLimits.override(login, bucket);
+        var session = sessions.get(login);
+        if (session != null && session.getKey() != null) {
+            applyThrottle(login, session.getKey());
+        }
+    }
+
+    /**
+     * Returns the limit set by the administrator on a client.
+     *
+     * @param login the login of the client
+     * @return the number of bytes per second, {@code 0} if the client is not limited
+     */
+    long getThrottle(String login) {
+        var bucket = throttles.get(login);
+        return bucket == null ? 0 : bucket.getRate();
+    }
+
+    private void applyThrottle(String login, SelectionKey key) {
+        var bucket = throttles.get(login);
+        ((ServerContext) key.attachment()).setReadThrottle(bucket == null ? null : Throttle.of(bucket));
+    }
+
+    public long getNewId() {
         long id;
         do {
             id = ThreadLocalRandom.current().nextLong();
         }
-        while (ids.contains(id));
+        while (privateConnectionsById.containsKey(id));
         return id;
     }
 
-    public boolean registerNewPublicConnection(String login, SelectionKey key) {
-        if (logins.add(Objects.requireNonNull(login))) {
-            publicConnections.put(login, key);
-            return true;
+    /**
+     * Opens the session of a new client on the public port.
+     *
+     * @param login the {@code login} of the client
+     * @param key the key of its public connection
+     * @return the token resuming the session, {@code 0} if the login is already used,
+     * or kept for a client who lost its socket
+     */
+    public long registerNewPublicConnection(String login, SelectionKey key) {
+        if (sessions.containsKey(Objects.requireNonNull(login))) {
+            return 0;
         }
-        return false;
+        var session = new PublicSession(login, key, RESUME_BACKLOG);
+        sessions.put(login, session);
+        applyThrottle(login, key);
+        return session.getToken();
     }
 
-    public Optional<PrivateConnection> getPrivateConnection(String pseudo, long id) {
-        var a = privateConnections.get(pseudo);
-        for (var pc : a) {
-            if (pc.id == id) {
-                return Optional.of(pc);
+    /**
+     * Gives back its session to a client who lost its public socket, and sends it the
+     * messages it did not receive.
+     * <p>
+     *     If the session still has a socket, which the server did not see closed yet,
+     *     this socket is closed.
+     * </p>
+     *
+     * @param login the {@code login} of the client
+     * @param token the token given by its last confirmation
+     * @param received the number of messages received by the client
+     * @param key the key of its new public connection
+     * @return the new token of the session, {@code 0} if the session does not exist anymore
+     * or if the token is wrong
+     */
+    public long resumePublicConnection(String login, long token, long received, SelectionKey key) {
+        var session = sessions.get(Objects.requireNonNull(login));
+        if (session == null || token == 0 || session.getToken() != token) {
+            return 0;
+        }
+        var previous = session.attach(key);
+        if (previous == null) {
+            detachedSessions--;
+        } else {
+            ((Context) previous.attachment()).silentlyClose(); // ne désenregistre plus la session
+        }
+        applyThrottle(login, key);
+        var newToken = session.getToken();
+        privateBroadcast(new ConnectionConfirmation(ConnectionConfirmation.RESUMED, newToken), key);
+        var lost = session.replay(received);
+        if (lost > 0) {
+            privateBroadcast(new ErrorNoShutdown(lost + " message(s) perdu(s) pendant la déconnexion"), key);
+        }
+        return newToken;
+    }
+
+    /**
+     * Records that a client lost its public socket : its login is kept during the grace
+     * window, then the client is forgotten and its login can be used again.
+     *
+     * @param login the {@code login} of the client
+     * @param key the key of its public connection
+     */
+    public void unregisterPublicConnection(String login, SelectionKey key) {
+        var session = sessions.get(Objects.requireNonNull(login));
+        if (session == null || session.getKey() != key) {
+            return; // la session a déjà repris sur une autre socket
+        }
+        detachedSessions++;
+        session.detach(reaper.schedule(() -> {
+            if (sessions.get(login) == session && session.getKey() == null) {
+                sessions.remove(login);
+                detachedSessions--;
+                connectionLogger.info("{0} is now disconnected", login);
             }
+        }, RESUME_GRACE));
+    }
+
+    public Optional<PrivateConnection> getPrivateConnection(String pseudo, long id) {
+        var pc = privateConnectionsById.get(id);
+        if (pc != null && pc.privateSockets.containsKey(pseudo)) {
+            return Optional.of(pc);
         }
         return Optional.empty();
     }
 
     public Optional<PrivateConnection> getPrivateConnection(String pseudoA, String pseudoB) {
         // on vérifie que d'un côté, ça suffit sauf gros bug
-        var a = privateConnections.get(pseudoA);
+        var a = privateConnections.getOrDefault(pseudoA, List.of());
         for (var pc : a) {
-            if (pc.privateSockets.containsKey(pseudoB)) {
+            if (pc.isDesignatedBy(pseudoB)) {
                 return Optional.of(pc);
             }
         }
@@ -201,7 +551,7 @@ public class Server {
     }
 
     public Optional<PrivateConnection> getPrivateConnection(String pseudo, SelectionKey key) {
-        var a = privateConnections.get(pseudo);
+        var a = privateConnections.getOrDefault(pseudo, List.of());
         for (var pc : a) {
             if (pc.getKey(pseudo).equals(key)) {
                 return Optional.of(pc);
@@ -218,8 +568,110 @@ public class Server {
     public void successfulAuthentication(PrivateConnection privateConnection) {
         Objects.requireNonNull(privateConnection);
         for (var entry : privateConnection.privateSockets.entrySet()) {
-            entry.getValue().successfulAuthentication(entry.getKey());
+            var context = entry.getValue();
+            context.successfulAuthentication(entry.getKey());
+            // une socket multiplexée porte plusieurs connexions, seules les limites globales s'y appliquent
+            context.setReadThrottle(bandwidthLimits.throttle(entry.getKey(), multiplexed ? null : privateConnection.bucket));
         }
+        var contexts = new ArrayList<>(privateConnection.privateSockets.values());
+        var first = contexts.get(0);
+        var second = contexts.get(1);
+        var stats = privateConnection.stats;
+        startExpiry(privateConnection);
+        if (multiplexed) {
+            first.startStream(privateConnection.id, second, relayBuffers, stats.side(first.getLogin()));
+            second.startStream(privateConnection.id, first, relayBuffers, stats.side(second.getLogin()));
+            return;
+        }
+        first.setStats(stats.side(first.getLogin()));
+        second.setStats(stats.side(second.getLogin()));
+        if (relayWorkers.length == 0) { // relais dans la boucle principale
+            first.startRelay(second, relayBuffers);
+            second.startRelay(first, relayBuffers);
+            first.updateInterestOps();
+            second.updateInterestOps();
+            return;
+        }
+        first.getKey().cancel();
+        second.getKey().cancel();
+        var worker = nextRelayWorker();
+        privateConnection.worker = worker;
+        // le contexte en cours de traitement est transmis une fois son paquet traité
+        delayedTasks.schedule(() -> worker.handOff(new ServerContext[] { first, second }, pool -> {
+            first.startRelay(second, pool);
+            second.startRelay(first, pool);
+        }), 0);
+    }
+
+    private RelayWorker nextRelayWorker() {
+        var worker = relayWorkers[nextRelayWorker];
+        nextRelayWorker = (nextRelayWorker + 1) % relayWorkers.length;
+        return worker;
+    }
+
+    /**
+     * Adds an authenticated client to a group private connection, whose relay starts
+     * with its first member.
+     * <p>
+     *     All the members of a group are relayed by the same selector thread, since
+     *     they share their buffers.
+     * </p>
+     *
+     * @param privateConnection the group private connection
+     * @param login the login of the client
+     */
+    public void joinGroup(PrivateConnection privateConnection, String login) {
+        Objects.requireNonNull(privateConnection);
+        var context = privateConnection.privateSockets.get(Objects.requireNonNull(login));
+        context.successfulAuthentication(login);
+        context.setReadThrottle(bandwidthLimits.throttle(login, privateConnection.bucket));
+        context.setStats(privateConnection.stats.side(login));
+        if (privateConnection.group == null) {
+            startExpiry(privateConnection);
+            privateConnection.group = new RelayGroup(privateConnection.id);
+            if (relayWorkers.length != 0) {
+                privateConnection.worker = nextRelayWorker();
+            }
+        }
+        var group = privateConnection.group;
+        var isCreator = login.equals(privateConnection.creator);
+        var worker = privateConnection.worker;
+        if (worker == null) { // relais dans la boucle principale
+            context.joinGroup(group, isCreator, relayBuffers);
+            context.updateInterestOps();
+            return;
+        }
+        context.getKey().cancel();
+        delayedTasks.schedule(() -> worker.handOff(new ServerContext[] { context },
+                pool -> context.joinGroup(group, isCreator, pool)), 0);
+    }
+
+    /**
+     * Returns the metrics of this server.
+     *
+     * @return the metrics
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Checks if a client is connected on the public port.
+     *
+     * @param login the {@code login} of the client
+     * @return {@code true} if the client is connected
+     */
+    public boolean isConnected(String login) {
+        return sessions.containsKey(login);
+    }
+
+    /**
+     * Checks if the private connections are streams of a single private socket per client.
+     *
+     * @return {@code true} if the private sockets are multiplexed
+     */
+    public boolean isMultiplexed() {
+        return multiplexed;
     }
 
     /**
@@ -246,7 +698,7 @@ public class Server {
         var pcList = privateConnections.get(firstLogin);
         if (pcList != null) {
             for (var pc : pcList) {
-                if (pc.privateSockets.containsKey(secondLogin)) {
+                if (pc.isDesignatedBy(secondLogin)) {
                     return true;
                 }
             }
@@ -289,16 +741,175 @@ public class Server {
      * @param secondLogin the {@code login} of the second client
      */
     public void registerNewPrivateConnection(long id, String firstLogin, String secondLogin) {
-        var pc = new PrivateConnection(firstLogin, secondLogin, id);
+        var pc = new PrivateConnection(firstLogin, secondLogin, id, bandwidthLimits.newConnectionBucket());
         privateConnections.compute(firstLogin, computePrivateConnections(pc));
         privateConnections.compute(secondLogin, computePrivateConnections(pc));
+        privateConnectionsById.put(id, pc);
+        scheduleExpiry(pc, PENDING_TIMEOUT);
+    }
+
+    /**
+     * Creates a new group {@code PrivateConnection} and registers it for its creator
+     * and each invited client.
+     *
+     * @param id the ID of this new {@code PrivateConnection}
+     * @param name the name of the group
+     * @param creator the {@code login} of the creator
+     * @param members the {@code login} of the invited clients
+     */
+    public void registerNewGroup(long id, String name, String creator, Collection<String> members) {
+        var pc = new PrivateConnection(name, creator, members, id, bandwidthLimits.newConnectionBucket());
+        for (var login : pc.privateSockets.keySet()) {
+            privateConnections.compute(login, computePrivateConnections(pc));
+        }
+        privateConnectionsById.put(id, pc);
+        scheduleExpiry(pc, PENDING_TIMEOUT);
+    }
+
+    /**
+     * Removes a client who declined the invitation from a group.
+     *
+     * @param privateConnection the group private connection
+     * @param login the {@code login} of the client
+     */
+    public void leaveGroup(PrivateConnection privateConnection, String login) {
+        Objects.requireNonNull(login);
+        if (privateConnection.privateSockets.get(login) == null && !login.equals(privateConnection.creator)) {
+            privateConnection.privateSockets.remove(login);
+            unlist(login, privateConnection);
+        }
     }
 
     public void deletePrivateConnection(String firstLogin, String secondLogin) {
-        var a = privateConnections.get(firstLogin);
-        a.removeIf(pc -> pc.privateSockets.containsKey(secondLogin));
-        var b = privateConnections.get(secondLogin);
-        b.removeIf(pc -> pc.privateSockets.containsKey(firstLogin));
+        getPrivateConnection(firstLogin, secondLogin).ifPresent(this::removePrivateConnection);
+    }
+
+    /**
+     * Removes a {@code PrivateConnection} from the registry, for all its clients.
+     *
+     * @param privateConnection the private connection to remove
+     */
+    private void removePrivateConnection(PrivateConnection privateConnection) {
+        if (privateConnection.expiry != null) {
+            privateConnection.expiry.cancel();
+            privateConnection.expiry = null;
+        }
+        if (privateConnectionsById.remove(privateConnection.id) == null) {
+            return;
+        }
+        for (var login : privateConnection.privateSockets.keySet()) {
+            unlist(login, privateConnection);
+        }
+    }
+
+    private void unlist(String login, PrivateConnection privateConnection) {
+        var list = privateConnections.get(login);
+        if (list != null && list.remove(privateConnection) && list.isEmpty()) {
+            privateConnections.remove(login);
+        }
+    }
+
+    /**
+     * Replaces the next check of a private connection by the reaper.
+     *
+     * @param privateConnection the private connection
+     * @param delay the delay before the check, in nanoseconds
+     */
+    private void scheduleExpiry(PrivateConnection privateConnection, long delay) {
+        if (privateConnection.expiry != null) {
+            privateConnection.expiry.cancel();
+        }
+        privateConnection.expiry = reaper.schedule(() -> expire(privateConnection), delay);
+    }
+
+    /**
+     * Starts watching the relay of a private connection, which has just started.
+     */
+    private void startExpiry(PrivateConnection privateConnection) {
+        privateConnection.lastActive = System.nanoTime();
+        scheduleExpiry(privateConnection, Math.min(IDLE_TIMEOUT, HALF_CLOSED_TIMEOUT));
+    }
+
+    /**
+     * Checks a private connection whose timeout is over. A private connection which
+     * was not established in time, or whose relay stayed idle or half-closed for too
+     * long, is closed ; it is removed from the registry once closed, like a finished one.
+     * <p>
+     *     Note : the relay is only read through its statistics, since it may run on
+     *     another thread.
+     * </p>
+     */
+    private void expire(PrivateConnection privateConnection) {
+        privateConnection.expiry = null;
+        var stats = privateConnection.stats;
+        if (privateConnection.reaped || stats.isOver()) {
+            removePrivateConnection(privateConnection);
+            return;
+        }
+        if (!stats.isStarted()) {
+            privateLogger.info("Connexion privée {0,number,#} expirée avant d''être établie", privateConnection.id);
+            if (!multiplexed) { // une socket multiplexée porte aussi les autres connexions du client
+                for (var context : privateConnection.privateSockets.values()) {
+                    if (context != null) {
+                        context.silentlyClose();
+                    }
+                }
+            }
+            removePrivateConnection(privateConnection);
+            return;
+        }
+        var now = System.nanoTime();
+        var activity = stats.activity();
+        if (activity != privateConnection.lastActivity) {
+            privateConnection.lastActivity = activity;
+            privateConnection.lastActive = now;
+        }
+        var left = stats.leftSince(privateConnection.isGroup() ? privateConnection.creator : null);
+        if (left != 0 && now - left >= HALF_CLOSED_TIMEOUT) {
+            privateLogger.info("Connexion privée {0,number,#} à moitié fermée depuis trop longtemps", privateConnection.id);
+            closeRelay(privateConnection);
+            return;
+        }
+        if (now - privateConnection.lastActive >= IDLE_TIMEOUT) {
+            privateLogger.info("Connexion privée {0,number,#} inactive depuis trop longtemps", privateConnection.id);
+            closeRelay(privateConnection);
+            return;
+        }
+        // les connexions terminées sont retirées au plus tard après HALF_CLOSED_TIMEOUT
+        var delay = Math.min(IDLE_TIMEOUT - (now - privateConnection.lastActive),
+                left != 0 ? HALF_CLOSED_TIMEOUT - (now - left) : HALF_CLOSED_TIMEOUT);
+        scheduleExpiry(privateConnection, delay);
+    }
+
+    /**
+     * Closes the relay of a private connection on the thread relaying it, and removes
+     * the private connection from the registry at the next tick.
+     */
+    private void closeRelay(PrivateConnection privateConnection) {
+        privateConnection.reaped = true;
+        scheduleExpiry(privateConnection, 0);
+        if (multiplexed) { // seul le flux est fermé, la socket porte les autres connexions
+            for (var context : privateConnection.privateSockets.values()) {
+                if (context != null && context.isOpen()) {
+                    context.onStreamClose(privateConnection.id);
+                    context.queueMessage(Packets.ofStreamClose(privateConnection.id).flip());
+                }
+            }
+            return;
+        }
+        Runnable close = () -> {
+            for (var context : privateConnection.privateSockets.values()) {
+                if (context != null) {
+                    context.silentlyClose();
+                }
+            }
+        };
+        var worker = privateConnection.worker;
+        if (worker != null) {
+            worker.execute(close);
+        } else {
+            close.run();
+        }
     }
 
     /**
@@ -312,20 +923,35 @@ public class Server {
             if ((sc = socketPublic.accept()) != null) {
                 sc.configureBlocking(false);
                 var clientKey = sc.register(selector, SelectionKey.OP_READ);
-                clientKey.attach(new ServerContext(clientKey, this));
+                expireIfAnonymous(new ServerContext(clientKey, this));
                 return;
             }
         } else if (key.equals(privateKey)) {
             if ((sc = socketPrivate.accept()) != null) {
                 sc.configureBlocking(false);
                 var clientKey = sc.register(selector, SelectionKey.OP_READ);
-                clientKey.attach(new ServerContext(clientKey, this));
+                expireIfAnonymous(new ServerContext(clientKey, this));
                 return;
             }
         }
         logger.info("The selector was wrong.");
     }
 
+    /**
+     * Attaches the context of a new socket to its key, and closes it if the client
+     * does not authenticate in time. The context cancels this expiry once its login
+     * is set or its socket is closed.
+     */
+    private void expireIfAnonymous(ServerContext context) {
+        context.getKey().attach(context);
+        context.setAuthTimeout(reaper.schedule(() -> {
+            if (context.getLogin() == null && context.isOpen()) {
+                connectionLogger.info("Connexion fermée faute d'authentification");
+                context.silentlyClose();
+            }
+        }, AUTH_TIMEOUT));
+    }
+
     /**
      * Start the main server loop.
      *
@@ -339,15 +965,65 @@ public class Server {
         socketPrivate.configureBlocking(false);
         privateKey = socketPrivate.register(selector, SelectionKey.OP_ACCEPT);
 
+        for (var worker : relayWorkers) {
+            worker.start();
+        }
+        console.start();
+        if (metricsPort >= 0) {
+            metricsEndpoint = new MetricsEndpoint(metrics.registry(), metricsPort);
+            logger.info("Metrics served on http://localhost:{0,number,#}/metrics", metricsEndpoint.getPort());
+        }
+        if (adminPort >= 0) {
+            var token = System.getProperty("chatos.admin.token");
+            if (token == null || token.isBlank()) {
+                token = AdminEndpoint.newToken();
+                System.out.println("Jeton de la console d'administration : " + token);
+            }
+            adminEndpoint = new AdminEndpoint(adminCommands, adminPort, token);
+            logger.info("Admin console served on localhost:{0,number,#}", adminEndpoint.getPort());
+        }
+
+        loopMonitor.start();
         while (!Thread.interrupted()) {
             try {
-                selector.select(this::treatKey);
+                loopMonitor.selecting();
+                var keys = selector.select(this::treatKey, nextTimeout());
+                loopMonitor.woken();
+                var tasks = delayedTasks.runDue() + reaper.runDue() + adminCommands.drain(admin::run);
+                metrics.loopIteration(sessions.size(), detachedSessions, privateConnectionsById.size());
+                loopMonitor.turnDone(keys, tasks);
             } catch (UncheckedIOException tunneled) {
                 throw tunneled.getCause();
             }
         }
     }
 
+    /**
+     * Returns the time the main loop can wait before the next delayed task or tick of the reaper.
+     *
+     * @return the timeout in milliseconds, {@code 0} to wait without limit
+     */
+    private long nextTimeout() {
+        var task = delayedTasks.nextTimeout();
+        var tick = reaper.nextTimeout();
+        if (task == 0 || tick == 0) {
+            return Math.max(task, tick);
+        }
+        return Math.min(task, tick);
+    }
+
+    /**
+     * Returns the actions delayed by the main loop.
+     * <p>
+     *     Note : must only be used from the thread of the main loop.
+     * </p>
+     *
+     * @return the delayed tasks of the main loop
+     */
+    public DelayedTasks getDelayedTasks() {
+        return delayedTasks;
+    }
+
     /**
      * Try to close the socket link to the specified {@code key}.
      * If an exception is thrown, it is ignored.
@@ -364,6 +1040,7 @@ public class Server {
      * @param key If some other I/O error occurs.
      */
     private void treatKey(SelectionKey key) {
+        loopMonitor.woken();
         try {
             if (key.isValid() && key.isAcceptable()) {
                 doAccept(key);
@@ -380,8 +1057,8 @@ public class Server {
                 ((Context) key.attachment()).doRead();
             }
         } catch (IOException e) {
-            logger.log(Level.INFO,"Connection closed with client due to IOException", e);
-            silentlyClose(key);
+            connectionLogger.log(Level.INFO, "Connection closed with client due to IOException", e);
+            ((Context) key.attachment()).silentlyClose();
         }
     }
 
@@ -391,10 +1068,16 @@ public class Server {
      * @param packet the packet to send
      */
 	public void publicBroadcast(Packet packet) {
-	    for (var a : publicConnections.values()) {
-	        var context = (Context) a.attachment(); // ne peut pas être null
-            context.queueMessage(packet.asByteBuffer());
+	    var event = FanOutEvent.start();
+	    var start = System.nanoTime();
+	    var frame = packet.asByteBuffer(); // partagé par toutes les sessions
+	    for (var session : sessions.values()) {
+	        session.deliver(frame);
         }
+	    metrics.fanOut(System.nanoTime() - start);
+	    if (event != null) {
+	        event.finish(frame.get(frame.position()), sessions.size(), frame.remaining());
+	    }
 	}
 
     /**
@@ -405,10 +1088,16 @@ public class Server {
      * @param login the login of the recipient client
      */
     public void privateBroadcast(Packet packet, String login) {
-        var key = publicConnections.get(login);
-        if (key != null) {
-            var context = (Context) key.attachment();
-            context.queueMessage(packet.asByteBuffer());
+        var session = sessions.get(login);
+        if (session != null) {
+            var event = FanOutEvent.start();
+            var start = System.nanoTime();
+            var frame = packet.asByteBuffer();
+            session.deliver(frame); // gardé pour la reprise si c'est un message
+            metrics.fanOut(System.nanoTime() - start);
+            if (event != null) {
+                event.finish(frame.get(frame.position()), 1, frame.remaining());
+            }
         } else {
             // TODO : envoyer un paquet d'erreur au client lui indiquant que le pseudo n'existe pas
         }
@@ -0,0 +1,233 @@
+package fr.uge.chatos.server;
+
+import fr.uge.chatos.metrics.Histogram;
+import fr.uge.chatos.metrics.MetricsRegistry;
+import fr.uge.chatos.metrics.OpCodeCounter;
+import fr.uge.chatos.metrics.OpCodeHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics of the server.
+ * <p>
+ *     The contexts and the loops record their activity here, on their own thread and
+ *     without allocation. The gauges are published by the main loop at each turn, so
+ *     that the thread serving the metrics never reads the structures of the loop.
+ * </p>
+ * <p>
+ *     The sizes of the frames received, by opcode, also give the size of the buffers
+ *     of the new connections : see {@link #typicalFrameSize()}.
+ * </p>
+ */
+public class ServerMetrics {
+    private static final long[] COUNT_BOUNDS = {0, 1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1_024};
+    private static final long[] FRAME_BOUNDS = Histogram.logLinearBounds(16, 65_536, 2);
+    private static final long[] BUFFER_BOUNDS = Histogram.logLinearBounds(64, 1 << 20, 1);
+    private static final long FRAME_SIZE_PERIOD = TimeUnit.SECONDS.toNanos(1);
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final OpCodeCounter framesReceived = registry.opCodeCounter("chatos_frames_received_total",
+            "Frames decoded, by opcode.");
+    private final OpCodeCounter framesSent = registry.opCodeCounter("chatos_frames_sent_total",
+            "Frames queued to the clients, by opcode.");
+    private final OpCodeHistogram frameSizesReceived = registry.opCodeHistogram("chatos_frame_received_bytes",
+            "Size of the frames decoded, by opcode.", FRAME_BOUNDS);
+    private final OpCodeHistogram frameSizesSent = registry.opCodeHistogram("chatos_frame_sent_bytes",
+            "Size of the frames queued to the clients, by opcode.", FRAME_BOUNDS);
+    private final Histogram frameSizes = new Histogram(FRAME_BOUNDS); // toutes les trames reçues
+    private final LongAdder bytesReceived = registry.counter("chatos_bytes_received_total",
+            "Bytes read from the sockets, relays included.");
+    private final LongAdder bytesSent = registry.counter("chatos_bytes_sent_total",
+            "Bytes written on the sockets, relays included.");
+    private final LongAdder queuedBytes = new LongAdder();
+    private final LongAdder loopIterations = registry.counter("chatos_selector_iterations_total",
+            "Turns of the main selector loop.");
+    private final Histogram decode = registry.durationHistogram("chatos_decode_seconds",
+            "Time spent decoding a frame.", Histogram.LATENCY_BOUNDS);
+    private final Histogram fanOut = registry.durationHistogram("chatos_fanout_seconds",
+            "Time spent queuing a message to its recipients.", Histogram.LATENCY_BOUNDS);
+    private final Histogram selectorWait = registry.durationHistogram("chatos_selector_wait_seconds",
+            "Time the main loop waited in select.", Histogram.LATENCY_BOUNDS);
+    private final Histogram selectorProcessing = registry.durationHistogram("chatos_selector_processing_seconds",
+            "Time the main loop spent on a turn, from the end of select to the next select.", Histogram.LATENCY_BOUNDS);
+    private final Histogram selectorKeys = registry.histogram("chatos_selector_keys",
+            "Keys handled per turn of the main loop.", COUNT_BOUNDS);
+    private final Histogram selectorTasks = registry.histogram("chatos_selector_tasks",
+            "Delayed tasks, timeouts and admin commands run per turn of the main loop.", COUNT_BOUNDS);
+    private final LongAdder selectorStalls = registry.counter("chatos_selector_stalls_total",
+            "Turns of the main loop which exceeded the threshold of the watchdog.");
+    private final LongAdder bufferBytes = new LongAdder();
+    private final Histogram bufferSizes = registry.histogram("chatos_buffer_size_bytes",
+            "Sizes chosen for the input and output buffers of the contexts, at their creation and at each resize.",
+            BUFFER_BOUNDS);
+    private final LongAdder buffersGrown = registry.counter("chatos_buffers_grown_total",
+            "Buffers of a context replaced by a larger one.");
+    private final LongAdder buffersShrunk = registry.counter("chatos_buffers_shrunk_total",
+            "Buffers of a context replaced by a smaller one.");
+    private int frameSize; // lu et mis à jour par la boucle principale
+    private long frameSizeUpdate;
+    private volatile long sessions;
+    private volatile long detachedSessions;
+    private volatile long privateConnections;
+
+    ServerMetrics() {
+        registry.gauge("chatos_sessions", "Clients connected on the public port.", () -> sessions);
+        registry.gauge("chatos_sessions_detached", "Clients which lost their public socket and can resume.",
+                () -> detachedSessions);
+        registry.gauge("chatos_private_connections", "Private connections, pending or established.",
+                () -> privateConnections);
+        registry.gauge("chatos_outbound_queue_bytes", "Bytes queued to the clients, not yet in an output buffer.",
+                queuedBytes::sum);
+        registry.gauge("chatos_buffer_bytes", "Bytes of the input and output buffers of the open contexts.",
+                bufferBytes::sum);
+    }
+
+    /**
+     * Returns the registry of these metrics.
+     *
+     * @return the registry
+     */
+    public MetricsRegistry registry() {
+        return registry;
+    }
+
+    /**
+     * Records a frame decoded.
+     *
+     * @param opCode the opcode of the frame
+     * @param nanos the time spent decoding it
+     * @param bytes the size of the frame
+     */
+    public void frameReceived(byte opCode, long nanos, int bytes) {
+        framesReceived.increment(opCode);
+        decode.record(nanos);
+        frameSizesReceived.record(opCode, bytes);
+        frameSizes.record(bytes);
+    }
+
+    /**
+     * Records a frame queued to a client.
+     *
+     * @param opCode the opcode of the frame
+     * @param bytes the size of the frame
+     */
+    public void frameQueued(byte opCode, int bytes) {
+        framesSent.increment(opCode);
+        frameSizesSent.record(opCode, bytes);
+        queuedBytes.add(bytes);
+    }
+
+    /**
+     * Returns the size of most of the frames received : the 99th percentile, recomputed
+     * at most once per second.
+     * <p>
+     *     Note : to be called from the main loop only.
+     * </p>
+     *
+     * @return the size in bytes, {@code 0} if no frame has been received yet
+     */
+    public int typicalFrameSize() {
+        var now = System.nanoTime();
+        if (frameSizeUpdate == 0 || now - frameSizeUpdate >= FRAME_SIZE_PERIOD) {
+            frameSize = (int) Math.min(Integer.MAX_VALUE, frameSizes.percentile(99));
+            frameSizeUpdate = now;
+        }
+        return frameSize;
+    }
+
+    /**
+     * Records the allocation, the resize or the release of a buffer of a context.
+     *
+     * @param previous the previous size of the buffer, {@code 0} if it is allocated
+     * @param size the new size of the buffer, {@code 0} if it is released
+     */
+    public void bufferResized(int previous, int size) {
+        bufferBytes.add(size - previous);
+        if (size == 0) {
+            return;
+        }
+        bufferSizes.record(size);
+        if (previous != 0) {
+            (size > previous ? buffersGrown : buffersShrunk).increment();
+        }
+    }
+
+    /**
+     * Records bytes leaving the queue of a client, sent or dropped with its socket.
+     *
+     * @param bytes the number of bytes
+     */
+    public void dequeued(long bytes) {
+        queuedBytes.add(-bytes);
+    }
+
+    /**
+     * Records bytes read from a socket.
+     *
+     * @param bytes the number of bytes
+     */
+    public void bytesReceived(int bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    /**
+     * Records bytes written on a socket.
+     *
+     * @param bytes the number of bytes
+     */
+    public void bytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Records a message queued to its recipients.
+     *
+     * @param nanos the time spent queuing it
+     */
+    void fanOut(long nanos) {
+        fanOut.record(nanos);
+    }
+
+    /**
+     * Records the measurements of a turn of the main loop.
+     *
+     * @param wait the time spent waiting in select, in nanoseconds
+     * @param processing the time spent on the keys and the tasks, in nanoseconds
+     * @param keys the number of keys handled
+     * @param tasks the number of tasks run
+     */
+    void selectorTurn(long wait, long processing, int keys, int tasks) {
+        selectorWait.record(wait);
+        selectorProcessing.record(processing);
+        selectorKeys.record(keys);
+        selectorTasks.record(tasks);
+    }
+
+    /**
+     * Records a turn of the main loop caught by the watchdog.
+     */
+    void selectorStalled() {
+        selectorStalls.increment();
+    }
+
+    /**
+     * Publishes the time the current turn of the main loop has been running.
+     *
+     * @param lag the duration in nanoseconds, {@code 0} while the loop waits in select
+     */
+    void selectorLag(LongSupplier lag) {
+        registry.durationGauge("chatos_selector_lag_seconds",
+                "Time the current turn of the main loop has been running, 0 while it waits in select.", lag);
+    }
+
+    /**
+     * Records a turn of the main loop, with the size of its registries.
+     */
+    void loopIteration(int sessions, int detachedSessions, int privateConnections) {
+        loopIterations.increment();
+        this.sessions = sessions;
+        this.detachedSessions = detachedSessions;
+        this.privateConnections = privateConnections;
+    }
+}
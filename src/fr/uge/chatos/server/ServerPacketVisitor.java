@@ -1,19 +1,22 @@
 package fr.uge.chatos.server;
 
 import fr.uge.chatos.context.ServerContext;
+import fr.uge.chatos.logging.AsyncLogger;
 import fr.uge.chatos.packet.*;
 import fr.uge.chatos.visitor.PacketVisitor;
 
+import java.util.LinkedHashSet;
 import java.util.Objects;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.logging.Logger;
 
 /**
  * Using the visitor pattern, any packet receive from a client will trigger a certain operation.
  */
 
 public class ServerPacketVisitor implements PacketVisitor {
-    private static final Logger logger = Logger.getLogger(ServerPacketVisitor.class.getName());
+    private static final AsyncLogger connectionLogger = AsyncLogger.getLogger(ServerPacketVisitor.class, "connection");
+    private static final AsyncLogger messageLogger = AsyncLogger.getLogger(ServerPacketVisitor.class, "message");
+    private static final AsyncLogger privateLogger = AsyncLogger.getLogger(ServerPacketVisitor.class, "private");
     private final Server server;
     private final ServerContext context;
 
@@ -39,9 +42,11 @@ public class ServerPacketVisitor implements PacketVisitor {
     public void visit(ConnectionRequest connectionRequest) {
         var login = connectionRequest.sender;
         context.setLogin(login);
-        if (server.registerNewPublicConnection(login, context.getKey())) {
-            server.privateBroadcast(connectionRequest, login);
-            logger.info(login + " is now connected");
+        var token = server.registerNewPublicConnection(login, context.getKey());
+        if (token != 0) {
+            context.setPublicConnection();
+            server.privateBroadcast(new ConnectionConfirmation(ConnectionConfirmation.ACCEPTED, token), context.getKey());
+            connectionLogger.info("{0} is now connected", login);
         } else {
             var error = new ErrorShutdown("The pseudo \"" + login + "\" is already used by someone else.");
             server.privateBroadcast(error, context.getKey());
@@ -54,13 +59,50 @@ public class ServerPacketVisitor implements PacketVisitor {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Resume the session of a client who lost its public socket. If the session can not
+     * be resumed, the request is handled as a new connection request.
+     */
+    @Override
+    public void visit(ConnectionResume connectionResume) {
+        var login = connectionResume.login;
+        context.setLogin(login);
+        if (server.resumePublicConnection(login, connectionResume.token, connectionResume.received,
+                context.getKey()) != 0) {
+            context.setPublicConnection();
+            connectionLogger.info("{0} resumed its session", login);
+            return;
+        }
+        var request = new ConnectionRequest();
+        request.sender = login;
+        visit(request);
+    }
+
     /**
      * Send a message to everyone.
      */
     @Override
     public void visit(PublicMessage publicMessage) {
         server.publicBroadcast(publicMessage);
-        logger.info(publicMessage.sender + " send a public message");
+        recordMessage();
+        messageLogger.info("{0} send a public message", publicMessage.sender);
+    }
+
+    /**
+     * Deliver a latency probe to everyone, or to its recipient. Its ingress time was set
+     * when it was read, its egress time is set for each recipient by its context.
+     */
+    @Override
+    public void visit(LatencyProbe latencyProbe) {
+        latencyProbe.sender = context.getLogin();
+        if (latencyProbe.sender == null) {
+            return; // client pas encore connecté
+        }
+        if (latencyProbe.recipient.isEmpty()) {
+            server.publicBroadcast(latencyProbe);
+        } else {
+            server.privateBroadcast(latencyProbe, latencyProbe.recipient);
+        }
     }
 
     /**
@@ -69,7 +111,15 @@ public class ServerPacketVisitor implements PacketVisitor {
     @Override
     public void visit(PrivateMessage privateMessage) {
         server.privateBroadcast(privateMessage, privateMessage.recipient);
-        logger.info(privateMessage.sender + " send a private message to " + privateMessage.recipient);
+        recordMessage();
+        messageLogger.info("{0} send a private message to {1}", privateMessage.sender, privateMessage.recipient);
+    }
+
+    private void recordMessage() {
+        var login = context.getLogin();
+        if (login != null) {
+            server.recordMessage(login);
+        }
     }
 
     /**
@@ -85,7 +135,7 @@ public class ServerPacketVisitor implements PacketVisitor {
         var id = server.getNewId();
         server.registerNewPrivateConnection(id, pcr.sender, pcr.recipient);
         server.privateBroadcast(pcr, pcr.recipient);
-        logger.info("Demande de confirmation pour la connexion privée entre : " + pcr.sender + " et " + pcr.recipient);
+        privateLogger.info("Demande de confirmation pour la connexion privée entre : {0} et {1}", pcr.sender, pcr.recipient);
     }
 
     /**
@@ -96,10 +146,15 @@ public class ServerPacketVisitor implements PacketVisitor {
     public void visit(PCSockets pcs) {
         pcs.port = server.getPrivatePort();
         pcs.recipient = context.getLogin();
+        pcs.multiplexed = server.isMultiplexed();
+        if (pcs.sender.startsWith(GroupRequest.PREFIX)) {
+            replyToGroup(pcs);
+            return;
+        }
         if (pcs.reply == 0) {
             server.deletePrivateConnection(pcs.sender, pcs.recipient);
             // TODO : avertir le sender que la connexion a été refusée
-            logger.info("Refus de connexion privée entre " + pcs.sender + " et " + pcs.recipient);
+            privateLogger.info("Refus de connexion privée entre {0} et {1}", pcs.sender, pcs.recipient);
             return;
         }
         var pcOptional = server.getPrivateConnection(pcs.sender, pcs.recipient);
@@ -108,8 +163,61 @@ public class ServerPacketVisitor implements PacketVisitor {
             pcs.id = pc.getId();
             server.privateBroadcast(pcs, pcs.sender);
             server.privateBroadcast(pcs, pcs.recipient);
-            logger.info("Envoi de l'identifiant et du numéro de port");
+            privateLogger.info("Envoi de l'identifiant et du numéro de port");
+        }
+    }
+
+    /**
+     * Sends the group's id to the client who accepted the invitation, or removes him from the group.
+     */
+    private void replyToGroup(PCSockets pcs) {
+        var pcOptional = server.getPrivateConnection(pcs.recipient, pcs.sender);
+        if (pcOptional.isEmpty() || !pcOptional.get().isGroup()) {
+            return;
+        }
+        var pc = pcOptional.get();
+        if (pcs.reply == 0) {
+            server.leaveGroup(pc, pcs.recipient);
+            privateLogger.info("{0} a refusé de rejoindre le groupe {1}", pcs.recipient, pcs.sender);
+            return;
+        }
+        pcs.id = pc.getId();
+        server.privateBroadcast(pcs, pcs.recipient);
+    }
+
+    /**
+     * Creates a group private connection, sends its id to its creator and invites its members.
+     */
+    @Override
+    public void visit(GroupRequest groupRequest) {
+        groupRequest.sender = context.getLogin();
+        var name = groupRequest.name;
+        if (server.isMultiplexed() || !name.startsWith(GroupRequest.PREFIX)
+                || server.checkIfPrivateConnectionExists(groupRequest.sender, name)) {
+            return; // paquet ignoré
+        }
+        var members = new LinkedHashSet<String>();
+        for (var member : groupRequest.members) {
+            if (!member.equals(groupRequest.sender) && server.isConnected(member)) {
+                members.add(member);
+            }
+        }
+        if (members.isEmpty()) {
+            return;
+        }
+        var id = server.getNewId();
+        server.registerNewGroup(id, name, groupRequest.sender, members);
+        var sockets = new PCSockets();
+        sockets.id = id;
+        sockets.sender = sockets.recipient = name; // les clients désignent le groupe par son nom
+        sockets.port = server.getPrivatePort();
+        server.privateBroadcast(sockets, groupRequest.sender);
+        var invitation = new PCRequest();
+        invitation.sender = name;
+        for (var member : members) {
+            server.privateBroadcast(invitation, member);
         }
+        privateLogger.info("Création du groupe {0} par {1} avec {2}", name, groupRequest.sender, members);
     }
 
     /**
@@ -117,21 +225,29 @@ public class ServerPacketVisitor implements PacketVisitor {
      */
     @Override
     public void visit(PCAuth pcc) {
+        if (pcc.multiplexed != server.isMultiplexed()) {
+            privateLogger.info("Erreur : mode de connexion privée inattendu pour {0}", pcc.login);
+            return;
+        }
         var pcOptional = server.getPrivateConnection(pcc.login, pcc.id);
         if (pcOptional.isPresent()) {
             var pc = pcOptional.get();
             if (!pc.addNewConnection()) {
-                logger.info("Erreur : trop de client se sont connecté sur cette connexion privée.");
+                privateLogger.info("Erreur : trop de client se sont connecté sur cette connexion privée.");
                 return;
             }
             pc.updateOneContext(pcc.login, context);
+            context.setLogin(pcc.login); // la socket n'est plus anonyme
 
-            if (pc.getNbConnection() == 2) {
+            if (pc.isGroup()) { // chaque membre est relayé dès son arrivée
+                context.queueMessage(pcc.asByteBuffer());
+                server.joinGroup(pc, pcc.login);
+            } else if (pc.getNbConnection() == 2) {
                 for (var pseudo : pc.getPseudos()) {
                     server.privateConnectionBroadcast(pcc, pc, pseudo);
                 }
                 server.successfulAuthentication(pc);
-                logger.info("Envoi de la confirmation de l'établissement de la connexion privée");
+                privateLogger.info("Envoi de la confirmation de l'établissement de la connexion privée");
             }
         }
     }
@@ -153,8 +269,6 @@ public class ServerPacketVisitor implements PacketVisitor {
         if (pcOptional.isPresent()) {
             var pc = pcOptional.get();
             server.privateConnectionBroadcast(data, pc, data.getSender());
-            logger.info("Transfert de données sur la connexion privée entre " + pc.getPseudos());
-
         }
 
     }
@@ -169,4 +283,22 @@ public class ServerPacketVisitor implements PacketVisitor {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Forward the data of a stream to the other client.
+     */
+    @Override
+    public void visit(StreamData streamData) {
+        context.onStreamData(streamData.getId(), streamData.getLength());
+    }
+
+    @Override
+    public void visit(StreamWindow streamWindow) {
+        context.onStreamWindow(streamWindow.getId(), streamWindow.getIncrement());
+    }
+
+    @Override
+    public void visit(StreamClose streamClose) {
+        context.onStreamClose(streamClose.getId());
+    }
+
 }
@@ -0,0 +1,194 @@
+package fr.uge.chatos.server;
+
+import java.util.Objects;
+
+/**
+ * A hashed timing wheel running actions after long delays, such as the expiry of
+ * the sessions of the server.
+ * <p>
+ *     The time is divided in ticks, and each slot of the wheel holds the actions due
+ *     during one tick, in a doubly-linked list : scheduling and cancelling an action
+ *     cost O(1), whatever the number of actions waiting. The wheel covers at least the
+ *     longest delay it is created for, so a slot only holds actions due at its tick and
+ *     a tick costs O(expired). An action scheduled beyond the span of the wheel is put
+ *     back in the wheel each time its slot is reached.
+ * </p>
+ * <p>
+ *     Unlike {@link DelayedTasks}, the actions run up to one tick after their deadline.
+ * </p>
+ * <p>
+ *     Note : the actions are only scheduled and run by the thread of the selector,
+ *     this class is not thread-safe.
+ * </p>
+ */
+public class TimingWheel {
+
+    /**
+     * An action waiting in the wheel, which can be cancelled.
+     */
+    public final class Timeout {
+        private final Runnable action;
+        private final long deadline; // en ticks
+        private Timeout previous;
+        private Timeout next;
+        private boolean scheduled;
+        private boolean cancelled;
+
+        private Timeout(Runnable action, long deadline) {
+            this.action = action;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels this action, if it has not run yet.
+         */
+        public void cancel() {
+            cancelled = true;
+            if (scheduled) {
+                unlink(this);
+            }
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] slots; // tête de la liste de chaque slot
+    private final int mask;
+    private final long origin = System.nanoTime();
+    private long currentTick;
+    private int size;
+
+    /**
+     * Creates a new wheel.
+     *
+     * @param tickNanos the duration of a tick, in nanoseconds
+     * @param maxDelay the longest delay usually scheduled, in nanoseconds
+     */
+    public TimingWheel(long tickNanos, long maxDelay) {
+        if (tickNanos <= 0 || maxDelay < 0) {
+            throw new IllegalArgumentException("tick must be positive and delay can't be negative");
+        }
+        this.tickNanos = tickNanos;
+        var ticks = maxDelay / tickNanos + 2; // le tick en cours et l'arrondi du délai
+        var length = Integer.highestOneBit((int) Math.min(ticks, 1 << 20) - 1) << 1;
+        slots = new Timeout[length];
+        mask = length - 1;
+    }
+
+    /**
+     * Runs an action after the specified delay, give or take a tick.
+     *
+     * @param action the action to run
+     * @param delay the delay in nanoseconds
+     * @return the handle cancelling the action
+     */
+    public Timeout schedule(Runnable action, long delay) {
+        var ticks = Math.max(1, (delay + tickNanos - 1) / tickNanos);
+        var timeout = new Timeout(Objects.requireNonNull(action), tick(System.nanoTime()) + ticks);
+        link(timeout);
+        return timeout;
+    }
+
+    /**
+     * Returns the number of actions waiting in the wheel.
+     *
+     * @return the number of actions
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the time the selector can wait before the next tick.
+     *
+     * @return the timeout in milliseconds, {@code 0} to wait without limit if the wheel is empty
+     */
+    long nextTimeout() {
+        if (size == 0) {
+            return 0;
+        }
+        var nanos = (currentTick + 1) * tickNanos - (System.nanoTime() - origin);
+        return Math.max(1, (nanos + 999_999) / 1_000_000);
+    }
+
+    /**
+     * Runs the actions whose tick is over.
+     *
+     * @return the number of actions run
+     */
+    int runDue() {
+        var now = tick(System.nanoTime());
+        if (size == 0) {
+            currentTick = now;
+            return 0;
+        }
+        // après une longue attente, chaque slot n'est parcouru qu'une fois
+        var last = Math.min(now, currentTick + slots.length);
+        var count = 0;
+        while (currentTick < last) {
+            currentTick++;
+            count += expire((int) (currentTick & mask), now);
+        }
+        currentTick = now;
+        return count;
+    }
+
+    private int expire(int slot, long now) {
+        // les actions échues sont retirées avant d'être lancées, car elles peuvent modifier la roue
+        Timeout expired = null;
+        var timeout = slots[slot];
+        while (timeout != null) {
+            var next = timeout.next;
+            if (timeout.deadline <= now) {
+                unlink(timeout);
+                timeout.next = expired;
+                expired = timeout;
+            } else if (timeout.deadline > currentTick + mask) { // au-delà de la portée de la roue
+                unlink(timeout);
+                link(timeout);
+            }
+            timeout = next;
+        }
+        var count = 0;
+        while (expired != null) {
+            var next = expired.next;
+            expired.next = null;
+            if (!expired.cancelled) {
+                expired.action.run();
+                count++;
+            }
+            expired = next;
+        }
+        return count;
+    }
+
+    private long tick(long nanos) {
+        return (nanos - origin) / tickNanos;
+    }
+
+    private void link(Timeout timeout) {
+        var slot = (int) (timeout.deadline & mask);
+        var head = slots[slot];
+        timeout.previous = null;
+        timeout.next = head;
+        if (head != null) {
+            head.previous = timeout;
+        }
+        slots[slot] = timeout;
+        timeout.scheduled = true;
+        size++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            slots[(int) (timeout.deadline & mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = timeout.next = null;
+        timeout.scheduled = false;
+        size--;
+    }
+}
@@ -0,0 +1,161 @@
+package fr.uge.chatos.server;
+
+import fr.uge.chatos.utils.CountMinSketch;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The logins which sent the most over a sliding window, such as messages or bytes.
+ * <p>
+ *     The window is split in {@value #SLICES} slices, each counted by a
+ *     {@link CountMinSketch} : the oldest slice is cleared when a new one starts, and
+ *     a count over the window is the sum of the slices. The memory is fixed, whatever
+ *     the number of logins : {@value #SLICES} sketches of {@value #DEPTH} rows of
+ *     {@value #WIDTH} counters, and at most {@value #CANDIDATES} candidates.
+ * </p>
+ * <p>
+ *     The candidates are the logins whose estimate was the highest when they last sent
+ *     something : a login which is not a candidate replaces the smallest one once its
+ *     estimate exceeds it. The counts returned are estimates, never below the true count.
+ * </p>
+ * <p>
+ *     The logins are counted by a 64-bit hash of their UTF-8 bytes, seeded at random :
+ *     a client can not choose a login sharing the counters of another one, to inflate
+ *     its count or to hide behind it.
+ * </p>
+ * <p>
+ *     Note : this class is not thread-safe, it is used by the thread of the main loop.
+ * </p>
+ */
+class TopTalkers {
+    record Talker(String login, long count) { }
+
+    private static final int SLICES = 6;
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1_024;
+    static final int CANDIDATES = 64;
+    private final CountMinSketch[] slices = new CountMinSketch[SLICES];
+    private final HashMap<String, Long> candidates = new HashMap<>(); // avec le hash de chaque login
+    private final long seed = new SecureRandom().nextLong();
+    private final long sliceNanos;
+    private int current;
+    private long sliceStart;
+    private long floor; // borne inférieure de la plus petite estimation parmi les candidats
+
+    /**
+     * Creates empty counters.
+     *
+     * @param window the duration of the sliding window, in nanoseconds
+     * @param now the current time, from {@link System#nanoTime()}
+     */
+    TopTalkers(long window, long now) {
+        for (int i = 0; i < SLICES; i++) {
+            slices[i] = new CountMinSketch(DEPTH, WIDTH);
+        }
+        sliceNanos = Math.max(1, window / SLICES);
+        sliceStart = now;
+    }
+
+    /**
+     * Records something sent by a login.
+     *
+     * @param login the login of the client
+     * @param amount the amount sent, such as a number of bytes
+     * @param now the current time, from {@link System#nanoTime()}
+     */
+    void record(String login, long amount, long now) {
+        advance(now);
+        var known = candidates.get(login);
+        var hash = known != null ? known : CountMinSketch.hash(login.getBytes(StandardCharsets.UTF_8), seed);
+        slices[current].add(hash, amount);
+        if (known != null) {
+            return;
+        }
+        if (candidates.size() < CANDIDATES) {
+            candidates.put(login, hash);
+            return;
+        }
+        var estimate = estimate(hash);
+        if (estimate <= floor) {
+            return;
+        }
+        String smallest = null;
+        var min = Long.MAX_VALUE;
+        for (var candidate : candidates.entrySet()) {
+            var count = estimate(candidate.getValue());
+            if (count < min) {
+                min = count;
+                smallest = candidate.getKey();
+            }
+        }
+        if (estimate > min) {
+            candidates.remove(smallest);
+            candidates.put(login, hash);
+        }
+        floor = min; // les estimations ne font que croître jusqu'au prochain changement de tranche
+    }
+
+    /**
+     * Returns the logins which sent the most over the window.
+     *
+     * @param n the maximum number of logins, at most {@value #CANDIDATES}
+     * @param now the current time, from {@link System#nanoTime()}
+     * @return the logins and their estimated counts, by decreasing count
+     */
+    List<Talker> top(int n, long now) {
+        advance(now);
+        var talkers = new ArrayList<Talker>(candidates.size());
+        for (var candidate : candidates.entrySet()) {
+            var count = estimate(candidate.getValue());
+            if (count > 0) {
+                talkers.add(new Talker(candidate.getKey(), count));
+            }
+        }
+        talkers.sort(Comparator.comparingLong(Talker::count).reversed());
+        return talkers.subList(0, Math.min(n, talkers.size()));
+    }
+
+    /**
+     * Returns the total sent by every login over the window.
+     *
+     * @param now the current time, from {@link System#nanoTime()}
+     * @return the exact total
+     */
+    long total(long now) {
+        advance(now);
+        var total = 0L;
+        for (var slice : slices) {
+            total += slice.total();
+        }
+        return total;
+    }
+
+    private long estimate(long hash) {
+        var count = 0L;
+        for (var slice : slices) {
+            count += slice.estimate(hash);
+        }
+        return count;
+    }
+
+    /**
+     * Clears the slices which left the window.
+     */
+    private void advance(long now) {
+        var elapsed = (now - sliceStart) / sliceNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+        for (long i = 0; i < Math.min(elapsed, SLICES); i++) {
+            current = (current + 1) % SLICES;
+            slices[current].clear();
+        }
+        sliceStart += elapsed * sliceNanos;
+        floor = 0;
+    }
+}
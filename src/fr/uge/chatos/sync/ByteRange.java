@@ -0,0 +1,89 @@
+package fr.uge.chatos.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * An inclusive range of bytes of a file, as used by the HTTP {@code Range} field.
+ *
+ * @param first the offset of the first byte
+ * @param last the offset of the last byte
+ */
+public record ByteRange(long first, long last) {
+    /**
+     * The maximal number of ranges of a {@code Range} field : beyond, the whole file is sent.
+     */
+    public static final int MAX_RANGES = 4_096;
+
+    public ByteRange {
+        if (first < 0 || last < first) {
+            throw new IllegalArgumentException("Invalid range " + first + "-" + last);
+        }
+    }
+
+    /**
+     * Returns the number of bytes of this range.
+     *
+     * @return the length
+     */
+    public long length() {
+        return last - first + 1;
+    }
+
+    /**
+     * Parses the value of a {@code Range} field.
+     * <p>
+     *     Only the {@code bytes=first-last,...} form is supported. Ranges are clipped
+     *     to the size of the file. A field asking for more than {@value #MAX_RANGES} ranges,
+     *     or for more bytes than the file contains, such as with overlapping or repeated
+     *     ranges, is refused.
+     * </p>
+     *
+     * @param value the value of the field
+     * @param size the size of the file
+     * @return the ranges, in the order of the field
+     * @throws IllegalArgumentException if the field is malformed, a range is outside the file,
+     * or the ranges are too many
+     */
+    public static List<ByteRange> parse(String value, long size) {
+        var trimmed = value.trim();
+        if (!trimmed.startsWith("bytes=")) {
+            throw new IllegalArgumentException("Unsupported range unit : " + value);
+        }
+        var elements = trimmed.substring("bytes=".length()).split(",");
+        if (elements.length > MAX_RANGES) {
+            throw new IllegalArgumentException("Too many ranges : " + elements.length);
+        }
+        var ranges = new ArrayList<ByteRange>();
+        var total = 0L;
+        for (var element : elements) {
+            var bounds = element.trim().split("-", 2);
+            try {
+                var first = Long.parseLong(bounds[0]);
+                var last = Math.min(Long.parseLong(bounds[1]), size - 1);
+                var range = new ByteRange(first, last);
+                total += range.length();
+                ranges.add(range);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Invalid range : " + element, e);
+            }
+        }
+        if (total > size) { // plages qui se recouvrent
+            throw new IllegalArgumentException("The ranges exceed the size of the file : " + value);
+        }
+        return ranges;
+    }
+
+    /**
+     * Formats ranges as the value of a {@code Range} field.
+     *
+     * @param ranges the ranges
+     * @return the value of the field
+     */
+    public static String format(List<ByteRange> ranges) {
+        return ranges.stream()
+                .map(range -> range.first + "-" + range.last)
+                .collect(Collectors.joining(",", "bytes=", ""));
+    }
+}
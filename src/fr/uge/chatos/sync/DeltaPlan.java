@@ -0,0 +1,290 @@
+package fr.uge.chatos.sync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Describes how to rebuild the version of a file held by a peer from a local copy,
+ * rsync-style.
+ * <p>
+ *     The local copy is scanned with a {@link RollingChecksum} to find, at any offset,
+ *     the blocks listed in the {@link FileSignature} of the peer. Only the blocks which
+ *     are not found have to be transferred : they are requested with a {@code Range}
+ *     field and sent back in a {@code 206 Partial Content} response whose body is a
+ *     sequence of {@code long offset | int length | bytes}.
+ * </p>
+ */
+public class DeltaPlan {
+    /**
+     * The {@code Content-Type} of a response containing blocks.
+     */
+    public static final String BLOCKS_CONTENT_TYPE = "x-chatos-blocks";
+
+    private static final long MISSING = -1;
+    private final FileSignature remote;
+    private final int blockSize;
+    private final long[] localOffsets;
+
+    private DeltaPlan(FileSignature remote, int blockSize, long[] localOffsets) {
+        this.remote = remote;
+        this.blockSize = blockSize;
+        this.localOffsets = localOffsets;
+    }
+
+    /**
+     * Finds which blocks of the remote file are already present in the local copy.
+     *
+     * @param local the local copy, which may not exist
+     * @param remote the signature of the remote file
+     * @param blockSize the block size of the manifest
+     * @return the plan
+     * @throws IOException If some other I/O error occurs.
+     */
+    public static DeltaPlan compute(Path local, FileSignature remote, int blockSize) throws IOException {
+        Objects.requireNonNull(remote);
+        var offsets = new long[remote.blockCount()];
+        Arrays.fill(offsets, MISSING);
+        if (!Files.exists(local) || offsets.length == 0) {
+            return new DeltaPlan(remote, blockSize, offsets);
+        }
+        var size = Files.size(local);
+        if (size > Integer.MAX_VALUE) {
+            return new DeltaPlan(remote, blockSize, offsets); // trop gros pour être projeté en mémoire
+        }
+        try (var channel = FileChannel.open(local, StandardOpenOption.READ)) {
+            var data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            matchFullBlocks(data, (int) size, remote, blockSize, offsets);
+            matchLastBlock(data, (int) size, remote, blockSize, offsets);
+        }
+        return new DeltaPlan(remote, blockSize, offsets);
+    }
+
+    private static void matchFullBlocks(MappedByteBuffer data, int size, FileSignature remote, int blockSize, long[] offsets) {
+        var byWeak = new HashMap<Integer, List<Integer>>();
+        for (int i = 0; i < remote.blockCount(); i++) {
+            if (blockLength(remote, blockSize, i) == blockSize) {
+                byWeak.computeIfAbsent(remote.weak(i), key -> new ArrayList<>()).add(i);
+            }
+        }
+        if (byWeak.isEmpty() || size < blockSize) {
+            return;
+        }
+        var digest = FileSignature.md5();
+        var checksum = new RollingChecksum();
+        checksum.reset(data, 0, blockSize);
+        var position = 0;
+        while (position + blockSize <= size) {
+            var matched = false;
+            var candidates = byWeak.get(checksum.value());
+            if (candidates != null) {
+                var strong = FileSignature.strongChecksum(digest, data, position, blockSize);
+                for (var block : candidates) {
+                    if (offsets[block] == MISSING && remote.strong(block) == strong) {
+                        offsets[block] = position; // les blocs identiques partagent la même source
+                        matched = true;
+                    }
+                }
+            }
+            if (matched) {
+                position += blockSize;
+                if (position + blockSize <= size) {
+                    checksum.reset(data, position, blockSize);
+                }
+            } else {
+                if (position + blockSize < size) {
+                    checksum.roll(data.get(position), data.get(position + blockSize));
+                }
+                position++;
+            }
+        }
+    }
+
+    private static void matchLastBlock(MappedByteBuffer data, int size, FileSignature remote, int blockSize, long[] offsets) {
+        var last = remote.blockCount() - 1;
+        var length = blockLength(remote, blockSize, last);
+        if (length == blockSize || offsets[last] != MISSING || size < length) {
+            return;
+        }
+        // le dernier bloc, plus court, est cherché à la fin du fichier local et à sa position d'origine
+        var candidates = new long[] { size - length, (long) last * blockSize };
+        var digest = FileSignature.md5();
+        for (var candidate : candidates) {
+            if (candidate + length <= size
+                    && FileSignature.strongChecksum(digest, data, (int) candidate, length) == remote.strong(last)) {
+                offsets[last] = candidate;
+                return;
+            }
+        }
+    }
+
+    private static int blockLength(FileSignature remote, int blockSize, int block) {
+        return (int) Math.min(blockSize, remote.getSize() - (long) block * blockSize);
+    }
+
+    /**
+     * Returns the ranges of the remote file which must be transferred.
+     * Consecutive missing blocks are merged in one range.
+     *
+     * @return the missing ranges, empty if the local copy has every block
+     */
+    public List<ByteRange> missingRanges() {
+        var ranges = new ArrayList<ByteRange>();
+        var start = -1;
+        for (int i = 0; i <= localOffsets.length; i++) {
+            var missing = i < localOffsets.length && localOffsets[i] == MISSING;
+            if (missing && start == -1) {
+                start = i;
+            } else if (!missing && start != -1) {
+                var first = (long) start * blockSize;
+                var last = Math.min((long) i * blockSize, remote.getSize()) - 1;
+                ranges.add(new ByteRange(first, last));
+                start = -1;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Returns the number of bytes of the remote file found in the local copy.
+     *
+     * @return the number of reused bytes
+     */
+    public long reusedBytes() {
+        var reused = 0L;
+        for (int i = 0; i < localOffsets.length; i++) {
+            if (localOffsets[i] != MISSING) {
+                reused += blockLength(remote, blockSize, i);
+            }
+        }
+        return reused;
+    }
+
+    /**
+     * Rebuilds the remote version of the file over the local copy.
+     * <p>
+     *     The new content is written in a temporary file which then replaces the local
+     *     copy, whose modification time is set to the one of the remote file. The received
+     *     blocks must cover exactly the missing ranges, without overlapping, and the rebuilt
+     *     content must have the hash of the remote file : otherwise the local copy is left
+     *     untouched.
+     * </p>
+     *
+     * @param local the local copy
+     * @param blocks the body of the {@code 206} response, containing every missing range
+     * @throws IOException If some other I/O error occurs, if the received blocks do not match
+     * the missing ranges or if the rebuilt file differs from the remote one.
+     */
+    public void apply(Path local, ByteBuffer blocks) throws IOException {
+        var parent = local.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        var tmp = Files.createTempFile(parent, ".chatos", ".tmp");
+        try {
+            try (var out = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                copyLocalBlocks(local, out);
+                if (!writeReceivedBlocks(blocks, out).equals(missingRanges())) {
+                    throw new IOException("The received blocks do not match the missing ranges of " + remote.getName());
+                }
+                out.truncate(remote.getSize());
+                if (!hash(out).equals(remote.getHash())) {
+                    throw new IOException("The rebuilt content of " + remote.getName() + " differs from the remote file");
+                }
+            }
+            Files.move(tmp, local, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.setLastModifiedTime(local, FileTime.fromMillis(remote.getLastModified()));
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void copyLocalBlocks(Path local, FileChannel out) throws IOException {
+        if (reusedBytes() == 0) {
+            return;
+        }
+        try (var in = FileChannel.open(local, StandardOpenOption.READ)) {
+            for (int i = 0; i < localOffsets.length; i++) {
+                if (localOffsets[i] == MISSING) {
+                    continue;
+                }
+                var length = blockLength(remote, blockSize, i);
+                var target = (long) i * blockSize;
+                var transferred = 0L;
+                while (transferred < length) {
+                    var n = in.transferTo(localOffsets[i] + transferred, length - transferred, out.position(target + transferred));
+                    if (n <= 0) {
+                        throw new IOException("Local copy of " + remote.getName() + " changed during the synchronization");
+                    }
+                    transferred += n;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the received blocks at their offset.
+     *
+     * @return the ranges covered by the blocks, sorted, with adjacent ranges merged
+     * @throws IOException if a block is malformed or overlaps another one
+     */
+    private List<ByteRange> writeReceivedBlocks(ByteBuffer blocks, FileChannel out) throws IOException {
+        var body = blocks.duplicate();
+        var received = new ArrayList<ByteRange>();
+        while (body.remaining() >= Long.BYTES + Integer.BYTES) {
+            var offset = body.getLong();
+            var length = body.getInt();
+            if (length < 0 || length > body.remaining() || offset < 0 || offset + length > remote.getSize()) {
+                throw new IOException("Invalid block in the response for " + remote.getName());
+            }
+            var chunk = body.slice().limit(length);
+            var position = offset;
+            while (chunk.hasRemaining()) {
+                position += out.write(chunk, position);
+            }
+            body.position(body.position() + length);
+            if (length != 0) {
+                received.add(new ByteRange(offset, offset + length - 1));
+            }
+        }
+        if (body.hasRemaining()) {
+            throw new IOException("Truncated block in the response for " + remote.getName());
+        }
+        received.sort(Comparator.comparingLong(ByteRange::first));
+        var covered = new ArrayList<ByteRange>();
+        for (var range : received) {
+            var previous = covered.isEmpty() ? null : covered.get(covered.size() - 1);
+            if (previous != null && range.first() <= previous.last()) {
+                throw new IOException("Overlapping blocks in the response for " + remote.getName());
+            }
+            if (previous != null && range.first() == previous.last() + 1) {
+                covered.set(covered.size() - 1, new ByteRange(previous.first(), range.last()));
+            } else {
+                covered.add(range);
+            }
+        }
+        return covered;
+    }
+
+    private static String hash(FileChannel channel) throws IOException {
+        var digest = FileSignature.sha256();
+        var buffer = ByteBuffer.allocate(8_192);
+        var position = 0L;
+        int read;
+        while ((read = channel.read(buffer.clear(), position)) != -1) {
+            digest.update(buffer.flip());
+            position += read;
+        }
+        return FileSignature.toHex(digest.digest());
+    }
+}
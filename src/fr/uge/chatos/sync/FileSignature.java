@@ -0,0 +1,151 @@
+package fr.uge.chatos.sync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+
+/**
+ * The description of one file of a {@link Manifest} : its size, its modification
+ * time, the hash of its content and the checksums of each of its blocks.
+ * <p>
+ *     Each block has a weak {@link RollingChecksum} and a strong checksum, which is
+ *     the first 8 bytes of its MD5 hash. The hash of the whole content is its SHA-256
+ *     hash, which is also its strong {@code ETag}.
+ * </p>
+ */
+public class FileSignature {
+    private final String name;
+    private final long size;
+    private final long lastModified;
+    private final String hash;
+    private final int[] weak;
+    private final long[] strong;
+
+    FileSignature(String name, long size, long lastModified, String hash, int[] weak, long[] strong) {
+        this.name = Objects.requireNonNull(name);
+        this.size = size;
+        this.lastModified = lastModified;
+        this.hash = Objects.requireNonNull(hash);
+        this.weak = Objects.requireNonNull(weak);
+        this.strong = Objects.requireNonNull(strong);
+        if (weak.length != strong.length) {
+            throw new IllegalArgumentException("weak and strong checksums count differ");
+        }
+    }
+
+    /**
+     * Computes the signature of a file.
+     *
+     * @param name the name of the file, relative to the repository
+     * @param path the file
+     * @param blockSize the size of the blocks
+     * @return the signature of the file
+     * @throws IOException If some other I/O error occurs.
+     */
+    static FileSignature of(String name, Path path, int blockSize) throws IOException {
+        var size = Files.size(path);
+        var lastModified = Files.getLastModifiedTime(path).toMillis();
+        var count = blockCount(size, blockSize);
+        var weak = new int[count];
+        var strong = new long[count];
+        var digest = md5();
+        var content = sha256();
+        try (var in = Files.newInputStream(path)) {
+            var block = new byte[blockSize];
+            for (int i = 0; i < count; i++) {
+                var read = in.readNBytes(block, 0, blockSize);
+                weak[i] = RollingChecksum.of(block, read);
+                digest.update(block, 0, read);
+                strong[i] = ByteBuffer.wrap(digest.digest()).getLong();
+                content.update(block, 0, read);
+            }
+        }
+        return new FileSignature(name, size, lastModified, toHex(content.digest()), weak, strong);
+    }
+
+    /**
+     * Computes the strong checksum of a block.
+     *
+     * @param digest a MD5 digest, reset by this method
+     * @param buffer the data, read with absolute gets
+     * @param offset the first byte of the block
+     * @param length the size of the block
+     * @return the strong checksum
+     */
+    static long strongChecksum(MessageDigest digest, ByteBuffer buffer, int offset, int length) {
+        var block = buffer.duplicate();
+        block.limit(offset + length).position(offset);
+        digest.update(block);
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e); // MD5 est obligatoire dans toutes les JVM
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e); // SHA-256 est obligatoire dans toutes les JVM
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        var builder = new StringBuilder(2 * bytes.length);
+        for (var b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    static int blockCount(long size, int blockSize) {
+        return (int) ((size + blockSize - 1) / blockSize);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the modification time of the file.
+     *
+     * @return the number of milliseconds since the epoch
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns the hash of the content of the file, which is also its strong {@code ETag}.
+     *
+     * @return the hexadecimal SHA-256 hash, without quotes
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    int blockCount() {
+        return weak.length;
+    }
+
+    int weak(int block) {
+        return weak[block];
+    }
+
+    long strong(int block) {
+        return strong[block];
+    }
+}
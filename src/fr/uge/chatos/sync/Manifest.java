@@ -0,0 +1,230 @@
+package fr.uge.chatos.sync;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * The listing of a served repository, returned in one response to a request on
+ * {@value #TARGET}.
+ * <p>
+ *     For each file, the manifest contains its size, its modification time, its SHA-256
+ *     hash and the checksums of its blocks, so that a peer can find which blocks it
+ *     already has, and check the file it rebuilds from them.
+ *     The format is textual, one line per file :
+ * </p>
+ * <pre>
+ * chatos-manifest 2 &lt;block size&gt;
+ * &lt;url-encoded name&gt; &lt;size&gt; &lt;mtime&gt; &lt;sha-256&gt; &lt;weak&gt;:&lt;strong&gt;,...
+ * </pre>
+ * <p>
+ *     Signatures are memoized by path, size and modification time : only the files
+ *     which changed since the last manifest are read again.
+ * </p>
+ */
+public class Manifest {
+    /**
+     * The request target of the manifest. It can not clash with a file since
+     * requested filenames are relative.
+     */
+    public static final String TARGET = "/.manifest";
+
+    /**
+     * The size of the blocks used for the checksums.
+     */
+    public static final int BLOCK_SIZE = 4_096;
+
+    private static final String MAGIC = "chatos-manifest";
+    private static final int VERSION = 2;
+    private static final ConcurrentHashMap<Path, FileSignature> signatures = new ConcurrentHashMap<>();
+    private final int blockSize;
+    private final List<FileSignature> files;
+
+    private Manifest(int blockSize, List<FileSignature> files) {
+        this.blockSize = blockSize;
+        this.files = Collections.unmodifiableList(files);
+    }
+
+    /**
+     * Builds the manifest of a repository.
+     * <p>
+     *     Hidden files (such as the validators of the client) are not listed.
+     * </p>
+     *
+     * @param repository the served directory
+     * @return the manifest
+     * @throws IOException If some other I/O error occurs.
+     */
+    public static Manifest of(Path repository) throws IOException {
+        Objects.requireNonNull(repository);
+        List<Path> paths;
+        try (var stream = Files.walk(repository)) {
+            paths = stream.filter(Files::isRegularFile)
+                    .filter(path -> isListed(repository, path))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        var files = new ArrayList<FileSignature>(paths.size());
+        for (var path : paths) {
+            files.add(signature(repository, path));
+        }
+        return new Manifest(BLOCK_SIZE, files);
+    }
+
+    private static boolean isListed(Path repository, Path path) {
+        for (var element : repository.relativize(path)) {
+            if (element.toString().startsWith(".")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static FileSignature signature(Path repository, Path path) throws IOException {
+        var key = path.toAbsolutePath().normalize();
+        var name = repository.relativize(path).toString().replace('\\', '/');
+        var cached = signatures.get(key);
+        if (cached != null && cached.getName().equals(name) && cached.getSize() == Files.size(key)
+                && cached.getLastModified() == Files.getLastModifiedTime(key).toMillis()) {
+            return cached;
+        }
+        var signature = FileSignature.of(name, key, BLOCK_SIZE);
+        signatures.put(key, signature);
+        return signature;
+    }
+
+    /**
+     * Parses a manifest received from a peer.
+     * <p>
+     *     The entries whose name could designate a file outside of the repository, or a
+     *     hidden file, are dropped : see {@link #isSafeName(String)}.
+     * </p>
+     *
+     * @param text the content of the response
+     * @return the manifest
+     * @throws IllegalArgumentException if the manifest is malformed, or does not use
+     * blocks of {@value #BLOCK_SIZE} bytes
+     */
+    public static Manifest parse(String text) {
+        var lines = text.split("\n");
+        var header = lines[0].trim().split(" ");
+        if (header.length != 3 || !header[0].equals(MAGIC) || !header[1].equals(Integer.toString(VERSION))) {
+            throw new IllegalArgumentException("Invalid manifest header : " + lines[0]);
+        }
+        try {
+            var blockSize = Integer.parseInt(header[2]);
+            if (blockSize != BLOCK_SIZE) {
+                throw new IllegalArgumentException("Unsupported block size : " + blockSize);
+            }
+            var files = new ArrayList<FileSignature>();
+            for (int i = 1; i < lines.length; i++) {
+                var line = lines[i].trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                var tokens = line.split(" ");
+                if (tokens.length != 5) {
+                    throw new IllegalArgumentException("Invalid manifest line : " + line);
+                }
+                var name = URLDecoder.decode(tokens[0], StandardCharsets.UTF_8);
+                var size = Long.parseLong(tokens[1]);
+                var lastModified = Long.parseLong(tokens[2]);
+                var hash = tokens[3];
+                if (size < 0) {
+                    throw new IllegalArgumentException("Invalid size for " + name);
+                }
+                if (!hash.matches("[0-9a-f]{64}")) {
+                    throw new IllegalArgumentException("Invalid hash for " + name);
+                }
+                var blocks = tokens[4].equals("-") ? new String[0] : tokens[4].split(",");
+                if (blocks.length != FileSignature.blockCount(size, blockSize)) {
+                    throw new IllegalArgumentException("Invalid block count for " + name);
+                }
+                var weak = new int[blocks.length];
+                var strong = new long[blocks.length];
+                for (int j = 0; j < blocks.length; j++) {
+                    var checksums = blocks[j].split(":");
+                    weak[j] = Integer.parseUnsignedInt(checksums[0], 16);
+                    strong[j] = Long.parseUnsignedLong(checksums[1], 16);
+                }
+                if (isSafeName(name)) {
+                    files.add(new FileSignature(name, size, lastModified, hash, weak, strong));
+                }
+            }
+            return new Manifest(blockSize, files);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid manifest", e);
+        }
+    }
+
+    /**
+     * Checks that a name received from a peer designates a file of the repository, as
+     * listed by {@link #of(Path)} : a relative path, without parent nor hidden element.
+     *
+     * @param name the decoded name
+     * @return {@code true} if the file can be synchronized
+     */
+    public static boolean isSafeName(String name) {
+        Path path;
+        try {
+            path = Path.of(name);
+        } catch (InvalidPathException e) {
+            return false;
+        }
+        if (name.isEmpty() || path.isAbsolute() || path.getRoot() != null) {
+            return false;
+        }
+        for (var element : path) {
+            if (element.toString().isEmpty() || element.toString().startsWith(".")) { // dont ".."
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the textual form of this manifest.
+     *
+     * @return the manifest, to be encoded in UTF-8
+     */
+    public String format() {
+        var builder = new StringBuilder();
+        builder.append(MAGIC).append(' ').append(VERSION).append(' ').append(blockSize).append('\n');
+        for (var file : files) {
+            builder.append(URLEncoder.encode(file.getName(), StandardCharsets.UTF_8))
+                    .append(' ').append(file.getSize())
+                    .append(' ').append(file.getLastModified())
+                    .append(' ').append(file.getHash())
+                    .append(' ');
+            if (file.blockCount() == 0) {
+                builder.append('-');
+            }
+            for (int i = 0; i < file.blockCount(); i++) {
+                if (i != 0) {
+                    builder.append(',');
+                }
+                builder.append(Integer.toHexString(file.weak(i))).append(':').append(Long.toHexString(file.strong(i)));
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public List<FileSignature> getFiles() {
+        return files;
+    }
+}
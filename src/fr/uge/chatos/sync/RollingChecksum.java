@@ -0,0 +1,70 @@
+package fr.uge.chatos.sync;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The weak rolling checksum used by rsync.
+ * <p>
+ *     The checksum of a window of {@code n} bytes can be updated in constant time
+ *     when the window moves by one byte, which allows to look for known blocks at
+ *     every offset of a file.
+ * </p>
+ */
+public class RollingChecksum {
+    private int a;
+    private int b;
+    private int length;
+
+    /**
+     * Computes the checksum of a new window.
+     *
+     * @param buffer the data, read with absolute gets
+     * @param offset the first byte of the window
+     * @param length the size of the window
+     */
+    public void reset(ByteBuffer buffer, int offset, int length) {
+        a = 0;
+        b = 0;
+        this.length = length;
+        for (int i = 0; i < length; i++) {
+            var value = buffer.get(offset + i) & 0xFF;
+            a += value;
+            b += (length - i) * value;
+        }
+        a &= 0xFFFF;
+        b &= 0xFFFF;
+    }
+
+    /**
+     * Moves the window by one byte.
+     *
+     * @param out the byte leaving the window
+     * @param in the byte entering the window
+     */
+    public void roll(byte out, byte in) {
+        a = (a - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+        b = (b - length * (out & 0xFF) + a) & 0xFFFF;
+    }
+
+    /**
+     * Returns the checksum of the current window.
+     *
+     * @return the checksum
+     */
+    public int value() {
+        return a | (b << 16);
+    }
+
+    /**
+     * Computes the checksum of a block.
+     *
+     * @param block the data
+     * @param length the number of bytes to use
+     * @return the checksum
+     */
+    public static int of(byte[] block, int length) {
+        var checksum = new RollingChecksum();
+        checksum.reset(ByteBuffer.wrap(block), 0, length);
+        return checksum.value();
+    }
+}
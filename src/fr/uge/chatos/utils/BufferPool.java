@@ -0,0 +1,55 @@
+package fr.uge.chatos.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of direct buffers of the same size.
+ * <p>
+ *     Direct buffers are expensive to allocate, so the buffers released by the
+ *     closed connections are kept to be reused by the next ones.
+ * </p>
+ * <p>
+ *     Note : a pool is only used from the thread of the selector, it is not thread-safe.
+ * </p>
+ */
+public class BufferPool {
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+    private final int bufferSize;
+    private final int maxPooled;
+
+    /**
+     * Creates a new empty pool.
+     *
+     * @param bufferSize the capacity of the buffers
+     * @param maxPooled the maximum number of buffers kept by the pool
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize <= 0 || maxPooled < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Returns a cleared buffer, reused from the pool if possible.
+     *
+     * @return a buffer in <b>write-mode</b>
+     */
+    public ByteBuffer acquire() {
+        var buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Gives back a buffer which is no longer used.
+     *
+     * @param buffer the buffer, {@code null} is ignored
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == bufferSize && buffers.size() < maxPooled) {
+            buffers.add(buffer.clear());
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package fr.uge.chatos.utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A count-min sketch : approximate counters for an unbounded set of keys, in a fixed
+ * amount of memory.
+ * <p>
+ *     Each key increments one counter per row, chosen by a 64-bit hash of the key, such
+ *     as {@link #hash(byte[], long)} ; its estimate is the smallest of these counters. An estimate is never below the true count, and
+ *     exceeds it by at most {@code e / width} of the total of the sketch, except with a
+ *     probability of {@code e^-depth}.
+ * </p>
+ * <p>
+ *     Note : this class is not thread-safe.
+ * </p>
+ */
+public class CountMinSketch {
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private final int depth;
+    private final int mask;
+    private final long[] counters;
+    private long total;
+
+    /**
+     * Creates an empty sketch.
+     *
+     * @param depth the number of rows, strictly positive
+     * @param width the number of counters per row, a power of 2
+     */
+    public CountMinSketch(int depth, int width) {
+        if (depth <= 0 || width <= 0 || Integer.bitCount(width) != 1) {
+            throw new IllegalArgumentException("depth must be positive and width a power of 2");
+        }
+        this.depth = depth;
+        mask = width - 1;
+        counters = new long[depth * width];
+    }
+
+    /**
+     * Adds {@code count} to the counters of a key.
+     *
+     * @param hash the 64-bit hash of the key
+     * @param count the amount to add, positive
+     */
+    public void add(long hash, long count) {
+        var h1 = mix(hash);
+        var h2 = (int) (h1 >>> 32) | 1; // impair, donc chaque rangée a sa propre colonne
+        var row = 0;
+        for (int i = 0; i < depth; i++, row += mask + 1) {
+            counters[row + (((int) h1 + i * h2) & mask)] += count;
+        }
+        total += count;
+    }
+
+    /**
+     * Returns the estimated count of a key.
+     *
+     * @param hash the 64-bit hash of the key
+     * @return the estimate, never below the true count
+     */
+    public long estimate(long hash) {
+        var h1 = mix(hash);
+        var h2 = (int) (h1 >>> 32) | 1;
+        var estimate = Long.MAX_VALUE;
+        var row = 0;
+        for (int i = 0; i < depth; i++, row += mask + 1) {
+            estimate = Math.min(estimate, counters[row + (((int) h1 + i * h2) & mask)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Returns the sum of the counts added since the last {@link #clear()}.
+     *
+     * @return the total
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * Resets every counter.
+     */
+    public void clear() {
+        Arrays.fill(counters, 0);
+        total = 0;
+    }
+
+    /**
+     * Returns a 64-bit hash of a key, which depends on a seed : unlike
+     * {@link String#hashCode()}, keys chosen to share the counters of another key
+     * can not be found without the seed.
+     *
+     * @param key the bytes of the key, such as a login in UTF-8
+     * @param seed the seed, random and kept secret
+     * @return the hash
+     */
+    public static long hash(byte[] key, long seed) {
+        var h = mix(seed ^ key.length);
+        var i = 0;
+        for (; i + Long.BYTES <= key.length; i += Long.BYTES) {
+            h = mix(h ^ (long) LONGS.get(key, i));
+        }
+        var tail = 0L;
+        for (var shift = 0; i < key.length; i++, shift += Byte.SIZE) {
+            tail |= (key[i] & 0xFFL) << shift;
+        }
+        return mix(h ^ tail ^ 0x9E3779B97F4A7C15L);
+    }
+
+    private static long mix(long hash) { // finaliseur de SplitMix64
+        var z = hash * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
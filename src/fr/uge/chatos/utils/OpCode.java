@@ -113,4 +113,77 @@ public class OpCode {
      * </p>
      */
     public static final byte PRIVATE_CONNECTION_CONFIRMATION = 11;
+
+    /**
+     * This code represents a private connection initialization, as a stream of the
+     * multiplexed private socket.
+     * <p>
+     *     From {@link fr.uge.chatos.server.Server} to {@link fr.uge.chatos.client.Client}.
+     * </p>
+     */
+    public static final byte PRIVATE_CONNECTION_STREAM = 12;
+
+    /**
+     * This code represents the authentication of a stream on the multiplexed private socket.
+     * <p>
+     *     From {@link fr.uge.chatos.client.Client} to {@link fr.uge.chatos.server.Server}.
+     * </p>
+     */
+    public static final byte STREAM_OPEN = 13;
+
+    /**
+     * This code represents data of a stream on the multiplexed private socket.
+     * <p>
+     *     Both directions.
+     * </p>
+     */
+    public static final byte STREAM_DATA = 14;
+
+    /**
+     * This code represents a credit of bytes which can be sent on a stream.
+     * <p>
+     *     Both directions.
+     * </p>
+     */
+    public static final byte STREAM_WINDOW = 15;
+
+    /**
+     * This code represents the end of a stream.
+     * <p>
+     *     Both directions.
+     * </p>
+     */
+    public static final byte STREAM_CLOSE = 16;
+
+    /**
+     * This code represents a group private connection request.
+     * <p>
+     *     From {@link fr.uge.chatos.client.Client} to {@link fr.uge.chatos.server.Server}.
+     * </p>
+     */
+    public static final byte GROUP_REQUEST = 17;
+
+    /**
+     * This code represents a request resuming a public session after the loss of its socket.
+     * <p>
+     *     From {@link fr.uge.chatos.client.Client} to {@link fr.uge.chatos.server.Server}.
+     * </p>
+     */
+    public static final byte CONNECTION_RESUME = 18;
+
+    /**
+     * This code represents a latency probe sent to every client, or to a single one.
+     * <p>
+     *     From {@link fr.uge.chatos.client.Client} to {@link fr.uge.chatos.server.Server}.
+     * </p>
+     */
+    public static final byte LATENCY_PROBE_SENDER = 19;
+
+    /**
+     * This code represents a latency probe delivered by the server, with its ingress and egress times.
+     * <p>
+     *     From {@link fr.uge.chatos.server.Server} to {@link fr.uge.chatos.client.Client}.
+     * </p>
+     */
+    public static final byte LATENCY_PROBE_RECEIVER = 20;
 }
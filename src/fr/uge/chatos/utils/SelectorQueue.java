@@ -0,0 +1,83 @@
+package fr.uge.chatos.utils;
+
+import java.nio.channels.Selector;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * A queue handing items, such as the commands typed in a console, from any thread
+ * to the thread of a selector.
+ * <p>
+ *     Adding an item never blocks nor takes a lock : the queue is unbounded and
+ *     lock-free. The selector is only woken up by the first item added since its last
+ *     drain, so a burst of items costs a single {@link Selector#wakeup()}.
+ * </p>
+ * <p>
+ *     The selector thread drains the items by batches, so that a large burst does not
+ *     delay the other work of its loop : when a batch leaves items behind, the selector
+ *     is woken up again to drain them at the next turn.
+ * </p>
+ *
+ * @param <E> the type of the items
+ */
+public class SelectorQueue<E> {
+    private final ConcurrentLinkedQueue<E> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final Selector selector;
+    private final int batchSize;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param selector the selector whose thread drains the queue
+     * @param batchSize the maximum number of items drained at once
+     */
+    public SelectorQueue(Selector selector, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+        this.selector = Objects.requireNonNull(selector);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Adds an item and wakes up the selector if it is not already about to drain the queue.
+     * <p>
+     *     Note : can be called from any thread.
+     * </p>
+     *
+     * @param item the item to add
+     */
+    public void add(E item) {
+        queue.add(Objects.requireNonNull(item));
+        if (!wakeupPending.get() && !wakeupPending.getAndSet(true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Gives at most one batch of items to {@code action}, in the order they were added.
+     * <p>
+     *     Note : to be called only from the thread of the selector.
+     * </p>
+     *
+     * @param action the action receiving each item
+     * @return the number of items drained
+     */
+    public int drain(Consumer<? super E> action) {
+        wakeupPending.set(false); // les éléments ajoutés après cette ligne réveillent le sélecteur
+        var count = 0;
+        E item;
+        while (count < batchSize && (item = queue.poll()) != null) {
+            action.accept(item);
+            count++;
+        }
+        if (count == batchSize && !queue.isEmpty()) {
+            wakeupPending.set(true);
+            selector.wakeup(); // la suite est traitée au prochain tour
+        }
+        return count;
+    }
+}
@@ -0,0 +1,67 @@
+package fr.uge.chatos.utils;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Combines several {@link TokenBucket}, for example a global limit, a limit per login
+ * and a limit per connection : a transfer is allowed only if every bucket allows it.
+ */
+public class Throttle {
+    private static final long RESUME_THRESHOLD = 1_024; // évite de reprendre pour quelques octets
+    private final TokenBucket[] buckets;
+
+    private Throttle(TokenBucket[] buckets) {
+        this.buckets = buckets;
+    }
+
+    /**
+     * Creates a throttle from the specified buckets, ignoring the {@code null} ones.
+     *
+     * @param buckets the buckets, {@code null} meaning no limit
+     * @return the throttle, or {@code null} if no bucket limits the transfer
+     */
+    public static Throttle of(TokenBucket... buckets) {
+        var limits = Arrays.stream(buckets).filter(Objects::nonNull).toArray(TokenBucket[]::new);
+        return limits.length == 0 ? null : new Throttle(limits);
+    }
+
+    /**
+     * Returns the number of bytes which can be transferred right now.
+     *
+     * @param now the current time, from {@link System#nanoTime()}
+     * @return the smallest number of available bytes among the buckets
+     */
+    public long allowance(long now) {
+        var allowance = Long.MAX_VALUE;
+        for (var bucket : buckets) {
+            allowance = Math.min(allowance, bucket.available(now));
+        }
+        return allowance;
+    }
+
+    /**
+     * Records a transfer in every bucket.
+     *
+     * @param bytes the number of transferred bytes
+     */
+    public void consume(long bytes) {
+        for (var bucket : buckets) {
+            bucket.consume(bytes);
+        }
+    }
+
+    /**
+     * Returns the time to wait before the transfer can be resumed.
+     *
+     * @param now the current time, from {@link System#nanoTime()}
+     * @return the delay in nanoseconds
+     */
+    public long delay(long now) {
+        var delay = 0L;
+        for (var bucket : buckets) {
+            delay = Math.max(delay, bucket.delay(RESUME_THRESHOLD, now));
+        }
+        return delay;
+    }
+}
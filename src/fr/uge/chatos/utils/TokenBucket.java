@@ -0,0 +1,130 @@
+package fr.uge.chatos.utils;
+
+import java.util.Locale;
+
+/**
+ * This class implements a token bucket limiting a bandwidth.
+ * <p>
+ *     The bucket is refilled at {@code rate} bytes per second and holds at most
+ *     a tenth of a second of traffic, so short bursts are smoothed without letting
+ *     a transfer monopolize the link.
+ * </p>
+ * <p>
+ *     Note : a bucket can be shared by several relay threads, it is thread-safe.
+ * </p>
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long MIN_CAPACITY = 4_096;
+    private final long rate;
+    private final long capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Creates a new full bucket.
+     *
+     * @param rate the number of bytes allowed per second, strictly positive
+     */
+    public TokenBucket(long rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        this.rate = rate;
+        capacity = Math.max(rate / 10, MIN_CAPACITY);
+        tokens = capacity;
+        lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Returns the rate of this bucket.
+     *
+     * @return the number of bytes allowed per second
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Creates a bucket from a system property, whose value is a number of bytes
+     * per second with an optional {@code k}, {@code m} or {@code g} suffix.
+     *
+     * @param property the name of the system property
+     * @return the bucket, or {@code null} if the property is missing, invalid or zero
+     */
+    public static TokenBucket ofProperty(String property) {
+        var rate = parseRate(System.getProperty(property));
+        return rate > 0 ? new TokenBucket(rate) : null;
+    }
+
+    /**
+     * Parses a bandwidth such as {@code 512k} or {@code 10m}.
+     *
+     * @param value the bandwidth, may be {@code null}
+     * @return the number of bytes per second, {@code 0} if the value is missing or invalid
+     */
+    public static long parseRate(String value) {
+        if (value == null || value.isBlank()) {
+            return 0;
+        }
+        var s = value.trim().toLowerCase(Locale.ROOT);
+        var multiplier = switch (s.charAt(s.length() - 1)) {
+            case 'k' -> 1L << 10;
+            case 'm' -> 1L << 20;
+            case 'g' -> 1L << 30;
+            default -> 1L;
+        };
+        if (multiplier != 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        try {
+            return Math.max(0, Long.parseLong(s) * multiplier);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private synchronized void refill(long now) {
+        var elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            tokens = Math.min(capacity, tokens + (double) elapsed * rate / NANOS_PER_SECOND);
+            lastRefill = now;
+        }
+    }
+
+    /**
+     * Returns the number of bytes which can be transferred right now.
+     *
+     * @param now the current time, from {@link System#nanoTime()}
+     * @return the available bytes
+     */
+    public synchronized long available(long now) {
+        refill(now);
+        return (long) Math.max(0, tokens);
+    }
+
+    /**
+     * Takes {@code bytes} tokens from this bucket.
+     *
+     * @param bytes the number of transferred bytes
+     */
+    public synchronized void consume(long bytes) {
+        tokens -= bytes;
+    }
+
+    /**
+     * Returns the time to wait before {@code bytes} tokens are available.
+     *
+     * @param bytes the number of bytes to transfer, capped to the capacity of the bucket
+     * @param now the current time, from {@link System#nanoTime()}
+     * @return the delay in nanoseconds, {@code 0} if the bytes are already available
+     */
+    public synchronized long delay(long bytes, long now) {
+        refill(now);
+        var missing = Math.min(bytes, capacity) - tokens;
+        if (missing <= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(missing * NANOS_PER_SECOND / rate);
+    }
+}
@@ -44,14 +44,14 @@ public interface PacketVisitor {
     void visit(PCRequest PCRequest);
 
     /**
-     * OpCode : 9 et 10.
+     * OpCode : 9 et 12.
      *
      * @param PCSockets
      */
     void visit(PCSockets PCSockets);
 
     /**
-     * OpCode : 11.
+     * OpCode : 10 et 13.
      *
      * @param auth
      */
@@ -70,4 +70,46 @@ public interface PacketVisitor {
 
     void visit(HttpData httpData);
 
+    /**
+     * OpCode : 14.
+     *
+     * @param streamData
+     */
+    void visit(StreamData streamData);
+
+    /**
+     * OpCode : 15.
+     *
+     * @param streamWindow
+     */
+    void visit(StreamWindow streamWindow);
+
+    /**
+     * OpCode : 16.
+     *
+     * @param streamClose
+     */
+    void visit(StreamClose streamClose);
+
+    /**
+     * OpCode : 17.
+     *
+     * @param groupRequest
+     */
+    void visit(GroupRequest groupRequest);
+
+    /**
+     * OpCode : 18.
+     *
+     * @param connectionResume
+     */
+    void visit(ConnectionResume connectionResume);
+
+    /**
+     * OpCode : 19 and 20.
+     *
+     * @param latencyProbe
+     */
+    void visit(LatencyProbe latencyProbe);
+
 }